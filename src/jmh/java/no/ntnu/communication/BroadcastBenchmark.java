@@ -0,0 +1,133 @@
+package no.ntnu.communication;
+
+import io.github.cdimascio.dotenv.Dotenv;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.security.KeyStoreException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import no.ntnu.communication.transport.SocketConnection;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of broadcasting a sensor data message to N connected control panels. The panels are
+ * real client handlers on socket connections with their writer threads, over in-memory sockets which
+ * discard everything written to them, so the cost of the network itself is left out.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BroadcastBenchmark {
+  private static final String MESSAGE =
+      "SENSOR_DATA;3;temperature=27.1 °C,temperature=26.8 °C,humidity=81.0 %;1700000000000";
+
+  @Param({"1", "10", "100"})
+  private int panelCount;
+
+  private TcpServer server;
+  private final List<InMemorySocket> sockets = new ArrayList<>();
+
+  /**
+   * Create the server and connect the control panels to it.
+   *
+   * @throws IOException       if an in-memory socket can't be created
+   * @throws KeyStoreException if the keystore from .env can't be loaded
+   */
+  @Setup(Level.Trial)
+  public void setUp() throws IOException, KeyStoreException {
+    Dotenv dotenv = Dotenv.load();
+    server = new TcpServer(new HashMap<>(), dotenv.get("KEYSTORE_PATH"),
+        dotenv.get("KEYSTORE_PASSWORD"));
+    for (int i = 0; i < panelCount; i++) {
+      InMemorySocket socket = new InMemorySocket(i);
+      ClientHandler client = new ClientHandler(new SocketConnection(socket, "Panel-" + i), server,
+          server.getNodes());
+      client.start();
+      server.registerControlPanel(client);
+      sockets.add(socket);
+    }
+  }
+
+  /**
+   * Disconnect the control panels and stop the server.
+   *
+   * @throws IOException if an in-memory socket can't be closed
+   */
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    for (InMemorySocket socket : sockets) {
+      socket.close();
+    }
+    server.stopServer();
+  }
+
+  @Benchmark
+  public void broadcastToControlPanels() {
+    server.broadcastToControlPanels(MESSAGE);
+  }
+
+  /**
+   * A socket without a network connection. Reads block until the socket is closed, writes are
+   * discarded.
+   */
+  private static class InMemorySocket extends Socket {
+    private final PipedOutputStream inputSource = new PipedOutputStream();
+    private final PipedInputStream input = new PipedInputStream(inputSource);
+    private final OutputStream output = OutputStream.nullOutputStream();
+    private final SocketAddress address;
+    private volatile boolean closed;
+
+    InMemorySocket(int index) throws IOException {
+      this.address = InetSocketAddress.createUnresolved("panel-" + index, 0);
+    }
+
+    @Override
+    public InputStream getInputStream() {
+      return input;
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+      return output;
+    }
+
+    @Override
+    public SocketAddress getRemoteSocketAddress() {
+      return address;
+    }
+
+    @Override
+    public boolean isClosed() {
+      return closed;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+      closed = true;
+      inputSource.close();
+    }
+  }
+}
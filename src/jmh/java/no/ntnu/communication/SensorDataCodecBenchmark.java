@@ -0,0 +1,59 @@
+package no.ntnu.communication;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import no.ntnu.greenhouse.DeviceFactory;
+import no.ntnu.greenhouse.Sensor;
+import no.ntnu.greenhouse.SensorReading;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of formatting sensor readings on the node and parsing them on the control panel.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SensorDataCodecBenchmark {
+  @Param({"3", "16"})
+  private int sensorCount;
+
+  private List<Sensor> sensors;
+  private String sensorData;
+
+  /**
+   * Create the sensors, half of them temperature and half humidity sensors.
+   */
+  @Setup
+  public void setUp() {
+    Sensor[] created = new Sensor[sensorCount];
+    for (int i = 0; i < sensorCount; i++) {
+      created[i] = i % 2 == 0 ? DeviceFactory.createTemperatureSensor()
+          : DeviceFactory.createHumiditySensor();
+    }
+    sensors = List.of(created);
+    sensorData = SensorActuatorTcpClient.formatSensorData(sensors);
+  }
+
+  @Benchmark
+  public String formatSensorData() {
+    return SensorActuatorTcpClient.formatSensorData(sensors);
+  }
+
+  @Benchmark
+  public List<SensorReading> parseSensorData() {
+    return ControlPanelTcpClient.parseSensorReadings(sensorData, 1700000000000L);
+  }
+}
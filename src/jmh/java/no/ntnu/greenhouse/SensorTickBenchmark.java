@@ -0,0 +1,44 @@
+package no.ntnu.greenhouse;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of one simulation tick of a node: sensor noise and the sensor snapshot. The node is
+ * not started and has no listeners, so the tick runs on the benchmark thread only.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SensorTickBenchmark {
+  @Param({"3", "16"})
+  private int sensorCount;
+
+  private SensorActuatorNode node;
+
+  /**
+   * Create a node with the given number of sensors, half of them temperature sensors.
+   */
+  @Setup
+  public void setUp() {
+    node = DeviceFactory.createNode(sensorCount - sensorCount / 2, sensorCount / 2, 1, 2, 1);
+  }
+
+  @Benchmark
+  public void generateNewSensorValues() {
+    node.generateNewSensorValues();
+  }
+}
@@ -0,0 +1,72 @@
+package no.ntnu.history;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of compressing and decompressing a sensor series, in points per microsecond. The
+ * series looks like the simulated sensors: a reading every 5 seconds with a millisecond of
+ * jitter, and two-decimal values with 1% noise.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ChunkCodecBenchmark {
+  private static final int POINTS = 1000;
+
+  private final long[] timestamps = new long[POINTS];
+  private final double[] values = new double[POINTS];
+  private byte[] chunk;
+
+  /**
+   * Generate the series and encode it once for the decoding benchmark.
+   */
+  @Setup
+  public void setUp() {
+    Random random = new Random(1);
+    long timestamp = 1_700_000_000_000L;
+    double value = 21.5;
+    for (int i = 0; i < POINTS; i++) {
+      timestamp += 4999 + random.nextInt(3);
+      value = Math.round(value * (1 + (random.nextDouble() - 0.5) * 0.02) * 100) / 100.0;
+      timestamps[i] = timestamp;
+      values[i] = value;
+    }
+    chunk = encode();
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(POINTS)
+  public byte[] encode() {
+    ChunkEncoder encoder = new ChunkEncoder(POINTS);
+    for (int i = 0; i < POINTS; i++) {
+      encoder.add(timestamps[i], values[i]);
+    }
+    return encoder.toByteArray();
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(POINTS)
+  public double decode() {
+    ChunkDecoder decoder = new ChunkDecoder(chunk);
+    double sum = 0;
+    while (decoder.next()) {
+      sum += decoder.getValue() + decoder.getTimestamp();
+    }
+    return sum;
+  }
+}
@@ -0,0 +1,77 @@
+package no.ntnu.history;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of appending points to the sensor history store from several threads, like many
+ * connections ingesting at the same time, including segment rolls. The store lives in a temporary
+ * directory which is removed afterwards.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class HistoryAppendBenchmark {
+  private Path directory;
+  private SensorHistoryStore store;
+  private SensorHistoryIngest ingest;
+
+  /**
+   * Open an empty store.
+   *
+   * @throws IOException if the store can't be created
+   */
+  @Setup
+  public void setUp() throws IOException {
+    directory = Files.createTempDirectory("history-benchmark");
+    store = new SensorHistoryStore(directory);
+    ingest = new SensorHistoryIngest(store);
+  }
+
+  /**
+   * Close the store and delete its files.
+   *
+   * @throws IOException if the files can't be deleted
+   */
+  @TearDown
+  public void tearDown() throws IOException {
+    store.close();
+    try (Stream<Path> files = Files.walk(directory)) {
+      files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+    }
+  }
+
+  @Benchmark
+  public void append() {
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    store.append(random.nextInt(1000), random.nextInt(4), System.currentTimeMillis(),
+        random.nextDouble());
+  }
+
+  @Benchmark
+  public void ingestSensorData() {
+    ingest.onSensorData(ThreadLocalRandom.current().nextInt(1000),
+        "temperature=21.5 °C,humidity=45.25 %,temperature=19.0 °C", System.currentTimeMillis());
+  }
+}
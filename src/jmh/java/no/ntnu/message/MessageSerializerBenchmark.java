@@ -0,0 +1,50 @@
+package no.ntnu.message;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of parsing and serializing the most frequent protocol messages.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MessageSerializerBenchmark {
+    private final String sensorDataString =
+            "SENSOR_DATA;3;temperature=27.1 °C,temperature=26.8 °C,humidity=81.0 %;1700000000000";
+    private final String actuatorCommandString = "ACTUATOR_COMMAND;3;5;true";
+    private final Message sensorDataMessage = new SensorDataMessage(3,
+            "temperature=27.1 °C,temperature=26.8 °C,humidity=81.0 %", 1700000000000L, 0, 0);
+    private final Message actuatorStateMessage = new ActuatorStateMessage(3, 5, true);
+
+    @Benchmark
+    public Message parseSensorData() {
+        return MessageSerializer.fromString(sensorDataString);
+    }
+
+    @Benchmark
+    public Message parseActuatorCommand() {
+        return MessageSerializer.fromString(actuatorCommandString);
+    }
+
+    @Benchmark
+    public String serializeSensorData() {
+        return MessageSerializer.toString(sensorDataMessage);
+    }
+
+    @Benchmark
+    public String serializeActuatorState() {
+        return MessageSerializer.toString(actuatorStateMessage);
+    }
+}
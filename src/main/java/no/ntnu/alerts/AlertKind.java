@@ -0,0 +1,34 @@
+package no.ntnu.alerts;
+
+/**
+ * The kinds of alert rules.
+ */
+public enum AlertKind {
+  /**
+   * The mean reading of a sensor type on a node is above or below a threshold.
+   */
+  THRESHOLD("threshold"),
+  /**
+   * A node has sent no sensor data for a while.
+   */
+  SILENT("silent"),
+  /**
+   * An actuator has not reported the state it was commanded to for a while.
+   */
+  STUCK("stuck");
+
+  private final String label;
+
+  AlertKind(String label) {
+    this.label = label;
+  }
+
+  /**
+   * Get the name of the kind used in the configuration, like "silent".
+   *
+   * @return the label
+   */
+  public String getLabel() {
+    return label;
+  }
+}
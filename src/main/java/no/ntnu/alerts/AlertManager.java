@@ -0,0 +1,546 @@
+package no.ntnu.alerts;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import no.ntnu.greenhouse.Actuator;
+import no.ntnu.greenhouse.SensorActuatorNode;
+import no.ntnu.listeners.server.ActuatorCommandListener;
+import no.ntnu.listeners.server.ActuatorStateListener;
+import no.ntnu.listeners.server.AlertDigestListener;
+import no.ntnu.listeners.server.SensorDataListener;
+import no.ntnu.message.AlertDigestMessage;
+import no.ntnu.message.AlertEntry;
+import no.ntnu.tools.Cancellable;
+import no.ntnu.tools.Logger;
+import no.ntnu.tools.Parser;
+import no.ntnu.tools.TaskScheduler;
+import no.ntnu.tools.metrics.Counter;
+import no.ntnu.tools.metrics.Histogram;
+import no.ntnu.tools.metrics.Metrics;
+
+/**
+ * Tracks the alerts of {@link AlertRule}s per entity on the server, and delivers their changes to
+ * the control panels in periodic digests.
+ * An alert only changes when its rule starts or stops firing for the entity, so a condition which
+ * lasts is reported once. A change only marks the alert for the next digest; an alert which is
+ * already marked is not marked again, and one which is back in the state the panels know of when
+ * the digest is made is left out. So an alert which flaps between two digests costs one queue
+ * entry and is not delivered at all.
+ * The work on the threads which receive sensor data is bounded: the threshold rules parse the
+ * readings in place like the rule engine, and a change takes the lock of its alert and adds it to
+ * a lock-free queue. Silent nodes and stuck actuators are found, and the digests made and sent,
+ * on the thread of the scheduler. A digest lists at most a fixed number of changes; after a mass
+ * event, like a power loss which silences thousands of nodes at once, the rest wait in the queue
+ * for the next digests, and the panels are told how many alerts fire in total meanwhile.
+ */
+public class AlertManager implements SensorDataListener, ActuatorCommandListener,
+    ActuatorStateListener {
+  public static final long DEFAULT_DIGEST_MILLIS = 5000;
+  public static final int DEFAULT_MAX_ALERTS_PER_DIGEST = 250;
+  /**
+   * The largest number of firing alerts sent to a panel when it connects.
+   */
+  public static final int MAX_SNAPSHOT_ALERTS = 1000;
+  private static final Counter SUPPRESSED = Metrics.counter("alerts_suppressed_total");
+  private static final Counter DIGESTS = Metrics.counter("alert_digests_total");
+  private static final Histogram DIGEST_TIME = Metrics.histogram("alert_digest_nanos");
+
+  private final Map<Integer, SensorActuatorNode> nodes;
+  private final AlertDigestListener listener;
+  private final TaskScheduler scheduler;
+  private final long digestMillis;
+  private final int maxAlertsPerDigest;
+  private final String[] types;
+  private final CompiledRule[][] thresholdRulesByType;
+  private final CompiledRule[] silentRules;
+  private final CompiledRule[] stuckRules;
+  private final ThreadLocal<Scratch> scratch;
+  private final Map<Long, Boolean> reportedStates = new ConcurrentHashMap<>();
+  private final Queue<AlertState> changes = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger queuedCount = new AtomicInteger();
+  private final AtomicInteger firingCount = new AtomicInteger();
+  private volatile long[] lastSeen;
+  private Cancellable digestTask;
+
+  /**
+   * Create an alert manager. It does not deliver digests until started.
+   *
+   * @param rules              the rules to track
+   * @param nodes              the nodes of the greenhouse, for the initial actuator states
+   * @param listener           receives the digests, normally to send them to the panels
+   * @param scheduler          the scheduler which makes the digests and tells the time
+   * @param digestMillis       the time between digests, in milliseconds
+   * @param maxAlertsPerDigest the largest number of alert changes in a digest
+   */
+  public AlertManager(List<AlertRule> rules, Map<Integer, SensorActuatorNode> nodes,
+                      AlertDigestListener listener, TaskScheduler scheduler, long digestMillis,
+                      int maxAlertsPerDigest) {
+    if (digestMillis <= 0 || maxAlertsPerDigest <= 0) {
+      throw new IllegalArgumentException("The digest period and size must be positive");
+    }
+    this.nodes = nodes;
+    this.listener = listener;
+    this.scheduler = scheduler;
+    this.digestMillis = digestMillis;
+    this.maxAlertsPerDigest = maxAlertsPerDigest;
+    Map<String, List<CompiledRule>> index = new LinkedHashMap<>();
+    List<CompiledRule> silent = new ArrayList<>();
+    List<CompiledRule> stuck = new ArrayList<>();
+    for (AlertRule rule : rules) {
+      CompiledRule compiled = new CompiledRule(rule);
+      switch (rule.getKind()) {
+        case THRESHOLD -> index.computeIfAbsent(rule.getSensorType(), type -> new ArrayList<>())
+            .add(compiled);
+        case SILENT -> silent.add(compiled);
+        case STUCK -> stuck.add(compiled);
+        default -> throw new IllegalArgumentException("Unknown alert kind " + rule.getKind());
+      }
+    }
+    this.types = index.keySet().toArray(new String[0]);
+    this.thresholdRulesByType = new CompiledRule[types.length][];
+    for (int i = 0; i < types.length; i++) {
+      thresholdRulesByType[i] = index.get(types[i]).toArray(new CompiledRule[0]);
+    }
+    this.silentRules = silent.toArray(new CompiledRule[0]);
+    this.stuckRules = stuck.toArray(new CompiledRule[0]);
+    this.scratch = ThreadLocal.withInitial(() -> new Scratch(types.length));
+    int maxNodeId = nodes.keySet().stream().mapToInt(Integer::intValue).max().orElse(0);
+    this.lastSeen = new long[Math.max(16, maxNodeId + 1)];
+    Metrics.gauge("alerts_firing", firingCount::get);
+    Metrics.gauge("alerts_queued", queuedCount::get);
+    Logger.info("Alert manager started with " + rules.size() + " rules");
+  }
+
+  /**
+   * Start making a digest every period.
+   */
+  public synchronized void start() {
+    if (digestTask == null) {
+      digestTask = scheduler.scheduleAtFixedRate(this::digest, digestMillis, digestMillis);
+    }
+  }
+
+  /**
+   * Stop making digests and stop the scheduler. Changes which were not delivered are dropped.
+   */
+  public synchronized void shutdown() {
+    if (digestTask != null) {
+      digestTask.cancel();
+      digestTask = null;
+    }
+    scheduler.shutdown();
+  }
+
+  @Override
+  public void onSensorData(int nodeId, String sensorData, long captureTime) {
+    if (nodeId < 1 || nodeId > MAX_NODE_ID) {
+      return;
+    }
+    long now = scheduler.currentTimeMillis();
+    long previous = markSeen(nodeId, now);
+    for (CompiledRule rule : silentRules) {
+      AlertState state = rule.nodeState(nodeId, false);
+      if (state != null && state.firing) {
+        change(rule, state, false, (now - previous) / 1000.0, now);
+      }
+    }
+    if (types.length > 0) {
+      checkThresholds(nodeId, sensorData, now);
+    }
+  }
+
+  /**
+   * Evaluate the threshold rules on the mean readings of each type in a message.
+   */
+  private void checkThresholds(int nodeId, String sensorData, long now) {
+    Scratch values = scratch.get();
+    Arrays.fill(values.counts, 0);
+    Arrays.fill(values.sums, 0);
+    int position = 0;
+    int length = sensorData.length();
+    while (position < length) {
+      int end = sensorData.indexOf(',', position);
+      if (end < 0) {
+        end = length;
+      }
+      int equals = sensorData.indexOf('=', position);
+      if (equals >= 0 && equals < end) {
+        int type = typeIndex(sensorData, position, equals);
+        if (type >= 0) {
+          double value = Parser.parseReadingValue(sensorData, equals + 1, end);
+          if (!Double.isNaN(value)) {
+            values.sums[type] += value;
+            values.counts[type]++;
+          }
+        }
+      }
+      position = end + 1;
+    }
+    for (int type = 0; type < types.length; type++) {
+      if (values.counts[type] > 0) {
+        double mean = values.sums[type] / values.counts[type];
+        for (CompiledRule rule : thresholdRulesByType[type]) {
+          checkThreshold(rule, nodeId, mean, now);
+        }
+      }
+    }
+  }
+
+  private void checkThreshold(CompiledRule compiled, int nodeId, double value, long now) {
+    AlertRule rule = compiled.rule;
+    boolean breached = rule.isAbove() ? value > rule.getThreshold()
+        : value < rule.getThreshold();
+    AlertState state = compiled.nodeState(nodeId, breached);
+    if (state == null) {
+      return;
+    }
+    if (breached) {
+      if (!state.firing) {
+        change(compiled, state, true, value, now);
+      }
+    } else if (state.firing) {
+      double release = rule.isAbove() ? rule.getThreshold() - rule.getHysteresis()
+          : rule.getThreshold() + rule.getHysteresis();
+      if (rule.isAbove() ? value < release : value > release) {
+        change(compiled, state, false, value, now);
+      }
+    }
+  }
+
+  /**
+   * Find the index of the type of a reading, comparing it in place.
+   */
+  private int typeIndex(String sensorData, int start, int end) {
+    int typeLength = end - start;
+    for (int i = 0; i < types.length; i++) {
+      if (types[i].length() == typeLength && sensorData.regionMatches(start, types[i], 0,
+          typeLength)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Remember when a node last sent data. Growing the array is rare; an update racing with it can
+   * be lost, which at worst delays finding the node silent.
+   *
+   * @return when the node sent data before, 0 if never
+   */
+  private long markSeen(int nodeId, long now) {
+    long[] current = lastSeen;
+    if (nodeId >= current.length) {
+      synchronized (this) {
+        current = lastSeen;
+        if (nodeId >= current.length) {
+          current = Arrays.copyOf(current, Math.max(nodeId + 1, current.length * 2));
+          lastSeen = current;
+        }
+      }
+    }
+    long previous = current[nodeId];
+    current[nodeId] = now;
+    return previous;
+  }
+
+  @Override
+  public void onActuatorCommand(int nodeId, int actuatorId, boolean on) {
+    if (stuckRules.length == 0) {
+      return;
+    }
+    long key = key(nodeId, actuatorId);
+    Boolean reported = reportedStates.get(key);
+    if (reported == null) {
+      reported = initialState(nodeId, actuatorId);
+      if (reported == null) {
+        return;
+      }
+    }
+    long now = scheduler.currentTimeMillis();
+    for (CompiledRule rule : stuckRules) {
+      AlertState state = rule.actuatorStates.computeIfAbsent(key,
+          k -> new AlertState(rule.rule, nodeId, actuatorId));
+      boolean resolve;
+      double seconds;
+      synchronized (state) {
+        seconds = (now - state.commandTime) / 1000.0;
+        if (reported == on) {
+          state.expecting = false;
+          resolve = state.firing;
+        } else {
+          if (!state.expecting || state.desired != on) {
+            state.expecting = true;
+            state.desired = on;
+            state.commandTime = now;
+          }
+          resolve = false;
+        }
+      }
+      if (resolve) {
+        change(rule, state, false, seconds, now);
+      }
+    }
+  }
+
+  /**
+   * Get the state of an actuator which has not reported a change yet, as the server knows it.
+   *
+   * @return the state, or null if there is no such actuator
+   */
+  private Boolean initialState(int nodeId, int actuatorId) {
+    SensorActuatorNode node = nodes.get(nodeId);
+    Actuator actuator = node != null ? node.getActuators().get(actuatorId) : null;
+    return actuator != null ? actuator.isOn() : null;
+  }
+
+  @Override
+  public void onActuatorState(int nodeId, int actuatorId, boolean on) {
+    if (stuckRules.length == 0) {
+      return;
+    }
+    long key = key(nodeId, actuatorId);
+    reportedStates.put(key, on);
+    long now = scheduler.currentTimeMillis();
+    for (CompiledRule rule : stuckRules) {
+      AlertState state = rule.actuatorStates.get(key);
+      if (state == null) {
+        continue;
+      }
+      boolean resolve;
+      double seconds;
+      synchronized (state) {
+        if (!state.expecting || state.desired != on) {
+          continue;
+        }
+        state.expecting = false;
+        resolve = state.firing;
+        seconds = (now - state.commandTime) / 1000.0;
+      }
+      if (resolve) {
+        change(rule, state, false, seconds, now);
+      }
+    }
+  }
+
+  /**
+   * Set whether an alert fires. Nothing happens if it already does; otherwise the alert is
+   * queued for the next digest, unless it is queued already.
+   */
+  private void change(CompiledRule rule, AlertState state, boolean firing, double value,
+                      long now) {
+    boolean enqueue;
+    synchronized (state) {
+      if (state.firing == firing) {
+        return;
+      }
+      state.firing = firing;
+      state.value = Math.round(value * 100) / 100.0;
+      state.changed = now;
+      enqueue = !state.queued;
+      state.queued = true;
+    }
+    firingCount.addAndGet(firing ? 1 : -1);
+    (firing ? rule.fired : rule.resolved).increment();
+    if (enqueue) {
+      queuedCount.incrementAndGet();
+      changes.add(state);
+    }
+    Logger.debug(() -> "Alert " + rule.rule.getName() + " " + (firing ? "fired" : "resolved")
+        + " for " + state.toAlert().getEntity() + " at " + value);
+  }
+
+  /**
+   * Find silent nodes and stuck actuators, and deliver the queued changes, at most
+   * maxAlertsPerDigest of them. Runs on the scheduler.
+   */
+  void digest() {
+    long start = System.nanoTime();
+    long now = scheduler.currentTimeMillis();
+    checkSilentNodes(now);
+    checkStuckActuators(now);
+    List<AlertEntry> alerts = new ArrayList<>();
+    AlertState state;
+    while (alerts.size() < maxAlertsPerDigest && (state = changes.poll()) != null) {
+      queuedCount.decrementAndGet();
+      synchronized (state) {
+        state.queued = false;
+        if (state.firing == state.reported) {
+          SUPPRESSED.increment();
+          continue;
+        }
+        state.reported = state.firing;
+        alerts.add(state.toAlert());
+      }
+    }
+    if (!alerts.isEmpty()) {
+      DIGESTS.increment();
+      int pending = queuedCount.get();
+      if (pending > 0) {
+        Logger.info("Alert digest with " + alerts.size() + " changes, " + pending
+            + " more waiting");
+      }
+      listener.onAlertDigest(new AlertDigestMessage(now, false, firingCount.get(), pending,
+          alerts));
+    }
+    DIGEST_TIME.recordSince(start);
+  }
+
+  private void checkSilentNodes(long now) {
+    long[] seen = lastSeen;
+    for (CompiledRule rule : silentRules) {
+      long duration = rule.rule.getDurationMillis();
+      for (int nodeId = 0; nodeId < seen.length; nodeId++) {
+        long last = seen[nodeId];
+        if (last != 0 && now - last >= duration) {
+          AlertState state = rule.nodeState(nodeId, true);
+          if (!state.firing) {
+            change(rule, state, true, (now - last) / 1000.0, now);
+            if (seen[nodeId] != last) {
+              // The node sent data while it was found silent, and may have missed the alert
+              change(rule, state, false, (now - last) / 1000.0, now);
+            }
+          }
+        }
+      }
+    }
+  }
+
+  private void checkStuckActuators(long now) {
+    for (CompiledRule rule : stuckRules) {
+      long duration = rule.rule.getDurationMillis();
+      for (AlertState state : rule.actuatorStates.values()) {
+        double seconds;
+        synchronized (state) {
+          if (!state.expecting || state.firing || now - state.commandTime < duration) {
+            continue;
+          }
+          seconds = (now - state.commandTime) / 1000.0;
+        }
+        change(rule, state, true, seconds, now);
+      }
+    }
+  }
+
+  /**
+   * Make a digest of the firing alerts the panels have been told of, at most
+   * {@link #MAX_SNAPSHOT_ALERTS}, for a panel which just connected.
+   *
+   * @return the snapshot digest
+   */
+  public AlertDigestMessage snapshot() {
+    List<AlertEntry> alerts = new ArrayList<>();
+    List<CompiledRule> rules = new ArrayList<>();
+    for (CompiledRule[] typeRules : thresholdRulesByType) {
+      rules.addAll(Arrays.asList(typeRules));
+    }
+    rules.addAll(Arrays.asList(silentRules));
+    rules.addAll(Arrays.asList(stuckRules));
+    for (CompiledRule rule : rules) {
+      List<AlertState> states = new ArrayList<>(rule.actuatorStates.values());
+      for (AlertState state : rule.nodeStates) {
+        if (state != null) {
+          states.add(state);
+        }
+      }
+      for (AlertState state : states) {
+        if (alerts.size() == MAX_SNAPSHOT_ALERTS) {
+          break;
+        }
+        synchronized (state) {
+          if (state.reported) {
+            alerts.add(new AlertEntry(rule.rule.getName(), state.nodeId, state.actuatorId, true,
+                state.value, state.changed));
+          }
+        }
+      }
+    }
+    return new AlertDigestMessage(scheduler.currentTimeMillis(), true, firingCount.get(),
+        queuedCount.get(), alerts);
+  }
+
+  /**
+   * Get the number of alerts which fire.
+   *
+   * @return the firing count, including the alerts not delivered yet
+   */
+  public int getFiringCount() {
+    return firingCount.get();
+  }
+
+  /**
+   * Get the number of alert changes waiting for a digest.
+   *
+   * @return the queued count
+   */
+  public int getQueuedCount() {
+    return queuedCount.get();
+  }
+
+  private static long key(int nodeId, int actuatorId) {
+    return ((long) nodeId << 32) | (actuatorId & 0xFFFFFFFFL);
+  }
+
+  /**
+   * A rule with its alerts: per node for threshold and silent rules, per actuator for stuck
+   * rules.
+   */
+  private static class CompiledRule {
+    private final AlertRule rule;
+    private final Counter fired;
+    private final Counter resolved;
+    private final Map<Long, AlertState> actuatorStates = new ConcurrentHashMap<>();
+    private volatile AlertState[] nodeStates = new AlertState[16];
+
+    CompiledRule(AlertRule rule) {
+      this.rule = rule;
+      this.fired = Metrics.counter("alerts_fired_total", "rule", rule.getName());
+      this.resolved = Metrics.counter("alerts_resolved_total", "rule", rule.getName());
+    }
+
+    /**
+     * Get the alert of a node, creating it if asked to. A node without an alert has never
+     * fired, so only the first breach of a node allocates.
+     */
+    AlertState nodeState(int nodeId, boolean create) {
+      if (nodeId < 1 || nodeId > MAX_NODE_ID) {
+        return null;
+      }
+      AlertState[] current = nodeStates;
+      AlertState state = nodeId < current.length ? current[nodeId] : null;
+      if (state != null || !create) {
+        return state;
+      }
+      synchronized (this) {
+        current = nodeStates;
+        if (nodeId >= current.length) {
+          current = Arrays.copyOf(current, Math.max(nodeId + 1, current.length * 2));
+          nodeStates = current;
+        }
+        if (current[nodeId] == null) {
+          current[nodeId] = new AlertState(rule, nodeId, AlertEntry.NO_ACTUATOR);
+        }
+        return current[nodeId];
+      }
+    }
+  }
+
+  /**
+   * The running sums of the readings of one message, per type, reused by a thread.
+   */
+  private static class Scratch {
+    private final double[] sums;
+    private final int[] counts;
+
+    Scratch(int typeCount) {
+      this.sums = new double[typeCount];
+      this.counts = new int[typeCount];
+    }
+  }
+}
@@ -0,0 +1,108 @@
+package no.ntnu.alerts;
+
+import java.util.List;
+
+/**
+ * A rule which raises an alert for an entity - a node, or an actuator of a node - while a
+ * condition holds, and resolves it when the condition is gone:
+ * <ul>
+ *   <li>{@link AlertKind#THRESHOLD} - the mean reading of a sensor type on a node is above (or
+ *       below) a threshold. It resolves when the reading is back past the threshold by more than
+ *       the hysteresis.</li>
+ *   <li>{@link AlertKind#SILENT} - a node which has sent sensor data has sent none for the
+ *       duration. It resolves with the next data.</li>
+ *   <li>{@link AlertKind#STUCK} - an actuator has not reported the state it was commanded to
+ *       within the duration. It resolves when it does, or when it is commanded back.</li>
+ * </ul>
+ * Rules are usually written in an alerts file, see {@link AlertRuleParser}.
+ */
+public class AlertRule {
+  private final String name;
+  private final AlertKind kind;
+  private final String sensorType;
+  private final boolean above;
+  private final double threshold;
+  private final double hysteresis;
+  private final long durationMillis;
+
+  /**
+   * Create a rule.
+   *
+   * @param name           the name of the rule, shown with its alerts
+   * @param kind           the kind of rule
+   * @param sensorType     the type of the checked sensors of a threshold rule, like
+   *                       "temperature"; null for other kinds
+   * @param above          true if a threshold rule fires above the threshold, false if below
+   * @param threshold      the threshold of a threshold rule
+   * @param hysteresis     how far back past the threshold a reading must go to resolve a
+   *                       threshold alert, zero or more
+   * @param durationMillis how long a node must be silent, or an actuator stuck, before the alert
+   *                       fires; ignored by threshold rules
+   */
+  public AlertRule(String name, AlertKind kind, String sensorType, boolean above,
+                   double threshold, double hysteresis, long durationMillis) {
+    if (name.isEmpty() || name.contains(",") || name.contains(";") || name.contains(":")) {
+      throw new IllegalArgumentException("Invalid alert rule name: " + name);
+    }
+    if (kind == AlertKind.THRESHOLD && sensorType == null) {
+      throw new IllegalArgumentException("Alert rule " + name + " has no sensor type");
+    }
+    if (hysteresis < 0) {
+      throw new IllegalArgumentException("Hysteresis can't be negative");
+    }
+    if (kind != AlertKind.THRESHOLD && durationMillis <= 0) {
+      throw new IllegalArgumentException("Alert rule " + name + " needs a positive duration");
+    }
+    this.name = name;
+    this.kind = kind;
+    this.sensorType = sensorType;
+    this.above = above;
+    this.threshold = threshold;
+    this.hysteresis = hysteresis;
+    this.durationMillis = durationMillis;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public AlertKind getKind() {
+    return kind;
+  }
+
+  public String getSensorType() {
+    return sensorType;
+  }
+
+  public boolean isAbove() {
+    return above;
+  }
+
+  public double getThreshold() {
+    return threshold;
+  }
+
+  public double getHysteresis() {
+    return hysteresis;
+  }
+
+  public long getDurationMillis() {
+    return durationMillis;
+  }
+
+  /**
+   * Create the rules which are used when no alerts file is configured: nodes silent for 30
+   * seconds, six times the default sensing period, and actuators stuck for 10 seconds.
+   *
+   * @return the default rules
+   */
+  public static List<AlertRule> createDefaults() {
+    return List.of(new AlertRule("silent", AlertKind.SILENT, null, false, 0, 0, 30_000),
+        new AlertRule("stuck", AlertKind.STUCK, null, false, 0, 0, 10_000));
+  }
+
+  @Override
+  public String toString() {
+    return name;
+  }
+}
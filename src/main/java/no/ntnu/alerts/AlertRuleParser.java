@@ -0,0 +1,124 @@
+package no.ntnu.alerts;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import no.ntnu.analytics.StreamOperatorParser;
+
+/**
+ * Reads alert rules from text, one rule per line:
+ * <pre>
+ *   name: type above|below threshold [hysteresis h]
+ *   name: silent duration
+ *   name: stuck duration
+ * </pre>
+ * A duration is a number with the unit ms, s, m, h or d. A name must not contain , or ;. Empty
+ * lines and lines starting with # are ignored. Examples:
+ * <pre>
+ *   too-hot: temperature above 35 hysteresis 2
+ *   node-down: silent 30s
+ *   actuator-stuck: stuck 10s
+ * </pre>
+ */
+public class AlertRuleParser {
+  private AlertRuleParser() {
+  }
+
+  /**
+   * Read the rules of a file.
+   *
+   * @param file the alerts file, in UTF-8
+   * @return the rules, in file order
+   * @throws IOException              if the file can't be read
+   * @throws IllegalArgumentException if a rule is invalid, with the line number
+   */
+  public static List<AlertRule> load(Path file) throws IOException {
+    return parse(Files.readAllLines(file, StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Parse rules.
+   *
+   * @param lines the lines of rules
+   * @return the rules, in line order
+   * @throws IllegalArgumentException if a rule is invalid, with the line number
+   */
+  public static List<AlertRule> parse(List<String> lines) {
+    List<AlertRule> rules = new ArrayList<>();
+    for (int i = 0; i < lines.size(); i++) {
+      String line = lines.get(i).trim();
+      if (line.isEmpty() || line.startsWith("#")) {
+        continue;
+      }
+      try {
+        rules.add(parseRule(line));
+      } catch (IllegalArgumentException e) {
+        throw new IllegalArgumentException("Alert rule on line " + (i + 1) + ": "
+            + e.getMessage());
+      }
+    }
+    return rules;
+  }
+
+  private static AlertRule parseRule(String line) {
+    int colon = line.indexOf(':');
+    if (colon <= 0) {
+      throw new IllegalArgumentException("Expected name: ...");
+    }
+    String name = line.substring(0, colon).trim();
+    if (name.indexOf(',') >= 0 || name.indexOf(';') >= 0) {
+      throw new IllegalArgumentException("Rule name " + name
+          + " must not contain , or ; as they separate alerts in messages");
+    }
+    String[] tokens = line.substring(colon + 1).trim().split("\\s+");
+    String first = token(tokens, 0, "sensor type, silent or stuck");
+    if (first.equals(AlertKind.SILENT.getLabel()) || first.equals(AlertKind.STUCK.getLabel())) {
+      long duration = StreamOperatorParser.parseDuration(token(tokens, 1, "duration"));
+      end(tokens, 2);
+      AlertKind kind = first.equals(AlertKind.SILENT.getLabel()) ? AlertKind.SILENT
+          : AlertKind.STUCK;
+      return new AlertRule(name, kind, null, false, 0, 0, duration);
+    }
+    String comparison = token(tokens, 1, "above or below");
+    if (!comparison.equals("above") && !comparison.equals("below")) {
+      throw new IllegalArgumentException("Expected above or below, got " + comparison);
+    }
+    double threshold = parseNumber(token(tokens, 2, "threshold"));
+    double hysteresis = 0;
+    int position = 3;
+    if (position < tokens.length) {
+      if (!tokens[position].equals("hysteresis")) {
+        throw new IllegalArgumentException("Expected hysteresis, got " + tokens[position]);
+      }
+      hysteresis = parseNumber(token(tokens, position + 1, "hysteresis"));
+      position += 2;
+    }
+    end(tokens, position);
+    return new AlertRule(name, AlertKind.THRESHOLD, first, comparison.equals("above"),
+        threshold, hysteresis, 0);
+  }
+
+  private static String token(String[] tokens, int position, String expected) {
+    if (position >= tokens.length) {
+      throw new IllegalArgumentException("Expected " + expected + " at the end");
+    }
+    return tokens[position];
+  }
+
+  private static void end(String[] tokens, int position) {
+    if (position < tokens.length) {
+      throw new IllegalArgumentException("Unexpected " + tokens[position]);
+    }
+  }
+
+  private static double parseNumber(String number) {
+    try {
+      return Double.parseDouble(number);
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Invalid number: " + number);
+    }
+  }
+}
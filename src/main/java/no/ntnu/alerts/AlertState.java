@@ -0,0 +1,34 @@
+package no.ntnu.alerts;
+
+import no.ntnu.message.AlertEntry;
+
+/**
+ * The state of the alert of one rule for one entity. The fields are guarded by the state itself;
+ * {@link #firing} is also read without the lock, as a hint on the hot path.
+ */
+class AlertState {
+  final AlertRule rule;
+  final int nodeId;
+  final int actuatorId;
+  volatile boolean firing;
+  // What the control panels were last told
+  boolean reported;
+  // Waiting in the queue of the next digest
+  boolean queued;
+  double value;
+  long changed;
+  // For stuck rules: the commanded state not reported yet
+  boolean expecting;
+  boolean desired;
+  long commandTime;
+
+  AlertState(AlertRule rule, int nodeId, int actuatorId) {
+    this.rule = rule;
+    this.nodeId = nodeId;
+    this.actuatorId = actuatorId;
+  }
+
+  AlertEntry toAlert() {
+    return new AlertEntry(rule.getName(), nodeId, actuatorId, firing, value, changed);
+  }
+}
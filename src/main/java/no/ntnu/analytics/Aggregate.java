@@ -0,0 +1,42 @@
+package no.ntnu.analytics;
+
+/**
+ * The aggregates a window can compute over its readings.
+ */
+public enum Aggregate {
+  MEAN("mean"),
+  MIN("min"),
+  MAX("max"),
+  SUM("sum"),
+  COUNT("count");
+
+  private final String label;
+
+  Aggregate(String label) {
+    this.label = label;
+  }
+
+  /**
+   * Get the name of the aggregate used in the configuration, like "mean".
+   *
+   * @return the label
+   */
+  public String getLabel() {
+    return label;
+  }
+
+  /**
+   * Find an aggregate by its label.
+   *
+   * @param label the label, like "max"
+   * @return the aggregate, or null if there is none with the label
+   */
+  public static Aggregate fromLabel(String label) {
+    for (Aggregate aggregate : values()) {
+      if (aggregate.label.equals(label)) {
+        return aggregate;
+      }
+    }
+    return null;
+  }
+}
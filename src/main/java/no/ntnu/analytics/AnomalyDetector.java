@@ -0,0 +1,38 @@
+package no.ntnu.analytics;
+
+import java.util.List;
+
+/**
+ * A stream operator which detects anomalies. Unlike other operators, a detector produces a result
+ * only when an anomaly starts, not with every reading, so every result is an anomaly to report.
+ * Its value is the score of the anomaly.
+ */
+public abstract class AnomalyDetector extends StreamOperator {
+  /**
+   * Create a detector.
+   *
+   * @param name       the name of the detector
+   * @param sensorType the type of the sensors, or {@link #ANY_TYPE}
+   */
+  protected AnomalyDetector(String name, String sensorType) {
+    super(name, sensorType);
+  }
+
+  /**
+   * Get the kind of the anomalies found, as reported to the control panels.
+   *
+   * @return the kind, like "spike"
+   */
+  public abstract String getKind();
+
+  /**
+   * Create the detectors which run on every sensor when none are configured: spikes with a
+   * z-score above 6, and sensors stuck for 5 minutes.
+   *
+   * @return the default detectors
+   */
+  public static List<AnomalyDetector> createDefaults() {
+    return List.of(new ZScoreDetector("spike", ANY_TYPE, 6, ZScoreDetector.DEFAULT_ALPHA),
+        new FlatlineDetector("stuck", ANY_TYPE, 5 * 60_000, FlatlineDetector.DEFAULT_READINGS));
+  }
+}
@@ -0,0 +1,95 @@
+package no.ntnu.analytics;
+
+/**
+ * Detects stuck sensors: a series whose readings have not changed at all for a period of time,
+ * over a minimum number of readings, is reported once. The value of the detector, and the score of
+ * the anomaly, is how long the series has been flat, in seconds. Any change of the reading starts
+ * the period again. The state of a series is the last reading, when it started and how many
+ * readings repeated it.
+ */
+public class FlatlineDetector extends AnomalyDetector {
+  /**
+   * The number of equal readings needed when none is given.
+   */
+  public static final int DEFAULT_READINGS = 3;
+
+  private final long durationMillis;
+  private final int readings;
+
+  /**
+   * Create a flatline detector.
+   *
+   * @param name           the name of the detector
+   * @param sensorType     the type of the sensors, or {@link #ANY_TYPE}
+   * @param durationMillis how long the readings must stay equal, in milliseconds
+   * @param readings       how many equal readings are needed at least
+   */
+  public FlatlineDetector(String name, String sensorType, long durationMillis, int readings) {
+    super(name, sensorType);
+    if (durationMillis <= 0) {
+      throw new IllegalArgumentException("Duration must be positive: " + durationMillis);
+    }
+    if (readings < 2) {
+      throw new IllegalArgumentException("A flatline needs at least two readings");
+    }
+    this.durationMillis = durationMillis;
+    this.readings = readings;
+  }
+
+  public long getDurationMillis() {
+    return durationMillis;
+  }
+
+  public int getReadings() {
+    return readings;
+  }
+
+  @Override
+  public String getKind() {
+    return "stuck";
+  }
+
+  @Override
+  OperatorState createState() {
+    return new State();
+  }
+
+  @Override
+  public int getStateBytes() {
+    return 40;
+  }
+
+  /**
+   * The current run of equal readings of one series.
+   */
+  private class State extends OperatorState {
+    private double last = Double.NaN;
+    private long since;
+    private long latest;
+    private int count;
+    private boolean stuck;
+
+    @Override
+    boolean update(long timestamp, double value) {
+      latest = timestamp;
+      if (value != last) {
+        last = value;
+        since = timestamp;
+        count = 1;
+        stuck = false;
+        return false;
+      }
+      count++;
+      if (!stuck && count >= readings && timestamp - since >= durationMillis) {
+        stuck = true;
+        return true;
+      }
+      return false;
+    }
+
+    @Override
+    double getValue() {
+      return count > 0 ? (latest - since) / 1000.0 : Double.NaN;
+    }
+  }
+}
@@ -0,0 +1,259 @@
+package no.ntnu.analytics;
+
+import java.util.Arrays;
+import java.util.function.LongSupplier;
+import no.ntnu.listeners.server.SensorDataListener;
+import no.ntnu.tools.Parser;
+import no.ntnu.tools.metrics.Histogram;
+import no.ntnu.tools.metrics.Metrics;
+
+/**
+ * Keeps {@link QuantileSketch}es of the recent readings of every sensor type, per group of nodes,
+ * so the distribution of a type across the fleet or across a group - the 5th, 50th and 95th
+ * percentile of the temperature, say - can be answered without looking at the nodes.
+ * A group is a range of node IDs: nodes 1 to groupSize are group 0, and so on.
+ * The sketches are updated incrementally as readings arrive and only cover the last window of
+ * time: each type and group has one sketch per slice of the window, and a slice is cleared and
+ * reused when its time comes round again. A query merges the live slices of a group, and for the
+ * fleet the merged groups, so nothing is aggregated until it is asked for. Readings captured
+ * before the window or after the current slice, and values which are not finite, are dropped.
+ * Readings are parsed in place and sketches are reused, so adding a reading does not allocate once
+ * the types and groups exist. A group is locked while it is updated or merged.
+ */
+public class FleetQuantiles implements SensorDataListener {
+  /**
+   * Group of a query across all groups.
+   */
+  public static final int ALL_GROUPS = -1;
+  /**
+   * The number of nodes per group when none is given.
+   */
+  public static final int DEFAULT_GROUP_SIZE = 100;
+  /**
+   * The length of the window when none is given, in milliseconds.
+   */
+  public static final long DEFAULT_WINDOW_MILLIS = 60_000;
+  private static final int SLICES = 6;
+  private static final Histogram QUERY_DURATION = Metrics.histogram("quantile_query_nanos");
+
+  private final int groupSize;
+  private final long sliceMillis;
+  private final double relativeAccuracy;
+  private final LongSupplier clock;
+  private volatile String[] types = new String[0];
+  private volatile GroupSketches[][] groupsByType = new GroupSketches[0][];
+
+  /**
+   * Create the sketches.
+   *
+   * @param groupSize        the number of nodes per group
+   * @param windowMillis     how far back the readings are included, in milliseconds
+   * @param relativeAccuracy the relative accuracy of the quantiles
+   * @param clock            the current time in epoch milliseconds, compared with the capture
+   *                         times of the readings
+   */
+  public FleetQuantiles(int groupSize, long windowMillis, double relativeAccuracy,
+                        LongSupplier clock) {
+    if (groupSize < 1) {
+      throw new IllegalArgumentException("Group size must be positive: " + groupSize);
+    }
+    if (windowMillis < SLICES) {
+      throw new IllegalArgumentException("Window is too short: " + windowMillis);
+    }
+    this.groupSize = groupSize;
+    this.sliceMillis = windowMillis / SLICES;
+    this.relativeAccuracy = relativeAccuracy;
+    this.clock = clock;
+    Metrics.gauge("quantile_sketch_groups", this::getGroupCount);
+  }
+
+  public int getGroupSize() {
+    return groupSize;
+  }
+
+  /**
+   * Get the group of a node.
+   *
+   * @param nodeId ID of the node
+   * @return the group
+   */
+  public int groupOf(int nodeId) {
+    return Math.max(0, nodeId - 1) / groupSize;
+  }
+
+  /**
+   * Get the number of groups with sketches, over all types.
+   *
+   * @return the number of groups
+   */
+  public long getGroupCount() {
+    long count = 0;
+    for (GroupSketches[] groups : groupsByType) {
+      for (GroupSketches group : groups) {
+        if (group != null) {
+          count++;
+        }
+      }
+    }
+    return count;
+  }
+
+  @Override
+  public void onSensorData(int nodeId, String sensorData, long captureTime) {
+    if (nodeId < 1 || nodeId > MAX_NODE_ID) {
+      return;
+    }
+    long slice = Math.floorDiv(captureTime, sliceMillis);
+    long current = currentSlice();
+    if (slice <= current - SLICES || slice > current) {
+      // A future slice would take the place of a live one and hide its readings until then
+      return;
+    }
+    int group = groupOf(nodeId);
+    int position = 0;
+    int length = sensorData.length();
+    while (position < length) {
+      int end = sensorData.indexOf(',', position);
+      if (end < 0) {
+        end = length;
+      }
+      int equals = sensorData.indexOf('=', position);
+      if (equals >= 0 && equals < end) {
+        double value = Parser.parseReadingValue(sensorData, equals + 1, end);
+        if (Double.isFinite(value)) {
+          group(typeIndex(sensorData, position, equals), group).add(slice, value);
+        }
+      }
+      position = end + 1;
+    }
+  }
+
+  /**
+   * Get quantiles of the recent readings of a type.
+   *
+   * @param sensorType the type of the sensors, like "temperature"
+   * @param group      the group of nodes, or {@link #ALL_GROUPS} for the fleet
+   * @param quantiles  the quantiles, between 0 and 1
+   * @return the merged sketch and the values of the quantiles, NaN when there are no readings
+   */
+  public QuantileResult query(String sensorType, int group, double[] quantiles) {
+    long start = System.nanoTime();
+    QuantileSketch merged = new QuantileSketch(relativeAccuracy);
+    long newestSlice = currentSlice();
+    long oldestSlice = newestSlice - SLICES + 1;
+    String[] knownTypes = types;
+    GroupSketches[][] sketches = groupsByType;
+    for (int type = 0; type < knownTypes.length && type < sketches.length; type++) {
+      if (!knownTypes[type].equals(sensorType)) {
+        continue;
+      }
+      GroupSketches[] groups = sketches[type];
+      if (group == ALL_GROUPS) {
+        for (GroupSketches sketch : groups) {
+          if (sketch != null) {
+            sketch.mergeInto(merged, oldestSlice, newestSlice);
+          }
+        }
+      } else if (group >= 0 && group < groups.length && groups[group] != null) {
+        groups[group].mergeInto(merged, oldestSlice, newestSlice);
+      }
+    }
+    double[] values = new double[quantiles.length];
+    for (int i = 0; i < quantiles.length; i++) {
+      values[i] = merged.getQuantile(quantiles[i]);
+    }
+    QUERY_DURATION.recordSince(start);
+    return new QuantileResult(merged.getCount(), quantiles.clone(), values);
+  }
+
+  private long currentSlice() {
+    return Math.floorDiv(clock.getAsLong(), sliceMillis);
+  }
+
+  /**
+   * Find the index of a type, comparing it in place, and add the type if it is new.
+   */
+  private int typeIndex(String sensorData, int start, int end) {
+    String[] known = types;
+    int typeLength = end - start;
+    for (int i = 0; i < known.length; i++) {
+      if (known[i].length() == typeLength
+          && sensorData.regionMatches(start, known[i], 0, typeLength)) {
+        return i;
+      }
+    }
+    return addType(sensorData.substring(start, end));
+  }
+
+  private synchronized int addType(String type) {
+    int index = Arrays.asList(types).indexOf(type);
+    if (index >= 0) {
+      return index;
+    }
+    GroupSketches[][] grown = Arrays.copyOf(groupsByType, groupsByType.length + 1);
+    grown[grown.length - 1] = new GroupSketches[0];
+    groupsByType = grown;
+    String[] known = Arrays.copyOf(types, types.length + 1);
+    known[known.length - 1] = type;
+    types = known;
+    return known.length - 1;
+  }
+
+  private GroupSketches group(int type, int group) {
+    GroupSketches[] groups = groupsByType[type];
+    if (group < groups.length && groups[group] != null) {
+      return groups[group];
+    }
+    return addGroup(type, group);
+  }
+
+  private synchronized GroupSketches addGroup(int type, int group) {
+    GroupSketches[][] sketches = groupsByType;
+    GroupSketches[] groups = sketches[type];
+    if (group >= groups.length) {
+      groups = Arrays.copyOf(groups, Math.max(group + 1, groups.length * 2));
+      GroupSketches[][] replaced = sketches.clone();
+      replaced[type] = groups;
+      groupsByType = replaced;
+    }
+    if (groups[group] == null) {
+      groups[group] = new GroupSketches();
+    }
+    return groups[group];
+  }
+
+  /**
+   * The sketches of the slices of the window for one type and group.
+   */
+  private class GroupSketches {
+    private final QuantileSketch[] slices = new QuantileSketch[SLICES];
+    private final long[] sliceNumbers = new long[SLICES];
+
+    GroupSketches() {
+      for (int i = 0; i < SLICES; i++) {
+        slices[i] = new QuantileSketch(relativeAccuracy);
+        sliceNumbers[i] = Long.MIN_VALUE;
+      }
+    }
+
+    synchronized void add(long slice, double value) {
+      int i = Math.floorMod(slice, SLICES);
+      if (sliceNumbers[i] != slice) {
+        if (sliceNumbers[i] > slice) {
+          return;
+        }
+        slices[i].clear();
+        sliceNumbers[i] = slice;
+      }
+      slices[i].add(value);
+    }
+
+    synchronized void mergeInto(QuantileSketch target, long oldestSlice, long newestSlice) {
+      for (int i = 0; i < SLICES; i++) {
+        if (sliceNumbers[i] >= oldestSlice && sliceNumbers[i] <= newestSlice) {
+          target.merge(slices[i]);
+        }
+      }
+    }
+  }
+}
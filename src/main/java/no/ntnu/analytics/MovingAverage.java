@@ -0,0 +1,74 @@
+package no.ntnu.analytics;
+
+/**
+ * The mean of the last readings of a series, by count rather than by time. The readings are kept
+ * in a primitive ring buffer with a running sum, so a reading takes constant time.
+ */
+public class MovingAverage extends StreamOperator {
+  private final int samples;
+
+  /**
+   * Create a moving average.
+   *
+   * @param name       the name of the operator
+   * @param sensorType the type of the sensors, or {@link #ANY_TYPE}
+   * @param samples    the number of readings averaged
+   */
+  public MovingAverage(String name, String sensorType, int samples) {
+    super(name, sensorType);
+    if (samples < 1) {
+      throw new IllegalArgumentException("A moving average needs at least one reading");
+    }
+    this.samples = samples;
+  }
+
+  public int getSamples() {
+    return samples;
+  }
+
+  @Override
+  OperatorState createState() {
+    return new State();
+  }
+
+  @Override
+  public int getStateBytes() {
+    return 48 + samples * Double.BYTES;
+  }
+
+  /**
+   * The last readings of one series.
+   */
+  private class State extends OperatorState {
+    private final double[] values = new double[samples];
+    private int next;
+    private int count;
+    private double sum;
+
+    @Override
+    boolean update(long timestamp, double value) {
+      if (count == samples) {
+        sum -= values[next];
+      } else {
+        count++;
+      }
+      values[next] = value;
+      sum += value;
+      next++;
+      if (next == samples) {
+        next = 0;
+        // Start the running sum again once per round, so rounding errors don't add up
+        sum = 0;
+        for (int i = 0; i < count; i++) {
+          sum += values[i];
+        }
+      }
+      return true;
+    }
+
+    @Override
+    double getValue() {
+      return count > 0 ? sum / count : Double.NaN;
+    }
+  }
+}
@@ -0,0 +1,24 @@
+package no.ntnu.analytics;
+
+/**
+ * The state of one {@link StreamOperator} for one sensor series. It is updated with every
+ * reading of the series, in primitive fields of a fixed size, and is not thread-safe: the caller
+ * serializes the updates of a series.
+ */
+abstract class OperatorState {
+  /**
+   * Add a reading to the state.
+   *
+   * @param timestamp when the reading was captured, epoch milliseconds
+   * @param value     the reading
+   * @return true if the reading produced a new result
+   */
+  abstract boolean update(long timestamp, double value);
+
+  /**
+   * Get the latest result of the operator.
+   *
+   * @return the result, or NaN if there is none yet
+   */
+  abstract double getValue();
+}
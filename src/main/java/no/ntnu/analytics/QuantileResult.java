@@ -0,0 +1,35 @@
+package no.ntnu.analytics;
+
+/**
+ * The answer to a quantile query: how many readings it covers and the value of each quantile.
+ */
+public class QuantileResult {
+  private final long count;
+  private final double[] quantiles;
+  private final double[] values;
+
+  /**
+   * Create a result.
+   *
+   * @param count     the number of readings the quantiles were computed from
+   * @param quantiles the quantiles asked for, between 0 and 1
+   * @param values    the value of each quantile, NaN when there were no readings
+   */
+  public QuantileResult(long count, double[] quantiles, double[] values) {
+    this.count = count;
+    this.quantiles = quantiles;
+    this.values = values;
+  }
+
+  public long getCount() {
+    return count;
+  }
+
+  public double[] getQuantiles() {
+    return quantiles;
+  }
+
+  public double[] getValues() {
+    return values;
+  }
+}
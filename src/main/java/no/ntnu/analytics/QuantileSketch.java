@@ -0,0 +1,242 @@
+package no.ntnu.analytics;
+
+import java.util.Arrays;
+
+/**
+ * A mergeable quantile sketch after DDSketch: every quantile it returns is within a fixed
+ * relative error of a value of the same rank in the added data. Values are counted in
+ * logarithmically sized bins, bin i holding the values in (gamma^(i-1), gamma^i], with one set of
+ * bins for positive values, one for negative values and a count of zeros. Merging two sketches
+ * adds their bin counts, so sketches of parts of the data - per node group, per time slice - merge
+ * into exactly the sketch of the whole.
+ * The bins of a sign are a dense array of counts which grows to cover the indices seen. Sensor
+ * readings span a small range, so a sketch holds a few dozen bins; the array is capped, and when
+ * it would exceed the cap the lowest bins are folded together, which only affects the accuracy of
+ * the smallest values. Adding a value does not allocate unless the bins have to grow.
+ * A sketch is not thread-safe.
+ */
+public class QuantileSketch {
+  /**
+   * The relative accuracy used when none is given.
+   */
+  public static final double DEFAULT_RELATIVE_ACCURACY = 0.01;
+  private static final int MAX_BINS = 2048;
+  private static final double MIN_INDEXABLE = 1e-9;
+
+  private final double relativeAccuracy;
+  private final double gamma;
+  private final double multiplier;
+  private final Bins positive = new Bins();
+  private final Bins negative = new Bins();
+  private long zeroCount;
+  private long count;
+  private double min = Double.POSITIVE_INFINITY;
+  private double max = Double.NEGATIVE_INFINITY;
+
+  /**
+   * Create a sketch with the default relative accuracy.
+   */
+  public QuantileSketch() {
+    this(DEFAULT_RELATIVE_ACCURACY);
+  }
+
+  /**
+   * Create a sketch.
+   *
+   * @param relativeAccuracy the largest relative error of a quantile, between 0 and 1
+   */
+  public QuantileSketch(double relativeAccuracy) {
+    if (!(relativeAccuracy > 0 && relativeAccuracy < 1)) {
+      throw new IllegalArgumentException("Relative accuracy must be between 0 and 1: "
+          + relativeAccuracy);
+    }
+    this.relativeAccuracy = relativeAccuracy;
+    this.gamma = (1 + relativeAccuracy) / (1 - relativeAccuracy);
+    this.multiplier = 1 / Math.log(gamma);
+  }
+
+  public double getRelativeAccuracy() {
+    return relativeAccuracy;
+  }
+
+  /**
+   * Get the number of values added.
+   *
+   * @return the count
+   */
+  public long getCount() {
+    return count;
+  }
+
+  /**
+   * Add a value.
+   *
+   * @param value the value, finite
+   * @throws IllegalArgumentException if the value is NaN or infinite
+   */
+  public void add(double value) {
+    if (!Double.isFinite(value)) {
+      throw new IllegalArgumentException("Value must be finite: " + value);
+    }
+    if (value > MIN_INDEXABLE) {
+      positive.add(index(value), 1);
+    } else if (value < -MIN_INDEXABLE) {
+      negative.add(index(-value), 1);
+    } else {
+      zeroCount++;
+    }
+    count++;
+    min = Math.min(min, value);
+    max = Math.max(max, value);
+  }
+
+  /**
+   * Add all values of another sketch to this one. The sketches must have the same accuracy.
+   *
+   * @param other the sketch to merge, not changed
+   */
+  public void merge(QuantileSketch other) {
+    if (other.relativeAccuracy != relativeAccuracy) {
+      throw new IllegalArgumentException("Can't merge sketches of different accuracy");
+    }
+    if (other.count == 0) {
+      return;
+    }
+    positive.merge(other.positive);
+    negative.merge(other.negative);
+    zeroCount += other.zeroCount;
+    count += other.count;
+    min = Math.min(min, other.min);
+    max = Math.max(max, other.max);
+  }
+
+  /**
+   * Remove all values, keeping the bin arrays for reuse.
+   */
+  public void clear() {
+    positive.clear();
+    negative.clear();
+    zeroCount = 0;
+    count = 0;
+    min = Double.POSITIVE_INFINITY;
+    max = Double.NEGATIVE_INFINITY;
+  }
+
+  /**
+   * Get a quantile of the added values.
+   *
+   * @param quantile the quantile, between 0 and 1, like 0.95
+   * @return the value, or NaN if the sketch is empty
+   */
+  public double getQuantile(double quantile) {
+    if (quantile < 0 || quantile > 1) {
+      throw new IllegalArgumentException("Quantile must be between 0 and 1: " + quantile);
+    }
+    if (count == 0) {
+      return Double.NaN;
+    }
+    // The rank of the wanted value, counting from 0, as in the lower quantile definition
+    long rank = (long) (quantile * (count - 1));
+    long seen = negative.count;
+    double value;
+    if (rank < seen) {
+      // Negative values: the largest index holds the most negative ones
+      value = -value(negative.indexAtRank(negative.count - 1 - rank));
+    } else if (rank < seen + zeroCount) {
+      value = 0;
+    } else {
+      value = value(positive.indexAtRank(rank - seen - zeroCount));
+    }
+    return Math.max(min, Math.min(max, value));
+  }
+
+  private int index(double value) {
+    return (int) Math.ceil(Math.log(value) * multiplier);
+  }
+
+  /**
+   * Get the value representing a bin: the point within relative accuracy of both its ends.
+   */
+  private double value(int index) {
+    return 2 * Math.pow(gamma, index) / (gamma + 1);
+  }
+
+  /**
+   * The counts of a dense range of bin indices, and their total.
+   */
+  private static class Bins {
+    private long[] counts = new long[0];
+    private int offset;
+    private long count;
+
+    void add(int index, long amount) {
+      int slot = index - offset;
+      if (slot < 0 || slot >= counts.length) {
+        slot = extendTo(index) - offset;
+      }
+      counts[slot] += amount;
+      count += amount;
+    }
+
+    void merge(Bins other) {
+      if (other.count == 0) {
+        return;
+      }
+      for (int i = 0; i < other.counts.length; i++) {
+        if (other.counts[i] != 0) {
+          add(other.offset + i, other.counts[i]);
+        }
+      }
+    }
+
+    void clear() {
+      Arrays.fill(counts, 0);
+      count = 0;
+    }
+
+    /**
+     * Find the bin of the value of a rank within these bins, counting from the lowest index.
+     */
+    int indexAtRank(long rank) {
+      long seen = 0;
+      for (int i = 0; i < counts.length; i++) {
+        seen += counts[i];
+        if (seen > rank) {
+          return offset + i;
+        }
+      }
+      return offset + counts.length - 1;
+    }
+
+    /**
+     * Grow the array to include an index, with some room to spare. When the range would be
+     * larger than the cap, the lowest bins are folded into the lowest kept one.
+     *
+     * @return the index where the count of the requested index is kept
+     */
+    private int extendTo(int index) {
+      if (counts.length == 0) {
+        counts = new long[16];
+        offset = index - 8;
+        return index;
+      }
+      int low = Math.min(offset, index);
+      int high = Math.max(offset + counts.length - 1, index);
+      int length = Math.min(MAX_BINS, Math.max(counts.length * 2, high - low + 1));
+      if (high - low + 1 > length) {
+        low = high - length + 1;
+      } else if (index < offset) {
+        low = Math.max(high - length + 1, index - (length - (high - index + 1)) / 2);
+      }
+      long[] grown = new long[length];
+      for (int i = 0; i < counts.length; i++) {
+        if (counts[i] != 0) {
+          grown[Math.max(offset + i, low) - low] += counts[i];
+        }
+      }
+      counts = grown;
+      offset = low;
+      return Math.max(index, low);
+    }
+  }
+}
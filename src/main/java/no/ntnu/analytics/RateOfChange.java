@@ -0,0 +1,89 @@
+package no.ntnu.analytics;
+
+import no.ntnu.tools.metrics.Counter;
+import no.ntnu.tools.metrics.Metrics;
+
+/**
+ * How fast the readings of a series change, in units per second, measured from the oldest to the
+ * newest reading of the last period of time. The readings of the period are kept in a
+ * {@link SampleRing}; when the ring is full, the period measured is shorter, and the readings
+ * which left it early are counted in analytics_window_evictions_total.
+ */
+public class RateOfChange extends StreamOperator {
+  private final long spanMillis;
+  private final int capacity;
+  private final Counter evictions;
+
+  /**
+   * Create a rate of change.
+   *
+   * @param name       the name of the operator
+   * @param sensorType the type of the sensors, or {@link #ANY_TYPE}
+   * @param spanMillis the period over which the change is measured, in milliseconds
+   * @param capacity   the most readings kept for the period
+   */
+  public RateOfChange(String name, String sensorType, long spanMillis, int capacity) {
+    super(name, sensorType);
+    if (spanMillis <= 0) {
+      throw new IllegalArgumentException("Span must be positive: " + spanMillis);
+    }
+    if (capacity < 2) {
+      throw new IllegalArgumentException("A rate of change needs room for two readings");
+    }
+    this.spanMillis = spanMillis;
+    this.capacity = capacity;
+    this.evictions = Metrics.counter("analytics_window_evictions_total", "operator", name);
+  }
+
+  public long getSpanMillis() {
+    return spanMillis;
+  }
+
+  public int getCapacity() {
+    return capacity;
+  }
+
+  @Override
+  OperatorState createState() {
+    return new State();
+  }
+
+  @Override
+  public int getStateBytes() {
+    return 48 + capacity * SampleRing.BYTES_PER_SAMPLE;
+  }
+
+  /**
+   * The readings of one series in the span.
+   */
+  private class State extends OperatorState {
+    private final SampleRing ring = new SampleRing(capacity);
+    private double rate = Double.NaN;
+
+    @Override
+    boolean update(long timestamp, double value) {
+      if (timestamp <= ring.lastTimestamp()) {
+        return false;
+      }
+      while (ring.size() > 0 && ring.timestamp(ring.first()) < timestamp - spanMillis) {
+        ring.removeFirst();
+      }
+      if (ring.isFull()) {
+        evictions.increment();
+        ring.removeFirst();
+      }
+      ring.add(timestamp, value);
+      if (ring.size() < 2) {
+        return false;
+      }
+      long first = ring.first();
+      rate = (value - ring.value(first)) * 1000 / (timestamp - ring.timestamp(first));
+      return true;
+    }
+
+    @Override
+    double getValue() {
+      return rate;
+    }
+  }
+}
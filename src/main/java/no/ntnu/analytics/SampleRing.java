@@ -0,0 +1,99 @@
+package no.ntnu.analytics;
+
+/**
+ * The latest readings of a series in two primitive ring buffers of a fixed capacity, one for the
+ * timestamps and one for the values. Every reading gets a sequence number; the ring holds the
+ * readings from {@link #first()} up to, not including, {@link #next()}.
+ */
+class SampleRing {
+  /**
+   * Memory of the ring per reading of capacity: a timestamp and a value.
+   */
+  static final int BYTES_PER_SAMPLE = Long.BYTES + Double.BYTES;
+
+  private final long[] timestamps;
+  private final double[] values;
+  private long first;
+  private long next;
+
+  SampleRing(int capacity) {
+    if (capacity < 1) {
+      throw new IllegalArgumentException("A ring needs room for at least one reading");
+    }
+    this.timestamps = new long[capacity];
+    this.values = new double[capacity];
+  }
+
+  int capacity() {
+    return values.length;
+  }
+
+  int size() {
+    return (int) (next - first);
+  }
+
+  boolean isFull() {
+    return size() == values.length;
+  }
+
+  long first() {
+    return first;
+  }
+
+  long next() {
+    return next;
+  }
+
+  long timestamp(long sequence) {
+    return timestamps[(int) (sequence % timestamps.length)];
+  }
+
+  /**
+   * Get the value of a reading by its sequence number, or by its slot, which is the sequence
+   * number modulo the capacity.
+   */
+  double value(long sequence) {
+    return values[(int) (sequence % values.length)];
+  }
+
+  /**
+   * Add a reading. The ring must not be full.
+   *
+   * @return the sequence number of the reading
+   */
+  long add(long timestamp, double value) {
+    int slot = (int) (next % values.length);
+    timestamps[slot] = timestamp;
+    values[slot] = value;
+    return next++;
+  }
+
+  /**
+   * Remove the oldest reading.
+   *
+   * @return its value
+   */
+  double removeFirst() {
+    return values[(int) (first++ % values.length)];
+  }
+
+  /**
+   * Get the latest timestamp in the ring.
+   *
+   * @return the timestamp, or Long.MIN_VALUE when the ring is empty
+   */
+  long lastTimestamp() {
+    return next > first ? timestamp(next - 1) : Long.MIN_VALUE;
+  }
+
+  /**
+   * Add up the values in the ring from scratch, to drop the rounding errors of a running sum.
+   */
+  double sum() {
+    double sum = 0;
+    for (long i = first; i < next; i++) {
+      sum += value(i);
+    }
+    return sum;
+  }
+}
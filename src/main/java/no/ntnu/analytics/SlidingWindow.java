@@ -0,0 +1,144 @@
+package no.ntnu.analytics;
+
+import no.ntnu.tools.metrics.Counter;
+import no.ntnu.tools.metrics.Metrics;
+
+/**
+ * An aggregate over the readings of the last period of time, updated with every reading.
+ * The readings in the window are kept in a {@link SampleRing}; a reading leaves the window when it
+ * is older than the period, or when the ring is full, so the memory of a series is fixed by the
+ * capacity. The capacity should hold all readings of a period; readings which leave a full ring
+ * while still in the period are counted in analytics_window_evictions_total. Sums are kept as a
+ * running total, minimum and maximum with a monotonic queue of the candidate readings, so every
+ * reading takes amortized constant time.
+ */
+public class SlidingWindow extends StreamOperator {
+  private final Aggregate aggregate;
+  private final long lengthMillis;
+  private final int capacity;
+  private final Counter evictions;
+
+  /**
+   * Create a sliding window.
+   *
+   * @param name         the name of the operator
+   * @param sensorType   the type of the sensors, or {@link #ANY_TYPE}
+   * @param aggregate    the aggregate computed over the window
+   * @param lengthMillis the length of the window in milliseconds
+   * @param capacity     the most readings the window holds
+   */
+  public SlidingWindow(String name, String sensorType, Aggregate aggregate, long lengthMillis,
+                       int capacity) {
+    super(name, sensorType);
+    if (lengthMillis <= 0) {
+      throw new IllegalArgumentException("Window length must be positive: " + lengthMillis);
+    }
+    if (capacity < 1) {
+      throw new IllegalArgumentException("Window capacity must be positive: " + capacity);
+    }
+    this.aggregate = aggregate;
+    this.lengthMillis = lengthMillis;
+    this.capacity = capacity;
+    this.evictions = Metrics.counter("analytics_window_evictions_total", "operator", name);
+  }
+
+  public Aggregate getAggregate() {
+    return aggregate;
+  }
+
+  public long getLengthMillis() {
+    return lengthMillis;
+  }
+
+  public int getCapacity() {
+    return capacity;
+  }
+
+  @Override
+  OperatorState createState() {
+    return new State();
+  }
+
+  @Override
+  public int getStateBytes() {
+    boolean extremes = aggregate == Aggregate.MIN || aggregate == Aggregate.MAX;
+    return 64 + capacity * (SampleRing.BYTES_PER_SAMPLE + (extremes ? Integer.BYTES : 0));
+  }
+
+  /**
+   * The readings of one series in the window.
+   */
+  private class State extends OperatorState {
+    private final SampleRing ring = new SampleRing(capacity);
+    // Ring slots of the readings which can still become the minimum or maximum, oldest first,
+    // with their values in increasing (minimum) or decreasing (maximum) order. A candidate is
+    // always in the ring, so its slot identifies it.
+    private final int[] candidates;
+    private long candidateHead;
+    private long candidateTail;
+    private double sum;
+    private int addedSinceSum;
+
+    State() {
+      boolean extremes = aggregate == Aggregate.MIN || aggregate == Aggregate.MAX;
+      this.candidates = extremes ? new int[capacity] : null;
+    }
+
+    @Override
+    boolean update(long timestamp, double value) {
+      // A late reading counts as arriving with the latest one, so the ring stays in time order
+      long now = Math.max(timestamp, ring.lastTimestamp());
+      while (ring.size() > 0 && ring.timestamp(ring.first()) <= now - lengthMillis) {
+        removeFirst();
+      }
+      if (ring.isFull()) {
+        evictions.increment();
+        removeFirst();
+      }
+      long sequence = ring.add(now, value);
+      sum += value;
+      if (++addedSinceSum == capacity) {
+        addedSinceSum = 0;
+        sum = ring.sum();
+      }
+      if (candidates != null) {
+        boolean minimum = aggregate == Aggregate.MIN;
+        while (candidateTail > candidateHead) {
+          double previous = ring.value(candidates[(int) ((candidateTail - 1) % capacity)]);
+          if (minimum ? previous < value : previous > value) {
+            break;
+          }
+          candidateTail--;
+        }
+        candidates[(int) (candidateTail++ % capacity)] = (int) (sequence % capacity);
+      }
+      return true;
+    }
+
+    private void removeFirst() {
+      long sequence = ring.first();
+      sum -= ring.removeFirst();
+      if (ring.size() == 0) {
+        sum = 0;
+      }
+      if (candidates != null && candidateTail > candidateHead
+          && candidates[(int) (candidateHead % capacity)] == sequence % capacity) {
+        candidateHead++;
+      }
+    }
+
+    @Override
+    double getValue() {
+      int size = ring.size();
+      if (size == 0) {
+        return Double.NaN;
+      }
+      return switch (aggregate) {
+        case MEAN -> sum / size;
+        case SUM -> sum;
+        case COUNT -> size;
+        case MIN, MAX -> ring.value(candidates[(int) (candidateHead % capacity)]);
+      };
+    }
+  }
+}
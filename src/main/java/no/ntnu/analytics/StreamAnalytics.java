@@ -0,0 +1,290 @@
+package no.ntnu.analytics;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import no.ntnu.listeners.server.SensorDataListener;
+import no.ntnu.listeners.server.StreamResultListener;
+import no.ntnu.tools.Logger;
+import no.ntnu.tools.Parser;
+import no.ntnu.tools.metrics.Metrics;
+
+/**
+ * Evaluates {@link StreamOperator}s over the sensor data arriving at the server, incrementally,
+ * as each message arrives. A series is one sensor of a node, identified by the node ID and the
+ * position of the reading in the message, like in the sensor history. When a series first
+ * reports, it gets the state of every operator for its type; the states have a fixed size, so the
+ * memory of the analytics grows with the number of series only.
+ * Series are found through arrays indexed by node ID and sensor index, without locking, and
+ * readings are parsed in place, so evaluating a reading allocates nothing. The operators of a
+ * series are updated under the lock of the series, which is only contended when two connections
+ * report for the same node.
+ */
+public class StreamAnalytics implements SensorDataListener {
+  private static final int INITIAL_NODES = 16;
+
+  private final StreamOperator[] operators;
+  private final List<StreamResultListener> listeners = new CopyOnWriteArrayList<>();
+  private final AtomicInteger seriesCount = new AtomicInteger();
+  private final AtomicLong stateBytes = new AtomicLong();
+  private volatile NodeSeries[] nodes = new NodeSeries[INITIAL_NODES];
+
+  /**
+   * Create the analytics.
+   *
+   * @param operators the operators to evaluate, with unique names
+   */
+  public StreamAnalytics(List<StreamOperator> operators) {
+    Set<String> names = new HashSet<>();
+    for (StreamOperator operator : operators) {
+      if (!names.add(operator.getName())) {
+        throw new IllegalArgumentException("Duplicate operator name: " + operator.getName());
+      }
+    }
+    this.operators = operators.toArray(new StreamOperator[0]);
+    Metrics.gauge("analytics_series", seriesCount::get);
+    Metrics.gauge("analytics_state_bytes", stateBytes::get);
+    Logger.info("Stream analytics started with " + operators.size() + " operators");
+  }
+
+  /**
+   * Add a listener which receives the results of the operators.
+   *
+   * @param listener the listener to add
+   */
+  public void addResultListener(StreamResultListener listener) {
+    listeners.add(listener);
+  }
+
+  /**
+   * Get the operators which are evaluated.
+   *
+   * @return the operators, in configuration order
+   */
+  public List<StreamOperator> getOperators() {
+    return List.of(operators);
+  }
+
+  /**
+   * Get the number of series which have reported so far.
+   *
+   * @return the number of series
+   */
+  public int getSeriesCount() {
+    return seriesCount.get();
+  }
+
+  /**
+   * Get the approximate memory of the operator states of all series.
+   *
+   * @return the size in bytes
+   */
+  public long getStateBytes() {
+    return stateBytes.get();
+  }
+
+  /**
+   * Get the latest result of an operator for a sensor.
+   *
+   * @param nodeId       ID of the node
+   * @param sensorIndex  index of the sensor on the node
+   * @param operatorName name of the operator
+   * @return the result, or NaN if the operator has no result for the sensor
+   */
+  public double getValue(int nodeId, int sensorIndex, String operatorName) {
+    Series series = find(nodeId, sensorIndex);
+    if (series == null) {
+      return Double.NaN;
+    }
+    synchronized (series) {
+      for (int i = 0; i < series.operators.length; i++) {
+        if (series.operators[i].getName().equals(operatorName)) {
+          return series.states[i].getValue();
+        }
+      }
+    }
+    return Double.NaN;
+  }
+
+  /**
+   * Get the latest results of all operators for the sensors of a node.
+   *
+   * @param nodeId ID of the node
+   * @return the results, one per operator and sensor with a result
+   */
+  public List<StreamResult> getResults(int nodeId) {
+    List<StreamResult> results = new ArrayList<>();
+    NodeSeries node = nodeId >= 0 && nodeId < nodes.length ? nodes[nodeId] : null;
+    if (node == null) {
+      return results;
+    }
+    Series[] sensors = node.sensors;
+    for (int sensorIndex = 0; sensorIndex < sensors.length; sensorIndex++) {
+      Series series = sensors[sensorIndex];
+      if (series == null) {
+        continue;
+      }
+      synchronized (series) {
+        for (int i = 0; i < series.operators.length; i++) {
+          double value = series.states[i].getValue();
+          if (!Double.isNaN(value)) {
+            results.add(new StreamResult(nodeId, sensorIndex, series.type,
+                series.operators[i].getName(), value));
+          }
+        }
+      }
+    }
+    return results;
+  }
+
+  @Override
+  public void onSensorData(int nodeId, String sensorData, long captureTime) {
+    if (nodeId < 1 || nodeId > MAX_NODE_ID) {
+      return;
+    }
+    int sensorIndex = 0;
+    int position = 0;
+    int length = sensorData.length();
+    while (position < length) {
+      int end = sensorData.indexOf(',', position);
+      if (end < 0) {
+        end = length;
+      }
+      int equals = sensorData.indexOf('=', position);
+      if (equals >= 0 && equals < end) {
+        double value = Parser.parseReadingValue(sensorData, equals + 1, end);
+        if (!Double.isNaN(value)) {
+          Series series = series(nodeId, sensorIndex, sensorData, position, equals);
+          if (series.states.length > 0) {
+            update(nodeId, sensorIndex, series, captureTime, value);
+          }
+        }
+      }
+      sensorIndex++;
+      position = end + 1;
+    }
+  }
+
+  private void update(int nodeId, int sensorIndex, Series series, long timestamp, double value) {
+    synchronized (series) {
+      for (int i = 0; i < series.states.length; i++) {
+        OperatorState state = series.states[i];
+        if (state.update(timestamp, value) && !listeners.isEmpty()) {
+          double result = state.getValue();
+          for (StreamResultListener listener : listeners) {
+            listener.onStreamResult(nodeId, sensorIndex, series.operators[i], timestamp, result);
+          }
+        }
+      }
+    }
+  }
+
+  private Series find(int nodeId, int sensorIndex) {
+    NodeSeries[] current = nodes;
+    if (nodeId < 0 || nodeId >= current.length || current[nodeId] == null) {
+      return null;
+    }
+    Series[] sensors = current[nodeId].sensors;
+    return sensorIndex >= 0 && sensorIndex < sensors.length ? sensors[sensorIndex] : null;
+  }
+
+  /**
+   * Get the series of a sensor, creating it when the sensor reports for the first time or with
+   * another type than before.
+   */
+  private Series series(int nodeId, int sensorIndex, String sensorData, int typeStart,
+                        int typeEnd) {
+    Series series = find(nodeId, sensorIndex);
+    if (series != null && series.hasType(sensorData, typeStart, typeEnd)) {
+      return series;
+    }
+    return nodeFor(nodeId).insert(sensorIndex, sensorData.substring(typeStart, typeEnd));
+  }
+
+  private synchronized NodeSeries nodeFor(int nodeId) {
+    if (nodeId < 1 || nodeId > MAX_NODE_ID) {
+      throw new IllegalArgumentException("Node ID out of range: " + nodeId);
+    }
+    NodeSeries[] current = nodes;
+    if (nodeId >= current.length) {
+      NodeSeries[] grown = new NodeSeries[Math.max(nodeId + 1, current.length * 2)];
+      System.arraycopy(current, 0, grown, 0, current.length);
+      current = grown;
+    }
+    if (current[nodeId] == null) {
+      current[nodeId] = new NodeSeries();
+    }
+    nodes = current;
+    return current[nodeId];
+  }
+
+  /**
+   * The series of the sensors of one node, by sensor index.
+   */
+  private class NodeSeries {
+    private volatile Series[] sensors = new Series[0];
+
+    synchronized Series insert(int sensorIndex, String type) {
+      Series[] current = sensors;
+      Series existing = sensorIndex < current.length ? current[sensorIndex] : null;
+      if (existing != null && existing.type.equals(type)) {
+        return existing;
+      }
+      List<StreamOperator> matching = new ArrayList<>();
+      for (StreamOperator operator : operators) {
+        if (operator.appliesTo(type, 0, type.length())) {
+          matching.add(operator);
+        }
+      }
+      Series series = new Series(type, matching.toArray(new StreamOperator[0]));
+      if (sensorIndex >= current.length) {
+        Series[] grown = new Series[sensorIndex + 1];
+        System.arraycopy(current, 0, grown, 0, current.length);
+        current = grown;
+      }
+      current[sensorIndex] = series;
+      sensors = current;
+      if (existing == null) {
+        seriesCount.incrementAndGet();
+      } else {
+        stateBytes.addAndGet(-existing.getStateBytes());
+      }
+      stateBytes.addAndGet(series.getStateBytes());
+      return series;
+    }
+  }
+
+  /**
+   * One sensor of a node with the states of the operators for its type.
+   */
+  private static class Series {
+    private final String type;
+    private final StreamOperator[] operators;
+    private final OperatorState[] states;
+
+    Series(String type, StreamOperator[] operators) {
+      this.type = type;
+      this.operators = operators;
+      this.states = new OperatorState[operators.length];
+      for (int i = 0; i < operators.length; i++) {
+        states[i] = operators[i].createState();
+      }
+    }
+
+    boolean hasType(String sensorData, int start, int end) {
+      return type.length() == end - start && sensorData.regionMatches(start, type, 0, end - start);
+    }
+
+    long getStateBytes() {
+      long bytes = 0;
+      for (StreamOperator operator : operators) {
+        bytes += operator.getStateBytes();
+      }
+      return bytes;
+    }
+  }
+}
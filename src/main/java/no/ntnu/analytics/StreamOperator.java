@@ -0,0 +1,64 @@
+package no.ntnu.analytics;
+
+/**
+ * An operator evaluated incrementally over the readings of every sensor of a type, like a moving
+ * average of the temperature. The operator itself is only the configuration; its state for each
+ * sensor series lives in an {@link OperatorState} of a fixed size, created by
+ * {@link StreamAnalytics} when the series first reports. Operators are usually written in an
+ * analytics file, see {@link StreamOperatorParser}.
+ */
+public abstract class StreamOperator {
+  /**
+   * Sensor type of an operator which applies to sensors of every type.
+   */
+  public static final String ANY_TYPE = "*";
+
+  private final String name;
+  private final String sensorType;
+
+  /**
+   * Create an operator.
+   *
+   * @param name       the name of the operator, for results and logs
+   * @param sensorType the type of the sensors it applies to, or {@link #ANY_TYPE}
+   */
+  protected StreamOperator(String name, String sensorType) {
+    this.name = name;
+    this.sensorType = sensorType;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public String getSensorType() {
+    return sensorType;
+  }
+
+  /**
+   * Check whether the operator applies to a sensor type, comparing it in place.
+   *
+   * @param sensorData text holding the type
+   * @param start      index of the first character of the type
+   * @param end        index after the last character of the type
+   * @return true if the operator applies to sensors of the type
+   */
+  boolean appliesTo(String sensorData, int start, int end) {
+    return sensorType.equals(ANY_TYPE) || sensorType.length() == end - start
+        && sensorData.regionMatches(start, sensorType, 0, end - start);
+  }
+
+  /**
+   * Create the state of the operator for one sensor series.
+   *
+   * @return a new, empty state
+   */
+  abstract OperatorState createState();
+
+  /**
+   * Get the size of the state of one series, for memory estimates.
+   *
+   * @return the approximate size in bytes
+   */
+  public abstract int getStateBytes();
+}
@@ -0,0 +1,280 @@
+package no.ntnu.analytics;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads stream operators from text, one operator per line:
+ * <pre>
+ *   name: type tumbling mean|min|max|sum|count duration
+ *   name: type sliding mean|min|max|sum|count duration [samples n]
+ *   name: type average n
+ *   name: type rate duration [samples n]
+ *   name: type above|below threshold
+ *   name: type zscore threshold [alpha a]
+ *   name: type stuck duration [readings n]
+ * </pre>
+ * The type is a sensor type, or * for sensors of every type. A duration is a number with the
+ * unit ms, s, m, h or d. "samples" is the most readings a window keeps. By default a window keeps
+ * the readings of its whole duration at the expected reading period, at most
+ * {@link #MAX_DEFAULT_SAMPLES}; a window whose samples can't cover its duration at that period is
+ * rejected, as it would silently cover less time. "zscore" and "stuck" are
+ * {@link AnomalyDetector}s, see {@link ZScoreDetector} and {@link FlatlineDetector} for their
+ * defaults. Empty lines and lines starting with # are ignored. Examples:
+ * <pre>
+ *   temperature-5m: temperature sliding mean 5m
+ *   temperature-hourly-max: temperature tumbling max 1h
+ *   humidity-trend: humidity rate 10m samples 128
+ *   hot-for: temperature above 30
+ *   spike: &#42; zscore 6 alpha 0.02
+ * </pre>
+ */
+public class StreamOperatorParser {
+  /**
+   * The time between two readings of a sensor which windows are sized for when no period is
+   * given: the sensing period of the nodes.
+   */
+  public static final long DEFAULT_READING_PERIOD = 5000;
+
+  /**
+   * The most readings a window keeps when its samples are not given.
+   */
+  public static final int MAX_DEFAULT_SAMPLES = 4096;
+
+  private StreamOperatorParser() {
+  }
+
+  /**
+   * Read the operators of a file, sizing windows for {@link #DEFAULT_READING_PERIOD}.
+   *
+   * @param file the analytics file, in UTF-8
+   * @return the operators, in file order
+   * @throws IOException              if the file can't be read
+   * @throws IllegalArgumentException if an operator is invalid, with the line number
+   */
+  public static List<StreamOperator> load(Path file) throws IOException {
+    return load(file, DEFAULT_READING_PERIOD);
+  }
+
+  /**
+   * Read the operators of a file.
+   *
+   * @param file                the analytics file, in UTF-8
+   * @param readingPeriodMillis the expected time between two readings of a sensor
+   * @return the operators, in file order
+   * @throws IOException              if the file can't be read
+   * @throws IllegalArgumentException if an operator is invalid, with the line number
+   */
+  public static List<StreamOperator> load(Path file, long readingPeriodMillis)
+      throws IOException {
+    return parse(Files.readAllLines(file, StandardCharsets.UTF_8), readingPeriodMillis);
+  }
+
+  /**
+   * Parse operators, sizing windows for {@link #DEFAULT_READING_PERIOD}.
+   *
+   * @param lines the lines of operators
+   * @return the operators, in line order
+   * @throws IllegalArgumentException if an operator is invalid, with the line number
+   */
+  public static List<StreamOperator> parse(List<String> lines) {
+    return parse(lines, DEFAULT_READING_PERIOD);
+  }
+
+  /**
+   * Parse operators.
+   *
+   * @param lines               the lines of operators
+   * @param readingPeriodMillis the expected time between two readings of a sensor
+   * @return the operators, in line order
+   * @throws IllegalArgumentException if an operator is invalid, with the line number
+   */
+  public static List<StreamOperator> parse(List<String> lines, long readingPeriodMillis) {
+    if (readingPeriodMillis <= 0) {
+      throw new IllegalArgumentException("Reading period must be positive: "
+          + readingPeriodMillis);
+    }
+    List<StreamOperator> operators = new ArrayList<>();
+    for (int i = 0; i < lines.size(); i++) {
+      String line = lines.get(i).trim();
+      if (line.isEmpty() || line.startsWith("#")) {
+        continue;
+      }
+      try {
+        operators.add(parseOperator(line, readingPeriodMillis));
+      } catch (IllegalArgumentException e) {
+        throw new IllegalArgumentException("Operator on line " + (i + 1) + ": "
+            + e.getMessage());
+      }
+    }
+    return operators;
+  }
+
+  private static StreamOperator parseOperator(String line, long readingPeriodMillis) {
+    int colon = line.indexOf(':');
+    if (colon <= 0) {
+      throw new IllegalArgumentException("Expected name: type operator ...");
+    }
+    String name = line.substring(0, colon).trim();
+    String[] tokens = line.substring(colon + 1).trim().split("\\s+");
+    String type = token(tokens, 0, "sensor type");
+    String kind = token(tokens, 1, "operator");
+    int end;
+    StreamOperator operator;
+    switch (kind) {
+      case "tumbling" -> {
+        operator = new TumblingWindow(name, type, parseAggregate(token(tokens, 2, "aggregate")),
+            parseDuration(token(tokens, 3, "duration")));
+        end = 4;
+      }
+      case "sliding" -> {
+        long duration = parseDuration(token(tokens, 3, "duration"));
+        int samples = parseSamples(tokens, 4, duration, readingPeriodMillis);
+        operator = new SlidingWindow(name, type, parseAggregate(token(tokens, 2, "aggregate")),
+            duration, samples);
+        end = tokens.length > 4 ? 6 : 4;
+      }
+      case "average" -> {
+        operator = new MovingAverage(name, type, parseCount(token(tokens, 2, "readings")));
+        end = 3;
+      }
+      case "rate" -> {
+        long duration = parseDuration(token(tokens, 2, "duration"));
+        int samples = parseSamples(tokens, 3, duration, readingPeriodMillis);
+        operator = new RateOfChange(name, type, duration, samples);
+        end = tokens.length > 3 ? 5 : 3;
+      }
+      case "above", "below" -> {
+        operator = new TimeSinceThreshold(name, type,
+            parseNumber(token(tokens, 2, "threshold")), kind.equals("above"));
+        end = 3;
+      }
+      case "zscore" -> {
+        double alpha = ZScoreDetector.DEFAULT_ALPHA;
+        if (tokens.length > 3) {
+          expect(tokens, 3, "alpha");
+          alpha = parseNumber(token(tokens, 4, "alpha"));
+        }
+        operator = new ZScoreDetector(name, type, parseNumber(token(tokens, 2, "threshold")),
+            alpha);
+        end = tokens.length > 3 ? 5 : 3;
+      }
+      case "stuck" -> {
+        int readings = FlatlineDetector.DEFAULT_READINGS;
+        if (tokens.length > 3) {
+          expect(tokens, 3, "readings");
+          readings = parseCount(token(tokens, 4, "readings"));
+        }
+        operator = new FlatlineDetector(name, type, parseDuration(token(tokens, 2, "duration")),
+            readings);
+        end = tokens.length > 3 ? 5 : 3;
+      }
+      default -> throw new IllegalArgumentException("Unknown operator " + kind);
+    }
+    if (end < tokens.length) {
+      throw new IllegalArgumentException("Unexpected " + tokens[end]);
+    }
+    return operator;
+  }
+
+  /**
+   * Get the samples of a window: the given number, or enough for the readings of its duration.
+   * The samples must hold the readings of the duration, one reading more for a reading which
+   * arrives a little early.
+   */
+  private static int parseSamples(String[] tokens, int position, long durationMillis,
+                                  long readingPeriodMillis) {
+    long needed = durationMillis / readingPeriodMillis + 1;
+    if (position >= tokens.length) {
+      if (needed > MAX_DEFAULT_SAMPLES) {
+        throw new IllegalArgumentException("A window of " + durationMillis + " ms needs "
+            + needed + " samples at one reading per " + readingPeriodMillis
+            + " ms, give samples or use a tumbling window");
+      }
+      return (int) Math.max(2, needed);
+    }
+    expect(tokens, position, "samples");
+    int samples = parseCount(token(tokens, position + 1, "samples"));
+    if (samples < needed) {
+      throw new IllegalArgumentException(samples + " samples cover "
+          + (samples - 1) * readingPeriodMillis + " ms at one reading per " + readingPeriodMillis
+          + " ms, less than the window of " + durationMillis + " ms; give at least " + needed);
+    }
+    return samples;
+  }
+
+  private static void expect(String[] tokens, int position, String keyword) {
+    if (!tokens[position].equals(keyword)) {
+      throw new IllegalArgumentException("Expected " + keyword + ", got " + tokens[position]);
+    }
+  }
+
+  private static String token(String[] tokens, int position, String expected) {
+    if (position >= tokens.length) {
+      throw new IllegalArgumentException("Expected " + expected + " at the end");
+    }
+    return tokens[position];
+  }
+
+  private static Aggregate parseAggregate(String label) {
+    Aggregate aggregate = Aggregate.fromLabel(label);
+    if (aggregate == null) {
+      throw new IllegalArgumentException("Invalid aggregate: " + label);
+    }
+    return aggregate;
+  }
+
+  private static int parseCount(String count) {
+    try {
+      int value = Integer.parseInt(count);
+      if (value > 0) {
+        return value;
+      }
+    } catch (NumberFormatException e) {
+      // Reported below
+    }
+    throw new IllegalArgumentException("Invalid count: " + count);
+  }
+
+  private static double parseNumber(String number) {
+    try {
+      return Double.parseDouble(number);
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Invalid number: " + number);
+    }
+  }
+
+  /**
+   * Parse a duration like 500ms, 30s, 5m, 1h or 1d.
+   *
+   * @param duration the duration
+   * @return the duration in milliseconds
+   */
+  public static long parseDuration(String duration) {
+    int unitStart = duration.length();
+    while (unitStart > 0 && Character.isLetter(duration.charAt(unitStart - 1))) {
+      unitStart--;
+    }
+    long unit = switch (duration.substring(unitStart)) {
+      case "ms" -> 1;
+      case "s" -> 1000;
+      case "m" -> 60_000;
+      case "h" -> 3_600_000;
+      case "d" -> 86_400_000;
+      default -> 0;
+    };
+    try {
+      long amount = Long.parseLong(duration.substring(0, unitStart));
+      if (unit > 0 && amount > 0) {
+        return Math.multiplyExact(amount, unit);
+      }
+    } catch (NumberFormatException | ArithmeticException e) {
+      // Reported below
+    }
+    throw new IllegalArgumentException("Invalid duration: " + duration);
+  }
+}
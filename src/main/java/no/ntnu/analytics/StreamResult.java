@@ -0,0 +1,50 @@
+package no.ntnu.analytics;
+
+/**
+ * The latest result of a stream operator for one sensor.
+ */
+public class StreamResult {
+  private final int nodeId;
+  private final int sensorIndex;
+  private final String sensorType;
+  private final String operatorName;
+  private final double value;
+
+  /**
+   * Create a result.
+   *
+   * @param nodeId       ID of the node
+   * @param sensorIndex  index of the sensor on the node
+   * @param sensorType   type of the sensor, like "temperature"
+   * @param operatorName name of the operator
+   * @param value        the result
+   */
+  public StreamResult(int nodeId, int sensorIndex, String sensorType, String operatorName,
+                      double value) {
+    this.nodeId = nodeId;
+    this.sensorIndex = sensorIndex;
+    this.sensorType = sensorType;
+    this.operatorName = operatorName;
+    this.value = value;
+  }
+
+  public int getNodeId() {
+    return nodeId;
+  }
+
+  public int getSensorIndex() {
+    return sensorIndex;
+  }
+
+  public String getSensorType() {
+    return sensorType;
+  }
+
+  public String getOperatorName() {
+    return operatorName;
+  }
+
+  public double getValue() {
+    return value;
+  }
+}
@@ -0,0 +1,72 @@
+package no.ntnu.analytics;
+
+/**
+ * How long the readings of a series have been above (or below) a threshold without interruption,
+ * in milliseconds, or 0 while they are not. Only the time the series crossed the threshold is
+ * kept.
+ */
+public class TimeSinceThreshold extends StreamOperator {
+  private static final long NOT_CROSSED = Long.MIN_VALUE;
+
+  private final double threshold;
+  private final boolean above;
+
+  /**
+   * Create a time since threshold.
+   *
+   * @param name       the name of the operator
+   * @param sensorType the type of the sensors, or {@link #ANY_TYPE}
+   * @param threshold  the threshold of the readings
+   * @param above      true to measure the time above the threshold, false below
+   */
+  public TimeSinceThreshold(String name, String sensorType, double threshold, boolean above) {
+    super(name, sensorType);
+    this.threshold = threshold;
+    this.above = above;
+  }
+
+  public double getThreshold() {
+    return threshold;
+  }
+
+  public boolean isAbove() {
+    return above;
+  }
+
+  @Override
+  OperatorState createState() {
+    return new State();
+  }
+
+  @Override
+  public int getStateBytes() {
+    return 32;
+  }
+
+  /**
+   * The crossing time of one series.
+   */
+  private class State extends OperatorState {
+    private long crossedAt = NOT_CROSSED;
+    private double duration = Double.NaN;
+
+    @Override
+    boolean update(long timestamp, double value) {
+      if (above ? value > threshold : value < threshold) {
+        if (crossedAt == NOT_CROSSED) {
+          crossedAt = timestamp;
+        }
+        duration = Math.max(0, timestamp - crossedAt);
+      } else {
+        crossedAt = NOT_CROSSED;
+        duration = 0;
+      }
+      return true;
+    }
+
+    @Override
+    double getValue() {
+      return duration;
+    }
+  }
+}
@@ -0,0 +1,105 @@
+package no.ntnu.analytics;
+
+import no.ntnu.tools.metrics.Counter;
+import no.ntnu.tools.metrics.Metrics;
+
+/**
+ * An aggregate over consecutive, non-overlapping periods of time, aligned to the epoch, like the
+ * maximum temperature of every hour. The result of a window is produced when the first reading of
+ * a later window arrives. Only the running aggregate of the open window is kept, so the state is a
+ * handful of primitive fields. Readings older than the open window are dropped.
+ */
+public class TumblingWindow extends StreamOperator {
+  private static final Counter LATE = Metrics.counter("analytics_late_readings_total");
+
+  private final Aggregate aggregate;
+  private final long lengthMillis;
+
+  /**
+   * Create a tumbling window.
+   *
+   * @param name         the name of the operator
+   * @param sensorType   the type of the sensors, or {@link #ANY_TYPE}
+   * @param aggregate    the aggregate computed over each window
+   * @param lengthMillis the length of the windows in milliseconds
+   */
+  public TumblingWindow(String name, String sensorType, Aggregate aggregate, long lengthMillis) {
+    super(name, sensorType);
+    if (lengthMillis <= 0) {
+      throw new IllegalArgumentException("Window length must be positive: " + lengthMillis);
+    }
+    this.aggregate = aggregate;
+    this.lengthMillis = lengthMillis;
+  }
+
+  public Aggregate getAggregate() {
+    return aggregate;
+  }
+
+  public long getLengthMillis() {
+    return lengthMillis;
+  }
+
+  @Override
+  OperatorState createState() {
+    return new State();
+  }
+
+  @Override
+  public int getStateBytes() {
+    return 64;
+  }
+
+  /**
+   * The open window of one series and the result of the last closed one.
+   */
+  private class State extends OperatorState {
+    private long windowStart;
+    private long count;
+    private double sum;
+    private double min;
+    private double max;
+    private double result = Double.NaN;
+
+    @Override
+    boolean update(long timestamp, double value) {
+      long start = Math.floorDiv(timestamp, lengthMillis) * lengthMillis;
+      boolean closed = false;
+      if (count > 0 && start < windowStart) {
+        LATE.increment();
+        return false;
+      }
+      if (count > 0 && start > windowStart) {
+        result = aggregate();
+        closed = true;
+        count = 0;
+      }
+      if (count == 0) {
+        windowStart = start;
+        sum = 0;
+        min = value;
+        max = value;
+      }
+      count++;
+      sum += value;
+      min = Math.min(min, value);
+      max = Math.max(max, value);
+      return closed;
+    }
+
+    private double aggregate() {
+      return switch (aggregate) {
+        case MEAN -> sum / count;
+        case SUM -> sum;
+        case COUNT -> count;
+        case MIN -> min;
+        case MAX -> max;
+      };
+    }
+
+    @Override
+    double getValue() {
+      return result;
+    }
+  }
+}
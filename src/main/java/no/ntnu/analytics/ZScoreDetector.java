@@ -0,0 +1,111 @@
+package no.ntnu.analytics;
+
+/**
+ * Detects readings far from the recent behaviour of a sensor: the mean and variance of the series
+ * are tracked as exponentially weighted moving averages, and a reading whose z-score against them
+ * exceeds the threshold starts a spike. The spike ends when the z-score falls below half the
+ * threshold, so a noisy excursion is reported once. The averages keep adapting during a spike, so
+ * a lasting change of level is reported once and then becomes the new normal.
+ * The state of a series is four primitive fields. No spikes are reported until the series has had
+ * about 1 / alpha readings, and the deviation is never taken as less than the resolution of the
+ * readings, so a sensor which barely varies does not report every change of its last digit.
+ */
+public class ZScoreDetector extends AnomalyDetector {
+  /**
+   * The weight of a new reading in the averages when none is given.
+   */
+  public static final double DEFAULT_ALPHA = 0.02;
+  private static final double MIN_DEVIATION = 0.01;
+
+  private final double threshold;
+  private final double alpha;
+  private final int warmup;
+
+  /**
+   * Create a z-score detector.
+   *
+   * @param name       the name of the detector
+   * @param sensorType the type of the sensors, or {@link #ANY_TYPE}
+   * @param threshold  the z-score which starts a spike
+   * @param alpha      the weight of a new reading in the averages, between 0 and 1
+   */
+  public ZScoreDetector(String name, String sensorType, double threshold, double alpha) {
+    super(name, sensorType);
+    if (threshold <= 0) {
+      throw new IllegalArgumentException("Z-score threshold must be positive: " + threshold);
+    }
+    if (!(alpha > 0 && alpha < 1)) {
+      throw new IllegalArgumentException("Alpha must be between 0 and 1: " + alpha);
+    }
+    this.threshold = threshold;
+    this.alpha = alpha;
+    this.warmup = (int) Math.ceil(1 / alpha);
+  }
+
+  public double getThreshold() {
+    return threshold;
+  }
+
+  public double getAlpha() {
+    return alpha;
+  }
+
+  @Override
+  public String getKind() {
+    return "spike";
+  }
+
+  @Override
+  OperatorState createState() {
+    return new State();
+  }
+
+  @Override
+  public int getStateBytes() {
+    return 48;
+  }
+
+  /**
+   * The moving mean and variance of one series.
+   */
+  private class State extends OperatorState {
+    private double mean;
+    private double variance;
+    private double score = Double.NaN;
+    private int count;
+    private boolean spiking;
+
+    @Override
+    boolean update(long timestamp, double value) {
+      if (count == 0) {
+        mean = value;
+        count = 1;
+        return false;
+      }
+      double difference = value - mean;
+      double deviation = Math.max(Math.sqrt(variance), MIN_DEVIATION);
+      score = difference / deviation;
+      double increment = alpha * difference;
+      mean += increment;
+      variance = (1 - alpha) * (variance + difference * increment);
+      if (count < warmup) {
+        count++;
+        return false;
+      }
+      double magnitude = Math.abs(score);
+      if (!spiking && magnitude > threshold) {
+        spiking = true;
+        return true;
+      }
+      if (spiking && magnitude < threshold / 2) {
+        spiking = false;
+      }
+      return false;
+    }
+
+    @Override
+    double getValue() {
+      return score;
+    }
+  }
+}
@@ -0,0 +1,124 @@
+package no.ntnu.communication;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import no.ntnu.greenhouse.SensorActuatorNode;
+import no.ntnu.tools.TaskScheduler;
+import no.ntnu.tools.ThreadTaskScheduler;
+
+/**
+ * Coalesces rapid repeated actuator commands on the server-to-node path.
+ * Commands for the same (node, actuator) pair which arrive within the coalescing window are
+ * collapsed into one: only the last desired state is applied to the node when the window closes.
+ * The node then reports at most one state change for the whole burst.
+ * Commands are posted to the node's mailbox, so they never race with other work for the node.
+ * Commands for one actuator are posted while holding its entry in the pending map, so they reach
+ * the mailbox in the order they were submitted, also when the window is changed in between.
+ */
+public class ActuatorCommandCoalescer {
+  private final Map<Integer, SensorActuatorNode> nodes;
+  private final Map<Long, Boolean> pendingStates = new ConcurrentHashMap<>();
+  private final TaskScheduler scheduler;
+  private volatile long windowMillis;
+
+  /**
+   * Constructs a new ActuatorCommandCoalescer.
+   *
+   * @param nodes        the map of sensor-actuator nodes the commands are applied to
+   * @param windowMillis the coalescing window in milliseconds, zero or less disables coalescing
+   */
+  public ActuatorCommandCoalescer(Map<Integer, SensorActuatorNode> nodes, long windowMillis) {
+    this(nodes, windowMillis, new ThreadTaskScheduler("Command-Coalescer"));
+  }
+
+  /**
+   * Constructs a new ActuatorCommandCoalescer which closes its windows on the given scheduler.
+   *
+   * @param nodes        the map of sensor-actuator nodes the commands are applied to
+   * @param windowMillis the coalescing window in milliseconds, zero or less disables coalescing
+   * @param scheduler    the scheduler which flushes the pending commands
+   */
+  public ActuatorCommandCoalescer(Map<Integer, SensorActuatorNode> nodes, long windowMillis,
+      TaskScheduler scheduler) {
+    this.nodes = nodes;
+    this.windowMillis = windowMillis;
+    this.scheduler = scheduler;
+  }
+
+  /**
+   * Sets the coalescing window. Commands which are already pending keep their original deadline.
+   *
+   * @param windowMillis the window in milliseconds, zero or less disables coalescing
+   */
+  public void setWindowMillis(long windowMillis) {
+    this.windowMillis = windowMillis;
+  }
+
+  /**
+   * Submits a desired actuator state. If a command for the same actuator is already pending, the
+   * pending state is replaced and no extra work is scheduled. Without a window the state is
+   * applied at once, and a command which is still pending from an earlier window is discarded,
+   * since it is older.
+   *
+   * @param nodeId     the ID of the node that contains the actuator
+   * @param actuatorId the ID of the actuator
+   * @param isOn       the desired state of the actuator
+   */
+  public void submit(int nodeId, int actuatorId, boolean isOn) {
+    long window = windowMillis;
+    long key = toKey(nodeId, actuatorId);
+    if (window <= 0) {
+      pendingStates.compute(key, (k, pending) -> {
+        apply(nodeId, actuatorId, isOn);
+        return null;
+      });
+      return;
+    }
+    if (pendingStates.put(key, isOn) == null) {
+      scheduler.schedule(() -> flush(key), window);
+    }
+  }
+
+  /**
+   * Applies the last desired state for the given key, if it is still pending.
+   *
+   * @param key the combined node and actuator key
+   */
+  private void flush(long key) {
+    pendingStates.computeIfPresent(key, (k, isOn) -> {
+      apply((int) (key >>> 32), (int) key, isOn);
+      return null;
+    });
+  }
+
+  private void apply(int nodeId, int actuatorId, boolean isOn) {
+    SensorActuatorNode node = nodes.get(nodeId);
+    if (node != null) {
+      node.setActuator(actuatorId, isOn);
+    }
+  }
+
+  private static long toKey(int nodeId, int actuatorId) {
+    return ((long) nodeId << 32) | (actuatorId & 0xFFFFFFFFL);
+  }
+
+  /**
+   * Gets the number of commands waiting for their coalescing window to close.
+   *
+   * @return the number of pending commands
+   */
+  public int getPendingCount() {
+    return pendingStates.size();
+  }
+
+  /**
+   * Stops the coalescer and its scheduler. Pending commands are applied immediately so no
+   * desired state is lost.
+   */
+  public void shutdown() {
+    scheduler.shutdown();
+    for (Long key : pendingStates.keySet()) {
+      flush(key);
+    }
+  }
+}
@@ -0,0 +1,42 @@
+package no.ntnu.communication;
+
+import no.ntnu.analytics.AnomalyDetector;
+import no.ntnu.analytics.StreamOperator;
+import no.ntnu.listeners.server.StreamResultListener;
+import no.ntnu.message.AnomalyMessage;
+import no.ntnu.message.MessageSerializer;
+import no.ntnu.tools.Logger;
+import no.ntnu.tools.metrics.Metrics;
+
+/**
+ * Sends the anomalies found by the {@link AnomalyDetector}s of the stream analytics to the control
+ * panels which subscribed to them, as ANOMALY messages. The results of other operators are
+ * ignored. A detector only produces a result when an anomaly starts, so this is off the hot path
+ * of the readings.
+ */
+public class AnomalyPublisher implements StreamResultListener {
+  private final TcpServer server;
+
+  /**
+   * Create a publisher.
+   *
+   * @param server the server which sends the anomalies to its subscribers
+   */
+  public AnomalyPublisher(TcpServer server) {
+    this.server = server;
+  }
+
+  @Override
+  public void onStreamResult(int nodeId, int sensorIndex, StreamOperator operator,
+                             long timestamp, double value) {
+    if (!(operator instanceof AnomalyDetector detector)) {
+      return;
+    }
+    double score = Math.round(value * 100) / 100.0;
+    Metrics.counter("anomalies_total", "kind", detector.getKind()).increment();
+    Logger.debug(() -> "Anomaly " + detector.getKind() + " on node " + nodeId + " sensor "
+        + sensorIndex + ", score " + score);
+    server.publishAnomaly(MessageSerializer.toString(
+        new AnomalyMessage(nodeId, sensorIndex, detector.getKind(), score, timestamp)));
+  }
+}
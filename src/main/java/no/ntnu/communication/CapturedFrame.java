@@ -0,0 +1,42 @@
+package no.ntnu.communication;
+
+/**
+ * One frame of a {@link TrafficCapture}.
+ */
+public class CapturedFrame {
+  private final long offsetNanos;
+  private final int connectionId;
+  private final byte kind;
+  private final String line;
+
+  /**
+   * Create a frame.
+   *
+   * @param offsetNanos  the time since the start of the capture, in nanoseconds
+   * @param connectionId the ID of the connection
+   * @param kind         {@link TrafficCapture#OPEN}, IN, OUT or CLOSE
+   * @param line         the line for IN and OUT frames, null otherwise
+   */
+  public CapturedFrame(long offsetNanos, int connectionId, byte kind, String line) {
+    this.offsetNanos = offsetNanos;
+    this.connectionId = connectionId;
+    this.kind = kind;
+    this.line = line;
+  }
+
+  public long getOffsetNanos() {
+    return offsetNanos;
+  }
+
+  public int getConnectionId() {
+    return connectionId;
+  }
+
+  public byte getKind() {
+    return kind;
+  }
+
+  public String getLine() {
+    return line;
+  }
+}
@@ -1,67 +1,108 @@
 package no.ntnu.communication;
 
-import java.io.*;
-import java.net.Socket;
 import java.util.Map;
+import java.util.function.LongConsumer;
+import no.ntnu.analytics.FleetQuantiles;
+import no.ntnu.analytics.QuantileResult;
+import no.ntnu.communication.transport.Connection;
+import no.ntnu.communication.transport.ConnectionListener;
+import no.ntnu.greenhouse.Actuator;
 import no.ntnu.greenhouse.SensorActuatorNode;
 import no.ntnu.message.ActuatorCommandMessage;
 import no.ntnu.message.ActuatorStateMessage;
+import no.ntnu.message.AnomalySubscribeMessage;
 import no.ntnu.message.ControlPanelConnectMessage;
 import no.ntnu.message.ErrorMessage;
+import no.ntnu.message.HistoryQueryMessage;
 import no.ntnu.message.Message;
 import no.ntnu.message.MessageSerializer;
 import no.ntnu.message.NodeReadyMessage;
+import no.ntnu.message.PercentileQueryMessage;
+import no.ntnu.message.PercentileResultMessage;
 import no.ntnu.message.SensorDataMessage;
 import no.ntnu.message.TurnOffAllActuatorsMessage;
 import no.ntnu.tools.Logger;
+import no.ntnu.tools.events.MessageDispatchEvent;
+import no.ntnu.tools.metrics.Counter;
+import no.ntnu.tools.metrics.Histogram;
+import no.ntnu.tools.metrics.Metrics;
 
 /**
  * The ClientHandler class manages the communication between the server and a
  * connected client.
  * It handles receiving and processing messages from the client and sending
- * responses back.
+ * responses back. The connection calls the handler for every received line;
+ * outgoing messages are queued by the connection, so a slow client never
+ * blocks the thread which sends to it. When the server has a traffic capture,
+ * every line in both directions is recorded to it.
  */
-public class ClientHandler extends Thread {
-  private final Socket clientSocket;
+public class ClientHandler implements ConnectionListener {
+  private static final String QUEUE_DEPTH_METRIC = "server_client_queue_depth";
+  private static final Counter BYTES_IN = Metrics.counter("server_bytes_in_total");
+  private static final Counter BYTES_OUT = Metrics.counter("server_bytes_out_total");
+  private static final Counter DROPPED = Metrics.counter("server_messages_dropped_total");
+  private static final Counter REJECTED = Metrics.counter("server_messages_rejected_total");
+  private static final Histogram INGEST_LAG = Metrics.histogram("server_sensor_ingest_lag_millis");
+  private static final LongConsumer IGNORE_STAMP = time -> {
+    // Without a traffic capture the written time is not needed
+  };
+
+  private final Connection connection;
   private final TcpServer server;
-  private final BufferedReader input;
-  private final PrintWriter output;
   private final Map<Integer, SensorActuatorNode> nodes;
+  private final String clientName;
+  private final TrafficCapture capture;
+  private final int captureId;
+  private volatile boolean closed;
 
   /**
    * Constructs a new ClientHandler.
    *
-   * @param socket the socket connected to the client
-   * @param server the server instance
-   * @param nodes  the map of sensor-actuator nodes
-   * @throws IOException if an I/O error occurs when creating the input or output
-   *                     streams
-   */
-  public ClientHandler(Socket socket, TcpServer server, Map<Integer, SensorActuatorNode> nodes)
-      throws IOException {
-    this.clientSocket = socket;
+   * @param connection the connection to the client, not started yet
+   * @param server     the server instance
+   * @param nodes      the map of sensor-actuator nodes
+   */
+  public ClientHandler(Connection connection, TcpServer server, Map<Integer, SensorActuatorNode> nodes) {
+    this.connection = connection;
     this.server = server;
     this.nodes = nodes;
-    this.input = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-    this.output = new PrintWriter(socket.getOutputStream(), true);
+    this.clientName = connection.getRemoteName();
+    this.capture = server.getTrafficCapture();
+    this.captureId = capture != null ? capture.openConnection() : 0;
+  }
+
+  /**
+   * Starts receiving messages from the client.
+   */
+  public void start() {
+    Metrics.gauge(QUEUE_DEPTH_METRIC, "client", clientName, connection::getQueuedCount);
+    connection.start(this);
   }
 
   /**
-   * Handles incoming client messages and processes them accordingly.
-   * This method runs in a separate thread.
+   * Handles a line received from the client.
+   *
+   * @param line the message received from the client
    */
   @Override
-  public void run() {
-    try {
-      String message;
-      while ((message = input.readLine()) != null) {
-        handleMessage(message);
-      }
-    } catch (IOException e) {
-      Logger.error("Error handling client: " + e.getMessage());
-    } finally {
-      closeConnection();
+  public void onLine(String line) {
+    if (capture != null) {
+      capture.recordInbound(captureId, line);
     }
+    handleMessage(line);
+  }
+
+  /**
+   * Cleans up when the connection to the client has been closed.
+   */
+  @Override
+  public void onClosed() {
+    closed = true;
+    if (capture != null) {
+      capture.closeConnection(captureId);
+    }
+    server.removeClient(this);
+    Metrics.removeGauge(QUEUE_DEPTH_METRIC, clientName);
   }
 
   /**
@@ -70,8 +111,20 @@ public class ClientHandler extends Thread {
    * @param message the message received from the client
    */
   private void handleMessage(String message) {
+    MessageDispatchEvent event = new MessageDispatchEvent();
+    event.begin();
+    long start = System.nanoTime();
+    BYTES_IN.add(message.length() + 1L);
     Message msg = MessageSerializer.fromString(message);
     handleMessageByType(msg, message);
+    Metrics.counter("server_messages_in_total", "type", msg.getType()).increment();
+    Metrics.histogram("server_message_handle_nanos", "type", msg.getType()).recordSince(start);
+    if (event.shouldCommit()) {
+      event.nodeId = MessageSerializer.nodeIdOf(msg);
+      event.messageType = msg.getType();
+      event.size = message.length();
+      event.commit();
+    }
   }
 
   /**
@@ -85,14 +138,25 @@ public class ClientHandler extends Thread {
       handleTurnOffAll();
     } else if (msg instanceof NodeReadyMessage) {
       server.broadcastToControlPanels(originalMessage);
-    } else if (msg instanceof SensorDataMessage) {
-      server.broadcastToControlPanels(originalMessage);
-    } else if (msg instanceof ActuatorStateMessage) {
+    } else if (msg instanceof SensorDataMessage data) {
+      handleSensorData(data, originalMessage);
+    } else if (msg instanceof ActuatorStateMessage state) {
+      if (!server.acceptsNodeId(state.getNodeId())) {
+        reject(state.getNodeId());
+        return;
+      }
+      server.notifyActuatorState(state.getNodeId(), state.getActuatorId(), state.isOn());
       server.broadcastToControlPanels(originalMessage);
     } else if (msg instanceof ActuatorCommandMessage cmd) {
       handleActuatorCommand(cmd);
     } else if (msg instanceof ControlPanelConnectMessage) {
       server.registerControlPanel(this);
+    } else if (msg instanceof HistoryQueryMessage query) {
+      handleHistoryQuery(query);
+    } else if (msg instanceof PercentileQueryMessage query) {
+      handlePercentileQuery(query);
+    } else if (msg instanceof AnomalySubscribeMessage subscription) {
+      server.setAnomalySubscription(this, subscription.isSubscribe());
     } else if (msg instanceof ErrorMessage error) {
       handleError(error);
     } else {
@@ -100,32 +164,138 @@ public class ClientHandler extends Thread {
     }
   }
 
+  /**
+   * Handles the SensorDataMessage by recording how old the readings are,
+   * passing them to the sensor data listeners of the server and forwarding
+   * them to the control panels. Readings without a capture time are stamped
+   * with the time they were received. A sampled fraction of the messages
+   * is forwarded with the server's receive time appended, and the time when it
+   * is written to each control panel, so the control panels can tell how much
+   * time each hop took. Messages from a node
+   * ID which the server does not accept are dropped.
+   *
+   * @param data            the sensor data message
+   * @param originalMessage the original message string
+   */
+  private void handleSensorData(SensorDataMessage data, String originalMessage) {
+    if (!server.acceptsNodeId(data.getNodeId())) {
+      reject(data.getNodeId());
+      return;
+    }
+    long receivedTime = System.currentTimeMillis();
+    boolean traced = false;
+    if (data.getCaptureTime() != 0) {
+      INGEST_LAG.record(receivedTime - data.getCaptureTime());
+      traced = !data.isTraced() && server.shouldTrace();
+    }
+    long captureTime = data.getCaptureTime() != 0 ? data.getCaptureTime() : receivedTime;
+    server.notifySensorData(data.getNodeId(), data.getSensorData(), captureTime);
+    if (traced) {
+      server.broadcastStampedToControlPanels(originalMessage + ";" + receivedTime + ";");
+    } else {
+      server.broadcastToControlPanels(originalMessage);
+    }
+  }
+
+  /**
+   * Drops a message from a node ID outside the range the server accepts.
+   *
+   * @param nodeId the rejected node ID
+   */
+  private void reject(int nodeId) {
+    REJECTED.increment();
+    Logger.debug(() -> "Dropped message from " + clientName + " with invalid node ID " + nodeId);
+  }
+
   /**
    * Handles the TurnOffAllActuatorsMessage by turning off all actuators in all
-   * nodes.
+   * nodes. The commands go through the coalescer so that they are ordered after
+   * any command which is still pending for the same actuator.
    */
   private void handleTurnOffAll() {
     for (SensorActuatorNode node : nodes.values()) {
-      node.setAllActuators(false);
+      for (Actuator actuator : node.getActuators()) {
+        server.submitActuatorCommand(node.getId(), actuator.getId(), false);
+      }
     }
   }
 
   /**
    * Handles the ActuatorCommandMessage by setting the state of the specified
-   * actuator.
+   * actuator. Rapid repeated commands for the same actuator are coalesced.
    *
    * @param cmd the actuator command message
    */
   private void handleActuatorCommand(ActuatorCommandMessage cmd) {
     SensorActuatorNode node = nodes.get(cmd.getNodeId());
     if (node != null) {
-      node.setActuator(cmd.getActuatorId(), cmd.isOn());
-      Logger.info("Received actuator command: node=" + cmd.getNodeId() +
+      server.submitActuatorCommand(cmd.getNodeId(), cmd.getActuatorId(), cmd.isOn());
+      Logger.debug(() -> "Received actuator command: node=" + cmd.getNodeId() +
           ", actuator=" + cmd.getActuatorId() +
           ", state=" + cmd.isOn());
     }
   }
 
+  /**
+   * Handles the HistoryQueryMessage by passing it to the history query service
+   * of the server, which streams the answer back to this client. Without a
+   * history, the answer is an error and an empty last chunk.
+   *
+   * @param query the history query message
+   */
+  private void handleHistoryQuery(HistoryQueryMessage query) {
+    HistoryQueryService service = server.getHistoryQueryService();
+    if (service != null) {
+      service.submit(this, query);
+    } else {
+      HistoryQueryService.sendFailure(this, query.getQueryId(), HistoryQueryMessage.RAW,
+          "Sensor history is not available");
+    }
+  }
+
+  /**
+   * Handles the PercentileQueryMessage by merging the quantile sketches of the
+   * requested type and group and sending the percentiles back. The sketches
+   * are merged per group, so the query does not look at the nodes.
+   *
+   * @param query the percentile query message
+   */
+  private void handlePercentileQuery(PercentileQueryMessage query) {
+    FleetQuantiles quantiles = server.getFleetQuantiles();
+    if (quantiles == null) {
+      sendNoPercentiles(query, "Fleet percentiles are not available");
+      return;
+    }
+    for (double quantile : query.getQuantiles()) {
+      if (!(quantile >= 0 && quantile <= 1)) {
+        sendNoPercentiles(query, "Invalid quantile: " + quantile);
+        return;
+      }
+    }
+    QuantileResult result = quantiles.query(query.getSensorType(), query.getGroup(),
+        query.getQuantiles());
+    double[] values = result.getValues();
+    for (int i = 0; i < values.length; i++) {
+      values[i] = Math.round(values[i] * 100) / 100.0;
+    }
+    sendMessage(MessageSerializer.toString(new PercentileResultMessage(query.getQueryId(),
+        query.getSensorType(), query.getGroup(), result.getCount(), result.getQuantiles(),
+        values)));
+  }
+
+  /**
+   * Reports a percentile query which can't be answered, and answers it with a
+   * result without readings so that the panel stops waiting for it.
+   *
+   * @param query  the percentile query message
+   * @param reason the error to report
+   */
+  private void sendNoPercentiles(PercentileQueryMessage query, String reason) {
+    sendMessage("ERROR;" + reason);
+    sendMessage(MessageSerializer.toString(new PercentileResultMessage(query.getQueryId(),
+        query.getSensorType(), query.getGroup(), 0, new double[0], new double[0])));
+  }
+
   /**
    * Handles the ErrorMessage by logging the error and broadcasting it to control
    * panels.
@@ -143,18 +313,60 @@ public class ClientHandler extends Thread {
    * @param message the message to send
    */
   public void sendMessage(String message) {
-    output.println(message);
+    countSent(message, false, connection.send(message));
   }
 
   /**
-   * Closes the connection to the client.
+   * Sends a message which ends with the time when it is written to the client.
+   *
+   * @param prefix the message without the time
    */
-  private void closeConnection() {
-    try {
-      server.removeClient(this);
-      clientSocket.close();
-    } catch (IOException e) {
-      Logger.error("Error closing client connection: " + e.getMessage());
+  public void sendStampedMessage(String prefix) {
+    LongConsumer onWritten = capture != null
+        ? time -> capture.recordOutbound(captureId, prefix + time) : IGNORE_STAMP;
+    countSent(prefix, true, connection.sendStamped(prefix, onWritten));
+  }
+
+  /**
+   * Sends a message and runs a callback when it has been written to the client.
+   *
+   * @param message   the message to send
+   * @param onWritten runs when the message is written, not if it is dropped
+   * @return true if the message was queued, false if it was dropped
+   */
+  public boolean sendMessage(String message, Runnable onWritten) {
+    return countSent(message, false, connection.send(message, onWritten));
+  }
+
+  private boolean countSent(String message, boolean stamped, boolean queued) {
+    if (queued) {
+      // A stamped line is recorded when it is written, with the time it was written with
+      if (capture != null && !stamped) {
+        capture.recordOutbound(captureId, message);
+      }
+      // A stamp adds 13 digits of epoch milliseconds before the line terminator
+      BYTES_OUT.add(message.length() + (stamped ? 14L : 1L));
+      Metrics.counter("server_messages_out_total", "type", MessageSerializer.typeOf(message))
+          .increment();
+    } else {
+      DROPPED.increment();
     }
+    return queued;
+  }
+
+  /**
+   * Checks whether the connection to the client has been closed.
+   *
+   * @return true if the connection is closed
+   */
+  public boolean isClosed() {
+    return closed;
+  }
+
+  /**
+   * Closes the connection to the client.
+   */
+  public void close() {
+    connection.close();
   }
 }
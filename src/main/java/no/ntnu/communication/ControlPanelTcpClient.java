@@ -1,35 +1,64 @@
 package no.ntnu.communication;
 
-import java.io.*;
-import java.net.Socket;
-import java.security.KeyManagementException;
+import java.io.IOException;
 import java.security.KeyStoreException;
-import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import no.ntnu.communication.transport.Connection;
+import no.ntnu.communication.transport.ConnectionListener;
+import no.ntnu.communication.transport.TlsTransport;
+import no.ntnu.communication.transport.Transport;
+import no.ntnu.controlpanel.AlertList;
 import no.ntnu.controlpanel.CommunicationChannel;
 import no.ntnu.controlpanel.ControlPanelLogic;
+import no.ntnu.controlpanel.HistoryPoint;
 import no.ntnu.controlpanel.SensorActuatorNodeInfo;
 import no.ntnu.greenhouse.Actuator;
 import no.ntnu.greenhouse.SensorReading;
+import no.ntnu.listeners.controlpanel.AlertListener;
+import no.ntnu.listeners.controlpanel.AnomalyListener;
+import no.ntnu.listeners.controlpanel.HistoryListener;
+import no.ntnu.listeners.controlpanel.PercentileListener;
+import no.ntnu.message.AlertDigestMessage;
+import no.ntnu.message.AlertEntry;
+import no.ntnu.message.AnomalyMessage;
+import no.ntnu.message.AnomalySubscribeMessage;
+import no.ntnu.message.HistoryChunkMessage;
+import no.ntnu.message.HistoryQueryMessage;
+import no.ntnu.message.Message;
+import no.ntnu.message.MessageSerializer;
+import no.ntnu.message.PercentileQueryMessage;
+import no.ntnu.message.PercentileResultMessage;
 import no.ntnu.tools.Logger;
-import no.ntnu.ssl.SslConnection;
+import no.ntnu.tools.metrics.Histogram;
+import no.ntnu.tools.metrics.Metrics;
 
 /**
  * The ControlPanelTcpClient class manages the TCP connection between the
  * control panel and the server.
  * It handles sending and receiving messages, including actuator commands and
- * sensor data.
+ * sensor data, and keeps the list of alerts which fire on the server.
  */
 public class ControlPanelTcpClient implements CommunicationChannel {
   private static final String SERVER_HOST = "localhost";
-  private static final int SERVER_PORT = 10025;
-  private Socket socket;
-  private PrintWriter output;
-  private BufferedReader input;
+  private static final String OTHER_TYPE = "other";
+  private static final Histogram SENSOR_LAG = Metrics.histogram("panel_sensor_e2e_lag_millis");
+  private final Transport transport;
+  private final String serverHost;
+  private final int serverPort;
+  private volatile Connection connection;
   private final ControlPanelLogic logic;
-  private boolean isRunning;
-  private final SslConnection sslConnection;
+  private volatile boolean isRunning;
+  private final Map<Integer, HistoryListener> historyQueries = new ConcurrentHashMap<>();
+  private final Map<Integer, PercentileListener> percentileQueries = new ConcurrentHashMap<>();
+  private final AtomicInteger nextQueryId = new AtomicInteger(1);
+  private final List<AnomalyListener> anomalyListeners = new CopyOnWriteArrayList<>();
+  private final AlertList alerts = new AlertList();
+  private final List<AlertListener> alertListeners = new CopyOnWriteArrayList<>();
 
   /**
    * Constructs a new ControlPanelTcpClient.
@@ -41,8 +70,38 @@ public class ControlPanelTcpClient implements CommunicationChannel {
    */
   public ControlPanelTcpClient(ControlPanelLogic logic, String keyStorePath, String keyStorePassword)
       throws KeyStoreException {
+    this(logic, SERVER_HOST, TcpServer.PORT_NUMBER, keyStorePath, keyStorePassword);
+  }
+
+  /**
+   * Constructs a new ControlPanelTcpClient connecting to the given server.
+   *
+   * @param logic            the logic handler for the control panel
+   * @param serverHost       the host name or address of the server
+   * @param serverPort       the TCP port of the server
+   * @param keyStorePath     the path to the keystore file for SSL connection
+   * @param keyStorePassword the password for the keystore
+   * @throws KeyStoreException if there is an issue with the keystore
+   */
+  public ControlPanelTcpClient(ControlPanelLogic logic, String serverHost, int serverPort,
+      String keyStorePath, String keyStorePassword) throws KeyStoreException {
+    this(logic, new TlsTransport(keyStorePath, keyStorePassword), serverHost, serverPort);
+  }
+
+  /**
+   * Constructs a new ControlPanelTcpClient connecting over the given transport.
+   *
+   * @param logic      the logic handler for the control panel
+   * @param transport  the transport used to connect to the server
+   * @param serverHost the host name or address of the server
+   * @param serverPort the port of the server
+   */
+  public ControlPanelTcpClient(ControlPanelLogic logic, Transport transport, String serverHost,
+      int serverPort) {
     this.logic = logic;
-    this.sslConnection = new SslConnection(SERVER_PORT, keyStorePath, keyStorePassword);
+    this.transport = transport;
+    this.serverHost = serverHost;
+    this.serverPort = serverPort;
   }
 
   /**
@@ -53,49 +112,35 @@ public class ControlPanelTcpClient implements CommunicationChannel {
   @Override
   public boolean open() {
     try {
-      socket = sslConnection.createClientSocket(SERVER_HOST);
-      output = new PrintWriter(socket.getOutputStream(), true);
-      input = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-      output.println("CONTROL_PANEL_CONNECT");
+      connection = transport.connect(serverHost, serverPort);
       isRunning = true;
-      startListening();
+      connection.start(new ServerListener());
+      connection.send("CONTROL_PANEL_CONNECT");
+      if (!anomalyListeners.isEmpty()) {
+        connection.send(MessageSerializer.toString(new AnomalySubscribeMessage(true)));
+      }
       Logger.info("Control panel connected to server");
       return true;
-    } catch (IOException | KeyStoreException | NoSuchAlgorithmException | KeyManagementException e) {
+    } catch (IOException e) {
       Logger.error("Could not connect to server: " + e.getMessage());
       return false;
     }
   }
 
   /**
-   * Starts a new thread to listen for incoming messages from the server.
-   */
-  private void startListening() {
-    new Thread(
-        () -> {
-          try {
-            String message;
-            while (isRunning && (message = input.readLine()) != null) {
-              handleMessage(message);
-            }
-          } catch (IOException e) {
-            if (isRunning) {
-              Logger.error("Error reading from server: " + e.getMessage());
-              logic.onCommunicationChannelClosed();
-            }
-          }
-        },
-        "ControlPanel-Listener")
-        .start();
-  }
-
-  /**
-   * Handles incoming messages from the server.
+   * Handles incoming messages from the server. Messages of an unknown type are counted under the
+   * type "other", so a peer can't create metrics with arbitrary labels.
    *
    * @param message the message received from the server
    */
   private void handleMessage(String message) {
+    long start = System.nanoTime();
     String[] parts = message.split(";");
+    String type = MessageSerializer.typeOf(message);
+    if (type.equals(MessageSerializer.UNKNOWN)) {
+      type = OTHER_TYPE;
+    }
+    Metrics.counter("panel_messages_in_total", "type", type).increment();
     if (parts.length >= 2) {
       switch (parts[0]) {
         case "NODE_READY":
@@ -107,6 +152,21 @@ public class ControlPanelTcpClient implements CommunicationChannel {
         case "ACTUATOR_STATE":
           handleActuatorState(parts);
           break;
+        case "HISTORY_CHUNK":
+          handleHistoryChunk(message);
+          break;
+        case "ANOMALY":
+          handleAnomaly(message);
+          break;
+        case "PERCENTILE_RESULT":
+          handlePercentileResult(message);
+          break;
+        case "ALERT_DIGEST":
+          handleAlertDigest(message);
+          break;
+        case "ERROR":
+          Logger.error("Error from server: " + message.substring(message.indexOf(';') + 1));
+          break;
         case "NODE_STOPPED":
           if (parts.length >= 2) {
             try {
@@ -121,6 +181,7 @@ public class ControlPanelTcpClient implements CommunicationChannel {
           Logger.error("Unknown message type: " + parts[0]);
       }
     }
+    Metrics.histogram("panel_message_handle_nanos", "type", type).recordSince(start);
   }
 
   /**
@@ -132,18 +193,118 @@ public class ControlPanelTcpClient implements CommunicationChannel {
    */
   @Override
   public void sendActuatorChange(int nodeId, int actuatorId, boolean isOn) {
-    if (output != null) {
+    Connection current = connection;
+    if (current != null) {
       String command = "ACTUATOR_COMMAND;" + nodeId + ";" + actuatorId + ";" + isOn;
-      output.println(command);
-      Logger.info("Control panel sending command: " + command);
+      current.send(command);
+      Logger.debug(() -> "Control panel sending command: " + command);
     } else {
       Logger.error("Cannot send actuator command - no connection to server");
     }
   }
 
+  /**
+   * Sends a history query to the server. The answer is passed to the listener
+   * chunk by chunk, as it arrives.
+   *
+   * @param nodeId      the ID of the node
+   * @param sensorIndex the index of the sensor in the readings of the node
+   * @param from        the start of the range, inclusive, epoch milliseconds
+   * @param to          the end of the range, exclusive, epoch milliseconds
+   * @param resolution  "auto", "raw", "1m", "1h" or "1d"
+   * @param listener    receives the answer
+   * @return true if the query was sent
+   */
+  @Override
+  public boolean queryHistory(int nodeId, int sensorIndex, long from, long to,
+      String resolution, HistoryListener listener) {
+    Connection current = connection;
+    if (current == null) {
+      Logger.error("Cannot query history - no connection to server");
+      return false;
+    }
+    int queryId = nextQueryId.getAndIncrement();
+    historyQueries.put(queryId, listener);
+    if (!current.send(MessageSerializer.toString(
+        new HistoryQueryMessage(queryId, nodeId, sensorIndex, from, to, resolution)))) {
+      historyQueries.remove(queryId);
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Sends a percentile query to the server. The query IDs are shared with the
+   * history queries.
+   *
+   * @param sensorType the type of the sensors, like "temperature"
+   * @param group      the group of nodes, or -1 for all nodes
+   * @param quantiles  the quantiles, between 0 and 1
+   * @param listener   receives the answer
+   * @return true if the query was sent
+   */
+  @Override
+  public boolean queryPercentiles(String sensorType, int group, double[] quantiles,
+      PercentileListener listener) {
+    Connection current = connection;
+    if (current == null) {
+      Logger.error("Cannot query percentiles - no connection to server");
+      return false;
+    }
+    int queryId = nextQueryId.getAndIncrement();
+    percentileQueries.put(queryId, listener);
+    if (!current.send(MessageSerializer.toString(
+        new PercentileQueryMessage(queryId, sensorType, group, quantiles)))) {
+      percentileQueries.remove(queryId);
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Subscribes to the anomalies detected by the server. The first listener
+   * sends the subscription, later ones share it.
+   *
+   * @param listener receives the anomalies
+   * @return true if the panel is subscribed
+   */
+  @Override
+  public boolean subscribeToAnomalies(AnomalyListener listener) {
+    boolean first = anomalyListeners.isEmpty();
+    anomalyListeners.add(listener);
+    Connection current = connection;
+    if (current == null) {
+      return false;
+    }
+    return !first || current.send(MessageSerializer.toString(new AnomalySubscribeMessage(true)));
+  }
+
+  /**
+   * Adds a listener to the alert list. The server sends the firing alerts when
+   * the panel connects, and digests of the changes after that.
+   *
+   * @param listener receives the alert list when it changes
+   * @return true, the panel always keeps an alert list
+   */
+  @Override
+  public boolean addAlertListener(AlertListener listener) {
+    alertListeners.add(listener);
+    return true;
+  }
+
+  /**
+   * Gets the alerts which fire on the server, as far as the panel knows.
+   *
+   * @return the alert list
+   */
+  public AlertList getAlerts() {
+    return alerts;
+  }
+
   public void sendTurnOffAllActuators() {
-    if (output != null) {
-        output.println("TURN_OFF_ALL");
+    Connection current = connection;
+    if (current != null) {
+        current.send("TURN_OFF_ALL");
         Logger.info("Control panel sending turn off all command");
     }
 }
@@ -203,7 +364,9 @@ public class ControlPanelTcpClient implements CommunicationChannel {
   }
 
   /**
-   * Handle sensor data messages received from the server.
+   * Handle sensor data messages received from the server. Records how old the readings are (the
+   * time from capture on the node until now); readings from a node which does not send a capture
+   * time are stamped with the time they arrived, and are not recorded.
    *
    * @param parts the parts of the message received
    */
@@ -211,27 +374,187 @@ public class ControlPanelTcpClient implements CommunicationChannel {
     if (parts.length >= 3) {
       try {
         int nodeId = Integer.parseInt(parts[1]);
-        String[] sensorReadings = parts[2].split(",");
-        List<SensorReading> readings = new ArrayList<>();
+        long captureTime = System.currentTimeMillis();
+        if (parts.length > 3) {
+          captureTime = Long.parseLong(parts[3]);
+          SENSOR_LAG.record(System.currentTimeMillis() - captureTime);
+        }
+        if (parts.length > 5) {
+          recordHopTimings(captureTime, Long.parseLong(parts[4]), Long.parseLong(parts[5]));
+        }
+        logic.onSensorData(nodeId, parseSensorReadings(parts[2], captureTime));
+      } catch (NumberFormatException e) {
+        Logger.error("Invalid sensor data format");
+      }
+    }
+  }
 
-        for (String reading : sensorReadings) {
-          String[] readingParts = reading.split("=");
-          if (readingParts.length == 2) {
-            String type = readingParts[0];
-            String[] valueUnit = readingParts[1].split(" ");
-            if (valueUnit.length == 2) {
-              double value = Double.parseDouble(valueUnit[0]);
-              String unit = valueUnit[1];
-              readings.add(new SensorReading(type, value, unit));
-            }
-          }
+  /**
+   * Parse the sensor readings field of a sensor data message.
+   *
+   * @param sensorData  the readings, formatted as type=value unit,type=value unit,...
+   * @param captureTime when the node captured the readings, epoch milliseconds
+   * @return the parsed readings, malformed readings are skipped
+   * @throws NumberFormatException if a reading value is not a number
+   */
+  static List<SensorReading> parseSensorReadings(String sensorData, long captureTime) {
+    String[] sensorReadings = sensorData.split(",");
+    List<SensorReading> readings = new ArrayList<>();
+
+    for (String reading : sensorReadings) {
+      String[] readingParts = reading.split("=");
+      if (readingParts.length == 2) {
+        String type = readingParts[0];
+        String[] valueUnit = readingParts[1].split(" ");
+        if (valueUnit.length == 2) {
+          double value = Double.parseDouble(valueUnit[0]);
+          String unit = valueUnit[1];
+          readings.add(new SensorReading(type, value, unit, captureTime));
         }
+      }
+    }
+    return readings;
+  }
+
+  /**
+   * Record how long each hop took for a traced sensor data message.
+   *
+   * @param captureTime   when the node captured the readings, epoch milliseconds
+   * @param receivedTime  when the server received the message, epoch milliseconds
+   * @param forwardedTime when the server forwarded the message, epoch milliseconds
+   */
+  private static void recordHopTimings(long captureTime, long receivedTime, long forwardedTime) {
+    long now = System.currentTimeMillis();
+    Metrics.histogram("panel_trace_hop_millis", "hop", "node_to_server")
+        .record(receivedTime - captureTime);
+    Metrics.histogram("panel_trace_hop_millis", "hop", "server")
+        .record(forwardedTime - receivedTime);
+    Metrics.histogram("panel_trace_hop_millis", "hop", "server_to_panel")
+        .record(now - forwardedTime);
+  }
 
-        logic.onSensorData(nodeId, readings);
+  /**
+   * Handle a chunk of the answer to a history query.
+   *
+   * @param message the history chunk message
+   */
+  private void handleHistoryChunk(String message) {
+    Message parsed = MessageSerializer.fromString(message);
+    if (!(parsed instanceof HistoryChunkMessage chunk)) {
+      Logger.error("Invalid history chunk format");
+      return;
+    }
+    HistoryListener listener = chunk.isLast()
+        ? historyQueries.remove(chunk.getQueryId())
+        : historyQueries.get(chunk.getQueryId());
+    if (listener != null) {
+      try {
+        listener.onHistoryChunk(chunk.getResolution(), parseHistoryPoints(chunk.getPoints()),
+            chunk.isLast());
       } catch (NumberFormatException e) {
-        Logger.error("Invalid sensor data format");
+        Logger.error("Invalid history points in answer to query " + chunk.getQueryId());
+      }
+    }
+  }
+
+  /**
+   * End the queries which are still waiting for an answer: history queries with an empty last
+   * chunk and percentile queries with a result without readings. Their answers can't arrive on
+   * a new connection.
+   */
+  private void endPendingQueries() {
+    for (Integer queryId : new ArrayList<>(historyQueries.keySet())) {
+      HistoryListener listener = historyQueries.remove(queryId);
+      if (listener != null) {
+        listener.onHistoryChunk(HistoryQueryMessage.RAW, List.of(), true);
+      }
+    }
+    for (Integer queryId : new ArrayList<>(percentileQueries.keySet())) {
+      PercentileListener listener = percentileQueries.remove(queryId);
+      if (listener != null) {
+        listener.onPercentiles(0, new double[0], new double[0]);
+      }
+    }
+  }
+
+  /**
+   * Handle the answer to a percentile query.
+   *
+   * @param message the percentile result message
+   */
+  private void handlePercentileResult(String message) {
+    Message parsed = MessageSerializer.fromString(message);
+    if (!(parsed instanceof PercentileResultMessage result)) {
+      Logger.error("Invalid percentile result format");
+      return;
+    }
+    PercentileListener listener = percentileQueries.remove(result.getQueryId());
+    if (listener != null) {
+      listener.onPercentiles(result.getCount(), result.getQuantiles(), result.getValues());
+    }
+  }
+
+  /**
+   * Handle an anomaly detected by the server.
+   *
+   * @param message the anomaly message
+   */
+  private void handleAnomaly(String message) {
+    Message parsed = MessageSerializer.fromString(message);
+    if (!(parsed instanceof AnomalyMessage anomaly)) {
+      Logger.error("Invalid anomaly format");
+      return;
+    }
+    for (AnomalyListener listener : anomalyListeners) {
+      listener.onAnomaly(anomaly.getNodeId(), anomaly.getSensorIndex(), anomaly.getKind(),
+          anomaly.getScore(), anomaly.getTimestamp());
+    }
+  }
+
+  /**
+   * Handle a digest of alert changes, or the snapshot of the firing alerts
+   * sent when the panel connects, by applying it to the alert list.
+   *
+   * @param message the alert digest message
+   */
+  private void handleAlertDigest(String message) {
+    Message parsed = MessageSerializer.fromString(message);
+    if (!(parsed instanceof AlertDigestMessage digest)) {
+      Logger.error("Invalid alert digest format");
+      return;
+    }
+    alerts.apply(digest.isSnapshot(), digest.getAlerts(), digest.getFiringCount());
+    List<AlertEntry> firing = alerts.getFiring();
+    for (AlertListener listener : alertListeners) {
+      listener.onAlertsChanged(firing, digest.getFiringCount());
+    }
+  }
+
+  /**
+   * Parse the points of a history chunk: timestamp:value for raw points, or
+   * timestamp:average:min:max:count for rollup buckets, separated by commas.
+   *
+   * @param points the formatted points, possibly empty
+   * @return the parsed points
+   * @throws NumberFormatException if a point is not well-formed
+   */
+  static List<HistoryPoint> parseHistoryPoints(String points) {
+    List<HistoryPoint> result = new ArrayList<>();
+    if (points.isEmpty()) {
+      return result;
+    }
+    for (String point : points.split(",")) {
+      String[] fields = point.split(":");
+      long timestamp = Long.parseLong(fields[0]);
+      double value = Double.parseDouble(fields[1]);
+      if (fields.length >= 5) {
+        result.add(new HistoryPoint(timestamp, value, Double.parseDouble(fields[2]),
+            Double.parseDouble(fields[3]), Long.parseLong(fields[4])));
+      } else {
+        result.add(new HistoryPoint(timestamp, value, value, value, 1));
       }
     }
+    return result;
   }
 
   /**
@@ -257,12 +580,29 @@ public class ControlPanelTcpClient implements CommunicationChannel {
    */
   public void close() {
     isRunning = false;
-    try {
-      if (socket != null && !socket.isClosed()) {
-        socket.close();
+    Connection current = connection;
+    if (current != null) {
+      current.close();
+    }
+  }
+
+  /**
+   * Receives the messages from the server and reports when the connection is lost.
+   */
+  private class ServerListener implements ConnectionListener {
+    @Override
+    public void onLine(String line) {
+      handleMessage(line);
+    }
+
+    @Override
+    public void onClosed() {
+      endPendingQueries();
+      if (isRunning) {
+        isRunning = false;
+        Logger.error("Lost the connection to the server");
+        logic.onCommunicationChannelClosed();
       }
-    } catch (IOException e) {
-      Logger.error("Error closing connection: " + e.getMessage());
     }
   }
 }
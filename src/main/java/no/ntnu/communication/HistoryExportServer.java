@@ -0,0 +1,260 @@
+package no.ntnu.communication;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.net.ssl.SSLContext;
+import no.ntnu.history.ExportFormat;
+import no.ntnu.history.HistoryExport;
+import no.ntnu.history.SensorHistoryStore;
+import no.ntnu.ssl.TlsChannel;
+import no.ntnu.tools.Logger;
+import no.ntnu.tools.Parser;
+import no.ntnu.tools.metrics.Counter;
+import no.ntnu.tools.metrics.Metrics;
+
+/**
+ * Serves bulk exports of the sensor history on a port of its own, so an export of gigabytes
+ * never shares a connection, a queue or a thread with the live greenhouse traffic. A client
+ * connects, sends one request line and receives the export until the server closes the
+ * connection:
+ * <pre>
+ *   EXPORT;from;to;format
+ * </pre>
+ * where from and to are epoch milliseconds and format is "csv" or "columnar", see
+ * {@link HistoryExport}. An invalid request is answered with an ERROR line instead. A client
+ * which has not completed the handshake and sent its request within
+ * {@link #REQUEST_TIMEOUT_MILLIS} is disconnected, so it can't hold an export thread.
+ * Exports run one at a time per export thread, at low priority. Without a TLS context the port
+ * is plain TCP and stored segments are sent with zero-copy file transfers; with one, the
+ * connection is encrypted with a {@link TlsChannel}.
+ */
+public class HistoryExportServer {
+  public static final String EXPORT = "EXPORT";
+  public static final long REQUEST_TIMEOUT_MILLIS = 10_000;
+  private static final int EXPORT_THREADS = 2;
+  private static final int MAX_REQUEST_LENGTH = 256;
+  private static final int SEND_BUFFER_SIZE = 1 << 20;
+  private static final Counter EXPORTS = Metrics.counter("history_exports_total");
+  private static final Counter FAILED = Metrics.counter("history_exports_failed_total");
+  private static final Counter TIMED_OUT = Metrics.counter("history_exports_timed_out_total");
+
+  private final SensorHistoryStore store;
+  private final SSLContext sslContext;
+  private final ServerSocketChannel serverChannel;
+  private final ExecutorService executor;
+  private final ScheduledExecutorService watchdog;
+
+  /**
+   * Create an export server bound to the loopback address. It does not accept connections until
+   * started.
+   *
+   * @param store      the history to export
+   * @param port       the port to listen on, 0 picks a free port
+   * @param sslContext the server TLS context, or null for plain TCP
+   * @throws IOException if the port can't be bound
+   */
+  public HistoryExportServer(SensorHistoryStore store, int port, SSLContext sslContext)
+      throws IOException {
+    this(store, InetAddress.getLoopbackAddress(), port, sslContext);
+  }
+
+  /**
+   * Create an export server and bind its port. It does not accept connections until started.
+   *
+   * @param store       the history to export
+   * @param bindAddress the local address to listen on, the wildcard address for all interfaces
+   * @param port        the port to listen on, 0 picks a free port
+   * @param sslContext  the server TLS context, or null for plain TCP
+   * @throws IOException if the port can't be bound
+   */
+  public HistoryExportServer(SensorHistoryStore store, InetAddress bindAddress, int port,
+      SSLContext sslContext) throws IOException {
+    this.store = store;
+    this.sslContext = sslContext;
+    this.serverChannel = ServerSocketChannel.open();
+    serverChannel.bind(new InetSocketAddress(bindAddress, port));
+    AtomicInteger threadCount = new AtomicInteger();
+    this.executor = Executors.newFixedThreadPool(EXPORT_THREADS, runnable -> {
+      Thread thread = new Thread(runnable, "History-Export-" + threadCount.incrementAndGet());
+      thread.setDaemon(true);
+      thread.setPriority(Thread.MIN_PRIORITY);
+      return thread;
+    });
+    this.watchdog = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "History-Export-Watchdog");
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  /**
+   * Start accepting export connections.
+   */
+  public void start() {
+    Thread acceptThread = new Thread(this::acceptConnections, "History-Export-Acceptor");
+    acceptThread.setDaemon(true);
+    acceptThread.start();
+    Logger.info("History export available on "
+        + serverChannel.socket().getInetAddress().getHostAddress() + ":" + getPort()
+        + (sslContext != null ? " (TLS)" : " (plain TCP)"));
+  }
+
+  /**
+   * Get the port the server listens on.
+   *
+   * @return the bound TCP port
+   */
+  public int getPort() {
+    return serverChannel.socket().getLocalPort();
+  }
+
+  /**
+   * Stop accepting connections and abort the running exports.
+   */
+  public void stop() {
+    try {
+      serverChannel.close();
+    } catch (IOException e) {
+      Logger.error("Error closing history export port: " + e.getMessage());
+    }
+    executor.shutdownNow();
+    watchdog.shutdownNow();
+  }
+
+  private void acceptConnections() {
+    while (serverChannel.isOpen()) {
+      try {
+        SocketChannel socket = serverChannel.accept();
+        executor.execute(() -> serve(socket));
+      } catch (IOException e) {
+        if (serverChannel.isOpen()) {
+          Logger.error("Error accepting history export client: " + e.getMessage());
+        }
+      }
+    }
+  }
+
+  private void serve(SocketChannel socket) {
+    String peer = "unknown client";
+    ScheduledFuture<?> deadline = watchdog.schedule(() -> timeOut(socket),
+        REQUEST_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+    try {
+      peer = String.valueOf(socket.getRemoteAddress());
+      socket.socket().setSendBufferSize(SEND_BUFFER_SIZE);
+      ByteChannel channel = socket;
+      if (sslContext != null) {
+        TlsChannel tlsChannel = new TlsChannel(socket, sslContext.createSSLEngine());
+        channel = tlsChannel;
+        tlsChannel.handshake();
+      }
+      try {
+        export(channel, peer, deadline);
+      } finally {
+        channel.close();
+      }
+    } catch (IOException e) {
+      if (deadline.isDone() && !deadline.isCancelled()) {
+        Logger.info("Closed history export connection of " + peer + ": no request within "
+            + REQUEST_TIMEOUT_MILLIS + " ms");
+      } else {
+        FAILED.increment();
+        Logger.error("History export to " + peer + " failed: " + e.getMessage());
+      }
+    } finally {
+      deadline.cancel(false);
+      try {
+        socket.close();
+      } catch (IOException e) {
+        Logger.error("Error closing history export connection: " + e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Close a connection which did not send its request in time. The blocked read of the export
+   * thread then fails.
+   */
+  private static void timeOut(SocketChannel socket) {
+    TIMED_OUT.increment();
+    try {
+      socket.close();
+    } catch (IOException e) {
+      Logger.error("Error closing history export connection: " + e.getMessage());
+    }
+  }
+
+  private void export(ByteChannel channel, String peer, ScheduledFuture<?> deadline)
+      throws IOException {
+    String request = readRequest(channel);
+    if (!deadline.cancel(false)) {
+      throw new IOException("Request timed out");
+    }
+    String[] parts = request.split(";");
+    if (parts.length != 4 || !parts[0].equals(EXPORT)) {
+      sendError(channel, "Expected " + EXPORT + ";from;to;format");
+      return;
+    }
+    long from;
+    long to;
+    try {
+      from = Parser.parseLongOrError(parts[1], "Invalid export start: " + parts[1]);
+      to = Parser.parseLongOrError(parts[2], "Invalid export end: " + parts[2]);
+    } catch (NumberFormatException e) {
+      sendError(channel, e.getMessage());
+      return;
+    }
+    ExportFormat format = ExportFormat.fromLabel(parts[3]);
+    if (format == null) {
+      sendError(channel, "Invalid export format: " + parts[3]);
+      return;
+    }
+    if (to <= from) {
+      sendError(channel, "Empty export range");
+      return;
+    }
+    EXPORTS.increment();
+    long start = System.nanoTime();
+    long bytes = new HistoryExport(store, from, to).writeTo(channel, format);
+    long millis = (System.nanoTime() - start) / 1_000_000;
+    Logger.info(String.format("Exported %d bytes of history as %s to %s in %d ms (%.1f MB/s)",
+        bytes, format.getLabel(), peer, millis, bytes / 1000.0 / Math.max(1, millis)));
+  }
+
+  /**
+   * Read the request line. Bytes after the line are ignored, a client sends only one request.
+   */
+  private static String readRequest(ByteChannel channel) throws IOException {
+    ByteBuffer request = ByteBuffer.allocate(MAX_REQUEST_LENGTH);
+    while (request.hasRemaining()) {
+      int start = request.position();
+      if (channel.read(request) < 0) {
+        break;
+      }
+      for (int i = start; i < request.position(); i++) {
+        if (request.get(i) == '\n') {
+          return new String(request.array(), 0, i, StandardCharsets.US_ASCII).trim();
+        }
+      }
+    }
+    return new String(request.array(), 0, request.position(), StandardCharsets.US_ASCII).trim();
+  }
+
+  private static void sendError(ByteChannel channel, String message) throws IOException {
+    ByteBuffer line = ByteBuffer.wrap(("ERROR;" + message + "\n").getBytes(StandardCharsets.UTF_8));
+    while (line.hasRemaining()) {
+      channel.write(line);
+    }
+  }
+}
@@ -0,0 +1,255 @@
+package no.ntnu.communication;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import no.ntnu.history.PointConsumer;
+import no.ntnu.history.RollupAggregator;
+import no.ntnu.history.RollupConsumer;
+import no.ntnu.history.RollupResolution;
+import no.ntnu.history.SensorHistoryStore;
+import no.ntnu.message.HistoryChunkMessage;
+import no.ntnu.message.HistoryQueryMessage;
+import no.ntnu.message.MessageSerializer;
+import no.ntnu.tools.Logger;
+import no.ntnu.tools.metrics.Counter;
+import no.ntnu.tools.metrics.Metrics;
+
+/**
+ * Answers the history queries of control panels. Queries run on a small pool of their own, never
+ * on the connection threads, and the answer is streamed back in chunks of a bounded number of
+ * points. A chunk is only queued when fewer than {@link #MAX_OUTSTANDING_CHUNKS} earlier chunks
+ * of the same answer are still waiting to be written, so a large answer waits for the network
+ * instead of filling the queue: live sensor data to the same panel is never queued behind more
+ * than a few chunks, other panels are not affected at all, and the live data in the queue does
+ * not slow the answer down.
+ * With resolution "auto", the server answers with raw points for short ranges and with the
+ * coarsest rollup which still gives a detailed chart for longer ranges.
+ * Every answer ends with a last chunk, also when the query fails or is aborted, so the panel
+ * never waits for an answer which does not come.
+ */
+public class HistoryQueryService {
+  public static final int CHUNK_POINTS = 256;
+  static final int MAX_OUTSTANDING_CHUNKS = 4;
+  private static final long PACING_MILLIS = 5;
+  private static final long MAX_STALL_MILLIS = 30_000;
+  private static final long MAX_RAW_SPAN = 3 * RollupResolution.HOUR.getMillis();
+  private static final long MAX_MINUTE_SPAN = 2 * RollupResolution.DAY.getMillis();
+  private static final long MAX_HOUR_SPAN = 90 * RollupResolution.DAY.getMillis();
+  private static final Counter QUERIES = Metrics.counter("history_queries_total");
+  private static final Counter CHUNKS = Metrics.counter("history_chunks_sent_total");
+  private static final Counter ABORTED = Metrics.counter("history_queries_aborted_total");
+
+  private final SensorHistoryStore store;
+  private final RollupAggregator rollups;
+  private final ExecutorService executor;
+
+  /**
+   * Create a query service with two query threads.
+   *
+   * @param store   the raw sensor history
+   * @param rollups the rollups of the history, or null to always answer with raw points
+   */
+  public HistoryQueryService(SensorHistoryStore store, RollupAggregator rollups) {
+    this.store = store;
+    this.rollups = rollups;
+    AtomicInteger threadCount = new AtomicInteger();
+    this.executor = Executors.newFixedThreadPool(2, runnable -> {
+      Thread thread = new Thread(runnable, "History-Query-" + threadCount.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  /**
+   * Start answering a query. Returns at once, the answer is sent from a query thread.
+   *
+   * @param client the client which sent the query
+   * @param query  the query
+   */
+  public void submit(ClientHandler client, HistoryQueryMessage query) {
+    String resolution = chooseResolution(query);
+    if (resolution == null) {
+      sendFailure(client, query.getQueryId(), HistoryQueryMessage.RAW,
+          "Invalid history resolution: " + query.getResolution());
+      return;
+    }
+    QUERIES.increment();
+    executor.execute(() -> answer(client, query, resolution));
+  }
+
+  /**
+   * Pick the resolution of the answer to a query.
+   *
+   * @param query the query
+   * @return "raw" or the label of a rollup resolution, or null if the requested one is unknown
+   */
+  String chooseResolution(HistoryQueryMessage query) {
+    String requested = query.getResolution();
+    if (HistoryQueryMessage.RAW.equals(requested) || rollups == null) {
+      return HistoryQueryMessage.RAW;
+    } else if (HistoryQueryMessage.AUTO.equals(requested)) {
+      long span = query.getTo() - query.getFrom();
+      if (span <= MAX_RAW_SPAN) {
+        return HistoryQueryMessage.RAW;
+      } else if (span <= MAX_MINUTE_SPAN) {
+        return RollupResolution.MINUTE.getLabel();
+      } else if (span <= MAX_HOUR_SPAN) {
+        return RollupResolution.HOUR.getLabel();
+      }
+      return RollupResolution.DAY.getLabel();
+    }
+    return RollupResolution.fromLabel(requested) != null ? requested : null;
+  }
+
+  private void answer(ClientHandler client, HistoryQueryMessage query, String resolution) {
+    ChunkWriter writer = new ChunkWriter(client, query.getQueryId(), resolution);
+    try {
+      if (resolution.equals(HistoryQueryMessage.RAW)) {
+        store.query(query.getNodeId(), query.getSensorIndex(), query.getFrom(), query.getTo(),
+            writer);
+      } else {
+        rollups.query(query.getNodeId(), query.getSensorIndex(),
+            RollupResolution.fromLabel(resolution), query.getFrom(), query.getTo(), writer);
+      }
+      writer.finish();
+    } catch (QueryAbortedException e) {
+      ABORTED.increment();
+      Logger.info("History query " + query.getQueryId() + " aborted: " + e.getMessage());
+      // Dropped if the client is gone or its queue is full, it is not waiting for more then
+      sendLastChunk(client, query.getQueryId(), resolution);
+    } catch (IOException | RuntimeException e) {
+      Logger.error("History query " + query.getQueryId() + " failed: " + e.getMessage());
+      sendFailure(client, query.getQueryId(), resolution,
+          "History query " + query.getQueryId() + " failed");
+    }
+  }
+
+  /**
+   * Report a failed query to the client and end its answer with an empty last chunk. The points
+   * which were already sent are not taken back.
+   *
+   * @param client     the client which sent the query
+   * @param queryId    the ID of the query
+   * @param resolution the resolution of the answer
+   * @param reason     the error to report
+   */
+  static void sendFailure(ClientHandler client, int queryId, String resolution, String reason) {
+    client.sendMessage("ERROR;" + reason);
+    sendLastChunk(client, queryId, resolution);
+  }
+
+  private static void sendLastChunk(ClientHandler client, int queryId, String resolution) {
+    client.sendMessage(MessageSerializer.toString(
+        new HistoryChunkMessage(queryId, resolution, true, "")));
+  }
+
+  /**
+   * Stop answering queries. Running queries are interrupted.
+   */
+  public void shutdown() {
+    executor.shutdownNow();
+  }
+
+  /**
+   * Collects the points of an answer into chunks and sends them when the client can take them.
+   */
+  private static class ChunkWriter implements PointConsumer, RollupConsumer {
+    private final ClientHandler client;
+    private final int queryId;
+    private final String resolution;
+    private final StringBuilder points = new StringBuilder();
+    private final AtomicInteger outstanding = new AtomicInteger();
+    private final Runnable onWritten = outstanding::decrementAndGet;
+    private int pointCount;
+
+    ChunkWriter(ClientHandler client, int queryId, String resolution) {
+      this.client = client;
+      this.queryId = queryId;
+      this.resolution = resolution;
+    }
+
+    @Override
+    public void accept(long timestamp, double value) {
+      startPoint(timestamp).append(value);
+      endPoint();
+    }
+
+    @Override
+    public void accept(long bucketStart, double min, double max, double sum, long count,
+        double last) {
+      startPoint(bucketStart).append(sum / count).append(':').append(min).append(':')
+          .append(max).append(':').append(count);
+      endPoint();
+    }
+
+    void finish() {
+      send(true);
+    }
+
+    private StringBuilder startPoint(long timestamp) {
+      if (pointCount > 0) {
+        points.append(',');
+      }
+      return points.append(timestamp).append(':');
+    }
+
+    private void endPoint() {
+      pointCount++;
+      if (pointCount == CHUNK_POINTS) {
+        send(false);
+      }
+    }
+
+    private void send(boolean last) {
+      awaitQueueSpace();
+      outstanding.incrementAndGet();
+      if (!client.sendMessage(MessageSerializer.toString(
+          new HistoryChunkMessage(queryId, resolution, last, points.toString())), onWritten)) {
+        throw new QueryAbortedException(client.isClosed() ? "client disconnected"
+            : "client queue is full");
+      }
+      CHUNKS.increment();
+      points.setLength(0);
+      pointCount = 0;
+    }
+
+    /**
+     * Wait until few enough chunks of this answer are waiting to be written to the client.
+     *
+     * @throws QueryAbortedException if the client disconnected or does not read its messages
+     */
+    private void awaitQueueSpace() {
+      long stallStart = System.currentTimeMillis();
+      while (outstanding.get() >= MAX_OUTSTANDING_CHUNKS) {
+        if (client.isClosed()) {
+          throw new QueryAbortedException("client disconnected");
+        }
+        if (System.currentTimeMillis() - stallStart > MAX_STALL_MILLIS) {
+          throw new QueryAbortedException("client stopped reading");
+        }
+        try {
+          Thread.sleep(PACING_MILLIS);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new QueryAbortedException("server shutting down");
+        }
+      }
+      if (client.isClosed()) {
+        throw new QueryAbortedException("client disconnected");
+      }
+    }
+  }
+
+  /**
+   * Thrown from inside a scan of the history to stop a query.
+   */
+  private static class QueryAbortedException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    QueryAbortedException(String message) {
+      super(message);
+    }
+  }
+}
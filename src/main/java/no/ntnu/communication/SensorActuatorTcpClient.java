@@ -1,25 +1,26 @@
 package no.ntnu.communication;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.net.Socket;
-import java.security.KeyManagementException;
 import java.security.KeyStoreException;
-import java.security.NoSuchAlgorithmException;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import no.ntnu.communication.transport.Connection;
+import no.ntnu.communication.transport.ConnectionListener;
+import no.ntnu.communication.transport.TlsTransport;
+import no.ntnu.communication.transport.Transport;
 import no.ntnu.greenhouse.Actuator;
 import no.ntnu.greenhouse.ActuatorCollection;
 import no.ntnu.greenhouse.Sensor;
 import no.ntnu.greenhouse.SensorActuatorNode;
+import no.ntnu.greenhouse.SensorReading;
 import no.ntnu.listeners.common.ActuatorListener;
 import no.ntnu.listeners.greenhouse.NodeStateListener;
 import no.ntnu.listeners.greenhouse.SensorListener;
+import no.ntnu.message.MessageSerializer;
 import no.ntnu.tools.Logger;
-import no.ntnu.ssl.SslConnection;
+import no.ntnu.tools.metrics.Counter;
+import no.ntnu.tools.metrics.Metrics;
 
 /**
  * The SensorActuatorTcpClient class manages the TCP connection between a
@@ -29,13 +30,17 @@ import no.ntnu.ssl.SslConnection;
  */
 public class SensorActuatorTcpClient implements SensorListener, NodeStateListener, ActuatorListener {
   private static final String SERVER_HOST = "localhost";
-  private static final int SERVER_PORT = 10025;
+  private static final Counter SENSOR_DATA_SENT = Metrics.counter(
+      "node_client_messages_out_total", "type", MessageSerializer.SENSOR_DATA);
+  private static final Counter ACTUATOR_STATE_SENT = Metrics.counter(
+      "node_client_messages_out_total", "type", MessageSerializer.ACTUATOR_STATE);
+  private static final Counter COMMANDS_RECEIVED = Metrics.counter(
+      "node_client_messages_in_total", "type", MessageSerializer.ACTUATOR_COMMAND);
   private final SensorActuatorNode node;
-  private Socket socket;
-  private PrintWriter output;
-  private BufferedReader input;
-  private boolean isRunning;
-  private final SslConnection sslConnection;
+  private final Transport transport;
+  private final String serverHost;
+  private final int serverPort;
+  private volatile Connection connection;
 
   /**
    * Constructs a new SensorActuatorTcpClient.
@@ -47,8 +52,38 @@ public class SensorActuatorTcpClient implements SensorListener, NodeStateListene
    */
   public SensorActuatorTcpClient(SensorActuatorNode node, String keyStorePath, String keyStorePassword)
       throws KeyStoreException {
+    this(node, SERVER_HOST, TcpServer.PORT_NUMBER, keyStorePath, keyStorePassword);
+  }
+
+  /**
+   * Constructs a new SensorActuatorTcpClient connecting to the given server.
+   *
+   * @param node             the sensor-actuator node
+   * @param serverHost       the host name or address of the server
+   * @param serverPort       the TCP port of the server
+   * @param keyStorePath     the path to the keystore file for SSL connection
+   * @param keyStorePassword the password for the keystore
+   * @throws KeyStoreException if there is an issue with the keystore
+   */
+  public SensorActuatorTcpClient(SensorActuatorNode node, String serverHost, int serverPort,
+      String keyStorePath, String keyStorePassword) throws KeyStoreException {
+    this(node, new TlsTransport(keyStorePath, keyStorePassword), serverHost, serverPort);
+  }
+
+  /**
+   * Constructs a new SensorActuatorTcpClient connecting over the given transport.
+   *
+   * @param node       the sensor-actuator node
+   * @param transport  the transport used to connect to the server
+   * @param serverHost the host name or address of the server
+   * @param serverPort the port of the server
+   */
+  public SensorActuatorTcpClient(SensorActuatorNode node, Transport transport, String serverHost,
+      int serverPort) {
     this.node = node;
-    this.sslConnection = new SslConnection(SERVER_PORT, keyStorePath, keyStorePassword);
+    this.transport = transport;
+    this.serverHost = serverHost;
+    this.serverPort = serverPort;
   }
 
   /**
@@ -56,14 +91,12 @@ public class SensorActuatorTcpClient implements SensorListener, NodeStateListene
    */
   public void start() {
     try {
-      socket = sslConnection.createClientSocket(SERVER_HOST);
-      output = new PrintWriter(socket.getOutputStream(), true);
-      input = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-      isRunning = true;
+      Connection newConnection = transport.connect(serverHost, serverPort);
+      newConnection.start(new ServerListener(newConnection));
+      connection = newConnection;
       sendNodeInfo();
-      startListening();
       Logger.info("Node " + node.getId() + " connected to server");
-    } catch (IOException | KeyStoreException | NoSuchAlgorithmException | KeyManagementException e) {
+    } catch (IOException e) {
       Logger.error("Could not connect to server: " + e.getMessage());
     }
   }
@@ -90,31 +123,10 @@ public class SensorActuatorTcpClient implements SensorListener, NodeStateListene
         first = false;
       }
     }
-    output.println(nodeInfo);
+    connection.send(nodeInfo.toString());
     Logger.info("Node " + node.getId() + " sent ready notification: " + nodeInfo);
   }
 
-  /**
-   * Starts a new thread to listen for incoming messages from the server.
-   */
-  private void startListening() {
-    new Thread(
-        () -> {
-          try {
-            String message;
-            while (isRunning && (message = input.readLine()) != null) {
-              handleMessage(message);
-            }
-          } catch (IOException e) {
-            if (isRunning) {
-              Logger.error("Error reading from server: " + e.getMessage());
-            }
-          }
-        },
-        "Client-Listener-" + node.getId())
-        .start();
-  }
-
   /**
    * Handles updates from sensors and sends them to the server.
    *
@@ -122,10 +134,12 @@ public class SensorActuatorTcpClient implements SensorListener, NodeStateListene
    */
   @Override
   public void sensorsUpdated(List<Sensor> sensors) {
-    if (output != null) {
+    Connection current = connection;
+    if (current != null) {
       String sensorData = formatSensorData(sensors);
-      output.println("SENSOR_DATA;" + node.getId() + ";" + sensorData);
-      Logger.info("Node " + node.getId() + " sent sensor data: " + sensorData);
+      current.send("SENSOR_DATA;" + node.getId() + ";" + sensorData + ";" + latestCaptureTime(sensors));
+      SENSOR_DATA_SENT.increment();
+      Logger.debug(() -> "Node " + node.getId() + " sent sensor data: " + sensorData);
     }
   }
 
@@ -135,21 +149,36 @@ public class SensorActuatorTcpClient implements SensorListener, NodeStateListene
    * @param sensors the list of sensors
    * @return the formatted sensor data
    */
-  private String formatSensorData(List<Sensor> sensors) {
+  static String formatSensorData(List<Sensor> sensors) {
     StringBuilder sb = new StringBuilder();
     for (Sensor sensor : sensors) {
       if (sb.length() > 0) {
         sb.append(",");
       }
-      sb.append(sensor.getType())
+      SensorReading reading = sensor.getReading();
+      sb.append(reading.getType())
           .append("=")
-          .append(sensor.getReading().getValue())
+          .append(reading.getValue())
           .append(" ")
-          .append(sensor.getReading().getUnit());
+          .append(reading.getUnit());
     }
     return sb.toString();
   }
 
+  /**
+   * Find the capture time of the most recent reading.
+   *
+   * @param sensors the list of sensors
+   * @return the latest capture time in epoch milliseconds
+   */
+  private static long latestCaptureTime(List<Sensor> sensors) {
+    long latest = 0;
+    for (Sensor sensor : sensors) {
+      latest = Math.max(latest, sensor.getReading().getTimestamp());
+    }
+    return latest;
+  }
+
   /**
    * Handle actuator update and notify the server about it.
    *
@@ -158,10 +187,12 @@ public class SensorActuatorTcpClient implements SensorListener, NodeStateListene
    */
   @Override
   public void actuatorUpdated(int nodeId, Actuator actuator) {
-    if (output != null) {
+    Connection current = connection;
+    if (current != null) {
       String message = String.format("ACTUATOR_STATE;%d;%d;%b", nodeId, actuator.getId(), actuator.isOn());
-      output.println(message);
-      Logger.info("Node " + nodeId + " sent actuator update: " + message);
+      current.send(message);
+      ACTUATOR_STATE_SENT.increment();
+      Logger.debug(() -> "Node " + nodeId + " sent actuator update: " + message);
     }
   }
 
@@ -173,6 +204,7 @@ public class SensorActuatorTcpClient implements SensorListener, NodeStateListene
   private void handleMessage(String message) {
     String[] parts = message.split(";");
     if (parts.length >= 4 && parts[0].equals("ACTUATOR_COMMAND")) {
+      COMMANDS_RECEIVED.increment();
       try {
         int nodeId = Integer.parseInt(parts[1]);
         int actuatorId = Integer.parseInt(parts[2]);
@@ -190,13 +222,10 @@ public class SensorActuatorTcpClient implements SensorListener, NodeStateListene
    * Stops the client and closes the connection to the server.
    */
   public void stop() {
-    isRunning = false;
-    try {
-      if (socket != null && !socket.isClosed()) {
-        socket.close();
-      }
-    } catch (IOException e) {
-      Logger.error("Error closing client connection: " + e.getMessage());
+    Connection current = connection;
+    connection = null;
+    if (current != null) {
+      current.close();
     }
   }
 
@@ -219,4 +248,28 @@ public class SensorActuatorTcpClient implements SensorListener, NodeStateListene
   public void onNodeStopped(SensorActuatorNode node) {
     Logger.info("Node " + node.getId() + " has stopped.");
   }
+
+  /**
+   * Receives the messages from the server over one connection.
+   */
+  private class ServerListener implements ConnectionListener {
+    private final Connection listenedConnection;
+
+    ServerListener(Connection listenedConnection) {
+      this.listenedConnection = listenedConnection;
+    }
+
+    @Override
+    public void onLine(String line) {
+      handleMessage(line);
+    }
+
+    @Override
+    public void onClosed() {
+      if (connection == listenedConnection) {
+        connection = null;
+        Logger.info("Node " + node.getId() + " lost the connection to the server");
+      }
+    }
+  }
 }
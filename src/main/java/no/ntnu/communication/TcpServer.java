@@ -1,35 +1,69 @@
 package no.ntnu.communication;
 
 import java.io.IOException;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.security.KeyManagementException;
 import java.security.KeyStoreException;
-import java.security.NoSuchAlgorithmException;
-import java.security.UnrecoverableKeyException;
-import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import no.ntnu.alerts.AlertManager;
+import no.ntnu.analytics.FleetQuantiles;
+import no.ntnu.communication.transport.Connection;
+import no.ntnu.communication.transport.ServerEndpoint;
+import no.ntnu.communication.transport.TlsTransport;
+import no.ntnu.communication.transport.Transport;
+import no.ntnu.greenhouse.Actuator;
 import no.ntnu.greenhouse.ActuatorCollection;
 import no.ntnu.greenhouse.SensorActuatorNode;
+import no.ntnu.listeners.server.ActuatorCommandListener;
+import no.ntnu.listeners.server.ActuatorStateListener;
+import no.ntnu.listeners.server.SensorDataListener;
+import no.ntnu.message.MessageSerializer;
 import no.ntnu.tools.Logger;
-import no.ntnu.ssl.SslConnection;
+import no.ntnu.tools.TaskScheduler;
+import no.ntnu.tools.ThreadTaskScheduler;
+import no.ntnu.tools.events.BroadcastEvent;
+import no.ntnu.tools.metrics.Counter;
+import no.ntnu.tools.metrics.Histogram;
+import no.ntnu.tools.metrics.Metrics;
 
 /**
  * The TcpServer class manages the TCP server that handles connections from
  * sensor-actuator nodes and control panels.
  * It handles accepting client connections, managing connected clients, and
- * broadcasting messages to control panels.
+ * broadcasting messages to control panels. The connections are created by a
+ * transport: TLS over TCP by default, or an in-memory network in simulations.
  */
 public class TcpServer {
   public static final int PORT_NUMBER = 10025;
-  private boolean isServerRunning;
-  private final List<ClientHandler> controlPanelClients = new ArrayList<>();
+  public static final long DEFAULT_COMMAND_COALESCING_WINDOW = 50;
+  public static final double DEFAULT_TRACE_SAMPLE_RATE = 0.01;
+  private static final Counter CONNECTIONS = Metrics.counter("server_connections_total");
+  private static final Histogram BROADCAST_TIME = Metrics.histogram("server_broadcast_nanos");
+  private static final Histogram BROADCAST_FAN_OUT = Metrics.histogram("server_broadcast_fan_out");
+  private final List<ClientHandler> controlPanelClients = new CopyOnWriteArrayList<>();
+  private final List<ClientHandler> anomalySubscribers = new CopyOnWriteArrayList<>();
   private final Map<Integer, SensorActuatorNode> nodes;
-  private final List<ClientHandler> connectedClients = new ArrayList<>();
-  private ServerSocket serverSocket;
-  private final SslConnection sslConnection;
+  private final List<ClientHandler> connectedClients = new CopyOnWriteArrayList<>();
+  private final List<SensorDataListener> sensorDataListeners = new CopyOnWriteArrayList<>();
+  private final List<ActuatorCommandListener> commandListeners = new CopyOnWriteArrayList<>();
+  private final List<ActuatorStateListener> stateListeners = new CopyOnWriteArrayList<>();
+  private volatile ServerEndpoint endpoint;
+  private final CountDownLatch listening = new CountDownLatch(1);
+  private final int port;
+  private final Transport transport;
+  private final ActuatorCommandCoalescer commandCoalescer;
+  private volatile HistoryQueryService historyQueryService;
+  private volatile TrafficCapture trafficCapture;
+  private volatile FleetQuantiles fleetQuantiles;
+  private volatile AlertManager alertManager;
+  private volatile int maxNodeId = Math.min(SensorDataListener.MAX_NODE_ID,
+      Integer.getInteger("greenhouse.maxNodeId", SensorDataListener.MAX_NODE_ID));
+  private volatile double traceSampleRate = Double.parseDouble(
+      System.getProperty("greenhouse.trace.sample", String.valueOf(DEFAULT_TRACE_SAMPLE_RATE)));
 
   /**
    * Instantiates a new TcpServer.
@@ -41,43 +75,92 @@ public class TcpServer {
    */
   public TcpServer(Map<Integer, SensorActuatorNode> nodes, String keyStorePath, String keyStorePassword)
       throws KeyStoreException {
+    this(nodes, PORT_NUMBER, keyStorePath, keyStorePassword);
+  }
+
+  /**
+   * Instantiates a new TcpServer listening on the given port.
+   *
+   * @param nodes            the map of sensor-actuator nodes
+   * @param port             the TCP port to listen on, 0 picks a free ephemeral port
+   * @param keyStorePath     the path to the keystore file
+   * @param keyStorePassword the password for the keystore
+   * @throws KeyStoreException if there is an issue with the keystore
+   */
+  public TcpServer(Map<Integer, SensorActuatorNode> nodes, int port, String keyStorePath,
+      String keyStorePassword) throws KeyStoreException {
+    this(nodes, port, new TlsTransport(keyStorePath, keyStorePassword),
+        new ThreadTaskScheduler("Command-Coalescer"));
+  }
+
+  /**
+   * Instantiates a new TcpServer on the given transport.
+   *
+   * @param nodes     the map of sensor-actuator nodes
+   * @param port      the port to listen on, 0 picks a free port
+   * @param transport the transport which accepts the client connections
+   * @param scheduler the scheduler on which coalesced actuator commands are flushed
+   */
+  public TcpServer(Map<Integer, SensorActuatorNode> nodes, int port, Transport transport,
+      TaskScheduler scheduler) {
     this.nodes = nodes;
-    this.sslConnection = new SslConnection(PORT_NUMBER, keyStorePath, keyStorePassword);
+    this.port = port;
+    this.transport = transport;
+    this.commandCoalescer = new ActuatorCommandCoalescer(nodes, DEFAULT_COMMAND_COALESCING_WINDOW,
+        scheduler);
+    Metrics.gauge("server_connected_clients", connectedClients::size);
+    Metrics.gauge("server_connected_panels", controlPanelClients::size);
+    Metrics.gauge("server_connected_nodes", () -> connectedClients.size() - controlPanelClients.size());
+    Metrics.gauge("server_pending_commands", commandCoalescer::getPendingCount);
   }
 
   /**
-   * Starts the server and begins listening for client connections.
+   * Starts the server and begins listening for client connections. The
+   * connections are accepted in the background, this method returns as soon
+   * as the server is listening.
    */
   public void startServer() {
     try {
-      serverSocket = sslConnection.createServerSocket();
-      isServerRunning = true;
-      Logger.info("Server listening on port " + PORT_NUMBER);
-
-      while (isServerRunning) {
-        acceptNextClient();
-      }
-    } catch (IOException | KeyStoreException | NoSuchAlgorithmException | UnrecoverableKeyException
-        | KeyManagementException e) {
+      endpoint = transport.listen(port, this::acceptClient);
+      listening.countDown();
+      Logger.info("Server listening on port " + getPort());
+    } catch (IOException e) {
       Logger.error("Could not start server: " + e.getMessage());
     }
   }
 
   /**
-   * Accepts the next client connection and starts a new client handler for it.
+   * Starts a new client handler for an accepted connection.
+   *
+   * @param connection the accepted connection
    */
-  private void acceptNextClient() {
-    try {
-      Socket clientSocket = serverSocket.accept();
-      ClientHandler clientHandler = new ClientHandler(clientSocket, this, nodes);
-      connectedClients.add(clientHandler);
-      clientHandler.start();
-      Logger.info("New client connected from " + clientSocket.getRemoteSocketAddress());
-    } catch (IOException e) {
-      if (isServerRunning) {
-        Logger.error("Error accepting client: " + e.getMessage());
-      }
-    }
+  private void acceptClient(Connection connection) {
+    ClientHandler clientHandler = new ClientHandler(connection, this, nodes);
+    connectedClients.add(clientHandler);
+    CONNECTIONS.increment();
+    clientHandler.start();
+    Logger.info("New client connected from " + connection.getRemoteName());
+  }
+
+  /**
+   * Gets the port the server listens on.
+   *
+   * @return the bound port, or -1 if the server is not listening yet
+   */
+  public int getPort() {
+    ServerEndpoint listeningEndpoint = endpoint;
+    return listeningEndpoint != null ? listeningEndpoint.getPort() : -1;
+  }
+
+  /**
+   * Waits until the server is listening for connections.
+   *
+   * @param timeoutMillis the maximum time to wait, in milliseconds
+   * @return true if the server is listening, false if the timeout elapsed first
+   * @throws InterruptedException if the thread is interrupted while waiting
+   */
+  public boolean awaitListening(long timeoutMillis) throws InterruptedException {
+    return listening.await(timeoutMillis, TimeUnit.MILLISECONDS);
   }
 
   /**
@@ -89,24 +172,253 @@ public class TcpServer {
     return nodes;
   }
 
+  /**
+   * Gets the coalescer which applies actuator commands to the nodes.
+   *
+   * @return the actuator command coalescer
+   */
+  public ActuatorCommandCoalescer getCommandCoalescer() {
+    return commandCoalescer;
+  }
+
+  /**
+   * Sets the service which answers the history queries of control panels.
+   *
+   * @param service the history query service, or null when there is no history
+   */
+  public void setHistoryQueryService(HistoryQueryService service) {
+    this.historyQueryService = service;
+  }
+
+  /**
+   * Gets the service which answers the history queries of control panels.
+   *
+   * @return the history query service, or null when there is no history
+   */
+  public HistoryQueryService getHistoryQueryService() {
+    return historyQueryService;
+  }
+
+  /**
+   * Sets the sketches which answer the percentile queries of control panels.
+   *
+   * @param quantiles the fleet quantiles, or null when percentiles are not kept
+   */
+  public void setFleetQuantiles(FleetQuantiles quantiles) {
+    this.fleetQuantiles = quantiles;
+  }
+
+  /**
+   * Gets the sketches which answer the percentile queries of control panels.
+   *
+   * @return the fleet quantiles, or null when percentiles are not kept
+   */
+  public FleetQuantiles getFleetQuantiles() {
+    return fleetQuantiles;
+  }
+
+  /**
+   * Sets the alert manager whose firing alerts are sent to control panels when they connect.
+   * The server stops it when it is stopped.
+   *
+   * @param manager the alert manager, or null when there are no alerts
+   */
+  public void setAlertManager(AlertManager manager) {
+    this.alertManager = manager;
+  }
+
+  /**
+   * Sets the capture which records the traffic of the clients connecting from now on.
+   *
+   * @param capture the traffic capture, or null to stop capturing new connections
+   */
+  public void setTrafficCapture(TrafficCapture capture) {
+    this.trafficCapture = capture;
+  }
+
+  /**
+   * Gets the capture which records the traffic of new clients.
+   *
+   * @return the traffic capture, or null when the traffic is not captured
+   */
+  TrafficCapture getTrafficCapture() {
+    return trafficCapture;
+  }
+
+  /**
+   * Adds a listener which receives all sensor data arriving at the server, for example to store
+   * the history of the readings.
+   *
+   * @param listener the listener to add
+   */
+  public void addSensorDataListener(SensorDataListener listener) {
+    sensorDataListeners.add(listener);
+  }
+
+  /**
+   * Adds a listener which receives all actuator commands arriving at the server, for example to
+   * journal them.
+   *
+   * @param listener the listener to add
+   */
+  public void addActuatorCommandListener(ActuatorCommandListener listener) {
+    commandListeners.add(listener);
+  }
+
+  /**
+   * Adds a listener which receives all actuator states reported by the nodes, for example to
+   * check that the actuators follow their commands.
+   *
+   * @param listener the listener to add
+   */
+  public void addActuatorStateListener(ActuatorStateListener listener) {
+    stateListeners.add(listener);
+  }
+
+  /**
+   * Submits a command for an actuator on behalf of a control panel or of the server itself: the
+   * command listeners are notified and the command is applied to the node through the
+   * coalescer, so it is ordered after any command which is still pending for the same actuator.
+   *
+   * @param nodeId     ID of the node
+   * @param actuatorId ID of the actuator
+   * @param on         the requested state
+   */
+  public void submitActuatorCommand(int nodeId, int actuatorId, boolean on) {
+    notifyActuatorCommand(nodeId, actuatorId, on);
+    commandCoalescer.submit(nodeId, actuatorId, on);
+  }
+
+  /**
+   * Notifies the actuator command listeners about a submitted command.
+   *
+   * @param nodeId     ID of the node
+   * @param actuatorId ID of the actuator
+   * @param on         the requested state
+   */
+  private void notifyActuatorCommand(int nodeId, int actuatorId, boolean on) {
+    for (ActuatorCommandListener listener : commandListeners) {
+      try {
+        listener.onActuatorCommand(nodeId, actuatorId, on);
+      } catch (RuntimeException e) {
+        // A failing journal or alert listener must not stop the command from being applied
+        Logger.error("Actuator command listener failed for node " + nodeId + ": " + e);
+      }
+    }
+  }
+
+  /**
+   * Notifies the actuator state listeners about a state reported by a node.
+   *
+   * @param nodeId     ID of the node
+   * @param actuatorId ID of the actuator
+   * @param on         the reported state
+   */
+  void notifyActuatorState(int nodeId, int actuatorId, boolean on) {
+    for (ActuatorStateListener listener : stateListeners) {
+      try {
+        listener.onActuatorState(nodeId, actuatorId, on);
+      } catch (RuntimeException e) {
+        Logger.error("Actuator state listener failed for node " + nodeId + ": " + e);
+      }
+    }
+  }
+
+  /**
+   * Notifies the sensor data listeners about readings received from a node.
+   *
+   * @param nodeId      ID of the node
+   * @param sensorData  the formatted readings
+   * @param captureTime when the readings were captured, epoch milliseconds
+   */
+  void notifySensorData(int nodeId, String sensorData, long captureTime) {
+    for (SensorDataListener listener : sensorDataListeners) {
+      try {
+        listener.onSensorData(nodeId, sensorData, captureTime);
+      } catch (RuntimeException e) {
+        // One failing listener must neither starve the others nor close the node's connection
+        Logger.error("Sensor data listener failed for node " + nodeId + ": " + e);
+      }
+    }
+  }
+
+  /**
+   * Sets the largest node ID which is accepted from the network. Sensor data and actuator states
+   * from nodes with a larger ID, or an ID below 1, are dropped when they are received.
+   *
+   * @param maxNodeId the largest accepted ID, at most {@link SensorDataListener#MAX_NODE_ID}
+   */
+  public void setMaxNodeId(int maxNodeId) {
+    if (maxNodeId < 1 || maxNodeId > SensorDataListener.MAX_NODE_ID) {
+      throw new IllegalArgumentException("The largest node ID must be between 1 and "
+          + SensorDataListener.MAX_NODE_ID + ": " + maxNodeId);
+    }
+    this.maxNodeId = maxNodeId;
+  }
+
+  /**
+   * Checks whether a node ID received from the network may be passed to the listeners.
+   *
+   * @param nodeId the ID of the node
+   * @return true if the ID is between 1 and the largest accepted node ID
+   */
+  boolean acceptsNodeId(int nodeId) {
+    return nodeId >= 1 && nodeId <= maxNodeId;
+  }
+
+  /**
+   * Sets the window within which repeated commands for the same actuator are coalesced.
+   *
+   * @param windowMillis the window in milliseconds, zero or less disables coalescing
+   */
+  public void setCommandCoalescingWindow(long windowMillis) {
+    commandCoalescer.setWindowMillis(windowMillis);
+  }
+
+  /**
+   * Sets the fraction of sensor data messages which are forwarded with per-hop timings.
+   *
+   * @param sampleRate the fraction between 0.0 (no tracing) and 1.0 (trace every message)
+   */
+  public void setTraceSampleRate(double sampleRate) {
+    this.traceSampleRate = sampleRate;
+  }
+
+  /**
+   * Decides whether the next sensor data message should carry per-hop timings.
+   *
+   * @return true if the message is sampled for tracing
+   */
+  boolean shouldTrace() {
+    double rate = traceSampleRate;
+    return rate > 0 && ThreadLocalRandom.current().nextDouble() < rate;
+  }
+
   /**
    * Stops the server and disconnects all connected clients.
    */
   public void stopServer() {
     Logger.info("Shutting down server...");
-    isServerRunning = false;
-    try {
-      if (serverSocket != null && !serverSocket.isClosed()) {
-        serverSocket.close();
-      }
-      connectedClients.clear();
-    } catch (IOException e) {
-      Logger.error("Error closing server: " + e.getMessage());
+    commandCoalescer.shutdown();
+    if (historyQueryService != null) {
+      historyQueryService.shutdown();
     }
+    if (alertManager != null) {
+      alertManager.shutdown();
+    }
+    if (endpoint != null) {
+      endpoint.close();
+    }
+    for (ClientHandler client : connectedClients) {
+      client.close();
+    }
+    connectedClients.clear();
   }
 
   /**
-   * Registers a control panel client and sends information about all nodes to it.
+   * Registers a control panel client and sends information about all nodes to it, followed by
+   * the state of the actuators which are on, for example after they were restored at startup,
+   * and the alerts which are firing.
    *
    * @param client the client to register as a control panel
    */
@@ -115,6 +427,15 @@ public class TcpServer {
     for (SensorActuatorNode node : nodes.values()) {
       String nodeInfo = formatNodeInfo(node);
       client.sendMessage("NODE_READY;" + nodeInfo);
+      for (Actuator actuator : node.getActuators()) {
+        if (actuator.isOn()) {
+          client.sendMessage("ACTUATOR_STATE;" + node.getId() + ";" + actuator.getId() + ";true");
+        }
+      }
+    }
+    AlertManager alerts = alertManager;
+    if (alerts != null) {
+      client.sendMessage(MessageSerializer.toString(alerts.snapshot()));
     }
   }
 
@@ -151,7 +472,64 @@ public class TcpServer {
    * @param message the message to broadcast
    */
   public void broadcastToControlPanels(String message) {
+    broadcastToControlPanels(message, false);
+  }
+
+  /**
+   * Broadcasts a message to all registered control panel clients, completed with the time when
+   * it is written to each client.
+   *
+   * @param prefix the message without the time
+   */
+  public void broadcastStampedToControlPanels(String prefix) {
+    broadcastToControlPanels(prefix, true);
+  }
+
+  private void broadcastToControlPanels(String message, boolean stamped) {
+    BroadcastEvent event = new BroadcastEvent();
+    event.begin();
+    long start = System.nanoTime();
+    int fanOut = 0;
     for (ClientHandler client : controlPanelClients) {
+      if (stamped) {
+        client.sendStampedMessage(message);
+      } else {
+        client.sendMessage(message);
+      }
+      fanOut++;
+    }
+    BROADCAST_TIME.recordSince(start);
+    BROADCAST_FAN_OUT.record(fanOut);
+    if (event.shouldCommit()) {
+      event.nodeId = MessageSerializer.nodeIdOf(message);
+      event.messageType = MessageSerializer.typeOf(message);
+      event.size = message.length();
+      event.fanOut = fanOut;
+      event.commit();
+    }
+  }
+
+  /**
+   * Starts or stops sending the detected anomalies to a client.
+   *
+   * @param client    the client, normally a control panel
+   * @param subscribe true to send anomalies to the client, false to stop
+   */
+  public void setAnomalySubscription(ClientHandler client, boolean subscribe) {
+    if (!subscribe) {
+      anomalySubscribers.remove(client);
+    } else if (!anomalySubscribers.contains(client)) {
+      anomalySubscribers.add(client);
+    }
+  }
+
+  /**
+   * Sends an anomaly to the clients which subscribed to anomalies.
+   *
+   * @param message the ANOMALY message to send
+   */
+  public void publishAnomaly(String message) {
+    for (ClientHandler client : anomalySubscribers) {
       client.sendMessage(message);
     }
   }
@@ -164,5 +542,7 @@ public class TcpServer {
    */
   public void removeClient(ClientHandler clientHandler) {
     connectedClients.remove(clientHandler);
+    controlPanelClients.remove(clientHandler);
+    anomalySubscribers.remove(clientHandler);
   }
 }
@@ -0,0 +1,171 @@
+package no.ntnu.communication;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import no.ntnu.tools.Logger;
+import no.ntnu.tools.metrics.Counter;
+import no.ntnu.tools.metrics.Metrics;
+
+/**
+ * Records the traffic of the server to a compact binary log, so it can be replayed later with
+ * {@link TrafficCaptureReader} against another build. Every frame carries the time since the
+ * start of the capture and the ID of the client connection:
+ * <pre>
+ *   int magic "GTC1", long start time (epoch milliseconds)
+ *   per frame: long nanoseconds since start, int connection ID, byte kind
+ *     OPEN and CLOSE frames end there
+ *     IN and OUT frames: int length, the line in UTF-8, without the line terminator
+ * </pre>
+ * The opening and closing of connections is recorded too, so reconnect storms and bursts are
+ * replayed with their original shape. Frames are appended under a lock to a large buffer which
+ * is written to the file when it is full, so the frames are in time order and the cost per
+ * frame is a copy. Capturing is meant for limited periods; it is off unless a capture is set on
+ * the {@link TcpServer}.
+ */
+public class TrafficCapture implements AutoCloseable {
+  /**
+   * The first four bytes of a capture.
+   */
+  public static final int MAGIC = 0x47544331;
+  public static final byte OPEN = 0;
+  public static final byte IN = 1;
+  public static final byte OUT = 2;
+  public static final byte CLOSE = 3;
+  private static final int BUFFER_SIZE = 1 << 20;
+  private static final int FRAME_HEADER_SIZE = Long.BYTES + Integer.BYTES + 1;
+  private static final Counter FRAMES = Metrics.counter("traffic_capture_frames_total");
+  private static final Counter FAILURES = Metrics.counter("traffic_capture_failures_total");
+
+  private final Path file;
+  private final FileChannel channel;
+  private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+  private final long startNanos;
+  private int nextConnectionId = 1;
+  private boolean failed;
+
+  /**
+   * Start a capture, replacing the file if it exists.
+   *
+   * @param file the file to capture to
+   * @throws IOException if the file can't be created
+   */
+  public TrafficCapture(Path file) throws IOException {
+    this.file = file;
+    this.channel = FileChannel.open(file, StandardOpenOption.CREATE,
+        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+    this.startNanos = System.nanoTime();
+    buffer.putInt(MAGIC).putLong(System.currentTimeMillis());
+    Logger.info("Capturing the server traffic to " + file);
+  }
+
+  /**
+   * Record a new connection.
+   *
+   * @return the ID of the connection, used for its other frames
+   */
+  public synchronized int openConnection() {
+    int connectionId = nextConnectionId++;
+    putFrameHeader(connectionId, OPEN, 0);
+    return connectionId;
+  }
+
+  /**
+   * Record a line received from a client.
+   *
+   * @param connectionId the ID of the connection
+   * @param line         the line, without the line terminator
+   */
+  public void recordInbound(int connectionId, String line) {
+    recordLine(connectionId, IN, line);
+  }
+
+  /**
+   * Record a line sent to a client.
+   *
+   * @param connectionId the ID of the connection
+   * @param line         the line, without the line terminator
+   */
+  public void recordOutbound(int connectionId, String line) {
+    recordLine(connectionId, OUT, line);
+  }
+
+  /**
+   * Record that a connection has been closed.
+   *
+   * @param connectionId the ID of the connection
+   */
+  public synchronized void closeConnection(int connectionId) {
+    putFrameHeader(connectionId, CLOSE, 0);
+  }
+
+  private void recordLine(int connectionId, byte kind, String line) {
+    byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+    synchronized (this) {
+      if (putFrameHeader(connectionId, kind, Integer.BYTES + bytes.length)) {
+        buffer.putInt(bytes.length);
+        if (bytes.length <= buffer.remaining()) {
+          buffer.put(bytes);
+        } else {
+          flush();
+          writeFully(ByteBuffer.wrap(bytes));
+        }
+      }
+    }
+  }
+
+  /**
+   * Put the header of a frame, making room for the header and as much of the rest as fits.
+   *
+   * @return false if the capture has failed and the frame must be skipped
+   */
+  private boolean putFrameHeader(int connectionId, byte kind, int bodySize) {
+    if (buffer.remaining() < FRAME_HEADER_SIZE + Math.min(bodySize, BUFFER_SIZE / 2)) {
+      flush();
+    }
+    if (failed) {
+      return false;
+    }
+    buffer.putLong(System.nanoTime() - startNanos).putInt(connectionId).put(kind);
+    FRAMES.increment();
+    return true;
+  }
+
+  private void flush() {
+    buffer.flip();
+    writeFully(buffer);
+    buffer.clear();
+  }
+
+  private void writeFully(ByteBuffer source) {
+    if (failed) {
+      return;
+    }
+    try {
+      while (source.hasRemaining()) {
+        channel.write(source);
+      }
+    } catch (IOException e) {
+      failed = true;
+      FAILURES.increment();
+      Logger.error("Traffic capture to " + file + " failed, capture stopped: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Write the remaining frames and close the file.
+   */
+  @Override
+  public synchronized void close() {
+    flush();
+    try {
+      channel.close();
+    } catch (IOException e) {
+      Logger.error("Error closing traffic capture " + file + ": " + e.getMessage());
+    }
+    failed = true;
+  }
+}
@@ -0,0 +1,80 @@
+package no.ntnu.communication;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Reads the frames of a {@link TrafficCapture} one at a time, so a capture of any size can be
+ * replayed without loading it into memory. A frame cut off at the end of the file, by a capture
+ * which was not closed, ends the capture.
+ */
+public class TrafficCaptureReader implements AutoCloseable {
+  private static final int BUFFER_SIZE = 1 << 16;
+
+  private final DataInputStream in;
+  private final long startMillis;
+
+  /**
+   * Open a capture.
+   *
+   * @param file the capture file
+   * @throws IOException if the file can't be read or is not a capture
+   */
+  public TrafficCaptureReader(Path file) throws IOException {
+    this.in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file),
+        BUFFER_SIZE));
+    try {
+      if (in.readInt() != TrafficCapture.MAGIC) {
+        throw new IOException("Not a traffic capture: " + file);
+      }
+      this.startMillis = in.readLong();
+    } catch (IOException e) {
+      in.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Get the time when the capture was started.
+   *
+   * @return the start time, epoch milliseconds
+   */
+  public long getStartMillis() {
+    return startMillis;
+  }
+
+  /**
+   * Read the next frame.
+   *
+   * @return the frame, or null at the end of the capture
+   * @throws IOException if the file can't be read or holds an unknown frame kind
+   */
+  public CapturedFrame next() throws IOException {
+    try {
+      long offsetNanos = in.readLong();
+      int connectionId = in.readInt();
+      byte kind = in.readByte();
+      String line = null;
+      if (kind == TrafficCapture.IN || kind == TrafficCapture.OUT) {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        line = new String(bytes, StandardCharsets.UTF_8);
+      } else if (kind != TrafficCapture.OPEN && kind != TrafficCapture.CLOSE) {
+        throw new IOException("Unknown frame kind " + kind + " in traffic capture");
+      }
+      return new CapturedFrame(offsetNanos, connectionId, kind, line);
+    } catch (EOFException e) {
+      return null;
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    in.close();
+  }
+}
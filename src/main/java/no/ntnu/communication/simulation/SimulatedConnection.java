@@ -0,0 +1,133 @@
+package no.ntnu.communication.simulation;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import no.ntnu.communication.transport.Connection;
+import no.ntnu.communication.transport.ConnectionListener;
+
+/**
+ * One endpoint of a connection over a {@link SimulatedNetwork}. Lines which arrive before the
+ * endpoint is started are buffered until it starts.
+ */
+class SimulatedConnection implements Connection {
+  private final SimulatedNetwork network;
+  private final String remoteName;
+  private final Queue<String> buffered = new ArrayDeque<>();
+  private SimulatedConnection peer;
+  private ConnectionListener listener;
+  private boolean open = true;
+  private boolean closeNotified;
+  private long lastDeliveryTime;
+  private int inFlight;
+
+  SimulatedConnection(SimulatedNetwork network, String remoteName) {
+    this.network = network;
+    this.remoteName = remoteName;
+  }
+
+  void setPeer(SimulatedConnection peer) {
+    this.peer = peer;
+  }
+
+  SimulatedConnection getPeer() {
+    return peer;
+  }
+
+  boolean isOpen() {
+    return open;
+  }
+
+  @Override
+  public void start(ConnectionListener connectionListener) {
+    this.listener = connectionListener;
+    while (!buffered.isEmpty()) {
+      connectionListener.onLine(buffered.poll());
+    }
+    if (!open) {
+      notifyClosed();
+    }
+  }
+
+  @Override
+  public boolean send(String line) {
+    if (!open) {
+      return false;
+    }
+    network.transmit(this, line);
+    return true;
+  }
+
+  @Override
+  public int getQueuedCount() {
+    return inFlight;
+  }
+
+  @Override
+  public String getRemoteName() {
+    return remoteName;
+  }
+
+  @Override
+  public void close() {
+    if (markClosed()) {
+      network.closed(this);
+    }
+  }
+
+  /**
+   * Deliver a line which arrived from the peer.
+   *
+   * @param line the received line
+   */
+  void receive(String line) {
+    if (listener != null) {
+      listener.onLine(line);
+    } else {
+      buffered.add(line);
+    }
+  }
+
+  /**
+   * Mark the endpoint closed.
+   *
+   * @return true if it was open until now
+   */
+  boolean markClosed() {
+    boolean wasOpen = open;
+    open = false;
+    return wasOpen;
+  }
+
+  /**
+   * Tell the listener that the connection is closed, once. If the endpoint is not started yet,
+   * the listener is told when it starts.
+   */
+  void notifyClosed() {
+    if (listener != null && !closeNotified) {
+      closeNotified = true;
+      listener.onClosed();
+    }
+  }
+
+  void addInFlight(int delta) {
+    inFlight += delta;
+  }
+
+  /**
+   * Compute when a line sent now arrives at the peer. Unless the line may be reordered, it never
+   * arrives before a line sent earlier in the same direction.
+   *
+   * @param latency the latency of this line, in milliseconds
+   * @param reorder true if the line may overtake earlier lines
+   * @return the delay until the delivery, in milliseconds
+   */
+  long nextDeliveryTime(long latency, boolean reorder) {
+    long now = network.now();
+    long due = now + latency;
+    if (!reorder) {
+      due = Math.max(due, lastDeliveryTime);
+      lastDeliveryTime = due;
+    }
+    return due - now;
+  }
+}
@@ -0,0 +1,213 @@
+package no.ntnu.communication.simulation;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.function.Consumer;
+import no.ntnu.communication.transport.Connection;
+import no.ntnu.communication.transport.ServerEndpoint;
+import no.ntnu.communication.transport.Transport;
+
+/**
+ * An in-memory network for fast, reproducible tests of the server and the clients, without
+ * sockets or TLS. All deliveries are tasks on a {@link SimulationScheduler}: a line sent now
+ * arrives after a random latency in virtual time, may be lost, and may overtake earlier lines
+ * when reordering is enabled. Without reordering, the lines of one direction of a connection
+ * arrive in the order they were sent, like over TCP. Host names are ignored, a connection is
+ * identified by the port only.
+ * Like the scheduler, the network is single-threaded: call it from scheduler tasks, or from the
+ * test thread between runs of the scheduler.
+ */
+public class SimulatedNetwork implements Transport {
+  private static final int FIRST_EPHEMERAL_PORT = 49152;
+
+  private final SimulationScheduler scheduler;
+  private final Random random;
+  private final Map<Integer, Consumer<Connection>> listeners = new HashMap<>();
+  private final Set<SimulatedConnection> openConnections = new LinkedHashSet<>();
+  private int nextEphemeralPort = FIRST_EPHEMERAL_PORT;
+  private int nextConnectionId = 1;
+  private long minLatencyMillis = 1;
+  private long maxLatencyMillis = 1;
+  private double lossRate;
+  private double reorderRate;
+  private long deliveredCount;
+  private long lostCount;
+
+  /**
+   * Create a network on the given scheduler. Initially every line takes 1 ms and nothing is lost
+   * or reordered.
+   *
+   * @param scheduler the scheduler which runs the deliveries
+   */
+  public SimulatedNetwork(SimulationScheduler scheduler) {
+    this.scheduler = scheduler;
+    this.random = scheduler.getRandom();
+  }
+
+  /**
+   * Set the latency of every delivery, picked uniformly in the range [min; max].
+   *
+   * @param minMillis the minimum latency, in milliseconds
+   * @param maxMillis the maximum latency, in milliseconds
+   */
+  public void setLatency(long minMillis, long maxMillis) {
+    if (minMillis < 0 || maxMillis < minMillis) {
+      throw new IllegalArgumentException("Invalid latency range: " + minMillis + "-" + maxMillis);
+    }
+    this.minLatencyMillis = minMillis;
+    this.maxLatencyMillis = maxMillis;
+  }
+
+  /**
+   * Set the probability that a sent line is lost. Connection setup and close are never lost.
+   *
+   * @param lossRate the probability between 0.0 and 1.0
+   */
+  public void setLossRate(double lossRate) {
+    this.lossRate = lossRate;
+  }
+
+  /**
+   * Set the probability that a line is delivered with its own latency, ignoring the order of the
+   * lines sent before it.
+   *
+   * @param reorderRate the probability between 0.0 and 1.0
+   */
+  public void setReorderRate(double reorderRate) {
+    this.reorderRate = reorderRate;
+  }
+
+  @Override
+  public ServerEndpoint listen(int port, Consumer<Connection> acceptor) throws IOException {
+    int boundPort = port != 0 ? port : nextEphemeralPort++;
+    if (listeners.containsKey(boundPort)) {
+      throw new SocketException("Address already in use: " + boundPort);
+    }
+    listeners.put(boundPort, acceptor);
+    return new ServerEndpoint() {
+      @Override
+      public int getPort() {
+        return boundPort;
+      }
+
+      @Override
+      public void close() {
+        listeners.remove(boundPort);
+      }
+    };
+  }
+
+  @Override
+  public Connection connect(String host, int port) throws IOException {
+    Consumer<Connection> acceptor = listeners.get(port);
+    if (acceptor == null) {
+      throw new ConnectException("Connection refused: " + host + ":" + port);
+    }
+    int id = nextConnectionId++;
+    SimulatedConnection client = new SimulatedConnection(this, "sim-server:" + port);
+    SimulatedConnection server = new SimulatedConnection(this, "sim-client-" + id);
+    client.setPeer(server);
+    server.setPeer(client);
+    openConnections.add(client);
+    openConnections.add(server);
+    scheduler.schedule(() -> acceptor.accept(server), client.nextDeliveryTime(latency(), false));
+    return client;
+  }
+
+  /**
+   * Close every open connection, as if the network went down. The clients see their connection
+   * closed, which makes this the starting point of a reconnect storm.
+   */
+  public void disconnectAll() {
+    for (SimulatedConnection connection : new ArrayList<>(openConnections)) {
+      connection.close();
+    }
+  }
+
+  /**
+   * Get the number of open connection endpoints; every connection has two.
+   *
+   * @return the number of open endpoints
+   */
+  public int getOpenConnectionCount() {
+    return openConnections.size();
+  }
+
+  /**
+   * Get the number of lines delivered so far.
+   *
+   * @return the number of delivered lines
+   */
+  public long getDeliveredCount() {
+    return deliveredCount;
+  }
+
+  /**
+   * Get the number of lines lost so far.
+   *
+   * @return the number of lost lines
+   */
+  public long getLostCount() {
+    return lostCount;
+  }
+
+  /**
+   * Send a line from one endpoint to its peer.
+   *
+   * @param from the sending endpoint
+   * @param line the line to send
+   */
+  void transmit(SimulatedConnection from, String line) {
+    if (random.nextDouble() < lossRate) {
+      lostCount++;
+      return;
+    }
+    boolean reorder = random.nextDouble() < reorderRate;
+    SimulatedConnection to = from.getPeer();
+    from.addInFlight(1);
+    scheduler.schedule(() -> {
+      from.addInFlight(-1);
+      if (to.isOpen()) {
+        deliveredCount++;
+        to.receive(line);
+      }
+    }, from.nextDeliveryTime(latency(), reorder));
+  }
+
+  /**
+   * Close one endpoint: the peer is closed after the latency.
+   *
+   * @param from the closed endpoint
+   */
+  void closed(SimulatedConnection from) {
+    openConnections.remove(from);
+    scheduler.execute(from::notifyClosed);
+    SimulatedConnection to = from.getPeer();
+    scheduler.schedule(() -> {
+      if (to.markClosed()) {
+        openConnections.remove(to);
+        to.notifyClosed();
+      }
+    }, from.nextDeliveryTime(latency(), false));
+  }
+
+  /**
+   * Get the current virtual time.
+   *
+   * @return the time of the scheduler, in milliseconds
+   */
+  long now() {
+    return scheduler.currentTimeMillis();
+  }
+
+  private long latency() {
+    return minLatencyMillis + (long) (random.nextDouble() * (maxLatencyMillis - minLatencyMillis + 1));
+  }
+}
@@ -0,0 +1,179 @@
+package no.ntnu.communication.simulation;
+
+import java.util.PriorityQueue;
+import java.util.Random;
+import no.ntnu.tools.Cancellable;
+import no.ntnu.tools.TaskScheduler;
+
+/**
+ * A deterministic, single-threaded task scheduler with a virtual clock. Tasks only run when the
+ * owner of the scheduler calls {@link #runFor}, {@link #runUntilIdle} or {@link #step}, on the
+ * calling thread, in order of their due time; tasks due at the same time run in the order they
+ * were scheduled. Time jumps from one task to the next, so hours of simulated time pass in
+ * milliseconds. All random decisions come from one seeded generator: the same seed and the same
+ * calls give the same run, which makes concurrency bugs reproducible.
+ * The scheduler is not thread-safe, everything which uses it must run on its tasks.
+ */
+public class SimulationScheduler implements TaskScheduler {
+  private final PriorityQueue<Task> queue = new PriorityQueue<>();
+  private final Random random;
+  private long now;
+  private long sequence;
+  private long executedCount;
+
+  /**
+   * Create a scheduler. The virtual clock starts at the epoch.
+   *
+   * @param seed the seed of all random decisions
+   */
+  public SimulationScheduler(long seed) {
+    this.random = new Random(seed);
+  }
+
+  @Override
+  public long currentTimeMillis() {
+    return now;
+  }
+
+  @Override
+  public void execute(Runnable task) {
+    enqueue(new Task(task, now, 0));
+  }
+
+  @Override
+  public Cancellable schedule(Runnable task, long delayMillis) {
+    return enqueue(new Task(task, now + Math.max(0, delayMillis), 0));
+  }
+
+  @Override
+  public Cancellable scheduleAtFixedRate(Runnable task, long initialDelayMillis,
+      long periodMillis) {
+    if (periodMillis <= 0) {
+      throw new IllegalArgumentException("Period must be positive");
+    }
+    return enqueue(new Task(task, now + Math.max(0, initialDelayMillis), periodMillis));
+  }
+
+  @Override
+  public long nextRandom(long bound) {
+    return random.nextLong(bound);
+  }
+
+  /**
+   * Get the seeded random generator, for random decisions of the simulation itself.
+   *
+   * @return the random generator of this scheduler
+   */
+  public Random getRandom() {
+    return random;
+  }
+
+  /**
+   * Discard all pending tasks.
+   */
+  @Override
+  public void shutdown() {
+    queue.clear();
+  }
+
+  /**
+   * Run the next due task, advancing the clock to its due time.
+   *
+   * @return true if a task was run, false if there are no pending tasks
+   */
+  public boolean step() {
+    Task task = queue.poll();
+    if (task == null) {
+      return false;
+    }
+    now = task.dueTime;
+    if (task.period > 0) {
+      task.dueTime += task.period;
+      task.sequence = sequence++;
+      queue.add(task);
+    }
+    executedCount++;
+    task.action.run();
+    return true;
+  }
+
+  /**
+   * Run all tasks due within the given time, then advance the clock to the end of it.
+   *
+   * @param millis the amount of virtual time to run
+   */
+  public void runFor(long millis) {
+    long end = now + millis;
+    while (!queue.isEmpty() && queue.peek().dueTime <= end) {
+      step();
+    }
+    now = end;
+  }
+
+  /**
+   * Run tasks until none are left, or the limit is reached. Periodic tasks never leave the queue,
+   * so use {@link #runFor} when any are scheduled.
+   *
+   * @param maxTasks the maximum number of tasks to run
+   * @return true if the queue is empty, false if the limit was reached first
+   */
+  public boolean runUntilIdle(long maxTasks) {
+    for (long i = 0; i < maxTasks; i++) {
+      if (!step()) {
+        return true;
+      }
+    }
+    return queue.isEmpty();
+  }
+
+  /**
+   * Get the number of pending tasks, including periodic ones.
+   *
+   * @return the number of tasks in the queue
+   */
+  public int getPendingCount() {
+    return queue.size();
+  }
+
+  /**
+   * Get the number of task runs so far.
+   *
+   * @return the number of executed tasks
+   */
+  public long getExecutedCount() {
+    return executedCount;
+  }
+
+  private Task enqueue(Task task) {
+    task.sequence = sequence++;
+    queue.add(task);
+    return task;
+  }
+
+  /**
+   * A scheduled task, ordered by due time and then by scheduling order.
+   */
+  private class Task implements Comparable<Task>, Cancellable {
+    private final Runnable action;
+    private final long period;
+    private long dueTime;
+    private long sequence;
+
+    Task(Runnable action, long dueTime, long period) {
+      this.action = action;
+      this.dueTime = dueTime;
+      this.period = period;
+    }
+
+    @Override
+    public int compareTo(Task other) {
+      int byTime = Long.compare(dueTime, other.dueTime);
+      return byTime != 0 ? byTime : Long.compare(sequence, other.sequence);
+    }
+
+    @Override
+    public void cancel() {
+      queue.remove(this);
+    }
+  }
+}
@@ -0,0 +1,83 @@
+package no.ntnu.communication.transport;
+
+import java.util.function.LongConsumer;
+
+/**
+ * A line-based, bidirectional connection between two endpoints of the greenhouse protocol.
+ * Sending never blocks: outgoing lines are queued by the implementation.
+ */
+public interface Connection {
+  /**
+   * Start delivering incoming lines to the listener. Lines which arrive before the connection is
+   * started are delivered when it starts.
+   *
+   * @param listener the listener which receives the incoming lines and the close event
+   */
+  void start(ConnectionListener listener);
+
+  /**
+   * Queue a line for sending. A line terminator is appended by the connection.
+   *
+   * @param line the line to send
+   * @return true if the line was queued, false if it was dropped because the connection is
+   *     closed or its outgoing queue is full
+   */
+  boolean send(String line);
+
+  /**
+   * Queue a line which ends with the time it is written, in epoch milliseconds, so the receiver
+   * can tell how long the line waited in the outgoing queue. By default the time is taken when
+   * the line is queued. The callback gets the time which was written, so a sender can record the
+   * line exactly as sent; it runs on the thread which writes the line and must not block.
+   *
+   * @param prefix    the line without the time
+   * @param onWritten receives the written time, not if the line is dropped or the connection
+   *                  closes first
+   * @return true if the line was queued, false if it was dropped
+   */
+  default boolean sendStamped(String prefix, LongConsumer onWritten) {
+    long time = System.currentTimeMillis();
+    boolean queued = send(prefix + time);
+    if (queued) {
+      onWritten.accept(time);
+    }
+    return queued;
+  }
+
+  /**
+   * Queue a line and run a callback when it has been written, so a sender can limit how many of
+   * its own lines are waiting in the outgoing queue. By default the callback runs when the line
+   * is queued. The callback runs on the thread which writes the line and must not block.
+   *
+   * @param line      the line to send
+   * @param onWritten runs when the line is written, not if it is dropped or the connection closes
+   *                  first
+   * @return true if the line was queued, false if it was dropped
+   */
+  default boolean send(String line, Runnable onWritten) {
+    boolean queued = send(line);
+    if (queued) {
+      onWritten.run();
+    }
+    return queued;
+  }
+
+  /**
+   * Get the number of lines which are queued but not sent yet.
+   *
+   * @return the number of queued lines
+   */
+  int getQueuedCount();
+
+  /**
+   * Get a readable name of the remote endpoint, for logging and metrics.
+   *
+   * @return the name of the remote endpoint
+   */
+  String getRemoteName();
+
+  /**
+   * Close the connection. The listener is notified when the connection has been closed.
+   */
+  void close();
+}
@@ -0,0 +1,19 @@
+package no.ntnu.communication.transport;
+
+/**
+ * Receives the events of a connection: the lines which arrive, and the end of the connection.
+ * A connection calls its listener from one thread at a time.
+ */
+public interface ConnectionListener {
+  /**
+   * A line has been received.
+   *
+   * @param line the received line, without the line terminator
+   */
+  void onLine(String line);
+
+  /**
+   * The connection has been closed, by either side or because of an error. Called once.
+   */
+  void onClosed();
+}
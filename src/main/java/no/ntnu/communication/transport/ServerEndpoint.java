@@ -0,0 +1,18 @@
+package no.ntnu.communication.transport;
+
+/**
+ * A listening endpoint, created by {@link Transport#listen}.
+ */
+public interface ServerEndpoint {
+  /**
+   * Get the port the endpoint listens on.
+   *
+   * @return the bound port
+   */
+  int getPort();
+
+  /**
+   * Stop accepting connections. Connections which were already accepted stay open.
+   */
+  void close();
+}
@@ -0,0 +1,177 @@
+package no.ntnu.communication.transport;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.LongConsumer;
+import javax.net.ssl.SSLSocket;
+import no.ntnu.ssl.SslConnection;
+import no.ntnu.tools.Logger;
+
+/**
+ * A connection over a socket. Incoming lines are read by a reader thread. Outgoing lines are
+ * queued and written by a writer thread, so a slow peer never blocks the thread which sends to
+ * it; everything queued at the moment is written before the output is flushed, so bursts are
+ * sent in as few packets as possible. Stamped lines get their time, and tracked lines run their
+ * callback, when the writer thread writes them. The TLS handshake of an accepted socket is
+ * performed on the reader thread, so it does not hold up the thread which accepts the
+ * connections.
+ */
+public class SocketConnection implements Connection {
+  private static final int OUTGOING_QUEUE_CAPACITY = 65536;
+
+  private final Socket socket;
+  private final String name;
+  private final String remoteName;
+  private final BufferedReader input;
+  private final PrintWriter output;
+  private final BlockingQueue<Object> outgoing = new LinkedBlockingQueue<>(OUTGOING_QUEUE_CAPACITY);
+  private final AtomicBoolean closed = new AtomicBoolean();
+  private Thread writer;
+
+  /**
+   * Create a connection over a connected socket.
+   *
+   * @param socket the connected socket
+   * @param name   the name of the connection, used for the thread names
+   * @throws IOException if the socket streams can't be opened
+   */
+  public SocketConnection(Socket socket, String name) throws IOException {
+    this.socket = socket;
+    this.name = name;
+    this.remoteName = String.valueOf(socket.getRemoteSocketAddress());
+    this.input = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+    this.output = new PrintWriter(new BufferedWriter(new OutputStreamWriter(socket.getOutputStream())));
+  }
+
+  @Override
+  public void start(ConnectionListener listener) {
+    writer = new Thread(this::writeOutgoingLines, name + "-Writer");
+    writer.setDaemon(true);
+    writer.start();
+    new Thread(() -> readIncomingLines(listener), name + "-Reader").start();
+  }
+
+  private void readIncomingLines(ConnectionListener listener) {
+    try {
+      if (socket instanceof SSLSocket sslSocket && !sslSocket.getUseClientMode()) {
+        SslConnection.startHandshake(sslSocket, "server");
+      }
+      String line;
+      while ((line = input.readLine()) != null) {
+        listener.onLine(line);
+      }
+    } catch (IOException e) {
+      SslConnection.recordFailure(e);
+      if (!closed.get()) {
+        Logger.error("Error reading from " + remoteName + ": " + e.getMessage());
+      }
+    } finally {
+      close();
+      listener.onClosed();
+    }
+  }
+
+  private void writeOutgoingLines() {
+    try {
+      while (!closed.get()) {
+        Object line = outgoing.take();
+        do {
+          if (line instanceof QueuedLine queued) {
+            queued.writeTo(output);
+          } else {
+            output.println(line);
+          }
+          line = outgoing.poll();
+        } while (line != null);
+        output.flush();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  @Override
+  public boolean send(String line) {
+    return !closed.get() && outgoing.offer(line);
+  }
+
+  @Override
+  public boolean sendStamped(String prefix, LongConsumer onWritten) {
+    return !closed.get() && outgoing.offer(new QueuedLine(prefix, onWritten, null));
+  }
+
+  @Override
+  public boolean send(String line, Runnable onWritten) {
+    return !closed.get() && outgoing.offer(new QueuedLine(line, null, onWritten));
+  }
+
+  @Override
+  public int getQueuedCount() {
+    return outgoing.size();
+  }
+
+  @Override
+  public String getRemoteName() {
+    return remoteName;
+  }
+
+  @Override
+  public void close() {
+    if (closed.compareAndSet(false, true)) {
+      if (writer != null) {
+        writer.interrupt();
+      }
+      try {
+        socket.close();
+      } catch (IOException e) {
+        Logger.error("Error closing connection to " + remoteName + ": " + e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * A queued line which is completed with the time when it is written, or which runs a callback
+   * when it is written.
+   */
+  private static class QueuedLine {
+    private final String text;
+    private final LongConsumer onStamped;
+    private final Runnable onWritten;
+
+    /**
+     * Create a queued line.
+     *
+     * @param text      the line, or its prefix if it is stamped
+     * @param onStamped receives the time of a stamped line, null if the line is not stamped
+     * @param onWritten runs when the line is written, or null
+     */
+    QueuedLine(String text, LongConsumer onStamped, Runnable onWritten) {
+      this.text = text;
+      this.onStamped = onStamped;
+      this.onWritten = onWritten;
+    }
+
+    void writeTo(PrintWriter output) {
+      output.print(text);
+      if (onStamped != null) {
+        long time = System.currentTimeMillis();
+        output.print(time);
+        output.println();
+        onStamped.accept(time);
+      } else {
+        output.println();
+      }
+      if (onWritten != null) {
+        onWritten.run();
+      }
+    }
+  }
+}
@@ -0,0 +1,87 @@
+package no.ntnu.communication.transport;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.security.KeyStoreException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import javax.net.ssl.SSLSocket;
+import no.ntnu.ssl.SslConnection;
+import no.ntnu.tools.Logger;
+
+/**
+ * The real transport: TLS over TCP, using the certificates in the keystore. Every connection
+ * runs on its own reader and writer thread, see {@link SocketConnection}.
+ */
+public class TlsTransport implements Transport {
+  private final SslConnection sslConnection;
+  private final AtomicInteger connectionCount = new AtomicInteger();
+
+  /**
+   * Create a TLS transport.
+   *
+   * @param keyStorePath     the path to the keystore file
+   * @param keyStorePassword the password for the keystore
+   * @throws KeyStoreException if there is an issue with the keystore
+   */
+  public TlsTransport(String keyStorePath, String keyStorePassword) throws KeyStoreException {
+    this.sslConnection = new SslConnection(0, keyStorePath, keyStorePassword);
+  }
+
+  @Override
+  public ServerEndpoint listen(int port, Consumer<Connection> acceptor) throws IOException {
+    ServerSocket serverSocket;
+    try {
+      serverSocket = sslConnection.createServerSocket(port);
+    } catch (GeneralSecurityException e) {
+      throw new IOException("Could not create TLS server socket: " + e.getMessage(), e);
+    }
+    Thread acceptThread = new Thread(() -> acceptConnections(serverSocket, acceptor),
+        "TCP-Acceptor-" + serverSocket.getLocalPort());
+    acceptThread.start();
+    return new ServerEndpoint() {
+      @Override
+      public int getPort() {
+        return serverSocket.getLocalPort();
+      }
+
+      @Override
+      public void close() {
+        try {
+          serverSocket.close();
+        } catch (IOException e) {
+          Logger.error("Error closing server socket: " + e.getMessage());
+        }
+      }
+    };
+  }
+
+  private void acceptConnections(ServerSocket serverSocket, Consumer<Connection> acceptor) {
+    while (!serverSocket.isClosed()) {
+      try {
+        Socket socket = serverSocket.accept();
+        if (socket instanceof SSLSocket sslSocket) {
+          SslConnection.monitorServerHandshakes(sslSocket);
+        }
+        acceptor.accept(new SocketConnection(socket,
+            "Client-" + connectionCount.incrementAndGet()));
+      } catch (IOException e) {
+        if (!serverSocket.isClosed()) {
+          Logger.error("Error accepting client: " + e.getMessage());
+        }
+      }
+    }
+  }
+
+  @Override
+  public Connection connect(String host, int port) throws IOException {
+    try {
+      Socket socket = sslConnection.createClientSocket(host, port);
+      return new SocketConnection(socket, "Connection-" + connectionCount.incrementAndGet());
+    } catch (GeneralSecurityException e) {
+      throw new IOException("Could not create TLS client socket: " + e.getMessage(), e);
+    }
+  }
+}
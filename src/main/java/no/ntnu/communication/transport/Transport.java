@@ -0,0 +1,30 @@
+package no.ntnu.communication.transport;
+
+import java.io.IOException;
+import java.util.function.Consumer;
+
+/**
+ * Creates the connections used by the server and the clients. The real transport is TLS over
+ * TCP ({@link TlsTransport}); tests can use an in-memory network instead.
+ */
+public interface Transport {
+  /**
+   * Start listening for connections.
+   *
+   * @param port     the port to listen on, 0 picks a free port
+   * @param acceptor called with every accepted connection, before the connection is started
+   * @return the listening endpoint
+   * @throws IOException if the endpoint can't be created
+   */
+  ServerEndpoint listen(int port, Consumer<Connection> acceptor) throws IOException;
+
+  /**
+   * Connect to a listening endpoint.
+   *
+   * @param host the host name or address of the server
+   * @param port the port of the server
+   * @return the connection, not started yet
+   * @throws IOException if the connection can't be established
+   */
+  Connection connect(String host, int port) throws IOException;
+}
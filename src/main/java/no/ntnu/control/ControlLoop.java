@@ -0,0 +1,158 @@
+package no.ntnu.control;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import no.ntnu.greenhouse.Actuator;
+import no.ntnu.greenhouse.Sensor;
+import no.ntnu.greenhouse.SensorActuatorNode;
+
+/**
+ * Holds the readings of one sensor type on a node at a setpoint, by driving the node's
+ * actuators through {@link SensorActuatorNode#setActuator(int, boolean)}. A positive output of
+ * the {@link Controller} drives the actuators which raise the value, a negative output the ones
+ * which lower it. Actuators are either on or off, so the size of the output is turned into a duty
+ * cycle over successive runs with sigma-delta modulation: an output of 0.25 keeps an actuator on
+ * for one run in four. A command is only sent when the state of an actuator changes.
+ * A loop is run by a {@link ControlLoopRunner}, never by two threads at the same time.
+ */
+public class ControlLoop {
+  private final SensorActuatorNode node;
+  private final String sensorType;
+  private final double setpoint;
+  private final Controller controller;
+  private final int[] raisingActuators;
+  private final int[] loweringActuators;
+  private final double[] raisingDuty;
+  private final double[] loweringDuty;
+  private final byte[] raisingStates;
+  private final byte[] loweringStates;
+  private long lastRunMillis = -1;
+
+  /**
+   * Create a control loop.
+   *
+   * @param node          the node whose sensors are read and whose actuators are driven
+   * @param sensorType    the type of the controlled sensors, like "temperature"; the mean of
+   *                      all sensors of the type is controlled
+   * @param setpoint      the value to hold
+   * @param controller    the control law, owned by this loop from now on
+   * @param raisingTypes  the types of the actuators which raise the value, like "heater"
+   * @param loweringTypes the types of the actuators which lower the value, like "fan"
+   */
+  public ControlLoop(SensorActuatorNode node, String sensorType, double setpoint,
+                     Controller controller, List<String> raisingTypes,
+                     List<String> loweringTypes) {
+    this.node = node;
+    this.sensorType = sensorType;
+    this.setpoint = setpoint;
+    this.controller = controller;
+    this.raisingActuators = actuatorsOfTypes(node, raisingTypes);
+    this.loweringActuators = actuatorsOfTypes(node, loweringTypes);
+    this.raisingDuty = new double[raisingActuators.length];
+    this.loweringDuty = new double[loweringActuators.length];
+    this.raisingStates = new byte[raisingActuators.length];
+    this.loweringStates = new byte[loweringActuators.length];
+    stagger(raisingDuty);
+    stagger(loweringDuty);
+  }
+
+  private static void stagger(double[] accumulated) {
+    for (int i = 0; i < accumulated.length; i++) {
+      accumulated[i] = (double) i / accumulated.length;
+    }
+  }
+
+  private static int[] actuatorsOfTypes(SensorActuatorNode node, List<String> types) {
+    List<Integer> ids = new ArrayList<>();
+    for (Actuator actuator : node.getActuators()) {
+      if (types.contains(actuator.getType())) {
+        ids.add(actuator.getId());
+      }
+    }
+    return ids.stream().mapToInt(Integer::intValue).sorted().toArray();
+  }
+
+  /**
+   * Check whether the loop can do anything: the node has a sensor of the type and at least one
+   * actuator to drive.
+   *
+   * @return true if the loop has sensors and actuators
+   */
+  public boolean canControl() {
+    if (raisingActuators.length + loweringActuators.length == 0) {
+      return false;
+    }
+    for (Sensor sensor : node.getSensors()) {
+      if (sensor.getType().equals(sensorType)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  public SensorActuatorNode getNode() {
+    return node;
+  }
+
+  public String getSensorType() {
+    return sensorType;
+  }
+
+  /**
+   * Run one step of the loop: measure, update the controller and drive the actuators.
+   *
+   * @param nowMillis the current time of the scheduler, in milliseconds
+   */
+  public void run(long nowMillis) {
+    List<Sensor> sensors = node.getSensors();
+    double sum = 0;
+    int count = 0;
+    for (int i = 0; i < sensors.size(); i++) {
+      Sensor sensor = sensors.get(i);
+      if (sensor.getType().equals(sensorType)) {
+        sum += sensor.getReading().getValue();
+        count++;
+      }
+    }
+    if (count == 0) {
+      return;
+    }
+    double dtSeconds = lastRunMillis >= 0 ? (nowMillis - lastRunMillis) / 1000.0 : 0;
+    lastRunMillis = nowMillis;
+    double output = controller.update(setpoint, sum / count, dtSeconds);
+    drive(raisingActuators, raisingDuty, raisingStates, Math.max(output, 0));
+    drive(loweringActuators, loweringDuty, loweringStates, Math.max(-output, 0));
+  }
+
+  /**
+   * Switch actuators with sigma-delta modulation of a duty cycle. The accumulated duty of every
+   * actuator starts at a different offset, so several actuators of a loop take turns instead of
+   * switching together.
+   */
+  private void drive(int[] actuators, double[] accumulated, byte[] states, double duty) {
+    for (int i = 0; i < actuators.length; i++) {
+      double level = accumulated[i] + duty;
+      boolean on = level >= 1 || duty >= 1;
+      accumulated[i] = on ? Math.max(level - 1, 0) : level;
+      byte state = on ? (byte) 2 : (byte) 1;
+      if (states[i] != state) {
+        states[i] = state;
+        node.setActuator(actuators[i], on);
+      }
+    }
+  }
+
+  /**
+   * Forget the controller history and the actuator states, so the next run starts over and
+   * sends the state of every actuator again.
+   */
+  public void reset() {
+    controller.reset();
+    lastRunMillis = -1;
+    stagger(raisingDuty);
+    stagger(loweringDuty);
+    Arrays.fill(raisingStates, (byte) 0);
+    Arrays.fill(loweringStates, (byte) 0);
+  }
+}
@@ -0,0 +1,159 @@
+package no.ntnu.control;
+
+import java.util.ArrayList;
+import java.util.List;
+import no.ntnu.greenhouse.SensorActuatorNode;
+import no.ntnu.greenhouse.NodeRuntime;
+import no.ntnu.tools.Cancellable;
+import no.ntnu.tools.Logger;
+import no.ntnu.tools.metrics.Counter;
+import no.ntnu.tools.metrics.Histogram;
+import no.ntnu.tools.metrics.Metrics;
+
+/**
+ * Runs many {@link ControlLoop}s on a {@link NodeRuntime}, without a thread per loop. The loops
+ * are split into batches and every batch is one periodic task on the runtime: the scheduler
+ * hands the batches to the mailbox threads, which run all loops of a batch in a row. The batches
+ * are spread evenly over the period, so the load is smooth, and run in parallel on the mailbox
+ * threads. In a simulation runtime, the loops run on the virtual clock.
+ * Metrics: control_batch_nanos (time to run one batch), control_loop_nanos (mean time per loop
+ * in a batch), control_loop_runs_total and control_batch_overruns_total (batches which took
+ * longer than the period).
+ */
+public class ControlLoopRunner {
+  private static final int DEFAULT_BATCH_SIZE = 512;
+  private static final Histogram BATCH_DURATION = Metrics.histogram("control_batch_nanos");
+  private static final Histogram LOOP_DURATION = Metrics.histogram("control_loop_nanos");
+  private static final Counter RUNS = Metrics.counter("control_loop_runs_total");
+  private static final Counter OVERRUNS = Metrics.counter("control_batch_overruns_total");
+
+  private final NodeRuntime runtime;
+  private final long periodMillis;
+  private final int batchSize;
+  private final List<ControlLoop> loops = new ArrayList<>();
+  private final List<Cancellable> tasks = new ArrayList<>();
+
+  /**
+   * Create a runner with batches of the default size.
+   *
+   * @param runtime      the runtime on which the loops run
+   * @param periodMillis the time between two runs of a loop, in milliseconds
+   */
+  public ControlLoopRunner(NodeRuntime runtime, long periodMillis) {
+    this(runtime, periodMillis, DEFAULT_BATCH_SIZE);
+  }
+
+  /**
+   * Create a runner.
+   *
+   * @param runtime      the runtime on which the loops run
+   * @param periodMillis the time between two runs of a loop, in milliseconds
+   * @param batchSize    the maximum number of loops run by one task
+   */
+  public ControlLoopRunner(NodeRuntime runtime, long periodMillis, int batchSize) {
+    if (periodMillis <= 0 || batchSize <= 0) {
+      throw new IllegalArgumentException("Period and batch size must be positive");
+    }
+    this.runtime = runtime;
+    this.periodMillis = periodMillis;
+    this.batchSize = batchSize;
+    Metrics.gauge("control_loops", this::getLoopCount);
+  }
+
+  /**
+   * Add a loop. Loops are added before the runner is started.
+   *
+   * @param loop the loop to run
+   */
+  public synchronized void add(ControlLoop loop) {
+    if (!tasks.isEmpty()) {
+      throw new IllegalStateException("Loops must be added before the runner is started");
+    }
+    loops.add(loop);
+  }
+
+  /**
+   * Add the standard climate loops of a node, for the sensors and actuators it has: temperature
+   * raised by the heaters and lowered by the fans, and humidity lowered by the windows.
+   *
+   * @param node                the node to control
+   * @param mode                the control law of the loops
+   * @param temperatureSetpoint the temperature to hold
+   * @param humiditySetpoint    the humidity to hold
+   * @return the number of loops added
+   */
+  public int addClimateLoops(SensorActuatorNode node, ControlMode mode,
+                             double temperatureSetpoint, double humiditySetpoint) {
+    ControlLoop temperature = new ControlLoop(node, "temperature", temperatureSetpoint,
+        mode == ControlMode.PID ? new PidController(0.5, 0.02, 0) : new HysteresisController(0.5),
+        List.of("heater"), List.of("fan"));
+    ControlLoop humidity = new ControlLoop(node, "humidity", humiditySetpoint,
+        mode == ControlMode.PID ? new PidController(0.1, 0.005, 0) : new HysteresisController(2),
+        List.of(), List.of("window"));
+    int added = 0;
+    for (ControlLoop loop : List.of(temperature, humidity)) {
+      if (loop.canControl()) {
+        add(loop);
+        added++;
+      }
+    }
+    return added;
+  }
+
+  /**
+   * Get the number of loops.
+   *
+   * @return the number of added loops
+   */
+  public synchronized int getLoopCount() {
+    return loops.size();
+  }
+
+  /**
+   * Start running the loops. They start over, without the history of an earlier run.
+   */
+  public synchronized void start() {
+    if (!tasks.isEmpty()) {
+      return;
+    }
+    for (ControlLoop loop : loops) {
+      loop.reset();
+    }
+    int batchCount = (loops.size() + batchSize - 1) / batchSize;
+    for (int batch = 0; batch < batchCount; batch++) {
+      int from = batch * batchSize;
+      ControlLoop[] batchLoops = loops.subList(from, Math.min(from + batchSize, loops.size()))
+          .toArray(new ControlLoop[0]);
+      long offset = batch * periodMillis / batchCount;
+      tasks.add(runtime.schedulePeriodicWork(batch, () -> runBatch(batchLoops), offset,
+          periodMillis));
+    }
+    Logger.info("Running " + loops.size() + " control loops in " + batchCount
+        + " batches every " + periodMillis + " ms");
+  }
+
+  /**
+   * Stop running the loops. The actuators stay as they were last set.
+   */
+  public synchronized void stop() {
+    for (Cancellable task : tasks) {
+      task.cancel();
+    }
+    tasks.clear();
+  }
+
+  private void runBatch(ControlLoop[] batchLoops) {
+    long start = System.nanoTime();
+    long now = runtime.currentTimeMillis();
+    for (ControlLoop loop : batchLoops) {
+      loop.run(now);
+    }
+    long duration = System.nanoTime() - start;
+    BATCH_DURATION.record(duration);
+    LOOP_DURATION.record(duration / batchLoops.length);
+    RUNS.add(batchLoops.length);
+    if (duration > periodMillis * 1_000_000) {
+      OVERRUNS.increment();
+    }
+  }
+}
@@ -0,0 +1,45 @@
+package no.ntnu.control;
+
+/**
+ * The control laws available for the standard climate loops of a node.
+ */
+public enum ControlMode {
+  /**
+   * A {@link PidController}, which modulates the actuators smoothly around the setpoint.
+   */
+  PID("pid"),
+  /**
+   * A {@link HysteresisController}, which switches the actuators fully on or off.
+   */
+  BANG_BANG("bangbang");
+
+  private final String label;
+
+  ControlMode(String label) {
+    this.label = label;
+  }
+
+  /**
+   * Get the name of the mode used in the configuration, like "pid".
+   *
+   * @return the label
+   */
+  public String getLabel() {
+    return label;
+  }
+
+  /**
+   * Find a mode by its label.
+   *
+   * @param label the label, like "bangbang"
+   * @return the mode, or null if there is none with the label
+   */
+  public static ControlMode fromLabel(String label) {
+    for (ControlMode mode : values()) {
+      if (mode.label.equals(label)) {
+        return mode;
+      }
+    }
+    return null;
+  }
+}
@@ -0,0 +1,23 @@
+package no.ntnu.control;
+
+/**
+ * The control law of a {@link ControlLoop}: turns the error between a setpoint and a measurement
+ * into an output between -1 (lower the value as much as possible) and 1 (raise it as much as
+ * possible). A controller keeps the state of one loop and is not thread-safe.
+ */
+public interface Controller {
+  /**
+   * Compute the next output.
+   *
+   * @param setpoint    the wanted value
+   * @param measurement the measured value
+   * @param dtSeconds   the time since the previous update, in seconds
+   * @return the output, in the range [-1; 1]
+   */
+  double update(double setpoint, double measurement, double dtSeconds);
+
+  /**
+   * Forget the history of the loop, for example after the loop has been paused.
+   */
+  void reset();
+}
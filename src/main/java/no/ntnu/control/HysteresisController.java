@@ -0,0 +1,43 @@
+package no.ntnu.control;
+
+/**
+ * A bang-bang controller with hysteresis: full output towards the setpoint once the measurement
+ * is further than the band away from it, and no output once the setpoint has been reached.
+ * Between the two, the output stays as it was, so the actuators don't chatter around the
+ * setpoint.
+ */
+public class HysteresisController implements Controller {
+  private final double band;
+  private double output;
+
+  /**
+   * Create a bang-bang controller.
+   *
+   * @param band how far the measurement may drift from the setpoint before the controller acts,
+   *             in units of the measured value
+   */
+  public HysteresisController(double band) {
+    if (band < 0) {
+      throw new IllegalArgumentException("Hysteresis band can't be negative");
+    }
+    this.band = band;
+  }
+
+  @Override
+  public double update(double setpoint, double measurement, double dtSeconds) {
+    if (measurement < setpoint - band) {
+      output = 1;
+    } else if (measurement > setpoint + band) {
+      output = -1;
+    } else if ((output > 0 && measurement >= setpoint)
+        || (output < 0 && measurement <= setpoint)) {
+      output = 0;
+    }
+    return output;
+  }
+
+  @Override
+  public void reset() {
+    output = 0;
+  }
+}
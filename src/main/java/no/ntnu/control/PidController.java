@@ -0,0 +1,57 @@
+package no.ntnu.control;
+
+/**
+ * A PID controller. The derivative is taken on the measurement rather than on the error, so a
+ * change of the setpoint does not kick the output, and the integral stops growing while the
+ * output is saturated (anti-windup), so the loop does not overshoot after a long saturation.
+ */
+public class PidController implements Controller {
+  private final double kp;
+  private final double ki;
+  private final double kd;
+  private double integral;
+  private double previousMeasurement;
+  private boolean hasPrevious;
+
+  /**
+   * Create a PID controller. The gains are per unit of the measured value, for an output in
+   * [-1; 1].
+   *
+   * @param kp the proportional gain
+   * @param ki the integral gain, per second
+   * @param kd the derivative gain, in seconds
+   */
+  public PidController(double kp, double ki, double kd) {
+    this.kp = kp;
+    this.ki = ki;
+    this.kd = kd;
+  }
+
+  @Override
+  public double update(double setpoint, double measurement, double dtSeconds) {
+    double error = setpoint - measurement;
+    double derivative = 0;
+    if (hasPrevious && dtSeconds > 0) {
+      derivative = -(measurement - previousMeasurement) / dtSeconds;
+    }
+    previousMeasurement = measurement;
+    hasPrevious = true;
+
+    double candidateIntegral = integral + error * dtSeconds;
+    double output = kp * error + ki * candidateIntegral + kd * derivative;
+    if (output > 1) {
+      output = 1;
+    } else if (output < -1) {
+      output = -1;
+    } else {
+      integral = candidateIntegral;
+    }
+    return output;
+  }
+
+  @Override
+  public void reset() {
+    integral = 0;
+    hasPrevious = false;
+  }
+}
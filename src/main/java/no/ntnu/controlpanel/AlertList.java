@@ -0,0 +1,59 @@
+package no.ntnu.controlpanel;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import no.ntnu.message.AlertEntry;
+
+/**
+ * The alerts firing on the server as a control panel knows them, kept up to date from the alert
+ * digests the server sends. A snapshot digest replaces the list; other digests add the alerts
+ * which fire and remove the resolved ones.
+ */
+public class AlertList {
+  private final Map<String, AlertEntry> firing = new LinkedHashMap<>();
+  private int firingCount;
+
+  /**
+   * Apply a digest to the list.
+   *
+   * @param snapshot    true if the alerts are all firing alerts, replacing the list
+   * @param alerts      the alert changes of the digest
+   * @param firingCount how many alerts fire on the server
+   */
+  public synchronized void apply(boolean snapshot, List<AlertEntry> alerts, int firingCount) {
+    if (snapshot) {
+      firing.clear();
+    }
+    for (AlertEntry alert : alerts) {
+      if (alert.isFiring()) {
+        firing.put(alert.getKey(), alert);
+      } else {
+        firing.remove(alert.getKey());
+      }
+    }
+    this.firingCount = firingCount;
+  }
+
+  /**
+   * Get the firing alerts.
+   *
+   * @return a copy of the alerts, newest first
+   */
+  public synchronized List<AlertEntry> getFiring() {
+    List<AlertEntry> alerts = new ArrayList<>(firing.values());
+    alerts.sort(Comparator.comparingLong(AlertEntry::getTimestamp).reversed());
+    return alerts;
+  }
+
+  /**
+   * Get the number of alerts firing on the server.
+   *
+   * @return the firing count, which can be more than the listed alerts
+   */
+  public synchronized int getFiringCount() {
+    return firingCount;
+  }
+}
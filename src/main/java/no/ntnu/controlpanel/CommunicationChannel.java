@@ -1,5 +1,10 @@
 package no.ntnu.controlpanel;
 
+import no.ntnu.listeners.controlpanel.AlertListener;
+import no.ntnu.listeners.controlpanel.AnomalyListener;
+import no.ntnu.listeners.controlpanel.HistoryListener;
+import no.ntnu.listeners.controlpanel.PercentileListener;
+
 /**
  * A communication channel for disseminating control commands to the sensor nodes
  * (sending commands to the server) and receiving notifications about events.
@@ -21,4 +26,58 @@ public interface CommunicationChannel {
    * @return True when the communication channel is successfully opened, false on error
    */
   boolean open();
+
+  /**
+   * Request the stored history of one sensor. The answer arrives in chunks, through the listener.
+   * Channels without access to a history return false.
+   *
+   * @param nodeId      ID of the node
+   * @param sensorIndex index of the sensor in the readings of the node
+   * @param from        start of the range, inclusive, epoch milliseconds
+   * @param to          end of the range, exclusive, epoch milliseconds
+   * @param resolution  "auto" to let the server choose, "raw", "1m", "1h" or "1d"
+   * @param listener    receives the answer
+   * @return true if the request was sent
+   */
+  default boolean queryHistory(int nodeId, int sensorIndex, long from, long to,
+                               String resolution, HistoryListener listener) {
+    return false;
+  }
+
+  /**
+   * Request percentiles of the recent readings of a sensor type across the nodes, computed by the
+   * server from its quantile sketches. Channels without a server return false.
+   *
+   * @param sensorType the type of the sensors, like "temperature"
+   * @param group      the group of nodes, or -1 for all nodes
+   * @param quantiles  the quantiles, between 0 and 1, like 0.05, 0.5 and 0.95
+   * @param listener   receives the answer
+   * @return true if the request was sent
+   */
+  default boolean queryPercentiles(String sensorType, int group, double[] quantiles,
+                                   PercentileListener listener) {
+    return false;
+  }
+
+  /**
+   * Subscribe to the anomalies the server detects in the sensor readings. The subscription is
+   * renewed when the channel is opened again. Channels without a server return false.
+   *
+   * @param listener receives the anomalies
+   * @return true if the subscription was sent
+   */
+  default boolean subscribeToAnomalies(AnomalyListener listener) {
+    return false;
+  }
+
+  /**
+   * Listen to the alert list of the channel, which the server keeps up to date with periodic
+   * digests of the alerts which fire and are resolved. Channels without a server return false.
+   *
+   * @param listener receives the alert list when it changes
+   * @return true if the channel has alerts
+   */
+  default boolean addAlertListener(AlertListener listener) {
+    return false;
+  }
 }
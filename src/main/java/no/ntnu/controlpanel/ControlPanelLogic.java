@@ -65,6 +65,12 @@ public class ControlPanelLogic implements GreenhouseEventListener, ActuatorListe
         listeners.forEach(listener -> listener.onNodeRemoved(nodeId));
     }
 
+    /**
+     * New sensor data has been received.
+     *
+     * @param nodeId  ID of the node
+     * @param sensors List of all current sensor values
+     */
     @Override
     public void onSensorData(int nodeId, List<SensorReading> sensors) {
         listeners.forEach(listener -> listener.onSensorData(nodeId, sensors));
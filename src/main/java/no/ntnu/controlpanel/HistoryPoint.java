@@ -0,0 +1,50 @@
+package no.ntnu.controlpanel;
+
+/**
+ * One point of the sensor history received by a control panel: a raw reading, or the aggregate
+ * of a rollup bucket. For a raw reading the min and max are the value itself and the count is 1.
+ */
+public class HistoryPoint {
+  private final long timestamp;
+  private final double value;
+  private final double min;
+  private final double max;
+  private final long count;
+
+  /**
+   * Create a history point.
+   *
+   * @param timestamp the capture time, or the start of the bucket, epoch milliseconds
+   * @param value     the reading, or the average of the bucket
+   * @param min       the smallest reading in the bucket
+   * @param max       the largest reading in the bucket
+   * @param count     the number of readings in the bucket
+   */
+  public HistoryPoint(long timestamp, double value, double min, double max, long count) {
+    this.timestamp = timestamp;
+    this.value = value;
+    this.min = min;
+    this.max = max;
+    this.count = count;
+  }
+
+  public long getTimestamp() {
+    return timestamp;
+  }
+
+  public double getValue() {
+    return value;
+  }
+
+  public double getMin() {
+    return min;
+  }
+
+  public double getMax() {
+    return max;
+  }
+
+  public long getCount() {
+    return count;
+  }
+}
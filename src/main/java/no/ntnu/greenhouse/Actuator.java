@@ -50,6 +50,14 @@ public class Actuator {
     return nextId++;
   }
 
+  static int getNextId() {
+    return nextId;
+  }
+
+  static void setNextId(int id) {
+    nextId = id;
+  }
+
   /**
    * Set the listener which will be notified when actuator state changes.
    *
@@ -157,6 +165,16 @@ public class Actuator {
     }
   }
 
+  /**
+   * Set the state without applying the impact or notifying the listener, for an actuator whose
+   * impact is already part of the restored sensor values.
+   *
+   * @param on The restored state
+   */
+  void restoreState(boolean on) {
+    this.on = on;
+  }
+
   /**
    * Get the ID of the actuator.
    *
@@ -15,9 +15,20 @@ public class ActuatorCollection implements Iterable<Actuator> {
    * Print a short info about all the actuators. Usable for debugging. Does NOT print a newline!
    */
   public void debugPrint() {
+    StringBuilder info = new StringBuilder();
+    appendDebugInfo(info);
+    Logger.infoNoNewline(info.toString());
+  }
+
+  /**
+   * Append a short info about all the actuators to a string builder, for debug messages.
+   *
+   * @param info The builder to append the info to
+   */
+  public void appendDebugInfo(StringBuilder info) {
     for (Actuator actuator : actuators.values()) {
-      Logger.infoNoNewline(" " + actuator.getType() + "[" + actuator.getId() + "]"
-              + (actuator.isOn() ? " ON" : " off"));
+      info.append(" ").append(actuator.getType()).append("[").append(actuator.getId()).append("]")
+          .append(actuator.isOn() ? " ON" : " off");
     }
   }
 
@@ -34,7 +34,25 @@ public class DeviceFactory {
    */
   public static SensorActuatorNode createNode(int temperatureSensorCount, int humiditySensorCount,
                                               int windowCount, int fanCount, int heaterCount) {
-    SensorActuatorNode node = new SensorActuatorNode(generateUniqueNodeId());
+    return createNode(NodeRuntime.getShared(), temperatureSensorCount, humiditySensorCount,
+        windowCount, fanCount, heaterCount);
+  }
+
+  /**
+   * Create a sensor/actuator device running on the given runtime.
+   *
+   * @param runtime                The runtime on which the node runs
+   * @param temperatureSensorCount Number of temperature sensors to have on the node
+   * @param humiditySensorCount    Number of humidity sensors to have on the device
+   * @param windowCount            Number of windows the device is connected to
+   * @param fanCount               Number of fans the device is connected to
+   * @param heaterCount            Number of heaters the device is connected to
+   * @return The created sensor/actuator device, with a unique ID
+   */
+  public static SensorActuatorNode createNode(NodeRuntime runtime, int temperatureSensorCount,
+                                              int humiditySensorCount, int windowCount,
+                                              int fanCount, int heaterCount) {
+    SensorActuatorNode node = new SensorActuatorNode(generateUniqueNodeId(), runtime);
     if (temperatureSensorCount > 0) {
       node.addSensors(DeviceFactory.createTemperatureSensor(), temperatureSensorCount);
     }
@@ -95,8 +113,7 @@ public class DeviceFactory {
    */
   public static Actuator createWindow(int nodeId) {
     Actuator actuator = new Actuator("window", nodeId);
-    actuator.setImpact(SENSOR_TYPE_TEMPERATURE, -5.0);
-    actuator.setImpact("humidity", -10.0);
+    setTypicalImpacts(actuator);
     return actuator;
   }
 
@@ -108,7 +125,7 @@ public class DeviceFactory {
    */
   public static Actuator createFan(int nodeId) {
     Actuator actuator = new Actuator("fan", nodeId);
-    actuator.setImpact(SENSOR_TYPE_TEMPERATURE, -1.0);
+    setTypicalImpacts(actuator);
     return actuator;
   }
 
@@ -120,10 +137,40 @@ public class DeviceFactory {
    */
   public static Actuator createHeater(int nodeId) {
     Actuator actuator = new Actuator("heater", nodeId);
-    actuator.setImpact(SENSOR_TYPE_TEMPERATURE, 4.0);
+    setTypicalImpacts(actuator);
     return actuator;
   }
 
+  /**
+   * Recreate an actuator with a known ID and state, with the typical impacts of its type.
+   *
+   * @param id     ID of the actuator
+   * @param type   The type, like "window"
+   * @param nodeId ID of the node to which this actuator will be connected
+   * @param on     The state of the actuator, its impact is not applied again
+   * @return The actuator
+   */
+  static Actuator restoreActuator(int id, String type, int nodeId, boolean on) {
+    Actuator actuator = new Actuator(id, type, nodeId);
+    setTypicalImpacts(actuator);
+    actuator.restoreState(on);
+    return actuator;
+  }
+
+  private static void setTypicalImpacts(Actuator actuator) {
+    switch (actuator.getType()) {
+      case "window" -> {
+        actuator.setImpact(SENSOR_TYPE_TEMPERATURE, -5.0);
+        actuator.setImpact("humidity", -10.0);
+      }
+      case "fan" -> actuator.setImpact(SENSOR_TYPE_TEMPERATURE, -1.0);
+      case "heater" -> actuator.setImpact(SENSOR_TYPE_TEMPERATURE, 4.0);
+      default -> {
+        // Unknown types have no impact
+      }
+    }
+  }
+
   /**
    * Generate a random value within the range [x-d; x+d].
    *
@@ -146,4 +193,12 @@ public class DeviceFactory {
     return nextNodeId++;
   }
 
+  static int getNextNodeId() {
+    return nextNodeId;
+  }
+
+  static void setNextNodeId(int id) {
+    nextNodeId = id;
+  }
+
 }
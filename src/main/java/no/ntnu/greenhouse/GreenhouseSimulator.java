@@ -1,23 +1,66 @@
 package no.ntnu.greenhouse;
 
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
 import java.security.KeyStoreException;
+import java.time.ZoneId;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 
+import no.ntnu.alerts.AlertManager;
+import no.ntnu.alerts.AlertRule;
+import no.ntnu.alerts.AlertRuleParser;
+import no.ntnu.analytics.AnomalyDetector;
+import no.ntnu.analytics.FleetQuantiles;
+import no.ntnu.analytics.QuantileSketch;
+import no.ntnu.analytics.StreamAnalytics;
+import no.ntnu.analytics.StreamOperator;
+import no.ntnu.analytics.StreamOperatorParser;
+import no.ntnu.communication.AnomalyPublisher;
 import no.ntnu.communication.SensorActuatorTcpClient;
+import no.ntnu.communication.HistoryExportServer;
+import no.ntnu.communication.HistoryQueryService;
 import no.ntnu.communication.TcpServer;
+import no.ntnu.communication.TrafficCapture;
+import no.ntnu.control.ControlLoopRunner;
+import no.ntnu.control.ControlMode;
+import no.ntnu.history.RollupAggregator;
+import no.ntnu.history.SensorHistoryIngest;
+import no.ntnu.history.SensorHistoryStore;
+import no.ntnu.journal.CommandJournal;
 import no.ntnu.listeners.greenhouse.NodeStateListener;
+import no.ntnu.message.MessageSerializer;
+import no.ntnu.rules.Rule;
+import no.ntnu.rules.RuleEngine;
+import no.ntnu.rules.RuleParser;
+import no.ntnu.ssl.SslConnection;
 import no.ntnu.tools.Logger;
+import no.ntnu.tools.Parser;
+import no.ntnu.tools.ThreadTaskScheduler;
+import no.ntnu.tools.metrics.MetricsHttpServer;
+import no.ntnu.tools.metrics.MetricsReporter;
 
 /**
  * Application entrypoint - a simulator for a greenhouse.
  */
 public class GreenhouseSimulator {
+    private static final long SNAPSHOT_IDLE_TIMEOUT_MILLIS = 5000;
     private final Map<Integer, SensorActuatorNode> nodes = new HashMap<>();
     private TcpServer server;
+    private MetricsHttpServer metricsServer;
+    private SensorHistoryStore historyStore;
+    private RollupAggregator rollups;
+    private HistoryExportServer exportServer;
+    private CommandJournal commandJournal;
+    private TrafficCapture trafficCapture;
+    private ControlLoopRunner controlLoops;
+    private StreamAnalytics streamAnalytics;
     private final List<SensorActuatorTcpClient> clients = new ArrayList<>();
 
     private final List<PeriodicSwitch> periodicSwitches = new LinkedList<>();
@@ -47,17 +90,70 @@ public class GreenhouseSimulator {
     }
 
     /**
-     * Initialise the greenhouse but don't start the simulation just yet.
+     * Initialise the greenhouse but don't start the simulation just yet. When the system property
+     * greenhouse.snapshot names an existing simulator snapshot, the nodes are restored from it
+     * instead of being created.
      */
     public void initialize() {
         Logger.info("GreenhouseSimulator.initialize() called");
-        createNode(1, 2, 1, 0, 0);
-        createNode(1, 0, 0, 2, 1);
-        createNode(2, 0, 0, 0, 0);
+        if (!restoreSnapshot()) {
+            createNode(1, 2, 1, 0, 0);
+            createNode(1, 0, 0, 2, 1);
+            createNode(2, 0, 0, 0, 0);
+        }
         Logger.info("Nodes created: " + nodes.keySet());
         Logger.info("Greenhouse initialized");
     }
 
+    private boolean restoreSnapshot() {
+        Path file = getSnapshotFile();
+        if (file == null || !Files.exists(file)) {
+            return false;
+        }
+        try {
+            long start = System.nanoTime();
+            for (SensorActuatorNode node : SimulatorSnapshot.read(file, NodeRuntime.getShared())) {
+                nodes.put(node.getId(), node);
+            }
+            Logger.info("Restored the simulator from " + file + " in "
+                    + (System.nanoTime() - start) / 1_000_000 + " ms");
+            return true;
+        } catch (IOException e) {
+            Logger.error("Failed to restore the simulator snapshot: " + e.getMessage());
+            nodes.clear();
+            return false;
+        }
+    }
+
+    /**
+     * Save a snapshot of the stopped nodes to the file given by greenhouse.snapshot.
+     */
+    private void saveSnapshot() {
+        Path file = getSnapshotFile();
+        if (file == null) {
+            return;
+        }
+        try {
+            for (SensorActuatorNode node : nodes.values()) {
+                if (!node.awaitIdle(SNAPSHOT_IDLE_TIMEOUT_MILLIS)) {
+                    Logger.error("Node " + node.getId() + " is still busy, snapshot not saved");
+                    return;
+                }
+            }
+            long size = SimulatorSnapshot.write(file, nodes.values());
+            Logger.info("Saved a simulator snapshot of " + size + " bytes to " + file);
+        } catch (IOException e) {
+            Logger.error("Failed to save the simulator snapshot: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static Path getSnapshotFile() {
+        String file = System.getProperty("greenhouse.snapshot", "");
+        return file.isEmpty() ? null : Path.of(file);
+    }
+
     private void createNode(int temperature, int humidity, int windows, int fans, int heaters) {
         SensorActuatorNode node = DeviceFactory.createNode(
                 temperature, humidity, windows, fans, heaters);
@@ -70,6 +166,7 @@ public class GreenhouseSimulator {
      */
     public void start() {
         Logger.info("GreenhouseSimulator.start() called");
+        MetricsReporter.start();
         initiateCommunication();
         for (SensorActuatorNode node : nodes.values()) {
             node.start();
@@ -78,10 +175,47 @@ public class GreenhouseSimulator {
         for (PeriodicSwitch periodicSwitch : periodicSwitches) {
             periodicSwitch.start();
         }
+        startControlLoops();
 
         Logger.info("Simulator started");
     }
 
+    /**
+     * Hold the climate of every node at a setpoint when the system property greenhouse.control
+     * is "pid" or "bangbang". The setpoints are greenhouse.control.temperature (default 27) and
+     * greenhouse.control.humidity (default 80), and the loops run every
+     * greenhouse.control.period milliseconds (default 1000).
+     */
+    private void startControlLoops() {
+        String label = System.getProperty("greenhouse.control", "");
+        if (label.isEmpty()) {
+            return;
+        }
+        ControlMode mode = ControlMode.fromLabel(label);
+        if (mode == null) {
+            Logger.error("Unknown control mode: " + label);
+            return;
+        }
+        try {
+            double temperature = Parser.parseDoubleOrError(
+                    System.getProperty("greenhouse.control.temperature", "27"),
+                    "Invalid temperature setpoint");
+            double humidity = Parser.parseDoubleOrError(
+                    System.getProperty("greenhouse.control.humidity", "80"),
+                    "Invalid humidity setpoint");
+            long period = Parser.parseLongOrError(
+                    System.getProperty("greenhouse.control.period", "1000"),
+                    "Invalid control period");
+            controlLoops = new ControlLoopRunner(NodeRuntime.getShared(), period);
+            for (SensorActuatorNode node : nodes.values()) {
+                controlLoops.addClimateLoops(node, mode, temperature, humidity);
+            }
+            controlLoops.start();
+        } catch (IllegalArgumentException e) {
+            Logger.error("Failed to start the control loops: " + e.getMessage());
+        }
+    }
+
     private void initiateCommunication() {
         Logger.info("Initiating communication");
         if (fake) {
@@ -99,6 +233,14 @@ public class GreenhouseSimulator {
     public void initiateRealCommunication() {
         Logger.info("Initiating real communication");
         if (server != null) {
+            startMetricsServer();
+            openHistoryStore();
+            openCommandJournal();
+            startTrafficCapture();
+            startRuleEngine();
+            startStreamAnalytics();
+            startFleetQuantiles();
+            startAlerts();
             new Thread(() -> {
                 try {
                     server.startServer();
@@ -132,6 +274,281 @@ public class GreenhouseSimulator {
         }
     }
 
+    /**
+     * Start the HTTP endpoint serving metrics and health, on the port given by the system
+     * property greenhouse.http.port (default 10026). A negative port disables the endpoint. The
+     * port is bound to the address given by greenhouse.http.bind, by default the loopback address.
+     */
+    private void startMetricsServer() {
+        int port = Integer.getInteger("greenhouse.http.port", 10026);
+        if (port < 0) {
+            return;
+        }
+        try {
+            metricsServer = new MetricsHttpServer(bindAddress("greenhouse.http.bind"), port);
+            metricsServer.start();
+        } catch (IOException e) {
+            Logger.error("Failed to start metrics endpoint: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Get the address to bind a port to from a system property: a host name or address, where
+     * "0.0.0.0" binds to all interfaces. Without the property the port is bound to the loopback
+     * address, reachable from this machine only.
+     *
+     * @param property the name of the system property
+     * @return the address to bind to
+     * @throws IOException if the host name can't be resolved
+     */
+    private static InetAddress bindAddress(String property) throws IOException {
+        String host = System.getProperty(property);
+        return host != null ? InetAddress.getByName(host) : InetAddress.getLoopbackAddress();
+    }
+
+    /**
+     * Open the sensor history store in the directory given by the system property
+     * greenhouse.history.dir (default "history") and store all sensor data received by the
+     * server in it. An empty directory name disables the history. The number of records per
+     * segment is given by greenhouse.history.segmentCapacity. Compressed segments are merged into
+     * blocks of at least greenhouse.history.block milliseconds (default one hour), and compressed
+     * history older than greenhouse.history.retention milliseconds is deleted (default 0, which
+     * keeps everything).
+     * The minute, hour and day rollups are kept in the same directory, and are rebuilt from the
+     * raw history when the simulator was not stopped properly.
+     */
+    private void openHistoryStore() {
+        String directory = System.getProperty("greenhouse.history.dir", "history");
+        if (directory.isEmpty()) {
+            return;
+        }
+        try {
+            int segmentCapacity = Integer.getInteger("greenhouse.history.segmentCapacity",
+                    SensorHistoryStore.DEFAULT_SEGMENT_CAPACITY);
+            historyStore = new SensorHistoryStore(Path.of(directory), segmentCapacity);
+            historyStore.setBlockMillis(Long.getLong("greenhouse.history.block",
+                    SensorHistoryStore.DEFAULT_BLOCK_MILLIS));
+            rollups = new RollupAggregator(Path.of(directory));
+            if (!rollups.wasClosedCleanly()) {
+                rollups.rebuild(historyStore);
+            }
+            // Expiring raw history during the rebuild would leave holes in the rebuilt rollups
+            historyStore.setRetentionMillis(Long.getLong("greenhouse.history.retention", 0));
+            server.addSensorDataListener(new SensorHistoryIngest(historyStore, rollups));
+            server.setHistoryQueryService(new HistoryQueryService(historyStore, rollups));
+        } catch (IOException e) {
+            Logger.error("Failed to open sensor history: " + e.getMessage());
+            return;
+        }
+        startExportServer();
+    }
+
+    /**
+     * Start the bulk history export on the port given by the system property
+     * greenhouse.export.port (default 10027). A negative port disables the export. The port is
+     * bound to the address given by greenhouse.export.bind, by default the loopback address, so
+     * the history is not exposed to the network unless asked for. The port uses
+     * TLS with the server keystore, unless greenhouse.export.tls is false; plain TCP is faster,
+     * since segment files are then sent without being copied into the JVM.
+     */
+    private void startExportServer() {
+        int port = Integer.getInteger("greenhouse.export.port", 10027);
+        if (port < 0) {
+            return;
+        }
+        try {
+            boolean tls = Boolean.parseBoolean(System.getProperty("greenhouse.export.tls", "true"));
+            InetAddress bindAddress = bindAddress("greenhouse.export.bind");
+            exportServer = new HistoryExportServer(historyStore, bindAddress, port, tls
+                    ? new SslConnection(0, keyStorePath, keyStorePassword).createServerContext()
+                    : null);
+            exportServer.start();
+        } catch (IOException | GeneralSecurityException e) {
+            Logger.error("Failed to start history export: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Open the actuator command journal in the directory given by the system property
+     * greenhouse.journal.dir (default "journal"), restore the actuators to their last journaled
+     * state and journal all commands and state changes from now on. An empty directory name
+     * disables the journal.
+     */
+    private void openCommandJournal() {
+        String directory = System.getProperty("greenhouse.journal.dir", "journal");
+        if (directory.isEmpty()) {
+            return;
+        }
+        try {
+            commandJournal = new CommandJournal(Path.of(directory));
+        } catch (IOException e) {
+            Logger.error("Failed to open the command journal: " + e.getMessage());
+            return;
+        }
+        commandJournal.forEachRecoveredState((nodeId, actuatorId, on) -> {
+            SensorActuatorNode node = nodes.get(nodeId);
+            if (node != null) {
+                node.setActuator(actuatorId, on);
+            }
+        });
+        for (SensorActuatorNode node : nodes.values()) {
+            node.addActuatorListener(commandJournal);
+        }
+        server.addActuatorCommandListener(commandJournal);
+    }
+
+    /**
+     * Capture the traffic of the server to the file given by the system property
+     * greenhouse.capture, if set, for replaying it later with the traffic replay runner.
+     */
+    private void startTrafficCapture() {
+        String file = System.getProperty("greenhouse.capture", "");
+        if (file.isEmpty()) {
+            return;
+        }
+        try {
+            trafficCapture = new TrafficCapture(Path.of(file));
+            server.setTrafficCapture(trafficCapture);
+        } catch (IOException e) {
+            Logger.error("Failed to start the traffic capture: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Evaluate the control rules in the file given by the system property greenhouse.rules
+     * (default "rules.conf") against the incoming sensor data, if the file exists. An empty
+     * name disables the rules.
+     */
+    private void startRuleEngine() {
+        String name = System.getProperty("greenhouse.rules", "rules.conf");
+        Path file = Path.of(name);
+        if (name.isEmpty() || !Files.exists(file)) {
+            return;
+        }
+        try {
+            List<Rule> rules = RuleParser.load(file);
+            server.addSensorDataListener(new RuleEngine(rules, nodes,
+                    server::submitActuatorCommand, ZoneId.systemDefault()));
+        } catch (IOException | IllegalArgumentException e) {
+            Logger.error("Failed to load the rules from " + file + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Evaluate the stream operators in the file given by the system property greenhouse.analytics
+     * (default "analytics.conf") over the incoming sensor data, if the file exists. An empty
+     * name disables the file. Unless greenhouse.anomaly is false, the default anomaly detectors
+     * are added when the file has none, and the anomalies are sent to the subscribed panels.
+     * Windows are sized for one reading per greenhouse.analytics.readingPeriod milliseconds
+     * (default 5000).
+     */
+    private void startStreamAnalytics() {
+        List<StreamOperator> operators = new ArrayList<>();
+        String name = System.getProperty("greenhouse.analytics", "analytics.conf");
+        Path file = Path.of(name);
+        if (!name.isEmpty() && Files.exists(file)) {
+            try {
+                long readingPeriod = Parser.parseLongOrError(System.getProperty(
+                        "greenhouse.analytics.readingPeriod",
+                        String.valueOf(StreamOperatorParser.DEFAULT_READING_PERIOD)),
+                        "Invalid greenhouse.analytics.readingPeriod");
+                operators.addAll(StreamOperatorParser.load(file, readingPeriod));
+            } catch (IOException | IllegalArgumentException e) {
+                Logger.error("Failed to load the stream operators from " + file + ": "
+                        + e.getMessage());
+                return;
+            }
+        }
+        boolean anomalies = Boolean.parseBoolean(System.getProperty("greenhouse.anomaly", "true"));
+        if (anomalies && operators.stream().noneMatch(AnomalyDetector.class::isInstance)) {
+            operators.addAll(AnomalyDetector.createDefaults());
+        }
+        if (operators.isEmpty()) {
+            return;
+        }
+        try {
+            streamAnalytics = new StreamAnalytics(operators);
+        } catch (IllegalArgumentException e) {
+            Logger.error("Invalid stream operators: " + e.getMessage());
+            return;
+        }
+        if (anomalies) {
+            streamAnalytics.addResultListener(new AnomalyPublisher(server));
+        }
+        server.addSensorDataListener(streamAnalytics);
+    }
+
+    /**
+     * Keep quantile sketches of the incoming readings per sensor type and node group, so control
+     * panels can query fleet percentiles, unless the system property greenhouse.quantiles is
+     * false. greenhouse.quantiles.groupSize sets the nodes per group (default 100) and
+     * greenhouse.quantiles.window the milliseconds of readings covered (default 60000).
+     */
+    private void startFleetQuantiles() {
+        if (!Boolean.parseBoolean(System.getProperty("greenhouse.quantiles", "true"))) {
+            return;
+        }
+        try {
+            int groupSize = Parser.parseIntegerOrError(System.getProperty(
+                    "greenhouse.quantiles.groupSize",
+                    String.valueOf(FleetQuantiles.DEFAULT_GROUP_SIZE)), "Invalid group size");
+            long window = Parser.parseLongOrError(System.getProperty(
+                    "greenhouse.quantiles.window",
+                    String.valueOf(FleetQuantiles.DEFAULT_WINDOW_MILLIS)), "Invalid window");
+            FleetQuantiles quantiles = new FleetQuantiles(groupSize, window,
+                    QuantileSketch.DEFAULT_RELATIVE_ACCURACY, System::currentTimeMillis);
+            server.setFleetQuantiles(quantiles);
+            server.addSensorDataListener(quantiles);
+        } catch (IllegalArgumentException e) {
+            Logger.error("Failed to start the fleet quantiles: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Track the alert rules in the file given by the system property greenhouse.alerts (default
+     * "alerts.conf"), or the default rules when the file does not exist, and send digests of the
+     * alert changes to the control panels every greenhouse.alerts.digest milliseconds (default
+     * 5000), with at most greenhouse.alerts.maxPerDigest changes each (default 250). An empty
+     * name disables the alerts.
+     */
+    private void startAlerts() {
+        String name = System.getProperty("greenhouse.alerts", "alerts.conf");
+        if (name.isEmpty()) {
+            return;
+        }
+        Path file = Path.of(name);
+        try {
+            List<AlertRule> rules = Files.exists(file) ? AlertRuleParser.load(file)
+                    : AlertRule.createDefaults();
+            long digestMillis = Parser.parseLongOrError(System.getProperty(
+                    "greenhouse.alerts.digest",
+                    String.valueOf(AlertManager.DEFAULT_DIGEST_MILLIS)), "Invalid digest period");
+            int maxPerDigest = Parser.parseIntegerOrError(System.getProperty(
+                    "greenhouse.alerts.maxPerDigest",
+                    String.valueOf(AlertManager.DEFAULT_MAX_ALERTS_PER_DIGEST)),
+                    "Invalid digest size");
+            AlertManager alerts = new AlertManager(rules, nodes,
+                    digest -> server.broadcastToControlPanels(MessageSerializer.toString(digest)),
+                    new ThreadTaskScheduler("Alert-Digest"), digestMillis, maxPerDigest);
+            server.addSensorDataListener(alerts);
+            server.addActuatorCommandListener(alerts);
+            server.addActuatorStateListener(alerts);
+            server.setAlertManager(alerts);
+            alerts.start();
+        } catch (IOException | IllegalArgumentException e) {
+            Logger.error("Failed to start the alerts from " + file + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Get the stream analytics evaluated over the incoming sensor data.
+     *
+     * @return the analytics, or null when no stream operators are configured
+     */
+    public StreamAnalytics getStreamAnalytics() {
+        return streamAnalytics;
+    }
+
     private void initiateFakePeriodicSwitches() {
         periodicSwitches.add(new PeriodicSwitch("Window DJ", nodes.get(1), 2, 20000));
         periodicSwitches.add(new PeriodicSwitch("Heater DJ", nodes.get(2), 7, 8000));
@@ -141,10 +558,14 @@ public class GreenhouseSimulator {
      * Stop the simulation of the greenhouse - all the nodes in it.
      */
     public void stop() {
+        if (controlLoops != null) {
+            controlLoops.stop();
+        }
         stopCommunication();
         for (SensorActuatorNode node : nodes.values()) {
             node.stop();
         }
+        saveSnapshot();
     }
 
     private void stopCommunication() {
@@ -158,6 +579,32 @@ public class GreenhouseSimulator {
             }
             clients.clear();
                 server.stopServer();
+            if (metricsServer != null) {
+                metricsServer.stop();
+            }
+            if (exportServer != null) {
+                exportServer.stop();
+            }
+            closeHistory();
+            if (commandJournal != null) {
+                commandJournal.close();
+            }
+            if (trafficCapture != null) {
+                trafficCapture.close();
+            }
+        }
+    }
+
+    private void closeHistory() {
+        if (rollups != null) {
+            try {
+                rollups.close();
+            } catch (IOException e) {
+                Logger.error("Failed to close sensor history rollups: " + e.getMessage());
+            }
+        }
+        if (historyStore != null) {
+            historyStore.close();
         }
     }
 
@@ -0,0 +1,101 @@
+package no.ntnu.greenhouse;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import no.ntnu.tools.Logger;
+
+/**
+ * The mailbox of one sensor/actuator node. Any thread may post messages to it, but the messages
+ * are always processed one at a time, in posting order, by a single drain task. This makes the
+ * node a single-writer actor: its state is only ever touched by the drain task.
+ * The queue is a lock-free multi-producer single-consumer linked queue. Producers only do one
+ * atomic swap, the consumer never uses atomic operations while draining.
+ */
+class NodeMailbox {
+  // Maximum number of messages processed per drain, so that one busy node can't starve the
+  // other nodes sharing the same thread
+  private static final int BATCH_SIZE = 64;
+
+  private final Executor executor;
+  private final AtomicReference<Entry> tail;
+  private final AtomicBoolean scheduled = new AtomicBoolean(false);
+  private final Runnable drainTask = this::drain;
+  private Entry head;
+
+  /**
+   * Create a mailbox.
+   *
+   * @param executor The executor on which the mailbox is drained
+   */
+  NodeMailbox(Executor executor) {
+    this.executor = executor;
+    this.head = new Entry(null);
+    this.tail = new AtomicReference<>(head);
+  }
+
+  /**
+   * Post a message to the mailbox. Can be called from any thread.
+   *
+   * @param message The message to process on the node's thread
+   */
+  void post(Runnable message) {
+    Entry entry = new Entry(message);
+    Entry previous = tail.getAndSet(entry);
+    previous.next = entry;
+    scheduleDrain();
+  }
+
+  private void scheduleDrain() {
+    if (scheduled.compareAndSet(false, true)) {
+      executor.execute(drainTask);
+    }
+  }
+
+  private void drain() {
+    int processed = 0;
+    Runnable message;
+    while (processed < BATCH_SIZE && (message = poll()) != null) {
+      try {
+        message.run();
+      } catch (RuntimeException e) {
+        Logger.error("Node message failed: " + e.getMessage());
+      }
+      processed++;
+    }
+    scheduled.set(false);
+    if (!isEmpty()) {
+      scheduleDrain();
+    }
+  }
+
+  private Runnable poll() {
+    Entry next = head.next;
+    if (next == null) {
+      return null;
+    }
+    head = next;
+    Runnable message = next.message;
+    next.message = null;
+    return message;
+  }
+
+  /**
+   * Check whether the mailbox is empty. A message which is being linked in by a producer counts
+   * as present, so that the drain is always rescheduled for it.
+   *
+   * @return True when no messages are posted, false otherwise
+   */
+  private boolean isEmpty() {
+    return tail.get() == head;
+  }
+
+  private static final class Entry {
+    private volatile Entry next;
+    private Runnable message;
+
+    private Entry(Runnable message) {
+      this.message = message;
+    }
+  }
+}
@@ -0,0 +1,39 @@
+package no.ntnu.greenhouse;
+
+import java.util.random.RandomGenerator;
+
+/**
+ * The random number generator of one node (SplitMix64). Its whole state is a single long, so it
+ * can be stored in a {@link SimulatorSnapshot} and a restored node continues with exactly the
+ * same sequence of sensor noise.
+ */
+final class NodeRandom implements RandomGenerator {
+  private static final long GOLDEN_GAMMA = 0x9E3779B97F4A7C15L;
+
+  private long state;
+
+  /**
+   * Create a generator.
+   *
+   * @param state the initial state, any value
+   */
+  NodeRandom(long state) {
+    this.state = state;
+  }
+
+  @Override
+  public long nextLong() {
+    long z = state += GOLDEN_GAMMA;
+    z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+    z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+    return z ^ (z >>> 31);
+  }
+
+  long getState() {
+    return state;
+  }
+
+  void setState(long state) {
+    this.state = state;
+  }
+}
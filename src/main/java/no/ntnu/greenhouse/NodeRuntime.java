@@ -0,0 +1,143 @@
+package no.ntnu.greenhouse;
+
+import java.util.concurrent.Executor;
+import no.ntnu.tools.Cancellable;
+import no.ntnu.tools.StripedExecutor;
+import no.ntnu.tools.TaskScheduler;
+import no.ntnu.tools.ThreadTaskScheduler;
+import no.ntnu.tools.metrics.Metrics;
+
+/**
+ * The runtime shared by sensor/actuator nodes. It owns the few threads which run all the nodes:
+ * a scheduler which emits the periodic ticks, and a striped executor on which the node
+ * mailboxes are drained. No node owns a thread, so a large number of nodes can share a handful
+ * of cores. A runtime can also run entirely on a given scheduler, for example a single-threaded
+ * simulation with a virtual clock.
+ */
+public class NodeRuntime {
+  private static NodeRuntime sharedRuntime;
+
+  private final TaskScheduler scheduler;
+  private final StripedExecutor executor;
+
+  /**
+   * Create a node runtime with one mailbox thread per available processor.
+   *
+   * @param name The name prefix of the runtime threads
+   */
+  public NodeRuntime(String name) {
+    this.executor = new StripedExecutor(name);
+    this.scheduler = new ThreadTaskScheduler(name + "-Scheduler");
+    Metrics.gauge("node_runtime_queue_depth", "runtime", name, this::getQueueDepth);
+  }
+
+  /**
+   * Create a node runtime which runs the ticks and drains the mailboxes on the given scheduler.
+   * The runtime does not own the scheduler, shutting the runtime down leaves it running.
+   *
+   * @param scheduler The scheduler to run all node work on
+   */
+  public NodeRuntime(TaskScheduler scheduler) {
+    this.executor = null;
+    this.scheduler = scheduler;
+  }
+
+  /**
+   * Get the runtime used by nodes which have not been assigned a runtime explicitly.
+   *
+   * @return The shared default runtime
+   */
+  public static synchronized NodeRuntime getShared() {
+    if (sharedRuntime == null) {
+      sharedRuntime = new NodeRuntime("Node-Runtime");
+    }
+    return sharedRuntime;
+  }
+
+  /**
+   * Create a mailbox for a node, drained on the node's own stripe.
+   *
+   * @param nodeId ID of the node
+   * @return A new mailbox
+   */
+  NodeMailbox createMailbox(int nodeId) {
+    return new NodeMailbox(mailboxExecutor(nodeId));
+  }
+
+  /**
+   * Get the executor on which the mailbox of a node is drained.
+   *
+   * @param nodeId ID of the node
+   * @return An executor running tasks on the node's stripe
+   */
+  private Executor mailboxExecutor(int nodeId) {
+    return executor != null ? task -> executor.execute(nodeId, task) : scheduler;
+  }
+
+  /**
+   * Schedule a periodic task on the shared scheduler.
+   *
+   * @param task         The task to run. It should only post a message to a mailbox.
+   * @param initialDelay The delay before the first run, in milliseconds
+   * @param period       The period between runs, in milliseconds
+   * @return A handle which can be used to cancel the task
+   */
+  Cancellable schedulePeriodic(Runnable task, long initialDelay, long period) {
+    return scheduler.scheduleAtFixedRate(task, initialDelay, period);
+  }
+
+  /**
+   * Schedule a periodic task which runs on the mailbox threads, for work spread over many nodes
+   * such as control loops. The scheduler only hands the task over, so a long task does not delay
+   * the ticks. Runs of tasks with the same key never overlap.
+   *
+   * @param key          The key which decides the mailbox thread
+   * @param task         The task to run
+   * @param initialDelay The delay before the first run, in milliseconds
+   * @param period       The period between runs, in milliseconds
+   * @return A handle which can be used to cancel the task
+   */
+  public Cancellable schedulePeriodicWork(int key, Runnable task, long initialDelay,
+                                          long period) {
+    Executor target = mailboxExecutor(key);
+    return scheduler.scheduleAtFixedRate(() -> target.execute(task), initialDelay, period);
+  }
+
+  /**
+   * Get the current time of the scheduler which emits the ticks.
+   *
+   * @return The time in milliseconds, virtual in a simulation
+   */
+  public long currentTimeMillis() {
+    return scheduler.currentTimeMillis();
+  }
+
+  /**
+   * Get a random delay, for example to spread the ticks of the nodes.
+   *
+   * @param bound The upper bound (exclusive), in milliseconds
+   * @return A random delay in the range [0; bound)
+   */
+  long randomDelay(long bound) {
+    return scheduler.nextRandom(bound);
+  }
+
+  /**
+   * Get the number of mailbox drains waiting for a thread.
+   *
+   * @return The number of queued drain tasks
+   */
+  public int getQueueDepth() {
+    return executor != null ? executor.getQueueDepth() : 0;
+  }
+
+  /**
+   * Stop the runtime threads. Messages which are already queued are still processed.
+   */
+  public void shutdown() {
+    if (executor != null) {
+      scheduler.shutdown();
+      executor.shutdown();
+    }
+  }
+}
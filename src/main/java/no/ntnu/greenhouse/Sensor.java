@@ -1,10 +1,14 @@
 package no.ntnu.greenhouse;
 
+import java.util.random.RandomGenerator;
+
 /**
- * A sensor which can sense the environment in a specific way.
+ * A sensor which can sense the environment in a specific way. Its reading is immutable and is
+ * replaced as a whole when the value changes, so any thread can read the current reading while
+ * the owner of the sensor changes it.
  */
 public class Sensor {
-    private final SensorReading reading;
+    private volatile SensorReading reading;
     private final double min;
     private final double max;
 
@@ -37,21 +41,45 @@ public class Sensor {
         return reading;
     }
 
+    double getMin() {
+        return min;
+    }
+
+    double getMax() {
+        return max;
+    }
+
     /**
      * Create a clone of this sensor.
      *
      * @return A clone of this sensor, where all the fields are the same
      */
     public Sensor createClone() {
-        return new Sensor(this.reading.getType(), this.min, this.max,
-                this.reading.getValue(), this.reading.getUnit());
+        SensorReading current = this.reading;
+        Sensor clone = new Sensor(current.getType(), this.min, this.max, current.getValue(),
+                current.getUnit());
+        clone.reading = current;
+        return clone;
+    }
+
+    /**
+     * Set the capture time of the current value, when the sensor is restored.
+     *
+     * @param timestamp The capture time, in milliseconds since the epoch
+     */
+    void restoreTimestamp(long timestamp) {
+        SensorReading current = this.reading;
+        reading = new SensorReading(current.getType(), current.getValue(), current.getUnit(),
+                timestamp);
     }
 
     /**
      * Add a random noise to the sensors to simulate realistic values.
+     *
+     * @param random The source of the noise
      */
-    public void addRandomNoise() {
-        double newValue = this.reading.getValue() + generateRealisticNoise();
+    public void addRandomNoise(RandomGenerator random) {
+        double newValue = this.reading.getValue() + generateRealisticNoise(random);
         ensureValueBoundsAndPrecision(newValue);
     }
 
@@ -62,17 +90,18 @@ public class Sensor {
         } else if (newValue > max) {
             newValue = max;
         }
-        reading.setValue(newValue);
+        SensorReading current = this.reading;
+        reading = new SensorReading(current.getType(), newValue, current.getUnit());
     }
 
     private double roundToTwoDecimals(double value) {
         return Math.round(value * 100.0) / 100.0;
     }
 
-    private double generateRealisticNoise() {
+    private double generateRealisticNoise(RandomGenerator random) {
         final double wholeRange = max - min;
         final double onePercentOfRange = wholeRange / 100.0;
-        final double zeroToTwoPercent = Math.random() * onePercentOfRange * 2;
+        final double zeroToTwoPercent = random.nextDouble() * onePercentOfRange * 2;
         return zeroToTwoPercent - onePercentOfRange; // In the range [-1%..+1%]
     }
 
@@ -1,45 +1,85 @@
 package no.ntnu.greenhouse;
 
-import java.util.LinkedList;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Random;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import no.ntnu.listeners.common.ActuatorListener;
 import no.ntnu.listeners.common.CommunicationChannelListener;
 import no.ntnu.listeners.greenhouse.NodeStateListener;
 import no.ntnu.listeners.greenhouse.SensorListener;
+import no.ntnu.tools.Cancellable;
 import no.ntnu.tools.Logger;
+import no.ntnu.tools.events.ActuatorImpactEvent;
+import no.ntnu.tools.events.SensorTickEvent;
+import no.ntnu.tools.metrics.Histogram;
+import no.ntnu.tools.metrics.Metrics;
 
 /**
  * Represents one node with sensors and actuators.
+ * The node is a single-writer actor: commands, periodic ticks and listener subscriptions are
+ * posted as messages to the node's mailbox and processed one at a time on the node runtime.
+ * Sensors and actuators are added while configuring the node, before it is started.
+ * Sensor listeners and other threads get an immutable list of the sensors. A sensor's reading is
+ * immutable and replaced as a whole on each change, so the sensors can be read from any thread
+ * without copying them on every tick.
+ * Each node has its own random generator for the sensor noise, so its state can be saved in a
+ * {@link SimulatorSnapshot} together with the phase of the periodic tick.
  */
 public class SensorActuatorNode implements ActuatorListener, CommunicationChannelListener {
   // How often to generate new sensor values, in seconds.
   private static final long SENSING_DELAY = 5000;
+  private static final Histogram TICK_DURATION = Metrics.histogram("node_tick_nanos");
   private final int id;
 
-  private final List<Sensor> sensors = new LinkedList<>();
+  private final List<Sensor> sensors = new ArrayList<>();
   private final ActuatorCollection actuators = new ActuatorCollection();
 
-  private final List<SensorListener> sensorListeners = new LinkedList<>();
-  private final List<ActuatorListener> actuatorListeners = new LinkedList<>();
-  private final List<NodeStateListener> stateListeners = new LinkedList<>();
-
-  Timer sensorReadingTimer;
-
-  private boolean running;
-  private final Random random = new Random();
+  private final List<SensorListener> sensorListeners = new ArrayList<>();
+  private final List<ActuatorListener> actuatorListeners = new ArrayList<>();
+  private final List<NodeStateListener> stateListeners = new ArrayList<>();
+
+  private final NodeRuntime runtime;
+  private final NodeMailbox mailbox;
+  private final NodeRandom random;
+  private Cancellable sensorReadingTask;
+  // Scheduler time of the first tick and the tick period, while the ticks are scheduled
+  private long tickOrigin;
+  private long tickPeriod;
+  // Delay of the first tick when the node is started again, negative for a random delay
+  private long resumeTickDelay = -1;
+  // Changes whenever the ticks are scheduled or cancelled, so a tick posted just before the
+  // ticks were cancelled is ignored
+  private long tickGeneration;
+  private volatile long sensingPeriod = SENSING_DELAY;
+  private volatile List<Sensor> sensorList = List.of();
+
+  private volatile boolean running;
 
   /**
-   * Create a sensor/actuator node. Note: the node itself does not check whether the ID is unique.
+   * Create a sensor/actuator node running on the shared node runtime.
+   * Note: the node itself does not check whether the ID is unique.
    * This is done at the greenhouse-level.
    *
    * @param id A unique ID of the node
    */
   public SensorActuatorNode(int id) {
+    this(id, NodeRuntime.getShared());
+  }
+
+  /**
+   * Create a sensor/actuator node. Note: the node itself does not check whether the ID is unique.
+   * This is done at the greenhouse-level.
+   *
+   * @param id      A unique ID of the node
+   * @param runtime The runtime on which the node's messages are processed
+   */
+  public SensorActuatorNode(int id, NodeRuntime runtime) {
     this.id = id;
     this.running = false;
+    this.runtime = runtime;
+    this.mailbox = runtime.createMailbox(id);
+    this.random = new NodeRandom(runtime.randomDelay(Long.MAX_VALUE));
   }
 
   /**
@@ -74,6 +114,7 @@ public class SensorActuatorNode implements ActuatorListener, CommunicationChanne
     for (int i = 0; i < n; ++i) {
       sensors.add(template.createClone());
     }
+    updateSensorList();
   }
 
   /**
@@ -84,7 +125,18 @@ public class SensorActuatorNode implements ActuatorListener, CommunicationChanne
   public void addActuator(Actuator actuator) {
     actuator.setListener(this);
     actuators.add(actuator);
-    Logger.info("Created " + actuator.getType() + "[" + actuator.getId() + "] on node " + id);
+    Logger.info(() -> "Created " + actuator.getType() + "[" + actuator.getId() + "] on node "
+        + id);
+  }
+
+  /**
+   * Add restored sensors to the node, without cloning them.
+   *
+   * @param restored The sensors, owned by the node from now on
+   */
+  void restoreSensors(List<Sensor> restored) {
+    sensors.addAll(restored);
+    updateSensorList();
   }
 
   /**
@@ -93,9 +145,11 @@ public class SensorActuatorNode implements ActuatorListener, CommunicationChanne
    * @param listener The listener which will get notified every time sensor values change.
    */
   public void addSensorListener(SensorListener listener) {
-    if (!sensorListeners.contains(listener)) {
-      sensorListeners.add(listener);
-    }
+    mailbox.post(() -> {
+      if (!sensorListeners.contains(listener)) {
+        sensorListeners.add(listener);
+      }
+    });
   }
 
   /**
@@ -104,9 +158,11 @@ public class SensorActuatorNode implements ActuatorListener, CommunicationChanne
    * @param listener The listener which will get notified every time actuator state changes.
    */
   public void addActuatorListener(ActuatorListener listener) {
-    if (!actuatorListeners.contains(listener)) {
-      actuatorListeners.add(listener);
-    }
+    mailbox.post(() -> {
+      if (!actuatorListeners.contains(listener)) {
+        actuatorListeners.add(listener);
+      }
+    });
   }
 
   /**
@@ -115,37 +171,74 @@ public class SensorActuatorNode implements ActuatorListener, CommunicationChanne
    * @param listener The listener which will get notified when the state of this node changes
    */
   public void addStateListener(NodeStateListener listener) {
-    if (!stateListeners.contains(listener)) {
-      stateListeners.add(listener);
-    }
+    mailbox.post(() -> {
+      if (!stateListeners.contains(listener)) {
+        stateListeners.add(listener);
+      }
+    });
   }
 
 
   /**
-   * Start simulating the sensor node's operation.
+   * Start simulating the sensor node's operation. The node starts on its mailbox, after the
+   * messages posted before, so {@link #isRunning()} can still return false right after this
+   * returns; use {@link #awaitIdle(long)} to wait until the node has started.
    */
   public void start() {
-    if (!running) {
-      startPeriodicSensorReading();
-      running = true;
-      notifyStateChanges(true);
-    }
+    mailbox.post(() -> {
+      if (!running) {
+        startPeriodicSensorReading();
+        running = true;
+        notifyStateChanges(true);
+      }
+    });
   }
 
   /**
-   * Stop simulating the sensor node's operation.
+   * Stop simulating the sensor node's operation. Like {@link #start()}, this only posts the
+   * request to the mailbox; use {@link #awaitIdle(long)} to wait until the node has stopped.
    */
   public void stop() {
-    if (running) {
-      Logger.info("-- Stopping simulation of node " + id);
-      stopPeriodicSensorReading();
-      running = false;
-      notifyStateChanges(false);
+    mailbox.post(() -> {
+      if (running) {
+        Logger.info("-- Stopping simulation of node " + id);
+        stopPeriodicSensorReading();
+        running = false;
+        notifyStateChanges(false);
+      }
+    });
+  }
+
+  /**
+   * Set how often new sensor values are generated. Takes effect the next time the node is
+   * started.
+   *
+   * @param periodMillis The time between two sensor readings, in milliseconds
+   */
+  public void setSensingPeriod(long periodMillis) {
+    if (periodMillis <= 0) {
+      throw new IllegalArgumentException("Sensing period must be positive");
     }
+    this.sensingPeriod = periodMillis;
+  }
+
+  /**
+   * Wait until the messages posted to the node so far have been processed. Must not be called
+   * from the thread of the node runtime.
+   *
+   * @param timeoutMillis The maximum time to wait, in milliseconds
+   * @return True if the messages have been processed, false if the wait timed out
+   * @throws InterruptedException If the waiting thread is interrupted
+   */
+  public boolean awaitIdle(long timeoutMillis) throws InterruptedException {
+    CountDownLatch processed = new CountDownLatch(1);
+    mailbox.post(processed::countDown);
+    return processed.await(timeoutMillis, TimeUnit.MILLISECONDS);
   }
 
   /**
-   * Check whether the node is currently running.
+   * Check whether the node is currently running. Reflects the start and stop requests which the
+   * mailbox has processed so far.
    *
    * @return True if it is in a running-state, false otherwise
    */
@@ -154,46 +247,104 @@ public class SensorActuatorNode implements ActuatorListener, CommunicationChanne
   }
 
   private void startPeriodicSensorReading() {
-    sensorReadingTimer = new Timer();
-    TimerTask newSensorValueTask = new TimerTask() {
-      @Override
-      public void run() {
-        generateNewSensorValues();
-      }
-    };
-    long randomStartDelay = random.nextLong(SENSING_DELAY);
-    sensorReadingTimer.scheduleAtFixedRate(newSensorValueTask, randomStartDelay, SENSING_DELAY);
+    long period = sensingPeriod;
+    long startDelay = resumeTickDelay >= 0 ? resumeTickDelay % period
+        : runtime.randomDelay(period);
+    resumeTickDelay = -1;
+    tickOrigin = runtime.currentTimeMillis() + startDelay;
+    tickPeriod = period;
+    long generation = ++tickGeneration;
+    sensorReadingTask = runtime.schedulePeriodic(
+        () -> mailbox.post(() -> tick(generation)), startDelay, period);
   }
 
   private void stopPeriodicSensorReading() {
-    if (sensorReadingTimer != null) {
-      sensorReadingTimer.cancel();
+    if (sensorReadingTask != null) {
+      resumeTickDelay = getNextTickDelay();
+      sensorReadingTask.cancel();
+      sensorReadingTask = null;
+      tickGeneration++;
     }
   }
 
+  private void tick(long generation) {
+    if (generation == tickGeneration) {
+      generateNewSensorValues();
+    }
+  }
+
+  NodeRuntime getRuntime() {
+    return runtime;
+  }
+
+  long getSensingPeriod() {
+    return sensingPeriod;
+  }
+
+  /**
+   * Get the time until the next periodic tick. A stopped node keeps the delay it had when it was
+   * stopped, and resumes with it when started again. Only valid while the node is quiescent.
+   *
+   * @return The delay in milliseconds, or -1 if the node has never been started
+   */
+  long getNextTickDelay() {
+    if (sensorReadingTask == null) {
+      return resumeTickDelay;
+    }
+    return Math.floorMod(tickOrigin - runtime.currentTimeMillis(), tickPeriod);
+  }
+
+  /**
+   * Set the delay of the first tick when the node is started, instead of a random one.
+   *
+   * @param delay The delay in milliseconds, or -1 for a random delay
+   */
+  void restoreNextTickDelay(long delay) {
+    this.resumeTickDelay = delay;
+  }
+
+  long getRandomState() {
+    return random.getState();
+  }
+
+  void restoreRandomState(long state) {
+    random.setState(state);
+  }
+
   /**
-   * Generate new sensor values and send a notification to all listeners.
+   * Generate new sensor values and send a notification to all listeners. Runs on the node's
+   * mailbox, where the periodic tick posts it. Package-private only so the tick benchmark
+   * can call it on a node which is not running.
    */
-  public void generateNewSensorValues() {
-    Logger.infoNoNewline("Node #" + id);
+  void generateNewSensorValues() {
+    SensorTickEvent event = new SensorTickEvent();
+    event.begin();
+    long start = System.nanoTime();
     addRandomNoiseToSensors();
     notifySensorChanges();
-    debugPrint();
+    Logger.debug(this::formatDebugInfo);
+    TICK_DURATION.recordSince(start);
+    if (event.shouldCommit()) {
+      event.nodeId = id;
+      event.sensorCount = sensors.size();
+      event.commit();
+    }
   }
 
   private void addRandomNoiseToSensors() {
     for (Sensor sensor : sensors) {
-      sensor.addRandomNoise();
+      sensor.addRandomNoise(random);
     }
   }
 
-  private void debugPrint() {
+  private String formatDebugInfo() {
+    StringBuilder info = new StringBuilder("Node #").append(id);
     for (Sensor sensor : sensors) {
-      Logger.infoNoNewline(" " + sensor.getReading().getFormatted());
+      info.append(" ").append(sensor.getReading().getFormatted());
     }
-    Logger.infoNoNewline(" :");
-    actuators.debugPrint();
-    Logger.info("");
+    info.append(" :");
+    actuators.appendDebugInfo(info);
+    return info.toString();
   }
 
   /**
@@ -207,7 +358,7 @@ public class SensorActuatorNode implements ActuatorListener, CommunicationChanne
     if (actuator == null) {
       throw new IllegalArgumentException("actuator[" + actuatorId + "] not found on node " + id);
     }
-    actuator.toggle();
+    mailbox.post(actuator::toggle);
   }
 
   private Actuator getActuator(int actuatorId) {
@@ -215,15 +366,42 @@ public class SensorActuatorNode implements ActuatorListener, CommunicationChanne
   }
 
   private void notifySensorChanges() {
+    List<Sensor> current = sensorList;
     for (SensorListener listener : sensorListeners) {
-      listener.sensorsUpdated(sensors);
+      listener.sensorsUpdated(current);
     }
   }
 
+  /**
+   * Publish an immutable list of the sensors, after sensors were added. The values need no
+   * copy: the sensors publish each new reading as an immutable object.
+   */
+  private void updateSensorList() {
+    sensorList = List.copyOf(sensors);
+  }
+
+  /**
+   * An actuator attached to this node has changed its state. The impact is applied on the node's
+   * mailbox, whichever thread has changed the actuator.
+   *
+   * @param nodeId   ID of the node on which this actuator is placed
+   * @param actuator The actuator that has changed its state
+   */
   @Override
   public void actuatorUpdated(int nodeId, Actuator actuator) {
-    actuator.applyImpact(this);
-    notifyActuatorChange(actuator);
+    mailbox.post(() -> {
+      ActuatorImpactEvent event = new ActuatorImpactEvent();
+      event.begin();
+      actuator.applyImpact(this);
+      notifyActuatorChange(actuator);
+      if (event.shouldCommit()) {
+        event.nodeId = id;
+        event.actuatorId = actuator.getId();
+        event.actuatorType = actuator.getType();
+        event.on = actuator.isOn();
+        event.commit();
+      }
+    });
   }
 
   private void notifyActuatorChange(Actuator actuator) {
@@ -269,10 +447,10 @@ public class SensorActuatorNode implements ActuatorListener, CommunicationChanne
   /**
    * Get all the sensors available on the device.
    *
-   * @return List of all the sensors
+   * @return An immutable list of all the sensors, with their current readings
    */
   public List<Sensor> getSensors() {
-    return sensors;
+    return sensorList;
   }
 
   /**
@@ -299,7 +477,7 @@ public class SensorActuatorNode implements ActuatorListener, CommunicationChanne
   public void setActuator(int actuatorId, boolean on) {
     Actuator actuator = getActuator(actuatorId);
     if (actuator != null) {
-      actuator.set(on);
+      mailbox.post(() -> actuator.set(on));
     }
   }
 
@@ -309,8 +487,10 @@ public class SensorActuatorNode implements ActuatorListener, CommunicationChanne
    * @param on Whether the actuators should be on (true) or off (false)
    */
   public void setAllActuators(boolean on) {
-    for (Actuator actuator : actuators) {
-      actuator.set(on);
-    }
+    mailbox.post(() -> {
+      for (Actuator actuator : actuators) {
+        actuator.set(on);
+      }
+    });
   }
 }
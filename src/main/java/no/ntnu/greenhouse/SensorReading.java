@@ -3,24 +3,39 @@ package no.ntnu.greenhouse;
 import java.util.Objects;
 
 /**
- * Represents one sensor reading (value).
+ * Represents one sensor reading (value), together with the time when it was captured.
+ * A reading is immutable: a new value is a new reading.
  */
 public class SensorReading {
   private final String type;
-  private double value;
+  private final double value;
   private final String unit;
+  private final long timestamp;
 
   /**
-   * Create a new sensor reading.
+   * Create a new sensor reading, captured now.
    *
    * @param type  The type of sensor being red
    * @param value The current value of the sensor
    * @param unit  The unit, for example: %, lux
    */
   public SensorReading(String type, double value, String unit) {
+    this(type, value, unit, System.currentTimeMillis());
+  }
+
+  /**
+   * Create a new sensor reading.
+   *
+   * @param type      The type of sensor being red
+   * @param value     The current value of the sensor
+   * @param unit      The unit, for example: %, lux
+   * @param timestamp The capture time of the value, in milliseconds since the epoch
+   */
+  public SensorReading(String type, double value, String unit, long timestamp) {
     this.type = type;
     this.value = value;
     this.unit = unit;
+    this.timestamp = timestamp;
   }
 
   public String getType() {
@@ -35,8 +50,13 @@ public class SensorReading {
     return unit;
   }
 
-  public void setValue(double newValue) {
-    this.value = newValue;
+  /**
+   * Get the time when the current value was captured.
+   *
+   * @return The capture time, in milliseconds since the epoch
+   */
+  public long getTimestamp() {
+    return timestamp;
   }
 
   @Override
@@ -0,0 +1,217 @@
+package no.ntnu.greenhouse;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import no.ntnu.tools.Logger;
+
+/**
+ * A binary snapshot of a whole simulator: every node with its sensor values, actuator states,
+ * random generator state and tick phase, and the ID counters of the {@link DeviceFactory}.
+ * A restored simulator continues from exactly the captured state, so benchmarks can start from
+ * the same warm state every time and a large scenario resumes without being built again.
+ * <pre>
+ *   int magic "GHS1", int version, long capture time
+ *   int next node ID, int next actuator ID
+ *   int string count, per string: short length, UTF-8 bytes
+ *   int node count
+ *   per node: int ID, long random state, long sensing period, long next tick delay,
+ *             short sensor count, short actuator count
+ *     per sensor: short type, short unit, double min, double max, double value, long timestamp
+ *     per actuator: int ID, short type, byte on
+ * </pre>
+ * Types and units are indexes into the string table. The file is written and read through a
+ * memory mapping, under a temporary name which is renamed when the file is complete.
+ * A snapshot must be captured while the nodes are quiescent: stopped and with empty mailboxes
+ * (see {@link SensorActuatorNode#awaitIdle(long)}), or between two runs of a single-threaded
+ * simulation scheduler.
+ */
+public final class SimulatorSnapshot {
+  private static final int MAGIC = 0x47485331;
+  private static final int VERSION = 1;
+  private static final int HEADER_SIZE = 2 * Integer.BYTES + Long.BYTES + 2 * Integer.BYTES;
+  private static final int NODE_SIZE = Integer.BYTES + 3 * Long.BYTES + 2 * Short.BYTES;
+  private static final int SENSOR_SIZE = 2 * Short.BYTES + 3 * Double.BYTES + Long.BYTES;
+  private static final int ACTUATOR_SIZE = Integer.BYTES + Short.BYTES + 1;
+
+  private SimulatorSnapshot() {
+  }
+
+  /**
+   * Write a snapshot of the nodes, replacing the file if it exists.
+   *
+   * @param file  the file to write
+   * @param nodes the nodes, which must be quiescent
+   * @return the size of the snapshot, in bytes
+   * @throws IOException if the file can't be written
+   */
+  public static long write(Path file, Collection<SensorActuatorNode> nodes) throws IOException {
+    List<String> strings = new ArrayList<>();
+    Map<String, Integer> stringIndexes = new HashMap<>();
+    long size = HEADER_SIZE + 2 * Integer.BYTES;
+    for (SensorActuatorNode node : nodes) {
+      size += NODE_SIZE;
+      for (Sensor sensor : node.getSensors()) {
+        size += SENSOR_SIZE;
+        addString(sensor.getType(), strings, stringIndexes);
+        addString(sensor.getReading().getUnit(), strings, stringIndexes);
+      }
+      for (Actuator actuator : node.getActuators()) {
+        size += ACTUATOR_SIZE;
+        addString(actuator.getType(), strings, stringIndexes);
+      }
+    }
+    List<byte[]> encodedStrings = new ArrayList<>(strings.size());
+    for (String string : strings) {
+      byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+      encodedStrings.add(bytes);
+      size += Short.BYTES + bytes.length;
+    }
+    if (size > Integer.MAX_VALUE) {
+      throw new IOException("Simulator snapshot would be too large: " + size + " bytes");
+    }
+
+    Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+    try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ,
+        StandardOpenOption.WRITE)) {
+      MappedByteBuffer out = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+      out.putInt(MAGIC).putInt(VERSION).putLong(currentTime(nodes))
+          .putInt(DeviceFactory.getNextNodeId()).putInt(Actuator.getNextId());
+      out.putInt(encodedStrings.size());
+      for (byte[] bytes : encodedStrings) {
+        out.putShort((short) bytes.length).put(bytes);
+      }
+      out.putInt(nodes.size());
+      for (SensorActuatorNode node : nodes) {
+        writeNode(node, out, stringIndexes);
+      }
+      out.force();
+    }
+    Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE,
+        StandardCopyOption.REPLACE_EXISTING);
+    return size;
+  }
+
+  private static void addString(String string, List<String> strings,
+                                Map<String, Integer> indexes) {
+    if (!indexes.containsKey(string)) {
+      indexes.put(string, strings.size());
+      strings.add(string);
+    }
+  }
+
+  private static long currentTime(Collection<SensorActuatorNode> nodes) {
+    return nodes.isEmpty() ? 0 : nodes.iterator().next().getRuntime().currentTimeMillis();
+  }
+
+  private static void writeNode(SensorActuatorNode node, ByteBuffer out,
+                                Map<String, Integer> stringIndexes) {
+    List<Sensor> sensors = node.getSensors();
+    ActuatorCollection actuators = node.getActuators();
+    out.putInt(node.getId()).putLong(node.getRandomState()).putLong(node.getSensingPeriod())
+        .putLong(node.getNextTickDelay())
+        .putShort((short) sensors.size()).putShort((short) actuators.size());
+    for (Sensor sensor : sensors) {
+      SensorReading reading = sensor.getReading();
+      out.putShort(stringIndexes.get(sensor.getType()).shortValue())
+          .putShort(stringIndexes.get(reading.getUnit()).shortValue())
+          .putDouble(sensor.getMin()).putDouble(sensor.getMax())
+          .putDouble(reading.getValue()).putLong(reading.getTimestamp());
+    }
+    for (Actuator actuator : actuators) {
+      out.putInt(actuator.getId()).putShort(stringIndexes.get(actuator.getType()).shortValue())
+          .put((byte) (actuator.isOn() ? 1 : 0));
+    }
+  }
+
+  /**
+   * Restore the nodes of a snapshot. The ID counters of the {@link DeviceFactory} are set past
+   * the restored IDs, so nodes and actuators created afterwards get new IDs. The restored nodes
+   * are not started; when they are, their first tick keeps the captured phase.
+   *
+   * @param file    the snapshot file
+   * @param runtime the runtime on which the restored nodes run
+   * @return the restored nodes, in the captured order
+   * @throws IOException if the file can't be read or is not a valid snapshot
+   */
+  public static List<SensorActuatorNode> read(Path file, NodeRuntime runtime)
+      throws IOException {
+    MappedByteBuffer in;
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+    try {
+      return readNodes(in, runtime);
+    } catch (RuntimeException e) {
+      throw new IOException("Simulator snapshot is damaged: " + file + " (" + e + ")", e);
+    }
+  }
+
+  private static List<SensorActuatorNode> readNodes(ByteBuffer in, NodeRuntime runtime)
+      throws IOException {
+    if (in.remaining() < HEADER_SIZE || in.getInt() != MAGIC) {
+      throw new IOException("Not a simulator snapshot");
+    }
+    int version = in.getInt();
+    if (version != VERSION) {
+      throw new IOException("Unsupported simulator snapshot version " + version);
+    }
+    long capturedAt = in.getLong();
+    int nextNodeId = in.getInt();
+    int nextActuatorId = in.getInt();
+    String[] strings = new String[in.getInt()];
+    for (int i = 0; i < strings.length; i++) {
+      byte[] bytes = new byte[in.getShort()];
+      in.get(bytes);
+      strings[i] = new String(bytes, StandardCharsets.UTF_8);
+    }
+    int nodeCount = in.getInt();
+    List<SensorActuatorNode> nodes = new ArrayList<>(nodeCount);
+    for (int i = 0; i < nodeCount; i++) {
+      nodes.add(readNode(in, strings, runtime));
+    }
+    DeviceFactory.setNextNodeId(Math.max(DeviceFactory.getNextNodeId(), nextNodeId));
+    Actuator.setNextId(Math.max(Actuator.getNextId(), nextActuatorId));
+    Logger.info("Restored " + nodeCount + " nodes captured at " + capturedAt);
+    return nodes;
+  }
+
+  private static SensorActuatorNode readNode(ByteBuffer in, String[] strings,
+                                             NodeRuntime runtime) {
+    SensorActuatorNode node = new SensorActuatorNode(in.getInt(), runtime);
+    node.restoreRandomState(in.getLong());
+    node.setSensingPeriod(in.getLong());
+    node.restoreNextTickDelay(in.getLong());
+    int sensorCount = in.getShort();
+    int actuatorCount = in.getShort();
+    List<Sensor> sensors = new ArrayList<>(sensorCount);
+    for (int i = 0; i < sensorCount; i++) {
+      String type = strings[in.getShort()];
+      String unit = strings[in.getShort()];
+      double min = in.getDouble();
+      double max = in.getDouble();
+      Sensor sensor = new Sensor(type, min, max, in.getDouble(), unit);
+      sensor.restoreTimestamp(in.getLong());
+      sensors.add(sensor);
+    }
+    node.restoreSensors(sensors);
+    for (int i = 0; i < actuatorCount; i++) {
+      int id = in.getInt();
+      String type = strings[in.getShort()];
+      node.addActuator(DeviceFactory.restoreActuator(id, type, node.getId(), in.get() != 0));
+    }
+    return node;
+  }
+}
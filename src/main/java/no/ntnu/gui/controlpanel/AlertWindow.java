@@ -0,0 +1,58 @@
+package no.ntnu.gui.controlpanel;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import javafx.geometry.Insets;
+import javafx.scene.Scene;
+import javafx.scene.control.Label;
+import javafx.scene.control.ListView;
+import javafx.scene.layout.BorderPane;
+import javafx.stage.Stage;
+import no.ntnu.message.AlertEntry;
+
+/**
+ * A window listing the alerts which fire on the server, newest first. The list is updated with
+ * every alert digest, also while the window is hidden. After a mass event the server can have
+ * more alerts firing than it has sent yet, the header then tells how many are listed.
+ */
+public class AlertWindow extends Stage {
+  private final ListView<String> list = new ListView<>();
+  private final Label status = new Label("No alerts");
+
+  /**
+   * Create an empty alert window.
+   */
+  public AlertWindow() {
+    BorderPane root = new BorderPane(list);
+    status.setPadding(new Insets(10));
+    root.setTop(status);
+    setTitle("Alerts");
+    setScene(new Scene(root, 500, 400));
+  }
+
+  /**
+   * Show the firing alerts. Must be called on the GUI thread.
+   *
+   * @param firing      the firing alerts the panel knows of, newest first
+   * @param firingCount how many alerts fire on the server
+   */
+  public void update(List<AlertEntry> firing, int firingCount) {
+    SimpleDateFormat format = new SimpleDateFormat("dd.MM HH:mm:ss");
+    list.getItems().setAll(firing.stream().map(alert -> describe(alert, format)).toList());
+    if (firingCount == 0) {
+      status.setText("No alerts");
+    } else if (firingCount > firing.size()) {
+      status.setText(firingCount + " alerts firing, " + firing.size() + " listed so far");
+    } else {
+      status.setText(firingCount + (firingCount == 1 ? " alert firing" : " alerts firing"));
+    }
+  }
+
+  private static String describe(AlertEntry alert, SimpleDateFormat format) {
+    String entity = alert.getActuatorId() == AlertEntry.NO_ACTUATOR ? "node " + alert.getNodeId()
+        : "actuator " + alert.getActuatorId() + " on node " + alert.getNodeId();
+    return format.format(new Date(alert.getTimestamp())) + "  " + alert.getRuleName() + "  "
+        + entity + "  (" + alert.getValue() + ")";
+  }
+}
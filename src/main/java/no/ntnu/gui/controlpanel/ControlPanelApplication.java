@@ -3,6 +3,7 @@ package no.ntnu.gui.controlpanel;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import javafx.application.Application;
 import javafx.application.Platform;
 import javafx.geometry.Pos;
@@ -22,14 +23,16 @@ import no.ntnu.greenhouse.SensorReading;
 import no.ntnu.gui.common.ActuatorPane;
 import no.ntnu.gui.common.SensorPane;
 import no.ntnu.listeners.common.CommunicationChannelListener;
+import no.ntnu.listeners.controlpanel.AlertListener;
 import no.ntnu.listeners.controlpanel.GreenhouseEventListener;
+import no.ntnu.message.AlertEntry;
 import no.ntnu.tools.Logger;
 
 /**
  * Run a control panel with a graphical user interface (GUI), with JavaFX.
  */
 public class ControlPanelApplication extends Application implements GreenhouseEventListener,
-        CommunicationChannelListener {
+        CommunicationChannelListener, AlertListener {
   private static ControlPanelLogic logic;
   private static final int WIDTH = 500;
   private static final int HEIGHT = 400;
@@ -37,10 +40,13 @@ public class ControlPanelApplication extends Application implements GreenhouseEv
 
   private TabPane nodeTabPane;
   private Scene mainScene;
+  private AlertWindow alertWindow;
+  private boolean hasAlerts;
   private final Map<Integer, SensorPane> sensorPanes = new HashMap<>();
   private final Map<Integer, ActuatorPane> actuatorPanes = new HashMap<>();
   private final Map<Integer, SensorActuatorNodeInfo> nodeInfos = new HashMap<>();
   private final Map<Integer, Tab> nodeTabs = new HashMap<>();
+  private final Map<Integer, List<String>> sensorNames = new ConcurrentHashMap<>();
 
   /**
    * Application entrypoint for the GUI of a control panel.
@@ -75,6 +81,8 @@ public class ControlPanelApplication extends Application implements GreenhouseEv
     stage.show();
     logic.addListener(this);
     logic.setCommunicationChannelListener(this);
+    alertWindow = new AlertWindow();
+    hasAlerts = channel.addAlertListener(this);
     if (!channel.open()) {
       logic.onCommunicationChannelClosed();
     }
@@ -115,7 +123,8 @@ public class ControlPanelApplication extends Application implements GreenhouseEv
 
   @Override
   public void onSensorData(int nodeId, List<SensorReading> sensors) {
-    Logger.info("Sensor data from node " + nodeId);
+    Logger.debug(() -> "Sensor data from node " + nodeId);
+    sensorNames.put(nodeId, sensors.stream().map(SensorReading::getType).toList());
     SensorPane sensorPane = sensorPanes.get(nodeId);
     if (sensorPane != null) {
       sensorPane.update(sensors);
@@ -179,7 +188,16 @@ public class ControlPanelApplication extends Application implements GreenhouseEv
     ActuatorPane actuatorPane = new ActuatorPane(nodeInfo.getActuators(), toggleAllButton); // Pass button to ActuatorPane
     actuatorPanes.put(nodeInfo.getId(), actuatorPane);
     
-    content.getChildren().addAll(sensorPane, actuatorPane, toggleAllButton);
+    Button historyButton = new Button("Show History");
+    historyButton.setOnAction(e -> new HistoryWindow(channel, nodeInfo.getId(),
+        sensorNames.getOrDefault(nodeInfo.getId(), List.of())).show());
+
+    content.getChildren().addAll(sensorPane, actuatorPane, toggleAllButton, historyButton);
+    if (hasAlerts) {
+      Button alertButton = new Button("Show Alerts");
+      alertButton.setOnAction(e -> alertWindow.show());
+      content.getChildren().add(alertButton);
+    }
     
     Tab tab = new Tab("Node " + nodeInfo.getId());
     tab.setContent(content);
@@ -229,6 +247,11 @@ private boolean hasAnyActuatorOn(ActuatorCollection actuators) {
     return new SensorPane();
   }
 
+  @Override
+  public void onAlertsChanged(List<AlertEntry> firing, int firingCount) {
+    Platform.runLater(() -> alertWindow.update(firing, firingCount));
+  }
+
   @Override
   public void onCommunicationChannelClosed() {
     Logger.info("Communication closed, closing the GUI");
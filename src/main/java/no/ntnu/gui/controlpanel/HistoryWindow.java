@@ -0,0 +1,150 @@
+package no.ntnu.gui.controlpanel;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import javafx.application.Platform;
+import javafx.collections.FXCollections;
+import javafx.geometry.Insets;
+import javafx.scene.Scene;
+import javafx.scene.chart.LineChart;
+import javafx.scene.chart.NumberAxis;
+import javafx.scene.chart.XYChart;
+import javafx.scene.control.Button;
+import javafx.scene.control.ComboBox;
+import javafx.scene.control.Label;
+import javafx.scene.layout.BorderPane;
+import javafx.scene.layout.HBox;
+import javafx.stage.Stage;
+import javafx.util.StringConverter;
+import no.ntnu.controlpanel.CommunicationChannel;
+import no.ntnu.controlpanel.HistoryPoint;
+import no.ntnu.listeners.controlpanel.HistoryListener;
+import no.ntnu.message.HistoryQueryMessage;
+
+/**
+ * A window showing the stored history of one sensor of a node as a chart. The server chooses the
+ * resolution from the length of the range: raw readings for short ranges, averages per minute,
+ * hour or day for longer ones, with the min and max of each bucket. The chart is filled in as the
+ * chunks of the answer arrive.
+ */
+public class HistoryWindow extends Stage {
+  private static final long HOUR = 3_600_000L;
+  private static final String[] RANGE_NAMES = {
+    "Last hour", "Last 24 hours", "Last 7 days", "Last 30 days", "Last year"
+  };
+  private static final long[] RANGE_MILLIS = {HOUR, 24 * HOUR, 7 * 24 * HOUR, 30 * 24 * HOUR,
+      365 * 24 * HOUR};
+
+  private final CommunicationChannel channel;
+  private final int nodeId;
+  private final ComboBox<String> sensorBox;
+  private final ComboBox<String> rangeBox = new ComboBox<>(FXCollections.observableArrayList(
+      RANGE_NAMES));
+  private final Label status = new Label();
+  private final NumberAxis timeAxis = new NumberAxis();
+  private final LineChart<Number, Number> chart = new LineChart<>(timeAxis, new NumberAxis());
+  private final XYChart.Series<Number, Number> values = new XYChart.Series<>();
+  private final XYChart.Series<Number, Number> minimums = new XYChart.Series<>();
+  private final XYChart.Series<Number, Number> maximums = new XYChart.Series<>();
+  private int pointCount;
+  private Object currentQuery;
+
+  /**
+   * Create a history window for a node.
+   *
+   * @param channel     the channel which sends the queries
+   * @param nodeId      ID of the node
+   * @param sensorNames the names of the sensors of the node, in the order of their readings
+   */
+  public HistoryWindow(CommunicationChannel channel, int nodeId, List<String> sensorNames) {
+    this.channel = channel;
+    this.nodeId = nodeId;
+    this.sensorBox = new ComboBox<>(FXCollections.observableArrayList(sensorNames));
+    sensorBox.getSelectionModel().selectFirst();
+    rangeBox.getSelectionModel().selectFirst();
+    Button loadButton = new Button("Load");
+    loadButton.setOnAction(event -> load());
+
+    timeAxis.setForceZeroInRange(false);
+    timeAxis.setTickLabelFormatter(new TimeLabels());
+    chart.getYAxis().setAutoRanging(true);
+    ((NumberAxis) chart.getYAxis()).setForceZeroInRange(false);
+    chart.setCreateSymbols(false);
+    chart.setAnimated(false);
+
+    HBox controls = new HBox(10, sensorBox, rangeBox, loadButton, status);
+    controls.setPadding(new Insets(10));
+    BorderPane root = new BorderPane(chart);
+    root.setTop(controls);
+    setTitle("History of node " + nodeId);
+    setScene(new Scene(root, 800, 500));
+    load();
+  }
+
+  private void load() {
+    int sensorIndex = sensorBox.getSelectionModel().getSelectedIndex();
+    int range = rangeBox.getSelectionModel().getSelectedIndex();
+    if (sensorIndex < 0 || range < 0) {
+      return;
+    }
+    values.setName(sensorBox.getValue());
+    minimums.setName("min");
+    maximums.setName("max");
+    values.getData().clear();
+    minimums.getData().clear();
+    maximums.getData().clear();
+    chart.getData().setAll(List.of(values));
+    pointCount = 0;
+    long now = System.currentTimeMillis();
+    Object query = new Object();
+    currentQuery = query;
+    HistoryListener listener = (resolution, points, last) ->
+        Platform.runLater(() -> {
+          if (currentQuery == query) {
+            addPoints(resolution, points, last);
+          }
+        });
+    if (channel.queryHistory(nodeId, sensorIndex, now - RANGE_MILLIS[range], now,
+        HistoryQueryMessage.AUTO, listener)) {
+      status.setText("Loading...");
+    } else {
+      status.setText("History is not available");
+    }
+  }
+
+  private void addPoints(String resolution, List<HistoryPoint> points, boolean last) {
+    boolean rollup = !HistoryQueryMessage.RAW.equals(resolution);
+    if (rollup && chart.getData().size() == 1) {
+      chart.getData().addAll(List.of(minimums, maximums));
+    }
+    for (HistoryPoint point : points) {
+      values.getData().add(new XYChart.Data<>(point.getTimestamp(), point.getValue()));
+      if (rollup) {
+        minimums.getData().add(new XYChart.Data<>(point.getTimestamp(), point.getMin()));
+        maximums.getData().add(new XYChart.Data<>(point.getTimestamp(), point.getMax()));
+      }
+    }
+    pointCount += points.size();
+    String text = pointCount + " points (" + resolution + ")";
+    status.setText(last ? text : text + "...");
+  }
+
+  /**
+   * Formats the epoch milliseconds of the time axis as dates and times.
+   */
+  private class TimeLabels extends StringConverter<Number> {
+    @Override
+    public String toString(Number millis) {
+      double span = timeAxis.getUpperBound() - timeAxis.getLowerBound();
+      String pattern = span <= 24 * HOUR ? "HH:mm" : span <= 7 * 24 * HOUR ? "dd.MM HH:mm"
+          : "dd.MM";
+      return new SimpleDateFormat(pattern).format(new Date(millis.longValue()));
+    }
+
+    @Override
+    public Number fromString(String text) {
+      return 0;
+    }
+  }
+}
@@ -0,0 +1,60 @@
+package no.ntnu.history;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reads bit fields, most significant bit first, written by a {@link BitWriter}. Only absolute
+ * reads are used, so many readers can share one buffer.
+ */
+class BitReader {
+  private final ByteBuffer buffer;
+  private int position;
+  private int currentByte;
+  private int bitsLeft;
+
+  /**
+   * Create a reader.
+   *
+   * @param buffer the buffer to read
+   * @param offset index of the first byte
+   */
+  BitReader(ByteBuffer buffer, int offset) {
+    this.buffer = buffer;
+    this.position = offset;
+  }
+
+  /**
+   * Read one bit.
+   *
+   * @return true if the bit is set
+   */
+  boolean readBit() {
+    if (bitsLeft == 0) {
+      currentByte = buffer.get(position++) & 0xFF;
+      bitsLeft = 8;
+    }
+    bitsLeft--;
+    return ((currentByte >>> bitsLeft) & 1) != 0;
+  }
+
+  /**
+   * Read a bit field.
+   *
+   * @param count the number of bits, 0 to 64
+   * @return the bits, in the lowest bits of the result
+   */
+  long read(int count) {
+    long result = 0;
+    while (count > 0) {
+      if (bitsLeft == 0) {
+        currentByte = buffer.get(position++) & 0xFF;
+        bitsLeft = 8;
+      }
+      int taken = Math.min(count, bitsLeft);
+      bitsLeft -= taken;
+      result = (result << taken) | ((currentByte >>> bitsLeft) & ((1 << taken) - 1));
+      count -= taken;
+    }
+    return result;
+  }
+}
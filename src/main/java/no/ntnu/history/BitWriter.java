@@ -0,0 +1,80 @@
+package no.ntnu.history;
+
+import java.util.Arrays;
+
+/**
+ * Writes bit fields, most significant bit first, into a growing byte array. Bits are collected
+ * in a 64-bit word which is copied to the array when it is full.
+ */
+class BitWriter {
+  private byte[] bytes;
+  private int wordCount;
+  private long word;
+  private int usedBits;
+
+  /**
+   * Create a writer.
+   *
+   * @param initialCapacity the initial size of the array, in bytes
+   */
+  BitWriter(int initialCapacity) {
+    bytes = new byte[Math.max(Long.BYTES, initialCapacity)];
+  }
+
+  /**
+   * Write the lowest bits of a value.
+   *
+   * @param value the value, higher bits are ignored
+   * @param count the number of bits to write, 0 to 64
+   */
+  void write(long value, int count) {
+    if (count < 64) {
+      value &= (1L << count) - 1;
+    }
+    int freeBits = 64 - usedBits;
+    if (count < freeBits) {
+      word |= value << (freeBits - count);
+      usedBits += count;
+    } else {
+      int spilled = count - freeBits;
+      word |= value >>> spilled;
+      flushWord();
+      word = spilled == 0 ? 0 : value << (64 - spilled);
+      usedBits = spilled;
+    }
+  }
+
+  /**
+   * Get the number of bits written so far.
+   *
+   * @return the number of bits
+   */
+  long getBitCount() {
+    return wordCount * 64L + usedBits;
+  }
+
+  /**
+   * Get the written bits, padded with zero bits to a whole number of bytes.
+   *
+   * @return a copy of the written bytes
+   */
+  byte[] toByteArray() {
+    int length = wordCount * Long.BYTES + (usedBits + 7) / 8;
+    byte[] result = Arrays.copyOf(bytes, length);
+    for (int i = wordCount * Long.BYTES, shift = 56; i < length; i++, shift -= 8) {
+      result[i] = (byte) (word >>> shift);
+    }
+    return result;
+  }
+
+  private void flushWord() {
+    int offset = wordCount * Long.BYTES;
+    if (offset + Long.BYTES > bytes.length) {
+      bytes = Arrays.copyOf(bytes, bytes.length * 2);
+    }
+    for (int shift = 56; shift >= 0; shift -= 8) {
+      bytes[offset++] = (byte) (word >>> shift);
+    }
+    wordCount++;
+  }
+}
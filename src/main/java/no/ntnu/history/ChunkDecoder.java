@@ -0,0 +1,141 @@
+package no.ntnu.history;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Decodes a chunk written by {@link ChunkEncoder}, one point at a time, without unpacking the
+ * chunk into arrays. Typical use:
+ * <pre>
+ *   ChunkDecoder decoder = new ChunkDecoder(chunk);
+ *   while (decoder.next()) {
+ *     use(decoder.getTimestamp(), decoder.getValue());
+ *   }
+ * </pre>
+ */
+public class ChunkDecoder {
+  private final BitReader reader;
+  private final int count;
+  private int index;
+  private long timestamp;
+  private long delta;
+  private double value;
+  private long fixedPoint = ChunkEncoder.NOT_FIXED_POINT;
+
+  /**
+   * Create a decoder for a chunk in an array.
+   *
+   * @param chunk the chunk
+   */
+  public ChunkDecoder(byte[] chunk) {
+    this(ByteBuffer.wrap(chunk), 0);
+  }
+
+  /**
+   * Create a decoder for a chunk in a buffer. The buffer is only read with absolute reads, so it
+   * can be shared between decoders.
+   *
+   * @param buffer the buffer which holds the chunk
+   * @param offset index of the first byte of the chunk
+   */
+  public ChunkDecoder(ByteBuffer buffer, int offset) {
+    this.count = buffer.getInt(offset);
+    this.reader = new BitReader(buffer, offset + ChunkEncoder.HEADER_SIZE);
+  }
+
+  /**
+   * Get the number of points in the chunk.
+   *
+   * @return the number of points
+   */
+  public int getCount() {
+    return count;
+  }
+
+  /**
+   * Decode the next point.
+   *
+   * @return true if there was a next point, false at the end of the chunk
+   */
+  public boolean next() {
+    if (index == count) {
+      return false;
+    }
+    if (index == 0) {
+      timestamp = reader.read(64);
+      readValue(true);
+    } else {
+      readTimestamp();
+      readValue(false);
+    }
+    index++;
+    return true;
+  }
+
+  /**
+   * Get the timestamp of the current point.
+   *
+   * @return the timestamp, epoch milliseconds
+   */
+  public long getTimestamp() {
+    return timestamp;
+  }
+
+  /**
+   * Get the value of the current point.
+   *
+   * @return the value
+   */
+  public double getValue() {
+    return value;
+  }
+
+  private void readTimestamp() {
+    int bucket = readPrefix(ChunkEncoder.TIMESTAMP_BITS.length);
+    if (bucket == ChunkEncoder.TIMESTAMP_BITS.length) {
+      delta = reader.read(64);
+    } else if (bucket >= 0) {
+      delta += unZigZag(reader.read(ChunkEncoder.TIMESTAMP_BITS[bucket]));
+    }
+    timestamp += delta;
+  }
+
+  private void readValue(boolean first) {
+    if (first) {
+      setRawValue();
+      return;
+    }
+    int bucket = readPrefix(ChunkEncoder.VALUE_BITS.length);
+    if (bucket < 0) {
+      return;
+    } else if (bucket < ChunkEncoder.VALUE_BITS.length) {
+      fixedPoint += unZigZag(reader.read(ChunkEncoder.VALUE_BITS[bucket]));
+      value = fixedPoint / 100.0;
+    } else {
+      setRawValue();
+    }
+  }
+
+  private void setRawValue() {
+    value = Double.longBitsToDouble(reader.read(64));
+    fixedPoint = ChunkEncoder.toFixedPoint(value);
+  }
+
+  /**
+   * Read a prefix code of ones terminated by a zero.
+   *
+   * @param bucketCount the number of buckets
+   * @return -1 for a single zero (no change), the bucket index, or the bucket count for a raw
+   *     field
+   */
+  private int readPrefix(int bucketCount) {
+    int ones = 0;
+    while (ones <= bucketCount && reader.readBit()) {
+      ones++;
+    }
+    return ones - 1;
+  }
+
+  private static long unZigZag(long value) {
+    return (value >>> 1) ^ -(value & 1);
+  }
+}
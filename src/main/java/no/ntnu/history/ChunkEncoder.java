@@ -0,0 +1,161 @@
+package no.ntnu.history;
+
+/**
+ * Compresses the points of one sensor series into a chunk, one point at a time, after the
+ * Gorilla time series format. Timestamps are stored as the change of the interval between points
+ * (delta-of-delta), which is zero or close to it for periodic readings. Values with at most two
+ * decimals, as produced by the sensors, are stored as the change of the value in hundredths, in
+ * a few bits for slowly changing readings; other values are stored as raw doubles. Both fields
+ * use a short prefix code selecting the number of bits, so a typical point takes two to three
+ * bytes instead of sixteen. Decode a chunk with {@link ChunkDecoder}.
+ * A chunk starts with the number of points as a 32-bit integer, followed by the bit fields.
+ */
+public class ChunkEncoder {
+  static final int HEADER_SIZE = Integer.BYTES;
+  static final long NOT_FIXED_POINT = Long.MIN_VALUE;
+  static final int[] TIMESTAMP_BITS = {7, 12, 20};
+  static final int[] VALUE_BITS = {7, 12, 24};
+  private static final double MAX_FIXED_POINT_VALUE = 1e13;
+
+  private final BitWriter writer;
+  private int count;
+  private long previousTimestamp;
+  private long previousDelta;
+  private long previousFixedPoint = NOT_FIXED_POINT;
+
+  /**
+   * Create an encoder for an empty chunk.
+   */
+  public ChunkEncoder() {
+    this(64);
+  }
+
+  /**
+   * Create an encoder for an empty chunk.
+   *
+   * @param expectedPoints the expected number of points, to size the buffer
+   */
+  public ChunkEncoder(int expectedPoints) {
+    this.writer = new BitWriter(expectedPoints * 3);
+  }
+
+  /**
+   * Append a point to the chunk.
+   *
+   * @param timestamp the timestamp, epoch milliseconds
+   * @param value     the value
+   */
+  public void add(long timestamp, double value) {
+    if (count == 0) {
+      writer.write(timestamp, 64);
+      previousTimestamp = timestamp;
+    } else {
+      writeTimestamp(timestamp);
+    }
+    writeValue(value);
+    count++;
+  }
+
+  private void writeTimestamp(long timestamp) {
+    long delta = timestamp - previousTimestamp;
+    long deltaOfDelta = delta - previousDelta;
+    if (deltaOfDelta == 0) {
+      writer.write(0, 1);
+    } else if (!writeBucketed(zigZag(deltaOfDelta), TIMESTAMP_BITS)) {
+      writer.write(delta, 64);
+    }
+    previousTimestamp = timestamp;
+    previousDelta = delta;
+  }
+
+  private void writeValue(double value) {
+    long fixedPoint = toFixedPoint(value);
+    if (fixedPoint != NOT_FIXED_POINT && previousFixedPoint != NOT_FIXED_POINT) {
+      long change = fixedPoint - previousFixedPoint;
+      if (change == 0) {
+        writer.write(0, 1);
+      } else if (!writeBucketed(zigZag(change), VALUE_BITS)) {
+        writer.write(Double.doubleToRawLongBits(value), 64);
+      }
+    } else {
+      if (count > 0) {
+        writer.write(-1, VALUE_BITS.length + 1);
+      }
+      writer.write(Double.doubleToRawLongBits(value), 64);
+    }
+    previousFixedPoint = fixedPoint;
+  }
+
+  /**
+   * Write a prefix of ones, terminated by a zero, selecting the smallest bucket which fits the
+   * value, followed by the value. When no bucket fits, only ones are written and the caller
+   * writes the raw field.
+   *
+   * @param zigZagged the value, zigzag encoded
+   * @param buckets   the field size of each bucket, in bits
+   * @return true if the value fitted in a bucket
+   */
+  private boolean writeBucketed(long zigZagged, int[] buckets) {
+    for (int i = 0; i < buckets.length; i++) {
+      if (zigZagged >>> buckets[i] == 0) {
+        writer.write(((1L << (i + 1)) - 1) << 1, i + 2);
+        writer.write(zigZagged, buckets[i]);
+        return true;
+      }
+    }
+    writer.write(-1, buckets.length + 1);
+    return false;
+  }
+
+  /**
+   * Get the number of points in the chunk.
+   *
+   * @return the number of points
+   */
+  public int getCount() {
+    return count;
+  }
+
+  /**
+   * Get the size of the chunk so far.
+   *
+   * @return the size in bytes, including the header
+   */
+  public int getSizeInBytes() {
+    return HEADER_SIZE + (int) ((writer.getBitCount() + 7) / 8);
+  }
+
+  /**
+   * Get the encoded chunk.
+   *
+   * @return the chunk, header included
+   */
+  public byte[] toByteArray() {
+    byte[] bits = writer.toByteArray();
+    byte[] chunk = new byte[HEADER_SIZE + bits.length];
+    chunk[0] = (byte) (count >>> 24);
+    chunk[1] = (byte) (count >>> 16);
+    chunk[2] = (byte) (count >>> 8);
+    chunk[3] = (byte) count;
+    System.arraycopy(bits, 0, chunk, HEADER_SIZE, bits.length);
+    return chunk;
+  }
+
+  /**
+   * Get the value in hundredths, if that represents it exactly.
+   *
+   * @param value the value
+   * @return the value times 100, or {@link #NOT_FIXED_POINT} if it has more than two decimals
+   */
+  static long toFixedPoint(double value) {
+    if (!(Math.abs(value) < MAX_FIXED_POINT_VALUE)) {
+      return NOT_FIXED_POINT;
+    }
+    long hundredths = Math.round(value * 100);
+    return Double.compare(hundredths / 100.0, value) == 0 ? hundredths : NOT_FIXED_POINT;
+  }
+
+  private static long zigZag(long value) {
+    return (value << 1) ^ (value >> 63);
+  }
+}
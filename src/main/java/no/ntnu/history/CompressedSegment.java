@@ -0,0 +1,428 @@
+package no.ntnu.history;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Sealed sensor history, compressed into one {@link ChunkEncoder chunk} per series: a single
+ * compressed raw segment, or a block which merges consecutive ones, so a series has one chunk for
+ * the whole time span of the block. The file starts with a directory of the series, sorted by
+ * node ID and sensor index, so a query finds its series with a binary search in the mapped file
+ * and decodes only its chunk; nothing but the time range of the file is kept on the heap:
+ * <pre>
+ *   int magic, int series count
+ *   per series: int node ID, int sensor index, long min timestamp, long max timestamp,
+ *               int chunk offset, int chunk length
+ *   chunks
+ * </pre>
+ * The fixed cost of a series is its directory entry and the first point of its chunk, about 50
+ * bytes, so it is only small against the points when a file holds many points per series.
+ * Files written before the directory was sorted are still read; their directory is sorted on the
+ * heap when they are opened.
+ */
+class CompressedSegment implements StoredSegment {
+  private static final int MAGIC = 0x47484331;
+  private static final int HEADER_SIZE = 2 * Integer.BYTES;
+  private static final int ENTRY_SIZE = 2 * Integer.BYTES + 2 * Long.BYTES + 2 * Integer.BYTES;
+
+  private final long firstSequence;
+  private final long sequence;
+  private final Path file;
+  private final MappedByteBuffer buffer;
+  private final int seriesCount;
+  // Entry numbers in key order, only for files with an unsorted directory
+  private final int[] order;
+  private long count;
+  private long minTimestamp = Long.MAX_VALUE;
+  private long maxTimestamp = Long.MIN_VALUE;
+
+  private CompressedSegment(long firstSequence, long sequence, Path file) throws IOException {
+    this.firstSequence = firstSequence;
+    this.sequence = sequence;
+    this.file = file;
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      this.buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+    if (buffer.getInt(0) != MAGIC) {
+      throw new IOException("Not a compressed history segment: " + file);
+    }
+    seriesCount = buffer.getInt(Integer.BYTES);
+    boolean sorted = true;
+    for (int i = 0; i < seriesCount; i++) {
+      int entry = HEADER_SIZE + i * ENTRY_SIZE;
+      minTimestamp = Math.min(minTimestamp, buffer.getLong(entry + 8));
+      maxTimestamp = Math.max(maxTimestamp, buffer.getLong(entry + 16));
+      count += buffer.getInt(buffer.getInt(entry + 24));
+      if (i > 0 && entryKey(entry - ENTRY_SIZE) >= entryKey(entry)) {
+        sorted = false;
+      }
+    }
+    order = sorted ? null : sortedOrder();
+  }
+
+  /**
+   * Open a compressed segment file.
+   *
+   * @param file     the file
+   * @param sequence the sequence number of the segment
+   * @return the opened segment
+   * @throws IOException if the file can't be read
+   */
+  static CompressedSegment open(Path file, long sequence) throws IOException {
+    return new CompressedSegment(sequence, sequence, file);
+  }
+
+  /**
+   * Open a block file, which merges the segments of a range of sequence numbers.
+   *
+   * @param file          the file
+   * @param firstSequence the sequence number of the first merged segment
+   * @param sequence      the sequence number of the last merged segment
+   * @return the opened block
+   * @throws IOException if the file can't be read
+   */
+  static CompressedSegment open(Path file, long firstSequence, long sequence) throws IOException {
+    return new CompressedSegment(firstSequence, sequence, file);
+  }
+
+  static String fileName(long sequence) {
+    return String.format("segment-%012d.chunks", sequence);
+  }
+
+  static String fileName(long firstSequence, long sequence) {
+    return firstSequence == sequence ? fileName(sequence)
+        : String.format("segment-%012d-%012d.chunks", firstSequence, sequence);
+  }
+
+  /**
+   * Compress a sealed raw segment into a new file next to it. The file is written under a
+   * temporary name and renamed when complete, so a crash never leaves a partial segment behind.
+   *
+   * @param raw the sealed raw segment
+   * @return the compressed segment
+   * @throws IOException if the file can't be written
+   */
+  static CompressedSegment compress(HistorySegment raw) throws IOException {
+    ByteBuffer out = encode(raw);
+    Path file = raw.getDataFile().resolveSibling(fileName(raw.getSequence()));
+    Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+    try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+      while (out.hasRemaining()) {
+        channel.write(out);
+      }
+      channel.force(true);
+    }
+    Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE);
+    return open(file, raw.getSequence());
+  }
+
+  /**
+   * Encode the published records of a raw segment in the compressed file format, in memory.
+   * The segment may still be appended to; records published later are not included.
+   *
+   * @param raw the raw segment
+   * @return the contents of the compressed file, ready to be read
+   */
+  static ByteBuffer encode(HistorySegment raw) {
+    Map<Long, SeriesChunk> series = new TreeMap<>();
+    raw.scanAll((nodeId, sensorIndex, timestamp, value) -> series
+        .computeIfAbsent(seriesKey(nodeId, sensorIndex), key -> new SeriesChunk())
+        .add(timestamp, value));
+
+    int chunkOffset = HEADER_SIZE + series.size() * ENTRY_SIZE;
+    int size = chunkOffset;
+    for (SeriesChunk chunk : series.values()) {
+      size += chunk.encoder.getSizeInBytes();
+    }
+    ByteBuffer out = ByteBuffer.allocate(size);
+    out.putInt(MAGIC).putInt(series.size());
+    for (Map.Entry<Long, SeriesChunk> entry : series.entrySet()) {
+      SeriesChunk chunk = entry.getValue();
+      int length = chunk.encoder.getSizeInBytes();
+      out.putInt((int) (entry.getKey() >>> 32)).putInt(entry.getKey().intValue())
+          .putLong(chunk.minTimestamp).putLong(chunk.maxTimestamp)
+          .putInt(chunkOffset).putInt(length);
+      chunkOffset += length;
+    }
+    for (SeriesChunk chunk : series.values()) {
+      out.put(chunk.encoder.toByteArray());
+    }
+    out.flip();
+    return out;
+  }
+
+  /**
+   * Merge consecutive compressed segments into one block file in a directory, with one chunk per
+   * series for all of them. The points of a series keep the order of the segments. The series
+   * are merged one at a time, so only one series is held in memory. The block is written under a
+   * temporary name and renamed when complete; the caller deletes the merged files afterwards.
+   *
+   * @param inputs    the segments, oldest first
+   * @param directory the directory of the block
+   * @return the block, which covers the sequence numbers of the inputs
+   * @throws IOException if the block can't be written, or would be larger than 2 GiB
+   */
+  static CompressedSegment merge(List<CompressedSegment> inputs, Path directory)
+      throws IOException {
+    long firstSequence = inputs.get(0).firstSequence;
+    long lastSequence = inputs.get(inputs.size() - 1).sequence;
+    Path file = directory.resolve(fileName(firstSequence, lastSequence));
+    Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+    int[] positions = new int[inputs.size()];
+    int seriesCount = 0;
+    while (nextKey(inputs, positions) != Long.MAX_VALUE) {
+      advance(inputs, positions, nextKey(inputs, positions));
+      seriesCount++;
+    }
+    ByteBuffer directoryEntries = ByteBuffer.allocate(HEADER_SIZE + seriesCount * ENTRY_SIZE);
+    directoryEntries.putInt(MAGIC).putInt(seriesCount);
+    long chunkOffset = directoryEntries.capacity();
+    Arrays.fill(positions, 0);
+    try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+      long key;
+      while ((key = nextKey(inputs, positions)) != Long.MAX_VALUE) {
+        SeriesChunk chunk = new SeriesChunk(expectedPoints(inputs, positions, key));
+        for (int i = 0; i < inputs.size(); i++) {
+          CompressedSegment input = inputs.get(i);
+          if (positions[i] < input.seriesCount && input.keyAt(positions[i]) == key) {
+            ChunkDecoder decoder = input.decoder(input.entryAt(positions[i]));
+            while (decoder.next()) {
+              chunk.add(decoder.getTimestamp(), decoder.getValue());
+            }
+            positions[i]++;
+          }
+        }
+        ByteBuffer bytes = ByteBuffer.wrap(chunk.encoder.toByteArray());
+        if (chunkOffset + bytes.remaining() > Integer.MAX_VALUE) {
+          throw new IOException("History block " + file + " would be larger than 2 GiB");
+        }
+        directoryEntries.putInt((int) (key >>> 32)).putInt((int) key)
+            .putLong(chunk.minTimestamp).putLong(chunk.maxTimestamp)
+            .putInt((int) chunkOffset).putInt(bytes.remaining());
+        long position = chunkOffset;
+        while (bytes.hasRemaining()) {
+          position += channel.write(bytes, position);
+        }
+        chunkOffset = position;
+      }
+      directoryEntries.flip();
+      long position = 0;
+      while (directoryEntries.hasRemaining()) {
+        position += channel.write(directoryEntries, position);
+      }
+      channel.force(true);
+    } catch (IOException e) {
+      Files.deleteIfExists(temporary);
+      throw e;
+    }
+    Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE);
+    return open(file, firstSequence, lastSequence);
+  }
+
+  /**
+   * Get the smallest series key at the current directory positions of the inputs.
+   *
+   * @return the key, or Long.MAX_VALUE when all inputs are done
+   */
+  private static long nextKey(List<CompressedSegment> inputs, int[] positions) {
+    long next = Long.MAX_VALUE;
+    for (int i = 0; i < inputs.size(); i++) {
+      CompressedSegment input = inputs.get(i);
+      if (positions[i] < input.seriesCount) {
+        next = Math.min(next, input.keyAt(positions[i]));
+      }
+    }
+    return next;
+  }
+
+  private static void advance(List<CompressedSegment> inputs, int[] positions, long key) {
+    for (int i = 0; i < inputs.size(); i++) {
+      CompressedSegment input = inputs.get(i);
+      if (positions[i] < input.seriesCount && input.keyAt(positions[i]) == key) {
+        positions[i]++;
+      }
+    }
+  }
+
+  private static int expectedPoints(List<CompressedSegment> inputs, int[] positions, long key) {
+    long points = 0;
+    for (int i = 0; i < inputs.size(); i++) {
+      CompressedSegment input = inputs.get(i);
+      if (positions[i] < input.seriesCount && input.keyAt(positions[i]) == key) {
+        points += input.buffer.getInt(input.buffer.getInt(input.entryAt(positions[i]) + 24));
+      }
+    }
+    return (int) Math.min(points, 1 << 20);
+  }
+
+  @Override
+  public long getSequence() {
+    return sequence;
+  }
+
+  /**
+   * Get the sequence number of the first segment in the file, which is the sequence number of
+   * the file unless it is a merged block.
+   *
+   * @return the first sequence number
+   */
+  long getFirstSequence() {
+    return firstSequence;
+  }
+
+  @Override
+  public long getCount() {
+    return count;
+  }
+
+  Path getFile() {
+    return file;
+  }
+
+  /**
+   * Get the size of the compressed file.
+   *
+   * @return the size in bytes
+   */
+  long getSizeInBytes() {
+    return buffer.capacity();
+  }
+
+  long getMinTimestamp() {
+    return minTimestamp;
+  }
+
+  long getMaxTimestamp() {
+    return maxTimestamp;
+  }
+
+  @Override
+  public boolean overlaps(long from, long to) {
+    return minTimestamp < to && maxTimestamp >= from;
+  }
+
+  @Override
+  public void scan(int nodeId, int sensorIndex, long from, long to, PointConsumer consumer) {
+    int entry = find(seriesKey(nodeId, sensorIndex));
+    if (entry < 0 || buffer.getLong(entry + 8) >= to || buffer.getLong(entry + 16) < from) {
+      return;
+    }
+    ChunkDecoder decoder = decoder(entry);
+    while (decoder.next()) {
+      long timestamp = decoder.getTimestamp();
+      if (timestamp >= from && timestamp < to) {
+        consumer.accept(timestamp, decoder.getValue());
+      }
+    }
+  }
+
+  @Override
+  public void scanAll(RecordConsumer consumer) {
+    for (int i = 0; i < seriesCount; i++) {
+      int entry = HEADER_SIZE + i * ENTRY_SIZE;
+      int nodeId = buffer.getInt(entry);
+      int sensorIndex = buffer.getInt(entry + 4);
+      ChunkDecoder decoder = decoder(entry);
+      while (decoder.next()) {
+        consumer.accept(nodeId, sensorIndex, decoder.getTimestamp(), decoder.getValue());
+      }
+    }
+  }
+
+  private ChunkDecoder decoder(int entry) {
+    return new ChunkDecoder(buffer, buffer.getInt(entry + 24));
+  }
+
+  /**
+   * Find the directory entry of a series with a binary search.
+   *
+   * @return the offset of the entry, or -1 if the series is not in the file
+   */
+  private int find(long key) {
+    int low = 0;
+    int high = seriesCount - 1;
+    while (low <= high) {
+      int middle = (low + high) >>> 1;
+      long middleKey = keyAt(middle);
+      if (middleKey < key) {
+        low = middle + 1;
+      } else if (middleKey > key) {
+        high = middle - 1;
+      } else {
+        return entryAt(middle);
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Get the offset of the directory entry at a position in key order.
+   */
+  private int entryAt(int position) {
+    return HEADER_SIZE + (order != null ? order[position] : position) * ENTRY_SIZE;
+  }
+
+  private long keyAt(int position) {
+    return entryKey(entryAt(position));
+  }
+
+  private long entryKey(int entry) {
+    return seriesKey(buffer.getInt(entry), buffer.getInt(entry + 4));
+  }
+
+  private int[] sortedOrder() {
+    Integer[] entries = new Integer[seriesCount];
+    for (int i = 0; i < seriesCount; i++) {
+      entries[i] = i;
+    }
+    Arrays.sort(entries, (a, b) -> Long.compare(
+        entryKey(HEADER_SIZE + a * ENTRY_SIZE), entryKey(HEADER_SIZE + b * ENTRY_SIZE)));
+    int[] sorted = new int[seriesCount];
+    for (int i = 0; i < seriesCount; i++) {
+      sorted[i] = entries[i];
+    }
+    return sorted;
+  }
+
+  /**
+   * Get the key of a series, which orders the series by node ID, then sensor index.
+   */
+  private static long seriesKey(int nodeId, int sensorIndex) {
+    return ((long) nodeId << 32) | (sensorIndex & 0xFFFFFFFFL);
+  }
+
+  /**
+   * The chunk of one series while a segment is compressed.
+   */
+  private static class SeriesChunk {
+    private final ChunkEncoder encoder;
+    private long minTimestamp = Long.MAX_VALUE;
+    private long maxTimestamp = Long.MIN_VALUE;
+
+    SeriesChunk() {
+      this.encoder = new ChunkEncoder();
+    }
+
+    SeriesChunk(int expectedPoints) {
+      this.encoder = new ChunkEncoder(expectedPoints);
+    }
+
+    void add(long timestamp, double value) {
+      encoder.add(timestamp, value);
+      minTimestamp = Math.min(minTimestamp, timestamp);
+      maxTimestamp = Math.max(maxTimestamp, timestamp);
+    }
+  }
+}
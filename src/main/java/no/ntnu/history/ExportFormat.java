@@ -0,0 +1,46 @@
+package no.ntnu.history;
+
+/**
+ * The formats of a bulk {@link HistoryExport}.
+ */
+public enum ExportFormat {
+  /**
+   * One line per point: timestamp,node,sensor,value.
+   */
+  CSV("csv"),
+  /**
+   * The compressed segment files of the store, with one chunk of timestamps and values per
+   * series, sent as they are stored.
+   */
+  COLUMNAR("columnar");
+
+  private final String label;
+
+  ExportFormat(String label) {
+    this.label = label;
+  }
+
+  /**
+   * Get the name of the format used in export requests, like "csv".
+   *
+   * @return the label
+   */
+  public String getLabel() {
+    return label;
+  }
+
+  /**
+   * Find a format by its label.
+   *
+   * @param label the label, like "columnar"
+   * @return the format, or null if there is none with the label
+   */
+  public static ExportFormat fromLabel(String label) {
+    for (ExportFormat format : values()) {
+      if (format.label.equals(label)) {
+        return format;
+      }
+    }
+    return null;
+  }
+}
@@ -0,0 +1,228 @@
+package no.ntnu.history;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import no.ntnu.tools.metrics.Metrics;
+
+/**
+ * Bulk export of the sensor history in a time range, for offline analysis. Two formats are
+ * supported:
+ * <ul>
+ *   <li>{@link ExportFormat#CSV} - a header line, then one line per point in the range:
+ *       timestamp,node,sensor,value. Lines are grouped by segment and series, not sorted by
+ *       time.</li>
+ *   <li>{@link ExportFormat#COLUMNAR} - every segment which overlaps the range, whole, in the
+ *       compressed format of the store: one chunk of delta-encoded timestamps and values per
+ *       series. The points are not filtered, so a segment can hold points outside the range.
+ *       <pre>
+ *   int magic "GHX1", long from, long to
+ *   per segment: long sequence, long length, the segment file
+ *   long 0
+ *       </pre></li>
+ * </ul>
+ * Compressed segments are sent straight from their files. When the target is a plain socket,
+ * they are sent with {@link FileChannel#transferTo}, so the kernel copies them from the page
+ * cache to the socket without passing through the JVM. Other targets, like a TLS channel which
+ * has to encrypt the data, get them through a large direct buffer. Segments which are not
+ * compressed yet are encoded in memory.
+ */
+public class HistoryExport {
+  /**
+   * The first four bytes of a columnar export.
+   */
+  public static final int COLUMNAR_MAGIC = 0x47485831;
+  private static final int BUFFER_SIZE = 1 << 20;
+  private static final long END_OF_SEGMENTS = 0;
+
+  private final SensorHistoryStore store;
+  private final long from;
+  private final long to;
+
+  /**
+   * Create an export of a time range.
+   *
+   * @param store the store to export from
+   * @param from  start of the range, inclusive, epoch milliseconds
+   * @param to    end of the range, exclusive, epoch milliseconds
+   */
+  public HistoryExport(SensorHistoryStore store, long from, long to) {
+    if (to <= from) {
+      throw new IllegalArgumentException("Empty export range: " + from + "-" + to);
+    }
+    this.store = store;
+    this.from = from;
+    this.to = to;
+  }
+
+  /**
+   * Write the export to a channel.
+   *
+   * @param target the channel to write to
+   * @param format the format of the export
+   * @return the number of bytes written
+   * @throws IOException if writing fails
+   */
+  public long writeTo(WritableByteChannel target, ExportFormat format) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    long written = format == ExportFormat.CSV ? writeCsv(target, buffer)
+        : writeColumnar(target, buffer);
+    Metrics.counter("history_export_bytes_total", "format", format.getLabel()).add(written);
+    return written;
+  }
+
+  private long writeColumnar(WritableByteChannel target, ByteBuffer buffer) throws IOException {
+    buffer.putInt(COLUMNAR_MAGIC).putLong(from).putLong(to);
+    long written = Integer.BYTES + 2 * Long.BYTES;
+    for (StoredSegment segment : store.getSegments(from, to)) {
+      if (segment instanceof CompressedSegment compressed) {
+        long size = compressed.getSizeInBytes();
+        buffer.putLong(compressed.getSequence()).putLong(size);
+        written += 2 * Long.BYTES + size;
+        sendFile(compressed.getFile(), size, target, buffer);
+      } else {
+        ByteBuffer encoded = CompressedSegment.encode((HistorySegment) segment);
+        buffer.putLong(segment.getSequence()).putLong(encoded.remaining());
+        written += 2 * Long.BYTES + encoded.remaining();
+        drain(buffer, target);
+        writeFully(encoded, target);
+      }
+    }
+    buffer.putLong(END_OF_SEGMENTS);
+    drain(buffer, target);
+    return written + Long.BYTES;
+  }
+
+  /**
+   * Send a file after the bytes waiting in the buffer.
+   */
+  private static void sendFile(Path file, long size, WritableByteChannel target,
+                               ByteBuffer buffer) throws IOException {
+    drain(buffer, target);
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      long position = 0;
+      if (target instanceof SocketChannel) {
+        while (position < size) {
+          position += channel.transferTo(position, size - position, target);
+        }
+      } else {
+        while (position < size) {
+          buffer.limit((int) Math.min(buffer.capacity(), buffer.position() + size - position));
+          int read = channel.read(buffer, position);
+          if (read < 0) {
+            throw new EOFException("History segment " + file + " is shorter than expected");
+          }
+          position += read;
+          if (!buffer.hasRemaining()) {
+            drain(buffer, target);
+          }
+        }
+        drain(buffer, target);
+      }
+    }
+  }
+
+  private long writeCsv(WritableByteChannel target, ByteBuffer buffer) throws IOException {
+    StringBuilder line = new StringBuilder("timestamp,node,sensor,value\n");
+    long[] written = {0};
+    put(line, buffer, target, written);
+    try {
+      for (StoredSegment segment : store.getSegments(from, to)) {
+        segment.scanAll((nodeId, sensorIndex, timestamp, value) -> {
+          if (timestamp >= from && timestamp < to) {
+            line.setLength(0);
+            line.append(timestamp).append(',').append(nodeId).append(',').append(sensorIndex)
+                .append(',').append(value).append('\n');
+            try {
+              put(line, buffer, target, written);
+            } catch (IOException e) {
+              throw new UncheckedIOException(e);
+            }
+          }
+        });
+      }
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+    drain(buffer, target);
+    return written[0];
+  }
+
+  private static void put(CharSequence line, ByteBuffer buffer, WritableByteChannel target,
+                          long[] written) throws IOException {
+    if (buffer.remaining() < line.length()) {
+      drain(buffer, target);
+    }
+    for (int i = 0; i < line.length(); i++) {
+      buffer.put((byte) line.charAt(i));
+    }
+    written[0] += line.length();
+  }
+
+  /**
+   * Write the bytes in the buffer and clear it for filling.
+   */
+  private static void drain(ByteBuffer buffer, WritableByteChannel target) throws IOException {
+    buffer.flip();
+    writeFully(buffer, target);
+    buffer.clear();
+  }
+
+  private static void writeFully(ByteBuffer source, WritableByteChannel target)
+      throws IOException {
+    while (source.hasRemaining()) {
+      target.write(source);
+    }
+  }
+
+  /**
+   * Store the segments of a columnar export as segment files in a directory. The directory can
+   * then be opened as a {@link SensorHistoryStore} to query the exported history.
+   *
+   * @param in        the export, from its first byte
+   * @param directory the directory to store the segments in, created if needed
+   * @return the number of stored segments
+   * @throws IOException if the export is malformed or the files can't be written
+   */
+  public static int unpackColumnar(InputStream in, Path directory) throws IOException {
+    DataInputStream data = new DataInputStream(in);
+    if (data.readInt() != COLUMNAR_MAGIC) {
+      throw new IOException("Not a columnar history export");
+    }
+    data.readLong();
+    data.readLong();
+    Files.createDirectories(directory);
+    byte[] block = new byte[64 * 1024];
+    int count = 0;
+    long sequence;
+    while ((sequence = data.readLong()) != END_OF_SEGMENTS) {
+      long remaining = data.readLong();
+      Path file = directory.resolve(CompressedSegment.fileName(sequence));
+      Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+      try (OutputStream out = Files.newOutputStream(temporary)) {
+        while (remaining > 0) {
+          int read = data.read(block, 0, (int) Math.min(block.length, remaining));
+          if (read < 0) {
+            throw new EOFException("Columnar history export ended inside segment " + sequence);
+          }
+          out.write(block, 0, read);
+          remaining -= read;
+        }
+      }
+      Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING);
+      count++;
+    }
+    return count;
+  }
+}
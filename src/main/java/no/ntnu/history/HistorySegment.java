@@ -0,0 +1,258 @@
+package no.ntnu.history;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAccumulator;
+
+/**
+ * One memory-mapped segment file of the sensor history, holding a fixed number of fixed-size
+ * records: timestamp (8 bytes), node ID (4), sensor index (4) and value (8). Writers reserve a
+ * slot with a single atomic increment, fill in the record and publish it by writing the timestamp
+ * last, with release semantics. A record with timestamp 0 is not published (yet), readers skip it.
+ * When the segment is sealed, its time range and record count are written to a small index file
+ * next to it, so reopening the store does not have to scan the sealed segments.
+ */
+class HistorySegment implements StoredSegment {
+  static final int RECORD_SIZE = 24;
+  private static final int NODE_OFFSET = 8;
+  private static final int SENSOR_OFFSET = 12;
+  private static final int VALUE_OFFSET = 16;
+  private static final VarHandle TIMESTAMPS =
+      MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
+  private final long sequence;
+  private final Path dataFile;
+  private final Path indexFile;
+  private final int capacity;
+  private final MappedByteBuffer buffer;
+  private final AtomicLong reserved = new AtomicLong();
+  private final LongAccumulator minTimestamp = new LongAccumulator(Math::min, Long.MAX_VALUE);
+  private final LongAccumulator maxTimestamp = new LongAccumulator(Math::max, Long.MIN_VALUE);
+  private volatile boolean sealed;
+
+  private HistorySegment(long sequence, Path dataFile, int capacity) throws IOException {
+    this.sequence = sequence;
+    this.dataFile = dataFile;
+    this.indexFile = dataFile.resolveSibling(dataFile.getFileName() + ".idx");
+    this.capacity = capacity;
+    try (FileChannel channel = FileChannel.open(dataFile, StandardOpenOption.CREATE,
+        StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, (long) capacity * RECORD_SIZE);
+    }
+  }
+
+  /**
+   * Create a new, empty segment file.
+   *
+   * @param directory the directory of the store
+   * @param sequence  the sequence number of the segment
+   * @param capacity  the number of records in the segment
+   * @return the new segment
+   * @throws IOException if the file can't be created or mapped
+   */
+  static HistorySegment create(Path directory, long sequence, int capacity) throws IOException {
+    return new HistorySegment(sequence, directory.resolve(fileName(sequence)), capacity);
+  }
+
+  /**
+   * Open an existing segment file. The time range and record count are read from the index file
+   * when the segment was sealed, otherwise they are recovered by scanning the records.
+   *
+   * @param dataFile the segment file
+   * @param sequence the sequence number of the segment
+   * @return the opened segment
+   * @throws IOException if the file can't be mapped
+   */
+  static HistorySegment open(Path dataFile, long sequence) throws IOException {
+    int capacity = (int) (Files.size(dataFile) / RECORD_SIZE);
+    HistorySegment segment = new HistorySegment(sequence, dataFile, capacity);
+    if (!segment.readIndex()) {
+      segment.recover();
+    }
+    return segment;
+  }
+
+  static String fileName(long sequence) {
+    return String.format("segment-%012d.dat", sequence);
+  }
+
+  /**
+   * Reserve the next free slot. Slots at or beyond the capacity are not usable; the writer which
+   * gets slot number {@code capacity} exactly is the one which must roll to a new segment.
+   *
+   * @return the reserved slot
+   */
+  long reserve() {
+    return reserved.getAndIncrement();
+  }
+
+  /**
+   * Write a record into a reserved slot and publish it.
+   *
+   * @param slot        a slot returned by {@link #reserve()}, below the capacity
+   * @param timestamp   when the reading was captured, epoch milliseconds, positive
+   * @param nodeId      ID of the node
+   * @param sensorIndex index of the sensor on the node
+   * @param value       the reading
+   */
+  void write(long slot, long timestamp, int nodeId, int sensorIndex, double value) {
+    int offset = (int) slot * RECORD_SIZE;
+    buffer.putInt(offset + NODE_OFFSET, nodeId);
+    buffer.putInt(offset + SENSOR_OFFSET, sensorIndex);
+    buffer.putDouble(offset + VALUE_OFFSET, value);
+    TIMESTAMPS.setRelease(buffer, offset, timestamp);
+    minTimestamp.accumulate(timestamp);
+    maxTimestamp.accumulate(timestamp);
+  }
+
+  @Override
+  public void scan(int nodeId, int sensorIndex, long from, long to, PointConsumer consumer) {
+    long count = getCount();
+    for (int slot = 0; slot < count; slot++) {
+      int offset = slot * RECORD_SIZE;
+      long timestamp = (long) TIMESTAMPS.getAcquire(buffer, offset);
+      if (timestamp >= from && timestamp < to
+          && buffer.getInt(offset + NODE_OFFSET) == nodeId
+          && buffer.getInt(offset + SENSOR_OFFSET) == sensorIndex) {
+        consumer.accept(timestamp, buffer.getDouble(offset + VALUE_OFFSET));
+      }
+    }
+  }
+
+  /**
+   * Wait until the writers which reserved slots have published their records. Writers take
+   * nanoseconds, so this only waits longer for holes left by a crash, which are never filled.
+   *
+   * @param timeoutMillis the maximum time to wait for the whole segment
+   */
+  void awaitPublished(long timeoutMillis) {
+    long deadline = System.currentTimeMillis() + timeoutMillis;
+    long count = getCount();
+    for (int slot = 0; slot < count; slot++) {
+      while ((long) TIMESTAMPS.getAcquire(buffer, slot * RECORD_SIZE) == 0
+          && System.currentTimeMillis() < deadline) {
+        Thread.onSpinWait();
+      }
+    }
+  }
+
+  @Override
+  public void scanAll(RecordConsumer consumer) {
+    long count = getCount();
+    for (int slot = 0; slot < count; slot++) {
+      int offset = slot * RECORD_SIZE;
+      long timestamp = (long) TIMESTAMPS.getAcquire(buffer, offset);
+      if (timestamp != 0) {
+        consumer.accept(buffer.getInt(offset + NODE_OFFSET), buffer.getInt(offset + SENSOR_OFFSET),
+            timestamp, buffer.getDouble(offset + VALUE_OFFSET));
+      }
+    }
+  }
+
+  @Override
+  public boolean overlaps(long from, long to) {
+    return getMinTimestamp() < to && getMaxTimestamp() >= from;
+  }
+
+  @Override
+  public long getSequence() {
+    return sequence;
+  }
+
+  int getCapacity() {
+    return capacity;
+  }
+
+  Path getDataFile() {
+    return dataFile;
+  }
+
+  Path getIndexFile() {
+    return indexFile;
+  }
+
+  /**
+   * Get the number of slots which have been handed out, at most the capacity. Some of them may
+   * not be published yet.
+   *
+   * @return the number of used slots
+   */
+  @Override
+  public long getCount() {
+    return Math.min(reserved.get(), capacity);
+  }
+
+  long getMinTimestamp() {
+    return minTimestamp.get();
+  }
+
+  long getMaxTimestamp() {
+    return maxTimestamp.get();
+  }
+
+  boolean isSealed() {
+    return sealed;
+  }
+
+  /**
+   * Flush the written records to disk.
+   */
+  void force() {
+    buffer.force();
+  }
+
+  /**
+   * Mark the segment as complete: flush it and write its index file.
+   *
+   * @throws IOException if the index file can't be written
+   */
+  void seal() throws IOException {
+    force();
+    try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(indexFile))) {
+      out.writeLong(getCount());
+      out.writeLong(getMinTimestamp());
+      out.writeLong(getMaxTimestamp());
+    }
+    sealed = true;
+  }
+
+  private boolean readIndex() throws IOException {
+    if (!Files.exists(indexFile)) {
+      return false;
+    }
+    try (DataInputStream in = new DataInputStream(Files.newInputStream(indexFile))) {
+      reserved.set(in.readLong());
+      minTimestamp.accumulate(in.readLong());
+      maxTimestamp.accumulate(in.readLong());
+    }
+    sealed = true;
+    return true;
+  }
+
+  /**
+   * Rebuild the count and the time range by scanning the records. Slots after the last published
+   * record are free again; unpublished slots before it stay as holes.
+   */
+  private void recover() {
+    long count = 0;
+    for (int slot = 0; slot < capacity; slot++) {
+      long timestamp = (long) TIMESTAMPS.getAcquire(buffer, slot * RECORD_SIZE);
+      if (timestamp != 0) {
+        minTimestamp.accumulate(timestamp);
+        maxTimestamp.accumulate(timestamp);
+        count = slot + 1L;
+      }
+    }
+    reserved.set(count);
+  }
+}
@@ -0,0 +1,15 @@
+package no.ntnu.history;
+
+/**
+ * Receives the points of a sensor series, one at a time, without boxing.
+ */
+@FunctionalInterface
+public interface PointConsumer {
+  /**
+   * Accept one point.
+   *
+   * @param timestamp when the reading was captured, epoch milliseconds
+   * @param value     the value of the reading
+   */
+  void accept(long timestamp, double value);
+}
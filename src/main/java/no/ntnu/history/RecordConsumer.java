@@ -0,0 +1,17 @@
+package no.ntnu.history;
+
+/**
+ * Receives the points of the sensor history together with their series.
+ */
+@FunctionalInterface
+interface RecordConsumer {
+  /**
+   * Receive a point.
+   *
+   * @param nodeId      ID of the node
+   * @param sensorIndex index of the sensor on the node
+   * @param timestamp   when the reading was captured, epoch milliseconds
+   * @param value       the reading
+   */
+  void accept(int nodeId, int sensorIndex, long timestamp, double value);
+}
@@ -0,0 +1,261 @@
+package no.ntnu.history;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import no.ntnu.tools.Logger;
+
+/**
+ * Maintains downsampled aggregates of the sensor history - min, max, sum, count and last value
+ * per minute, hour and day - as readings arrive, so queries over long ranges read a few buckets
+ * instead of all raw points. Every series has its open buckets in primitive fields, found through
+ * a lock-free hash table, so adding a reading takes constant time and allocates nothing. Finished
+ * buckets are appended to one {@link RollupFile} per resolution, partitioned by time.
+ * Open buckets are written when the aggregator is closed, together with a marker file. When the
+ * marker is missing on the next start, the server stopped without closing the aggregator, and the
+ * open buckets were lost; the rollups must then be rebuilt from the raw history with
+ * {@link #rebuild}. Only the buckets which the raw history still covers are rebuilt, so the
+ * rollups outlive the retention period of the raw history.
+ */
+public class RollupAggregator implements AutoCloseable {
+  private static final String CLEAN_MARKER = "rollup.clean";
+  private static final int INITIAL_TABLE_SIZE = 1024;
+
+  private final Path directory;
+  private final RollupFile[] files = new RollupFile[RollupResolution.values().length];
+  private final boolean closedCleanly;
+  private volatile AtomicReferenceArray<SeriesRollup> table =
+      new AtomicReferenceArray<>(INITIAL_TABLE_SIZE);
+  private int seriesCount;
+
+  /**
+   * Open the rollup files in a directory, creating them if needed. Rollups in the old format of
+   * one file per resolution are deleted and must be rebuilt.
+   *
+   * @param directory the directory of the rollup files
+   * @throws IOException if the files can't be opened
+   */
+  public RollupAggregator(Path directory) throws IOException {
+    this.directory = directory;
+    Files.createDirectories(directory);
+    boolean legacy = false;
+    for (RollupResolution resolution : RollupResolution.values()) {
+      legacy |= Files.deleteIfExists(directory.resolve("rollup-" + resolution.getLabel()
+          + ".dat"));
+      files[resolution.ordinal()] = new RollupFile(directory, resolution);
+    }
+    closedCleanly = Files.deleteIfExists(directory.resolve(CLEAN_MARKER)) && !legacy;
+  }
+
+  /**
+   * Check whether the rollups are complete: the aggregator was closed properly the last time.
+   *
+   * @return false if the rollups should be rebuilt from the raw history
+   */
+  public boolean wasClosedCleanly() {
+    return closedCleanly;
+  }
+
+  /**
+   * Add a reading to the aggregates. Can be called from many threads at the same time.
+   *
+   * @param nodeId      ID of the node
+   * @param sensorIndex index of the sensor on the node
+   * @param timestamp   when the reading was captured, epoch milliseconds
+   * @param value       the reading
+   * @throws UncheckedIOException if a finished bucket could not be written
+   */
+  public void add(int nodeId, int sensorIndex, long timestamp, double value) {
+    series(nodeId, sensorIndex).add(timestamp, value, files);
+  }
+
+  /**
+   * Visit the buckets of one sensor within a time range, in time order, including the open
+   * bucket.
+   *
+   * @param nodeId      ID of the node
+   * @param sensorIndex index of the sensor on the node
+   * @param resolution  the bucket size
+   * @param from        start of the range, inclusive, epoch milliseconds
+   * @param to          end of the range, exclusive, epoch milliseconds
+   * @param consumer    receives the buckets
+   * @throws IOException if the rollup file can't be read
+   */
+  public void query(int nodeId, int sensorIndex, RollupResolution resolution, long from, long to,
+      RollupConsumer consumer) throws IOException {
+    long firstBucket = resolution.bucketStart(from);
+    Map<Long, MergedBucket> buckets = new TreeMap<>();
+    RollupFile.RecordVisitor merger = (bucketStart, min, max, sum, count, last, lastTimestamp) ->
+        buckets.computeIfAbsent(bucketStart, start -> new MergedBucket())
+            .merge(min, max, sum, count, last, lastTimestamp);
+    files[resolution.ordinal()].scan(nodeId, sensorIndex, firstBucket, to, merger);
+    SeriesRollup series = find(table, nodeId, sensorIndex);
+    if (series != null) {
+      series.visitOpen(resolution, firstBucket, to, merger);
+    }
+    for (Map.Entry<Long, MergedBucket> entry : buckets.entrySet()) {
+      MergedBucket bucket = entry.getValue();
+      consumer.accept(entry.getKey(), bucket.min, bucket.max, bucket.sum, bucket.count,
+          bucket.last);
+    }
+  }
+
+  /**
+   * Compute the rollups again from the raw history. Per resolution, the buckets from the first
+   * one which the raw history covers completely are discarded and rebuilt; older buckets, whose
+   * raw points were deleted for the retention period, are kept as they were written. Must be
+   * called before readings are added, and before the raw history is expired further.
+   *
+   * @param store the raw sensor history
+   * @throws IOException if the rollup files can't be rewritten
+   */
+  public synchronized void rebuild(SensorHistoryStore store) throws IOException {
+    long start = System.currentTimeMillis();
+    long completeFrom = store.getCompleteFrom();
+    long[] from = new long[files.length];
+    for (RollupResolution resolution : RollupResolution.values()) {
+      from[resolution.ordinal()] = firstCompleteBucket(resolution, completeFrom);
+      files[resolution.ordinal()].truncateFrom(from[resolution.ordinal()]);
+    }
+    table = new AtomicReferenceArray<>(INITIAL_TABLE_SIZE);
+    seriesCount = 0;
+    long[] points = new long[1];
+    store.scanAll((nodeId, sensorIndex, timestamp, value) -> {
+      if (timestamp >= from[0]) {
+        series(nodeId, sensorIndex).rebuild(timestamp, value, files, from);
+        points[0]++;
+      }
+    });
+    Logger.info("Rebuilt sensor history rollups from " + points[0] + " points of "
+        + seriesCount + " series in " + (System.currentTimeMillis() - start) + " ms"
+        + (completeFrom == Long.MIN_VALUE ? "" : ", keeping the buckets before " + completeFrom));
+  }
+
+  /**
+   * Get the start of the first bucket which holds no points from before a time.
+   */
+  private static long firstCompleteBucket(RollupResolution resolution, long completeFrom) {
+    if (completeFrom == Long.MIN_VALUE || completeFrom == Long.MAX_VALUE) {
+      return completeFrom;
+    }
+    long bucketStart = resolution.bucketStart(completeFrom);
+    return bucketStart == completeFrom ? bucketStart : bucketStart + resolution.getMillis();
+  }
+
+  /**
+   * Get the number of series with aggregates.
+   *
+   * @return the number of series
+   */
+  public synchronized int getSeriesCount() {
+    return seriesCount;
+  }
+
+  /**
+   * Write the open buckets, flush the rollup files and mark the rollups as complete.
+   *
+   * @throws IOException if the files can't be written
+   */
+  @Override
+  public synchronized void close() throws IOException {
+    AtomicReferenceArray<SeriesRollup> current = table;
+    for (int i = 0; i < current.length(); i++) {
+      SeriesRollup series = current.get(i);
+      if (series != null) {
+        series.flushAll(files);
+      }
+    }
+    for (RollupFile file : files) {
+      file.force();
+      file.close();
+    }
+    Files.createFile(directory.resolve(CLEAN_MARKER));
+  }
+
+  private SeriesRollup series(int nodeId, int sensorIndex) {
+    SeriesRollup series = find(table, nodeId, sensorIndex);
+    return series != null ? series : insert(nodeId, sensorIndex);
+  }
+
+  /**
+   * Find a series in a table by linear probing, without locking. A series added while the table
+   * was replaced may be missed, callers then look again under the lock.
+   */
+  private static SeriesRollup find(AtomicReferenceArray<SeriesRollup> table, int nodeId,
+      int sensorIndex) {
+    int mask = table.length() - 1;
+    for (int i = hash(nodeId, sensorIndex) & mask; ; i = (i + 1) & mask) {
+      SeriesRollup series = table.get(i);
+      if (series == null
+          || series.getNodeId() == nodeId && series.getSensorIndex() == sensorIndex) {
+        return series;
+      }
+    }
+  }
+
+  private synchronized SeriesRollup insert(int nodeId, int sensorIndex) {
+    SeriesRollup series = find(table, nodeId, sensorIndex);
+    if (series == null) {
+      if ((seriesCount + 1) * 2 > table.length()) {
+        table = copy(table, table.length() * 2);
+      }
+      series = new SeriesRollup(nodeId, sensorIndex);
+      put(table, series);
+      seriesCount++;
+    }
+    return series;
+  }
+
+  private static AtomicReferenceArray<SeriesRollup> copy(AtomicReferenceArray<SeriesRollup> old,
+      int size) {
+    AtomicReferenceArray<SeriesRollup> table = new AtomicReferenceArray<>(size);
+    for (int i = 0; i < old.length(); i++) {
+      SeriesRollup series = old.get(i);
+      if (series != null) {
+        put(table, series);
+      }
+    }
+    return table;
+  }
+
+  private static void put(AtomicReferenceArray<SeriesRollup> table, SeriesRollup series) {
+    int mask = table.length() - 1;
+    int i = hash(series.getNodeId(), series.getSensorIndex()) & mask;
+    while (table.get(i) != null) {
+      i = (i + 1) & mask;
+    }
+    table.set(i, series);
+  }
+
+  private static int hash(int nodeId, int sensorIndex) {
+    long key = ((long) nodeId << 32) | (sensorIndex & 0xFFFFFFFFL);
+    return (int) ((key * 0x9E3779B97F4A7C15L) >>> 32);
+  }
+
+  /**
+   * The merged records of one bucket, in a query.
+   */
+  private static class MergedBucket {
+    private double min = Double.POSITIVE_INFINITY;
+    private double max = Double.NEGATIVE_INFINITY;
+    private double sum;
+    private long count;
+    private double last;
+    private long lastTimestamp = Long.MIN_VALUE;
+
+    void merge(double min, double max, double sum, long count, double last, long lastTimestamp) {
+      this.min = Math.min(this.min, min);
+      this.max = Math.max(this.max, max);
+      this.sum += sum;
+      this.count += count;
+      if (lastTimestamp >= this.lastTimestamp) {
+        this.last = last;
+        this.lastTimestamp = lastTimestamp;
+      }
+    }
+  }
+}
@@ -0,0 +1,19 @@
+package no.ntnu.history;
+
+/**
+ * Receives the buckets of a rollup query.
+ */
+@FunctionalInterface
+public interface RollupConsumer {
+  /**
+   * Receive the aggregate of one bucket.
+   *
+   * @param bucketStart start of the bucket, epoch milliseconds
+   * @param min         the smallest reading in the bucket
+   * @param max         the largest reading in the bucket
+   * @param sum         the sum of the readings
+   * @param count       the number of readings
+   * @param last        the reading with the latest timestamp
+   */
+  void accept(long bucketStart, double min, double max, double sum, long count, double last);
+}
@@ -0,0 +1,585 @@
+package no.ntnu.history;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import no.ntnu.tools.Logger;
+
+/**
+ * Append-only store of the finished rollup buckets of one resolution, with fixed-size records:
+ * node ID (4 bytes), sensor index (4), bucket start (8), min, max and sum (8 each), count (8),
+ * last value (8) and the timestamp of the last value (8). The records are kept in one file per
+ * partition of time, rollup-LABEL-PARTITION.dat, so a query only reads the partitions of its
+ * range. Writers reserve a file position with an atomic increment and write with a positional
+ * write from a per-thread buffer, so appending does not allocate. A bucket may have several
+ * records, for example when a late reading arrives after the bucket was flushed; readers merge
+ * them.
+ * When the next partition starts, the previous ones are sealed in the background: their records
+ * are indexed by series in rollup-LABEL-PARTITION.idx, so a query reads only the records of its
+ * series. Late records for a sealed partition are appended after the indexed ones and scanned.
+ * Files are read with positional reads through a small buffer and long offsets, so a partition
+ * can be larger than 2 GiB and nothing stays mapped.
+ * <pre>
+ *   index: int magic, int series count, long indexed records
+ *          per series, sorted: int node ID, int sensor index, int first, int count
+ *          int record numbers, grouped by series, in file order
+ * </pre>
+ */
+class RollupFile implements AutoCloseable {
+  static final int RECORD_SIZE = 64;
+  private static final int INDEX_MAGIC = 0x47525831;
+  private static final int INDEX_HEADER_SIZE = 2 * Integer.BYTES + Long.BYTES;
+  private static final int INDEX_ENTRY_SIZE = 4 * Integer.BYTES;
+  private static final int WINDOW_SIZE = 1 << 20;
+
+  private final Path directory;
+  private final RollupResolution resolution;
+  private final Pattern fileNames;
+  private final ConcurrentSkipListMap<Long, Partition> partitions = new ConcurrentSkipListMap<>();
+  private final ThreadLocal<ByteBuffer> writeBuffers =
+      ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(RECORD_SIZE));
+  private final ExecutorService indexer;
+
+  /**
+   * Open or create the rollup files of a resolution in a directory. A partial record at the end of
+   * a file, left by a crash, is overwritten. Partitions which were not indexed yet are indexed
+   * when the next partition starts.
+   *
+   * @param directory  the directory of the files
+   * @param resolution the resolution of the buckets
+   * @throws IOException if the files can't be opened
+   */
+  RollupFile(Path directory, RollupResolution resolution) throws IOException {
+    this.directory = directory;
+    this.resolution = resolution;
+    this.fileNames = Pattern.compile("rollup-" + Pattern.quote(resolution.getLabel())
+        + "-(-?\\d+)\\.dat");
+    this.indexer = Executors.newSingleThreadExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "Rollup-Indexer-" + resolution.getLabel());
+      thread.setDaemon(true);
+      return thread;
+    });
+    try (Stream<Path> list = Files.list(directory)) {
+      for (Path file : (Iterable<Path>) list::iterator) {
+        Matcher matcher = fileNames.matcher(file.getFileName().toString());
+        if (matcher.matches()) {
+          long number = Long.parseLong(matcher.group(1));
+          partitions.put(number, new Partition(number));
+        }
+      }
+    }
+  }
+
+  /**
+   * Append a bucket.
+   *
+   * @throws UncheckedIOException if the record can't be written
+   */
+  void append(int nodeId, int sensorIndex, long bucketStart, double min, double max, double sum,
+      long count, double last, long lastTimestamp) {
+    ByteBuffer buffer = writeBuffers.get();
+    buffer.clear();
+    buffer.putInt(nodeId).putInt(sensorIndex).putLong(bucketStart)
+        .putDouble(min).putDouble(max).putDouble(sum).putLong(count)
+        .putDouble(last).putLong(lastTimestamp);
+    buffer.flip();
+    Partition partition = partition(resolution.partitionOf(bucketStart));
+    try {
+      partition.append(buffer);
+    } catch (IOException e) {
+      throw new UncheckedIOException("Could not write rollup to " + partition.file, e);
+    }
+  }
+
+  private Partition partition(long number) {
+    Partition partition = partitions.get(number);
+    if (partition != null) {
+      return partition;
+    }
+    synchronized (partitions) {
+      partition = partitions.get(number);
+      if (partition == null) {
+        try {
+          partition = new Partition(number);
+        } catch (IOException e) {
+          throw new UncheckedIOException("Could not create rollup partition " + number, e);
+        }
+        partitions.put(number, partition);
+        sealBefore(number);
+      }
+      return partition;
+    }
+  }
+
+  /**
+   * Index the partitions before a partition in the background, if they are not sealed yet.
+   */
+  private void sealBefore(long number) {
+    for (Partition partition : partitions.headMap(number).values()) {
+      if (partition.sealing.compareAndSet(false, true)) {
+        indexer.execute(() -> seal(partition));
+      }
+    }
+  }
+
+  /**
+   * Visit the records of one series with a bucket start in a time range. The records of a
+   * partition are visited in file order.
+   *
+   * @param nodeId      ID of the node
+   * @param sensorIndex index of the sensor on the node
+   * @param from        start of the range, inclusive
+   * @param to          end of the range, exclusive
+   * @param visitor     receives the records
+   * @throws IOException if a file can't be read
+   */
+  void scan(int nodeId, int sensorIndex, long from, long to, RecordVisitor visitor)
+      throws IOException {
+    if (to <= from) {
+      return;
+    }
+    Map<Long, Partition> range = partitions.subMap(resolution.partitionOf(from), true,
+        resolution.partitionOf(to - 1), true);
+    for (Partition partition : range.values()) {
+      partition.scan(nodeId, sensorIndex, from, to, visitor);
+    }
+  }
+
+  /**
+   * Remove the records of the buckets which start at or after a time. Later partitions are
+   * deleted, and the partition of the time is rewritten with only the earlier records; it is
+   * indexed again when the next partition starts.
+   *
+   * @param from the first bucket start to remove
+   * @throws IOException if the files can't be deleted or rewritten
+   */
+  void truncateFrom(long from) throws IOException {
+    synchronized (partitions) {
+      long number = resolution.partitionOf(from);
+      Map<Long, Partition> later = partitions.tailMap(number, false);
+      for (Partition partition : later.values()) {
+        partition.delete();
+      }
+      later.clear();
+      Partition partition = partitions.get(number);
+      if (partition != null) {
+        if (partition.truncateFrom(from) > 0) {
+          partitions.put(number, new Partition(number));
+        } else {
+          partition.delete();
+          partitions.remove(number);
+        }
+      }
+    }
+  }
+
+  /**
+   * Flush the written records to disk.
+   *
+   * @throws IOException if the files can't be flushed
+   */
+  void force() throws IOException {
+    for (Partition partition : partitions.values()) {
+      partition.force();
+    }
+  }
+
+  /**
+   * Wait for the running indexing and close the files.
+   *
+   * @throws IOException if a file can't be closed
+   */
+  @Override
+  public void close() throws IOException {
+    indexer.shutdown();
+    try {
+      if (!indexer.awaitTermination(30, TimeUnit.SECONDS)) {
+        Logger.error("Indexing the " + resolution.getLabel() + " rollups did not finish in time");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    for (Partition partition : partitions.values()) {
+      partition.closeChannel();
+    }
+  }
+
+  private void seal(Partition partition) {
+    try {
+      long start = System.currentTimeMillis();
+      int series = partition.seal();
+      Logger.debug(() -> "Indexed rollup partition " + partition.file.getFileName() + ": "
+          + partition.indexedRecords + " records of " + series + " series in "
+          + (System.currentTimeMillis() - start) + " ms");
+    } catch (IOException e) {
+      Logger.error("Could not index rollup partition " + partition.file + ": " + e.getMessage());
+    }
+  }
+
+  /**
+   * Read from a channel until the buffer is full or the end of the file.
+   */
+  private static void readFully(FileChannel channel, ByteBuffer buffer, long position)
+      throws IOException {
+    while (buffer.hasRemaining()) {
+      int read = channel.read(buffer, position);
+      if (read < 0) {
+        throw new EOFException("Rollup file ends before position " + (position
+            + buffer.remaining()));
+      }
+      position += read;
+    }
+    buffer.flip();
+  }
+
+  private static long seriesKey(int nodeId, int sensorIndex) {
+    return ((long) nodeId << 32) | (sensorIndex & 0xFFFFFFFFL);
+  }
+
+  /**
+   * The records of one partition of time. The file stays open for appending until the partition
+   * is sealed; late records for a sealed partition open it for the one write. The read lock
+   * guards appending through the open channel, the write lock closing it.
+   */
+  private class Partition {
+    private final Path file;
+    private final Path indexFile;
+    private final AtomicLong size;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final AtomicBoolean sealing = new AtomicBoolean();
+    private FileChannel channel;
+    private volatile long indexedRecords;
+    private volatile int indexedSeries;
+
+    Partition(long number) throws IOException {
+      this.file = directory.resolve("rollup-" + resolution.getLabel() + "-" + number + ".dat");
+      this.indexFile = file.resolveSibling("rollup-" + resolution.getLabel() + "-" + number
+          + ".idx");
+      if (readIndex()) {
+        sealing.set(true);
+        this.size = new AtomicLong(Files.size(file) / RECORD_SIZE * RECORD_SIZE);
+      } else {
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+            StandardOpenOption.WRITE);
+        this.size = new AtomicLong(channel.size() / RECORD_SIZE * RECORD_SIZE);
+      }
+    }
+
+    void append(ByteBuffer buffer) throws IOException {
+      Lock read = lock.readLock();
+      read.lock();
+      try {
+        if (channel != null) {
+          write(channel, buffer, size.getAndAdd(RECORD_SIZE));
+          return;
+        }
+      } finally {
+        read.unlock();
+      }
+      Lock write = lock.writeLock();
+      write.lock();
+      try (FileChannel late = FileChannel.open(file, StandardOpenOption.WRITE)) {
+        write(late, buffer, size.getAndAdd(RECORD_SIZE));
+      } finally {
+        write.unlock();
+      }
+    }
+
+    private void write(FileChannel target, ByteBuffer buffer, long position) throws IOException {
+      while (buffer.hasRemaining()) {
+        position += target.write(buffer, position);
+      }
+    }
+
+    void scan(int nodeId, int sensorIndex, long from, long to, RecordVisitor visitor)
+        throws IOException {
+      long indexed = indexedRecords;
+      long records = size.get() / RECORD_SIZE;
+      if (records == 0) {
+        return;
+      }
+      ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(WINDOW_SIZE,
+          records * RECORD_SIZE));
+      try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+        if (indexed > 0) {
+          scanIndexed(in, buffer, nodeId, sensorIndex, from, to, visitor);
+        }
+        for (long record = indexed; record < records; ) {
+          int count = (int) Math.min(buffer.capacity() / RECORD_SIZE, records - record);
+          buffer.clear().limit(count * RECORD_SIZE);
+          readFully(in, buffer, record * RECORD_SIZE);
+          for (int offset = 0; offset < count * RECORD_SIZE; offset += RECORD_SIZE) {
+            if (buffer.getInt(offset) == nodeId && buffer.getInt(offset + 4) == sensorIndex) {
+              visit(buffer, offset, from, to, visitor);
+            }
+          }
+          record += count;
+        }
+      }
+    }
+
+    /**
+     * Visit the indexed records of a series: find the series in the index with a binary search,
+     * then read its records.
+     */
+    private void scanIndexed(FileChannel in, ByteBuffer buffer, int nodeId, int sensorIndex,
+        long from, long to, RecordVisitor visitor) throws IOException {
+      long key = seriesKey(nodeId, sensorIndex);
+      try (FileChannel index = FileChannel.open(indexFile, StandardOpenOption.READ)) {
+        ByteBuffer entry = ByteBuffer.allocate(INDEX_ENTRY_SIZE);
+        int low = 0;
+        int high = indexedSeries - 1;
+        while (low <= high) {
+          int middle = (low + high) >>> 1;
+          entry.clear();
+          readFully(index, entry, INDEX_HEADER_SIZE + (long) middle * INDEX_ENTRY_SIZE);
+          long middleKey = seriesKey(entry.getInt(0), entry.getInt(4));
+          if (middleKey < key) {
+            low = middle + 1;
+          } else if (middleKey > key) {
+            high = middle - 1;
+          } else {
+            int first = entry.getInt(8);
+            int count = entry.getInt(12);
+            ByteBuffer numbers = ByteBuffer.allocate(count * Integer.BYTES);
+            readFully(index, numbers, INDEX_HEADER_SIZE + (long) indexedSeries * INDEX_ENTRY_SIZE
+                + (long) first * Integer.BYTES);
+            for (int i = 0; i < count; i++) {
+              buffer.clear().limit(RECORD_SIZE);
+              readFully(in, buffer, (numbers.getInt(i * Integer.BYTES) & 0xFFFFFFFFL)
+                  * RECORD_SIZE);
+              visit(buffer, 0, from, to, visitor);
+            }
+            return;
+          }
+        }
+      }
+    }
+
+    private void visit(ByteBuffer buffer, int offset, long from, long to,
+        RecordVisitor visitor) {
+      long bucketStart = buffer.getLong(offset + 8);
+      if (bucketStart >= from && bucketStart < to) {
+        visitor.accept(bucketStart, buffer.getDouble(offset + 16), buffer.getDouble(offset + 24),
+            buffer.getDouble(offset + 32), buffer.getLong(offset + 40),
+            buffer.getDouble(offset + 48), buffer.getLong(offset + 56));
+      }
+    }
+
+    /**
+     * Close the file for appending and index its records by series. The keys are read and
+     * sorted first, then the record numbers are placed by series, so the index is built with
+     * three sequential reads of the file and two primitive arrays.
+     *
+     * @return the number of series
+     */
+    int seal() throws IOException {
+      long records;
+      lock.writeLock().lock();
+      try {
+        records = size.get() / RECORD_SIZE;
+        if (channel != null) {
+          channel.force(false);
+          channel.close();
+          channel = null;
+        }
+      } finally {
+        lock.writeLock().unlock();
+      }
+      if (records > Integer.MAX_VALUE - 8) {
+        throw new IOException("Too many records to index: " + records);
+      }
+      long[] keys = new long[(int) records];
+      try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+        readKeys(in, records, (record, key) -> keys[(int) record] = key);
+        Arrays.sort(keys);
+        int series = 0;
+        for (int i = 0; i < keys.length; i++) {
+          if (i == 0 || keys[i] != keys[i - 1]) {
+            keys[series++] = keys[i];
+          }
+        }
+        long[] distinct = Arrays.copyOf(keys, series);
+        int[] first = new int[series + 1];
+        readKeys(in, records, (record, key) -> first[Arrays.binarySearch(distinct, key) + 1]++);
+        for (int i = 0; i < series; i++) {
+          first[i + 1] += first[i];
+        }
+        int[] next = Arrays.copyOf(first, series);
+        int[] numbers = new int[(int) records];
+        readKeys(in, records, (record, key) ->
+            numbers[next[Arrays.binarySearch(distinct, key)]++] = (int) record);
+        writeIndex(records, distinct, first, numbers);
+        indexedSeries = series;
+        indexedRecords = records;
+        return series;
+      }
+    }
+
+    private void readKeys(FileChannel in, long records, KeyVisitor visitor) throws IOException {
+      ByteBuffer buffer = ByteBuffer.allocate(WINDOW_SIZE);
+      for (long record = 0; record < records; ) {
+        int count = (int) Math.min(WINDOW_SIZE / RECORD_SIZE, records - record);
+        buffer.clear().limit(count * RECORD_SIZE);
+        readFully(in, buffer, record * RECORD_SIZE);
+        for (int i = 0; i < count; i++) {
+          int offset = i * RECORD_SIZE;
+          visitor.accept(record + i, seriesKey(buffer.getInt(offset), buffer.getInt(offset + 4)));
+        }
+        record += count;
+      }
+    }
+
+    private void writeIndex(long records, long[] distinct, int[] first, int[] numbers)
+        throws IOException {
+      Path temporary = indexFile.resolveSibling(indexFile.getFileName() + ".tmp");
+      try (FileChannel out = FileChannel.open(temporary, StandardOpenOption.CREATE,
+          StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+        ByteBuffer buffer = ByteBuffer.allocate(WINDOW_SIZE);
+        buffer.putInt(INDEX_MAGIC).putInt(distinct.length).putLong(records);
+        for (int i = 0; i < distinct.length; i++) {
+          if (buffer.remaining() < INDEX_ENTRY_SIZE) {
+            drain(buffer, out);
+          }
+          buffer.putInt((int) (distinct[i] >>> 32)).putInt((int) distinct[i])
+              .putInt(first[i]).putInt(first[i + 1] - first[i]);
+        }
+        for (int number : numbers) {
+          if (buffer.remaining() < Integer.BYTES) {
+            drain(buffer, out);
+          }
+          buffer.putInt(number);
+        }
+        drain(buffer, out);
+        out.force(true);
+      }
+      Files.move(temporary, indexFile, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void drain(ByteBuffer buffer, FileChannel out) throws IOException {
+      buffer.flip();
+      while (buffer.hasRemaining()) {
+        out.write(buffer);
+      }
+      buffer.clear();
+    }
+
+    private boolean readIndex() throws IOException {
+      if (!Files.exists(indexFile)) {
+        return false;
+      }
+      try (FileChannel in = FileChannel.open(indexFile, StandardOpenOption.READ)) {
+        ByteBuffer header = ByteBuffer.allocate(INDEX_HEADER_SIZE);
+        readFully(in, header, 0);
+        if (header.getInt(0) != INDEX_MAGIC) {
+          throw new IOException("Not a rollup index: " + indexFile);
+        }
+        indexedSeries = header.getInt(4);
+        indexedRecords = header.getLong(8);
+      }
+      return true;
+    }
+
+    void force() throws IOException {
+      lock.readLock().lock();
+      try {
+        if (channel != null) {
+          channel.force(false);
+        }
+      } finally {
+        lock.readLock().unlock();
+      }
+    }
+
+    void closeChannel() throws IOException {
+      lock.writeLock().lock();
+      try {
+        if (channel != null) {
+          channel.close();
+          channel = null;
+        }
+      } finally {
+        lock.writeLock().unlock();
+      }
+    }
+
+    /**
+     * Copy the records of the buckets which start before a time to a new file, which replaces
+     * the partition file. The index is deleted first, so a crash leaves either file unindexed.
+     * The partition object must not be used afterwards.
+     *
+     * @return the number of records kept
+     */
+    long truncateFrom(long from) throws IOException {
+      closeChannel();
+      long records = size.get() / RECORD_SIZE;
+      long kept = 0;
+      Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+      try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ);
+          FileChannel out = FileChannel.open(temporary, StandardOpenOption.CREATE,
+              StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.max(RECORD_SIZE,
+            Math.min(WINDOW_SIZE, records * RECORD_SIZE)));
+        for (long record = 0; record < records; ) {
+          int count = (int) Math.min(buffer.capacity() / RECORD_SIZE, records - record);
+          buffer.clear().limit(count * RECORD_SIZE);
+          readFully(in, buffer, record * RECORD_SIZE);
+          for (int offset = 0; offset < count * RECORD_SIZE; offset += RECORD_SIZE) {
+            if (buffer.getLong(offset + 8) < from) {
+              write(out, buffer.duplicate().limit(offset + RECORD_SIZE).position(offset),
+                  kept++ * RECORD_SIZE);
+            }
+          }
+          record += count;
+        }
+        out.force(true);
+      }
+      Files.deleteIfExists(indexFile);
+      Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+      return kept;
+    }
+
+    void delete() throws IOException {
+      closeChannel();
+      Files.deleteIfExists(file);
+      Files.deleteIfExists(indexFile);
+    }
+  }
+
+  /**
+   * Receives the series key of every record of a partition.
+   */
+  @FunctionalInterface
+  private interface KeyVisitor {
+    void accept(long record, long key);
+  }
+
+  /**
+   * Receives the records of a rollup file.
+   */
+  @FunctionalInterface
+  interface RecordVisitor {
+    void accept(long bucketStart, double min, double max, double sum, long count, double last,
+        long lastTimestamp);
+  }
+}
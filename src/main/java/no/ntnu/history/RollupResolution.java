@@ -0,0 +1,85 @@
+package no.ntnu.history;
+
+/**
+ * The resolutions of the downsampled sensor history. Buckets are aligned to the epoch, so a day
+ * bucket runs from midnight to midnight UTC. The buckets of a resolution are stored in partitions
+ * of a fixed time span, also aligned to the epoch, so a query only reads the partitions of its
+ * range.
+ */
+public enum RollupResolution {
+  MINUTE(60_000L, "1m", 3_600_000L),
+  HOUR(3_600_000L, "1h", 86_400_000L),
+  DAY(86_400_000L, "1d", 30 * 86_400_000L);
+
+  private final long millis;
+  private final String label;
+  private final long partitionMillis;
+
+  RollupResolution(long millis, String label, long partitionMillis) {
+    this.millis = millis;
+    this.label = label;
+    this.partitionMillis = partitionMillis;
+  }
+
+  /**
+   * Get the length of a bucket.
+   *
+   * @return the bucket length in milliseconds
+   */
+  public long getMillis() {
+    return millis;
+  }
+
+  /**
+   * Get the time span of a partition of stored buckets.
+   *
+   * @return the partition length in milliseconds, a multiple of the bucket length
+   */
+  public long getPartitionMillis() {
+    return partitionMillis;
+  }
+
+  /**
+   * Get the number of the partition which holds a bucket.
+   *
+   * @param bucketStart the start of the bucket, epoch milliseconds
+   * @return the partition number, counted from the epoch
+   */
+  long partitionOf(long bucketStart) {
+    return Math.floorDiv(bucketStart, partitionMillis);
+  }
+
+  /**
+   * Get the short name of the resolution, like "1m".
+   *
+   * @return the label
+   */
+  public String getLabel() {
+    return label;
+  }
+
+  /**
+   * Get the start of the bucket which contains a timestamp.
+   *
+   * @param timestamp epoch milliseconds
+   * @return the start of the bucket, epoch milliseconds
+   */
+  public long bucketStart(long timestamp) {
+    return Math.floorDiv(timestamp, millis) * millis;
+  }
+
+  /**
+   * Find a resolution by its label.
+   *
+   * @param label the label, like "1h"
+   * @return the resolution, or null if there is none with the label
+   */
+  public static RollupResolution fromLabel(String label) {
+    for (RollupResolution resolution : values()) {
+      if (resolution.label.equals(label)) {
+        return resolution;
+      }
+    }
+    return null;
+  }
+}
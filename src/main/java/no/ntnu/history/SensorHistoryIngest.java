@@ -0,0 +1,83 @@
+package no.ntnu.history;
+
+import java.io.UncheckedIOException;
+import no.ntnu.listeners.server.SensorDataListener;
+import no.ntnu.tools.Logger;
+import no.ntnu.tools.Parser;
+import no.ntnu.tools.metrics.Counter;
+import no.ntnu.tools.metrics.Metrics;
+
+/**
+ * Stores the sensor data received by the server in a {@link SensorHistoryStore}, and optionally
+ * adds it to the aggregates of a {@link RollupAggregator}.
+ * The readings of a node are formatted as type=value unit,type=value unit,... and the position of
+ * a reading in the list is its sensor index, since a node always reports its sensors in the same
+ * order. The values are parsed in place, without creating substrings, so ingesting does not
+ * produce garbage on the hot path. Data with a capture time which is not positive can't be stored
+ * and is counted as malformed.
+ */
+public class SensorHistoryIngest implements SensorDataListener {
+  private static final Counter MALFORMED = Metrics.counter("history_malformed_readings_total");
+
+  private final SensorHistoryStore store;
+  private final RollupAggregator rollups;
+
+  /**
+   * Create an ingest into the given store.
+   *
+   * @param store the store which receives the readings
+   */
+  public SensorHistoryIngest(SensorHistoryStore store) {
+    this(store, null);
+  }
+
+  /**
+   * Create an ingest into the given store and rollups.
+   *
+   * @param store   the store which receives the readings
+   * @param rollups the aggregates which receive the readings, or null
+   */
+  public SensorHistoryIngest(SensorHistoryStore store, RollupAggregator rollups) {
+    this.store = store;
+    this.rollups = rollups;
+  }
+
+  @Override
+  public void onSensorData(int nodeId, String sensorData, long captureTime) {
+    if (captureTime <= 0) {
+      MALFORMED.increment();
+      Logger.debug(() -> "Ignored sensor data from node " + nodeId + " with capture time "
+          + captureTime);
+      return;
+    }
+    int sensorIndex = 0;
+    int position = 0;
+    int length = sensorData.length();
+    try {
+      while (position < length) {
+        int end = sensorData.indexOf(',', position);
+        if (end < 0) {
+          end = length;
+        }
+        int valueStart = sensorData.indexOf('=', position);
+        if (valueStart >= 0 && valueStart < end) {
+          double value = Parser.parseReadingValue(sensorData, valueStart + 1, end);
+          if (Double.isNaN(value)) {
+            MALFORMED.increment();
+          } else {
+            store.append(nodeId, sensorIndex, captureTime, value);
+            if (rollups != null) {
+              rollups.add(nodeId, sensorIndex, captureTime, value);
+            }
+          }
+        } else {
+          MALFORMED.increment();
+        }
+        sensorIndex++;
+        position = end + 1;
+      }
+    } catch (UncheckedIOException e) {
+      Logger.error("Could not store sensor history: " + e.getMessage());
+    }
+  }
+}
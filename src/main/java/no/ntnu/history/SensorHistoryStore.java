@@ -0,0 +1,534 @@
+package no.ntnu.history;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import no.ntnu.tools.Logger;
+import no.ntnu.tools.metrics.Counter;
+import no.ntnu.tools.metrics.Metrics;
+
+/**
+ * Append-only store for the sensor history on the server. Readings are appended to
+ * memory-mapped segment files with fixed-size records, keyed by node ID and sensor index. When a
+ * segment is full, the store rolls over to a new one. The time range of every segment is kept in
+ * memory, so a range query only visits the segments which overlap the range.
+ * Appending is lock-free: a writer reserves a slot with one atomic increment and writes into the
+ * mapped memory directly, without system calls, so many connections can append at the same time.
+ * Only the writer which fills a segment creates the next one; the others wait for it.
+ * Full segments are compressed in the background into {@link ChunkEncoder chunks} of one series
+ * each, and the raw file is deleted. With many sensors a segment holds few points per series and
+ * fills within a minute, so consecutive compressed segments are merged into blocks which cover at
+ * least the block length (one hour by default), with one chunk per series for the whole block.
+ * This keeps both the per-series overhead and the number of mapped files low. Compressed history
+ * older than the retention period, if one is set, is deleted.
+ */
+public class SensorHistoryStore implements AutoCloseable {
+  /**
+   * Default number of records per segment, 24 MiB per segment file.
+   */
+  public static final int DEFAULT_SEGMENT_CAPACITY = 1 << 20;
+  /**
+   * Default time span of a block of merged segments: one hour.
+   */
+  public static final long DEFAULT_BLOCK_MILLIS = 3_600_000;
+  private static final int MAX_SEGMENT_CAPACITY = Integer.MAX_VALUE / HistorySegment.RECORD_SIZE;
+  // Merged blocks are kept well below the 2 GiB a mapped file and its int offsets allow
+  private static final long MAX_BLOCK_BYTES = 1L << 30;
+  private static final Counter POINTS_WRITTEN = Metrics.counter("history_points_written_total");
+  private static final Counter RAW_BYTES = Metrics.counter("history_compacted_raw_bytes_total");
+  private static final Counter COMPRESSED_BYTES =
+      Metrics.counter("history_compacted_compressed_bytes_total");
+  private static final Counter EXPIRED = Metrics.counter("history_segments_expired_total");
+  private static final long PUBLISH_TIMEOUT_MILLIS = 1000;
+  private static final Pattern SEGMENT_FILE =
+      Pattern.compile("segment-(\\d+)(?:-(\\d+))?\\.(dat|chunks)");
+
+  private final Path directory;
+  private final int segmentCapacity;
+  // Replaced as a whole under the lock of the store, so a query sees a consistent set of segments
+  private volatile List<StoredSegment> segments = List.of();
+  private final ExecutorService compactor = Executors.newSingleThreadExecutor(runnable -> {
+    Thread thread = new Thread(runnable, "History-Compactor");
+    thread.setDaemon(true);
+    return thread;
+  });
+  private volatile HistorySegment current;
+  private volatile IOException rollFailure;
+  private volatile long blockMillis = DEFAULT_BLOCK_MILLIS;
+  private volatile long retentionMillis;
+
+  /**
+   * Open a store with the default segment size, creating the directory if needed.
+   *
+   * @param directory the directory of the segment files
+   * @throws IOException if the directory or the segments can't be opened
+   */
+  public SensorHistoryStore(Path directory) throws IOException {
+    this(directory, DEFAULT_SEGMENT_CAPACITY);
+  }
+
+  /**
+   * Open a store, creating the directory if needed. Existing segments are opened and appending
+   * continues in the last one; full segments which were not compressed yet are compressed.
+   * New segments get the given capacity.
+   *
+   * @param directory       the directory of the segment files
+   * @param segmentCapacity the number of records per new segment
+   * @throws IOException if the directory or the segments can't be opened
+   */
+  public SensorHistoryStore(Path directory, int segmentCapacity) throws IOException {
+    if (segmentCapacity <= 0 || segmentCapacity > MAX_SEGMENT_CAPACITY) {
+      throw new IllegalArgumentException("Invalid segment capacity: " + segmentCapacity);
+    }
+    this.directory = directory;
+    this.segmentCapacity = segmentCapacity;
+    Files.createDirectories(directory);
+    List<StoredSegment> opened = openExistingSegments();
+    if (opened.isEmpty() || !(opened.get(opened.size() - 1) instanceof HistorySegment)) {
+      long sequence = opened.isEmpty() ? 1 : opened.get(opened.size() - 1).getSequence() + 1;
+      opened.add(HistorySegment.create(directory, sequence, segmentCapacity));
+    }
+    segments = List.copyOf(opened);
+    current = (HistorySegment) opened.get(opened.size() - 1);
+    for (StoredSegment segment : opened) {
+      if (segment instanceof HistorySegment raw && raw != current) {
+        compactor.execute(() -> compact(raw));
+      }
+    }
+    compactor.execute(this::mergeAndExpire);
+    Metrics.gauge("history_segments", () -> segments.size());
+  }
+
+  /**
+   * Set the least time span of a block of merged segments. Compressed segments are merged once
+   * together they cover this span, so a longer span means fewer, larger files.
+   *
+   * @param blockMillis the span in milliseconds, positive
+   */
+  public void setBlockMillis(long blockMillis) {
+    if (blockMillis <= 0) {
+      throw new IllegalArgumentException("Block length must be positive: " + blockMillis);
+    }
+    this.blockMillis = blockMillis;
+  }
+
+  /**
+   * Set how long the history is kept. Compressed segments and blocks whose newest point is older
+   * than this are deleted after the next compaction. The segment being written is never deleted.
+   *
+   * @param retentionMillis the retention in milliseconds, zero or less keeps everything
+   */
+  public void setRetentionMillis(long retentionMillis) {
+    this.retentionMillis = retentionMillis;
+    compactor.execute(this::mergeAndExpire);
+  }
+
+  /**
+   * Open the segment files in the directory, in sequence order. When a segment exists both raw
+   * and compressed, the compaction was interrupted after the compressed file was complete, so the
+   * raw file is deleted. Likewise, files of segments which are part of a merged block were left
+   * by an interrupted merge, and are deleted.
+   */
+  private List<StoredSegment> openExistingSegments() throws IOException {
+    Map<Long, Path> rawFiles = new TreeMap<>();
+    // Compressed files by their last sequence number, with the first one for merged blocks
+    TreeMap<Long, Path> compressedFiles = new TreeMap<>();
+    Map<Long, Long> firstSequences = new HashMap<>();
+    List<Path> leftovers = new ArrayList<>();
+    try (Stream<Path> list = Files.list(directory)) {
+      list.forEach(file -> {
+        Matcher matcher = SEGMENT_FILE.matcher(file.getFileName().toString());
+        if (!matcher.matches()) {
+          return;
+        }
+        long first = Long.parseLong(matcher.group(1));
+        long sequence = matcher.group(2) != null ? Long.parseLong(matcher.group(2)) : first;
+        if (matcher.group(3).equals("dat")) {
+          rawFiles.put(sequence, file);
+        } else if (!compressedFiles.containsKey(sequence)) {
+          compressedFiles.put(sequence, file);
+          firstSequences.put(sequence, first);
+        } else if (first < firstSequences.get(sequence)) {
+          leftovers.add(compressedFiles.put(sequence, file));
+          firstSequences.put(sequence, first);
+        } else {
+          leftovers.add(file);
+        }
+      });
+    }
+    TreeMap<Long, StoredSegment> opened = new TreeMap<>();
+    for (Map.Entry<Long, Path> entry : compressedFiles.entrySet()) {
+      long first = firstSequences.get(entry.getKey());
+      Map<Long, StoredSegment> merged = opened.subMap(first, true, entry.getKey(), false);
+      for (StoredSegment segment : merged.values()) {
+        leftovers.add(((CompressedSegment) segment).getFile());
+      }
+      merged.clear();
+      opened.put(entry.getKey(), CompressedSegment.open(entry.getValue(), first, entry.getKey()));
+    }
+    for (Path leftover : leftovers) {
+      Files.deleteIfExists(leftover);
+    }
+    for (Map.Entry<Long, Path> entry : rawFiles.entrySet()) {
+      Map.Entry<Long, StoredSegment> covering = opened.ceilingEntry(entry.getKey());
+      if (covering != null
+          && ((CompressedSegment) covering.getValue()).getFirstSequence() <= entry.getKey()) {
+        deleteRawFiles(entry.getValue());
+      } else {
+        opened.put(entry.getKey(), HistorySegment.open(entry.getValue(), entry.getKey()));
+      }
+    }
+    if (!opened.isEmpty()) {
+      Logger.info("Opened " + opened.size() + " history segments in " + directory);
+    }
+    return new ArrayList<>(opened.values());
+  }
+
+  /**
+   * Append a reading. Can be called from many threads at the same time.
+   *
+   * @param nodeId      ID of the node
+   * @param sensorIndex index of the sensor on the node
+   * @param timestamp   when the reading was captured, epoch milliseconds, must be positive
+   * @param value       the reading
+   * @throws UncheckedIOException if a new segment was needed and could not be created
+   */
+  public void append(int nodeId, int sensorIndex, long timestamp, double value) {
+    if (timestamp <= 0) {
+      throw new IllegalArgumentException("Timestamp must be positive: " + timestamp);
+    }
+    while (true) {
+      HistorySegment segment = current;
+      long slot = segment.reserve();
+      if (slot < segment.getCapacity()) {
+        segment.write(slot, timestamp, nodeId, sensorIndex, value);
+        POINTS_WRITTEN.increment();
+        return;
+      } else if (slot == segment.getCapacity()) {
+        roll(segment);
+      } else {
+        awaitRoll(segment);
+      }
+    }
+  }
+
+  /**
+   * Seal a full segment and continue in a new one. Called by exactly one writer per segment.
+   *
+   * @param full the full segment
+   */
+  private void roll(HistorySegment full) {
+    try {
+      HistorySegment next = HistorySegment.create(directory, full.getSequence() + 1,
+          segmentCapacity);
+      replaceSegments(List.of(), next);
+      current = next;
+      compactor.execute(() -> compact(full));
+    } catch (IOException e) {
+      rollFailure = e;
+      throw new UncheckedIOException("Could not roll history segment", e);
+    }
+  }
+
+  private void awaitRoll(HistorySegment full) {
+    while (current == full) {
+      IOException failure = rollFailure;
+      if (failure != null) {
+        throw new UncheckedIOException("Could not roll history segment", failure);
+      }
+      Thread.onSpinWait();
+    }
+  }
+
+  /**
+   * Seal a full segment, compress it and replace it by the compressed one. Queries which are
+   * scanning the raw segment can finish, since its memory stays mapped after the file is deleted.
+   *
+   * @param raw the full segment
+   */
+  private void compact(HistorySegment raw) {
+    try {
+      raw.awaitPublished(PUBLISH_TIMEOUT_MILLIS);
+      if (!raw.isSealed()) {
+        raw.seal();
+      }
+      CompressedSegment compressed = CompressedSegment.compress(raw);
+      replaceSegments(List.of(raw), compressed);
+      long rawSize = raw.getCount() * HistorySegment.RECORD_SIZE;
+      RAW_BYTES.add(rawSize);
+      COMPRESSED_BYTES.add(compressed.getSizeInBytes());
+      Logger.info(String.format("Compressed history segment %d: %d points, %d to %d bytes"
+              + " (ratio %.1f, %.2f bytes per point)", raw.getSequence(), compressed.getCount(),
+          rawSize, compressed.getSizeInBytes(), (double) rawSize / compressed.getSizeInBytes(),
+          (double) compressed.getSizeInBytes() / Math.max(1, compressed.getCount())));
+      deleteRawFiles(raw.getDataFile());
+    } catch (IOException e) {
+      Logger.error("Could not compress history segment " + raw.getSequence() + ": "
+          + e.getMessage());
+    }
+    mergeAndExpire();
+  }
+
+  /**
+   * Replace segments by another one, at the place of the first replaced segment, or append it
+   * when nothing is replaced.
+   *
+   * @param replaced    the segments to remove, consecutive
+   * @param replacement the segment to put in their place
+   */
+  private synchronized void replaceSegments(List<StoredSegment> replaced,
+                                            StoredSegment replacement) {
+    List<StoredSegment> updated = new ArrayList<>(segments);
+    if (replaced.isEmpty()) {
+      updated.add(replacement);
+    } else {
+      int index = updated.indexOf(replaced.get(0));
+      updated.removeAll(replaced);
+      updated.add(index, replacement);
+    }
+    segments = List.copyOf(updated);
+  }
+
+  private synchronized void removeSegment(StoredSegment removed) {
+    List<StoredSegment> updated = new ArrayList<>(segments);
+    updated.remove(removed);
+    segments = List.copyOf(updated);
+  }
+
+  /**
+   * Merge runs of consecutive compressed segments which are shorter than the block length into
+   * blocks, and delete the compressed history older than the retention period. Runs on the
+   * compactor thread.
+   */
+  private void mergeAndExpire() {
+    List<CompressedSegment> run = new ArrayList<>();
+    long runBytes = 0;
+    long runStart = Long.MAX_VALUE;
+    long runEnd = Long.MIN_VALUE;
+    for (StoredSegment segment : segments) {
+      if (!(segment instanceof CompressedSegment compressed)
+          || compressed.getMaxTimestamp() - compressed.getMinTimestamp() >= blockMillis) {
+        run.clear();
+        continue;
+      }
+      if (!run.isEmpty() && runBytes + compressed.getSizeInBytes() > MAX_BLOCK_BYTES) {
+        if (run.size() > 1) {
+          merge(run);
+        }
+        run.clear();
+      }
+      if (run.isEmpty()) {
+        runBytes = 0;
+        runStart = Long.MAX_VALUE;
+        runEnd = Long.MIN_VALUE;
+      }
+      run.add(compressed);
+      runBytes += compressed.getSizeInBytes();
+      runStart = Math.min(runStart, compressed.getMinTimestamp());
+      runEnd = Math.max(runEnd, compressed.getMaxTimestamp());
+      if (run.size() > 1 && runEnd - runStart >= blockMillis) {
+        merge(run);
+        run.clear();
+      }
+    }
+    expire();
+  }
+
+  private void merge(List<CompressedSegment> run) {
+    try {
+      long start = System.currentTimeMillis();
+      CompressedSegment block = CompressedSegment.merge(run, directory);
+      replaceSegments(List.copyOf(run), block);
+      long inputBytes = 0;
+      for (CompressedSegment merged : run) {
+        inputBytes += merged.getSizeInBytes();
+        deleteCompressedFile(merged);
+      }
+      Logger.info(String.format("Merged history segments %d-%d: %d points, %d to %d bytes"
+              + " (%.2f bytes per point) in %d ms", block.getFirstSequence(), block.getSequence(),
+          block.getCount(), inputBytes, block.getSizeInBytes(),
+          (double) block.getSizeInBytes() / Math.max(1, block.getCount()),
+          System.currentTimeMillis() - start));
+    } catch (IOException e) {
+      Logger.error("Could not merge history segments " + run.get(0).getSequence() + "-"
+          + run.get(run.size() - 1).getSequence() + ": " + e.getMessage());
+    }
+  }
+
+  /**
+   * Delete the compressed segments and blocks whose newest point is older than the retention.
+   */
+  private void expire() {
+    long retention = retentionMillis;
+    if (retention <= 0) {
+      return;
+    }
+    long cutoff = System.currentTimeMillis() - retention;
+    for (StoredSegment segment : segments) {
+      if (segment instanceof CompressedSegment compressed
+          && compressed.getMaxTimestamp() < cutoff) {
+        removeSegment(compressed);
+        deleteCompressedFile(compressed);
+        EXPIRED.increment();
+        Logger.info("Deleted expired history segment " + compressed.getFile().getFileName());
+      }
+    }
+  }
+
+  private static void deleteCompressedFile(CompressedSegment segment) {
+    try {
+      Files.deleteIfExists(segment.getFile());
+    } catch (IOException e) {
+      Logger.error("Could not delete history segment " + segment.getFile() + ": "
+          + e.getMessage());
+    }
+  }
+
+  private static void deleteRawFiles(Path dataFile) {
+    try {
+      Files.deleteIfExists(dataFile);
+      Files.deleteIfExists(dataFile.resolveSibling(dataFile.getFileName() + ".idx"));
+    } catch (IOException e) {
+      Logger.error("Could not delete raw history segment " + dataFile + ": " + e.getMessage());
+    }
+  }
+
+  /**
+   * Visit the stored points of one sensor within a time range. Points are visited segment by
+   * segment, in the order they were appended, which is the capture order of one sensor.
+   *
+   * @param nodeId      ID of the node
+   * @param sensorIndex index of the sensor on the node
+   * @param from        start of the range, inclusive, epoch milliseconds
+   * @param to          end of the range, exclusive, epoch milliseconds
+   * @param consumer    receives the points
+   */
+  public void query(int nodeId, int sensorIndex, long from, long to, PointConsumer consumer) {
+    for (StoredSegment segment : segments) {
+      if (segment.overlaps(from, to)) {
+        segment.scan(nodeId, sensorIndex, from, to, consumer);
+      }
+    }
+  }
+
+  /**
+   * Visit all stored points, segment by segment from the oldest. Points of one series are visited
+   * in the order they were appended.
+   *
+   * @param consumer receives the points
+   */
+  void scanAll(RecordConsumer consumer) {
+    for (StoredSegment segment : segments) {
+      segment.scanAll(consumer);
+    }
+  }
+
+  /**
+   * Get the time from which the store holds every point it was given. Older points may have been
+   * deleted for the retention period.
+   *
+   * @return Long.MIN_VALUE while the first segment of the store is still there, otherwise the
+   *     oldest stored timestamp, or Long.MAX_VALUE if no points are left
+   */
+  long getCompleteFrom() {
+    List<StoredSegment> current = segments;
+    StoredSegment oldest = current.get(0);
+    long firstSequence = oldest instanceof CompressedSegment block ? block.getFirstSequence()
+        : oldest.getSequence();
+    if (firstSequence <= 1) {
+      return Long.MIN_VALUE;
+    }
+    long from = Long.MAX_VALUE;
+    for (StoredSegment segment : current) {
+      from = Math.min(from, segment instanceof CompressedSegment compressed
+          ? compressed.getMinTimestamp() : ((HistorySegment) segment).getMinTimestamp());
+    }
+    return from;
+  }
+
+  /**
+   * Get the segments which overlap a time range, as they are now. A raw segment in the list
+   * stays readable when it is compressed in the meantime.
+   *
+   * @param from start of the range, inclusive, epoch milliseconds
+   * @param to   end of the range, exclusive, epoch milliseconds
+   * @return the overlapping segments, oldest first
+   */
+  List<StoredSegment> getSegments(long from, long to) {
+    List<StoredSegment> overlapping = new ArrayList<>();
+    for (StoredSegment segment : segments) {
+      if (segment.overlaps(from, to)) {
+        overlapping.add(segment);
+      }
+    }
+    return overlapping;
+  }
+
+  /**
+   * Get the number of segments, including the one being appended to.
+   *
+   * @return the number of segments
+   */
+  public int getSegmentCount() {
+    return segments.size();
+  }
+
+  /**
+   * Get the number of record slots used in all segments.
+   *
+   * @return the number of stored records
+   */
+  public long getRecordCount() {
+    long count = 0;
+    for (StoredSegment segment : segments) {
+      count += segment.getCount();
+    }
+    return count;
+  }
+
+  /**
+   * Get the directory of the segment files.
+   *
+   * @return the store directory
+   */
+  public Path getDirectory() {
+    return directory;
+  }
+
+  /**
+   * Flush the segment being appended to. Full segments are flushed when they are compressed.
+   */
+  public void flush() {
+    current.force();
+  }
+
+  /**
+   * Wait for running compactions and flush everything to disk. Appending after closing is not
+   * allowed.
+   */
+  @Override
+  public void close() {
+    compactor.shutdown();
+    try {
+      if (!compactor.awaitTermination(30, TimeUnit.SECONDS)) {
+        Logger.error("History compaction did not finish in time");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    flush();
+  }
+}
@@ -0,0 +1,126 @@
+package no.ntnu.history;
+
+/**
+ * The open buckets of one sensor series, one per resolution, in primitive fields. A reading
+ * updates every resolution in constant time; when it falls in a later bucket, the finished bucket
+ * is written to the rollup file of its resolution first.
+ */
+class SeriesRollup {
+  private static final RollupResolution[] RESOLUTIONS = RollupResolution.values();
+
+  private final int nodeId;
+  private final int sensorIndex;
+  private final long[] bucketStart = new long[RESOLUTIONS.length];
+  private final double[] min = new double[RESOLUTIONS.length];
+  private final double[] max = new double[RESOLUTIONS.length];
+  private final double[] sum = new double[RESOLUTIONS.length];
+  private final long[] count = new long[RESOLUTIONS.length];
+  private final double[] last = new double[RESOLUTIONS.length];
+  private final long[] lastTimestamp = new long[RESOLUTIONS.length];
+
+  SeriesRollup(int nodeId, int sensorIndex) {
+    this.nodeId = nodeId;
+    this.sensorIndex = sensorIndex;
+  }
+
+  int getNodeId() {
+    return nodeId;
+  }
+
+  int getSensorIndex() {
+    return sensorIndex;
+  }
+
+  /**
+   * Add a reading to the open buckets. A reading older than the open bucket of a resolution is
+   * written as a bucket of its own, which readers merge with the flushed one.
+   *
+   * @param timestamp when the reading was captured, epoch milliseconds
+   * @param value     the reading
+   * @param files     the rollup files, by resolution ordinal
+   */
+  synchronized void add(long timestamp, double value, RollupFile[] files) {
+    for (int i = 0; i < RESOLUTIONS.length; i++) {
+      add(i, timestamp, value, files[i]);
+    }
+  }
+
+  /**
+   * Add a reading to the open buckets of the resolutions which are rebuilt from its time on.
+   *
+   * @param timestamp when the reading was captured, epoch milliseconds
+   * @param value     the reading
+   * @param files     the rollup files, by resolution ordinal
+   * @param from      the first rebuilt bucket start, by resolution ordinal
+   */
+  synchronized void rebuild(long timestamp, double value, RollupFile[] files, long[] from) {
+    for (int i = 0; i < RESOLUTIONS.length; i++) {
+      if (timestamp >= from[i]) {
+        add(i, timestamp, value, files[i]);
+      }
+    }
+  }
+
+  private void add(int i, long timestamp, double value, RollupFile file) {
+    long start = RESOLUTIONS[i].bucketStart(timestamp);
+    if (count[i] == 0 || start > bucketStart[i]) {
+      if (count[i] > 0) {
+        flush(i, file);
+      }
+      bucketStart[i] = start;
+      min[i] = value;
+      max[i] = value;
+      sum[i] = value;
+      count[i] = 1;
+      last[i] = value;
+      lastTimestamp[i] = timestamp;
+    } else if (start == bucketStart[i]) {
+      min[i] = Math.min(min[i], value);
+      max[i] = Math.max(max[i], value);
+      sum[i] += value;
+      count[i]++;
+      if (timestamp >= lastTimestamp[i]) {
+        last[i] = value;
+        lastTimestamp[i] = timestamp;
+      }
+    } else {
+      file.append(nodeId, sensorIndex, start, value, value, value, 1, value, timestamp);
+    }
+  }
+
+  /**
+   * Write all open buckets to the rollup files and reset them. The series continues in new
+   * records for the same buckets.
+   *
+   * @param files the rollup files, by resolution ordinal
+   */
+  synchronized void flushAll(RollupFile[] files) {
+    for (int i = 0; i < RESOLUTIONS.length; i++) {
+      if (count[i] > 0) {
+        flush(i, files[i]);
+        count[i] = 0;
+      }
+    }
+  }
+
+  /**
+   * Pass the open bucket of a resolution to a visitor, if it is in a time range.
+   *
+   * @param resolution the resolution
+   * @param from       start of the range, inclusive
+   * @param to         end of the range, exclusive
+   * @param visitor    receives the bucket
+   */
+  synchronized void visitOpen(RollupResolution resolution, long from, long to,
+      RollupFile.RecordVisitor visitor) {
+    int i = resolution.ordinal();
+    if (count[i] > 0 && bucketStart[i] >= from && bucketStart[i] < to) {
+      visitor.accept(bucketStart[i], min[i], max[i], sum[i], count[i], last[i], lastTimestamp[i]);
+    }
+  }
+
+  private void flush(int i, RollupFile file) {
+    file.append(nodeId, sensorIndex, bucketStart[i], min[i], max[i], sum[i], count[i], last[i],
+        lastTimestamp[i]);
+  }
+}
@@ -0,0 +1,49 @@
+package no.ntnu.history;
+
+/**
+ * A segment of the sensor history which can be queried: a raw segment which is still written
+ * to, or a compressed one.
+ */
+interface StoredSegment {
+  /**
+   * Get the sequence number of the segment, which orders the segments by age.
+   *
+   * @return the sequence number
+   */
+  long getSequence();
+
+  /**
+   * Get the number of records in the segment.
+   *
+   * @return the number of records
+   */
+  long getCount();
+
+  /**
+   * Check whether the segment may contain points in a time range.
+   *
+   * @param from start of the range, inclusive
+   * @param to   end of the range, exclusive
+   * @return false if the segment certainly has no points in the range
+   */
+  boolean overlaps(long from, long to);
+
+  /**
+   * Visit the points of one series within a time range, in the order they were appended.
+   *
+   * @param nodeId      ID of the node
+   * @param sensorIndex index of the sensor on the node
+   * @param from        start of the range, inclusive, epoch milliseconds
+   * @param to          end of the range, exclusive, epoch milliseconds
+   * @param consumer    receives the matching points
+   */
+  void scan(int nodeId, int sensorIndex, long from, long to, PointConsumer consumer);
+
+  /**
+   * Visit all points of the segment. Points of one series are visited in the order they were
+   * appended, the order between series is undefined.
+   *
+   * @param consumer receives the points
+   */
+  void scanAll(RecordConsumer consumer);
+}
@@ -0,0 +1,16 @@
+package no.ntnu.journal;
+
+/**
+ * Receives actuator states recovered from the {@link CommandJournal}.
+ */
+@FunctionalInterface
+public interface ActuatorStateConsumer {
+  /**
+   * Accept the last known state of one actuator.
+   *
+   * @param nodeId     ID of the node with the actuator
+   * @param actuatorId ID of the actuator
+   * @param on         true when the actuator was on
+   */
+  void accept(int nodeId, int actuatorId, boolean on);
+}
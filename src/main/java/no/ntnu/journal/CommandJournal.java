@@ -0,0 +1,382 @@
+package no.ntnu.journal;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+import no.ntnu.greenhouse.Actuator;
+import no.ntnu.listeners.common.ActuatorListener;
+import no.ntnu.listeners.server.ActuatorCommandListener;
+import no.ntnu.tools.Logger;
+import no.ntnu.tools.metrics.Counter;
+import no.ntnu.tools.metrics.Histogram;
+import no.ntnu.tools.metrics.Metrics;
+
+/**
+ * Append-only journal of the actuator commands received by the server and of the actuator states
+ * which resulted from them, so the actuators can be restored after a restart. Records have a
+ * fixed size: type (1 byte), sequence number (8), timestamp (8), node ID (4), actuator ID (4),
+ * state (1) and a CRC32C of the rest (4).
+ * Appending never waits for the disk. Records are put in a batch buffer, and a writer thread
+ * writes each batch with one write and one fsync while the next batch fills up (group commit).
+ * The number of fsyncs therefore depends on the speed of the disk, not on the command rate. A
+ * crash loses the records which were not synced yet: those of the batch being written and of the
+ * batch filling up behind it.
+ * After a number of records, and periodically, the writer stores a compacted snapshot of all
+ * actuator states and starts a new journal file; the older files are deleted. Opening the journal
+ * reads the snapshot and replays the few records after it, so recovery takes milliseconds.
+ */
+public class CommandJournal implements ActuatorCommandListener, ActuatorListener, AutoCloseable {
+  /**
+   * Default number of records between two snapshots.
+   */
+  public static final int DEFAULT_SNAPSHOT_RECORDS = 10_000;
+  static final byte COMMAND = 1;
+  static final byte STATE = 2;
+  static final int RECORD_SIZE = 30;
+  private static final int NODE_OFFSET = 17;
+  private static final int ACTUATOR_OFFSET = 21;
+  private static final int STATE_OFFSET = 25;
+  private static final int CRC_OFFSET = 26;
+  private static final int BATCH_RECORDS = 4096;
+  private static final long SNAPSHOT_INTERVAL_MILLIS = 60_000;
+  private static final long IDLE_WAIT_MILLIS = 1000;
+  private static final Pattern JOURNAL_FILE = Pattern.compile("journal-(\\d+)\\.log");
+  private static final Counter RECORDS = Metrics.counter("journal_records_total");
+  private static final Counter SNAPSHOTS = Metrics.counter("journal_snapshots_total");
+  private static final Counter FAILURES = Metrics.counter("journal_write_failures_total");
+  private static final Histogram BATCH_SIZE = Metrics.histogram("journal_batch_records");
+  private static final Histogram FSYNC_TIME = Metrics.histogram("journal_fsync_nanos");
+
+  private final Path directory;
+  private final int snapshotRecords;
+  private final Map<Long, Boolean> recovered;
+  private final Map<Long, Boolean> states = new HashMap<>();
+  private final Object lock = new Object();
+  private final CRC32C crc = new CRC32C();
+  private final Thread writer;
+  private ByteBuffer filling = ByteBuffer.allocateDirect(BATCH_RECORDS * RECORD_SIZE);
+  private ByteBuffer spare = ByteBuffer.allocateDirect(BATCH_RECORDS * RECORD_SIZE);
+  private long nextSequence;
+  private boolean closed;
+  private FileChannel channel;
+  private long journalSize;
+  private long writtenSequence;
+  private int recordsSinceSnapshot;
+  private long lastSnapshotTime = System.currentTimeMillis();
+
+  /**
+   * Open the journal in a directory with the default snapshot frequency, creating the directory
+   * if needed.
+   *
+   * @param directory the directory of the journal files
+   * @throws IOException if the journal can't be opened
+   */
+  public CommandJournal(Path directory) throws IOException {
+    this(directory, DEFAULT_SNAPSHOT_RECORDS);
+  }
+
+  /**
+   * Open the journal in a directory, creating the directory if needed. The actuator states are
+   * recovered from the snapshot and the journal files, and appending continues in a new file.
+   *
+   * @param directory       the directory of the journal files
+   * @param snapshotRecords the number of records between two snapshots
+   * @throws IOException if the journal can't be opened
+   */
+  public CommandJournal(Path directory, int snapshotRecords) throws IOException {
+    if (snapshotRecords <= 0) {
+      throw new IllegalArgumentException("Invalid snapshot frequency: " + snapshotRecords);
+    }
+    this.directory = directory;
+    this.snapshotRecords = snapshotRecords;
+    Files.createDirectories(directory);
+    long start = System.nanoTime();
+    long snapshotSequence;
+    try {
+      snapshotSequence = JournalSnapshot.read(directory, states);
+    } catch (IOException e) {
+      Logger.error("Ignoring actuator snapshot: " + e.getMessage());
+      states.clear();
+      snapshotSequence = 0;
+    }
+    writtenSequence = snapshotSequence;
+    int replayed = replayJournalFiles(snapshotSequence);
+    recovered = Map.copyOf(states);
+    Logger.info(String.format("Recovered %d actuator states from %s (%d journal records after"
+            + " the snapshot) in %.1f ms", recovered.size(), directory, replayed,
+        (System.nanoTime() - start) / 1e6));
+
+    nextSequence = writtenSequence + 1;
+    if (replayed > 0) {
+      writeSnapshot();
+    }
+    if (channel == null) {
+      channel = openJournalFile(nextSequence);
+    }
+    writer = new Thread(this::writeBatches, "Command-Journal");
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+  /**
+   * Apply the records of all journal files after the snapshot to the states. Records are written
+   * at multiples of the record size, so a damaged record is skipped and the records after it are
+   * still applied. Damaged records after the last valid one were being written during a crash;
+   * the file is cut off after the last valid record.
+   *
+   * @param snapshotSequence the last sequence number in the snapshot
+   * @return the number of applied records
+   */
+  private int replayJournalFiles(long snapshotSequence) throws IOException {
+    int replayed = 0;
+    for (Path file : listJournalFiles().values()) {
+      long validSize = 0;
+      int damaged = 0;
+      int skipped = 0;
+      try (FileChannel journal = FileChannel.open(file, StandardOpenOption.READ,
+          StandardOpenOption.WRITE)) {
+        MappedByteBuffer records = journal.map(FileChannel.MapMode.READ_ONLY, 0, journal.size());
+        CRC32C check = new CRC32C();
+        for (int offset = 0; offset + RECORD_SIZE <= records.limit(); offset += RECORD_SIZE) {
+          check.reset();
+          check.update(records.slice(offset, CRC_OFFSET));
+          if (records.getInt(offset + CRC_OFFSET) != (int) check.getValue()) {
+            damaged++;
+            continue;
+          }
+          skipped = damaged;
+          long sequence = records.getLong(offset + 1);
+          if (sequence > snapshotSequence) {
+            states.put(key(records.getInt(offset + NODE_OFFSET),
+                records.getInt(offset + ACTUATOR_OFFSET)), records.get(offset + STATE_OFFSET) != 0);
+            replayed++;
+          }
+          writtenSequence = Math.max(writtenSequence, sequence);
+          validSize = offset + RECORD_SIZE;
+        }
+        if (skipped > 0) {
+          Logger.error("Skipped " + skipped + " damaged journal records in " + file);
+        }
+        if (validSize < journal.size()) {
+          Logger.error("Discarding " + (journal.size() - validSize)
+              + " bytes after the last valid journal record in " + file);
+          journal.truncate(validSize);
+        }
+      }
+    }
+    return replayed;
+  }
+
+  private Map<Long, Path> listJournalFiles() throws IOException {
+    Map<Long, Path> files = new TreeMap<>();
+    try (Stream<Path> list = Files.list(directory)) {
+      list.forEach(file -> {
+        Matcher matcher = JOURNAL_FILE.matcher(file.getFileName().toString());
+        if (matcher.matches()) {
+          files.put(Long.parseLong(matcher.group(1)), file);
+        }
+      });
+    }
+    return files;
+  }
+
+  /**
+   * Open a new journal file for the records from the given sequence number. A file with that
+   * name can only hold incomplete records, since the sequence number was never written.
+   */
+  private FileChannel openJournalFile(long firstSequence) throws IOException {
+    Path file = directory.resolve(String.format("journal-%012d.log", firstSequence));
+    return FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+        StandardOpenOption.TRUNCATE_EXISTING);
+  }
+
+  static long key(int nodeId, int actuatorId) {
+    return ((long) nodeId << 32) | (actuatorId & 0xFFFFFFFFL);
+  }
+
+  /**
+   * Visit the actuator states which were recovered when the journal was opened.
+   *
+   * @param consumer receives the last known state of every actuator in the journal
+   */
+  public void forEachRecoveredState(ActuatorStateConsumer consumer) {
+    for (Map.Entry<Long, Boolean> state : recovered.entrySet()) {
+      consumer.accept((int) (state.getKey() >>> 32), state.getKey().intValue(), state.getValue());
+    }
+  }
+
+  @Override
+  public void onActuatorCommand(int nodeId, int actuatorId, boolean on) {
+    append(COMMAND, nodeId, actuatorId, on);
+  }
+
+  @Override
+  public void actuatorUpdated(int nodeId, Actuator actuator) {
+    append(STATE, nodeId, actuator.getId(), actuator.isOn());
+  }
+
+  /**
+   * Add a record to the batch being filled. Only waits when a whole batch is already waiting
+   * for the writer, which takes a disk far slower than the command rate.
+   */
+  private void append(byte type, int nodeId, int actuatorId, boolean on) {
+    long timestamp = System.currentTimeMillis();
+    synchronized (lock) {
+      try {
+        while (filling.remaining() < RECORD_SIZE && !closed) {
+          lock.wait();
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+      if (closed) {
+        return;
+      }
+      int start = filling.position();
+      filling.put(type).putLong(nextSequence++).putLong(timestamp).putInt(nodeId)
+          .putInt(actuatorId).put((byte) (on ? 1 : 0));
+      crc.reset();
+      crc.update(filling.slice(start, CRC_OFFSET));
+      filling.putInt((int) crc.getValue());
+      if (start == 0) {
+        lock.notifyAll();
+      }
+    }
+    RECORDS.increment();
+  }
+
+  /**
+   * The writer thread: takes the filled batch, writes and syncs it while appenders fill the
+   * other buffer, and stores a snapshot when one is due.
+   */
+  private void writeBatches() {
+    while (true) {
+      ByteBuffer batch = null;
+      long lastSequence = 0;
+      synchronized (lock) {
+        try {
+          if (filling.position() == 0 && !closed) {
+            lock.wait(IDLE_WAIT_MILLIS);
+          }
+        } catch (InterruptedException e) {
+          closed = true;
+        }
+        if (filling.position() > 0) {
+          batch = filling;
+          filling = spare;
+          spare = batch;
+          lastSequence = nextSequence - 1;
+          lock.notifyAll();
+        } else if (closed) {
+          return;
+        }
+      }
+      if (batch != null) {
+        commit(batch, lastSequence);
+      }
+      if (isSnapshotDue()) {
+        writeSnapshot();
+      }
+    }
+  }
+
+  /**
+   * Write and sync a batch. The batch is written at the end of the last complete write, so after
+   * a failed write the next batch replaces the partly written one, and records stay aligned.
+   */
+  private void commit(ByteBuffer batch, long lastSequence) {
+    batch.flip();
+    int records = batch.remaining() / RECORD_SIZE;
+    try {
+      long start = System.nanoTime();
+      long position = journalSize;
+      while (batch.hasRemaining()) {
+        position += channel.write(batch, position);
+      }
+      channel.force(false);
+      journalSize = position;
+      FSYNC_TIME.record(System.nanoTime() - start);
+      BATCH_SIZE.record(records);
+    } catch (IOException e) {
+      FAILURES.increment();
+      Logger.error("Could not write " + records + " journal records: " + e.getMessage());
+    }
+    for (int offset = 0; offset < records * RECORD_SIZE; offset += RECORD_SIZE) {
+      states.put(key(batch.getInt(offset + NODE_OFFSET), batch.getInt(offset + ACTUATOR_OFFSET)),
+          batch.get(offset + STATE_OFFSET) != 0);
+    }
+    batch.clear();
+    writtenSequence = lastSequence;
+    recordsSinceSnapshot += records;
+  }
+
+  private boolean isSnapshotDue() {
+    return recordsSinceSnapshot >= snapshotRecords || (recordsSinceSnapshot > 0
+        && System.currentTimeMillis() - lastSnapshotTime >= SNAPSHOT_INTERVAL_MILLIS);
+  }
+
+  /**
+   * Store the states of all written records as a snapshot, continue in a new journal file and
+   * delete the files which are covered by the snapshot.
+   */
+  private void writeSnapshot() {
+    try {
+      JournalSnapshot.write(directory, writtenSequence, states);
+      FileChannel previous = channel;
+      channel = openJournalFile(writtenSequence + 1);
+      journalSize = 0;
+      if (previous != null) {
+        previous.close();
+      }
+      for (Map.Entry<Long, Path> file : listJournalFiles().entrySet()) {
+        if (file.getKey() <= writtenSequence) {
+          Files.deleteIfExists(file.getValue());
+        }
+      }
+      recordsSinceSnapshot = 0;
+      lastSnapshotTime = System.currentTimeMillis();
+      SNAPSHOTS.increment();
+    } catch (IOException e) {
+      FAILURES.increment();
+      Logger.error("Could not write the actuator snapshot: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Write the remaining records, store a final snapshot and close the journal. Records appended
+   * after closing are ignored.
+   */
+  @Override
+  public void close() {
+    synchronized (lock) {
+      closed = true;
+      lock.notifyAll();
+    }
+    try {
+      writer.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return;
+    }
+    if (recordsSinceSnapshot > 0) {
+      writeSnapshot();
+    }
+    try {
+      channel.close();
+    } catch (IOException e) {
+      Logger.error("Could not close the command journal: " + e.getMessage());
+    }
+  }
+}
@@ -0,0 +1,100 @@
+package no.ntnu.journal;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.zip.CRC32C;
+
+/**
+ * A compacted snapshot of the command journal: the state of every actuator after a given
+ * journal sequence number. The journal records up to that number are no longer needed.
+ * <pre>
+ *   int magic, long sequence, int count
+ *   per actuator: int node ID, int actuator ID, byte on
+ *   int CRC32C of everything before it
+ * </pre>
+ * A snapshot is written under a temporary name and renamed when it is on disk, so there is
+ * always one complete snapshot.
+ */
+final class JournalSnapshot {
+  static final String FILE_NAME = "actuators.snapshot";
+  private static final int MAGIC = 0x4A534E31;
+  private static final int HEADER_SIZE = Integer.BYTES + Long.BYTES + Integer.BYTES;
+  private static final int ENTRY_SIZE = 2 * Integer.BYTES + 1;
+
+  private JournalSnapshot() {
+  }
+
+  /**
+   * Write a snapshot into a directory, replacing the previous one.
+   *
+   * @param directory the journal directory
+   * @param sequence  the last journal sequence number included in the states
+   * @param states    the actuator states, by {@link CommandJournal#key(int, int) key}
+   * @throws IOException if the snapshot can't be written
+   */
+  static void write(Path directory, long sequence, Map<Long, Boolean> states) throws IOException {
+    ByteBuffer out = ByteBuffer.allocate(HEADER_SIZE + states.size() * ENTRY_SIZE
+        + Integer.BYTES);
+    out.putInt(MAGIC).putLong(sequence).putInt(states.size());
+    for (Map.Entry<Long, Boolean> state : states.entrySet()) {
+      out.putInt((int) (state.getKey() >>> 32)).putInt(state.getKey().intValue())
+          .put((byte) (state.getValue() ? 1 : 0));
+    }
+    CRC32C crc = new CRC32C();
+    crc.update(out.array(), 0, out.position());
+    out.putInt((int) crc.getValue());
+    out.flip();
+
+    Path file = directory.resolve(FILE_NAME);
+    Path temporary = directory.resolve(FILE_NAME + ".tmp");
+    try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+      while (out.hasRemaining()) {
+        channel.write(out);
+      }
+      channel.force(true);
+    }
+    Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE,
+        StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  /**
+   * Read the snapshot of a directory, if there is one.
+   *
+   * @param directory the journal directory
+   * @param states    receives the actuator states, by key
+   * @return the last journal sequence number included in the snapshot, 0 if there is none
+   * @throws IOException if the snapshot can't be read or is damaged
+   */
+  static long read(Path directory, Map<Long, Boolean> states) throws IOException {
+    Path file = directory.resolve(FILE_NAME);
+    if (!Files.exists(file)) {
+      return 0;
+    }
+    ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(file));
+    if (in.remaining() < HEADER_SIZE + Integer.BYTES || in.getInt() != MAGIC) {
+      throw new IOException("Not a journal snapshot: " + file);
+    }
+    long sequence = in.getLong();
+    int count = in.getInt();
+    int end = HEADER_SIZE + count * ENTRY_SIZE;
+    if (count < 0 || in.limit() != end + Integer.BYTES) {
+      throw new IOException("Journal snapshot has the wrong size: " + file);
+    }
+    CRC32C crc = new CRC32C();
+    crc.update(in.array(), 0, end);
+    if (in.getInt(end) != (int) crc.getValue()) {
+      throw new IOException("Journal snapshot is damaged: " + file);
+    }
+    for (int i = 0; i < count; i++) {
+      states.put(CommandJournal.key(in.getInt(), in.getInt()), in.get() != 0);
+    }
+    return sequence;
+  }
+}
@@ -0,0 +1,19 @@
+package no.ntnu.listeners.controlpanel;
+
+import java.util.List;
+import no.ntnu.message.AlertEntry;
+
+/**
+ * Receives the alert list of a control panel every time a digest from the server changes it. It
+ * is called on the communication thread, GUI listeners must pass the list on to the GUI thread.
+ */
+public interface AlertListener {
+  /**
+   * This event is fired when the alerts which fire have changed.
+   *
+   * @param firing      the firing alerts the panel knows of, newest first
+   * @param firingCount how many alerts fire on the server, which can be more than the panel
+   *                    knows of while the server is catching up after a mass event
+   */
+  void onAlertsChanged(List<AlertEntry> firing, int firingCount);
+}
@@ -0,0 +1,18 @@
+package no.ntnu.listeners.controlpanel;
+
+/**
+ * Receives the anomalies which the server detects in the sensor readings. It is called on the
+ * communication thread, GUI listeners must pass the anomalies on to the GUI thread.
+ */
+public interface AnomalyListener {
+  /**
+   * This event is fired when the server detects an anomaly.
+   *
+   * @param nodeId      ID of the node
+   * @param sensorIndex index of the sensor in the readings of the node
+   * @param kind        the kind of anomaly: "spike" or "stuck"
+   * @param score       the z-score of a spike, or the seconds a sensor has been stuck
+   * @param timestamp   capture time of the anomalous reading, epoch milliseconds
+   */
+  void onAnomaly(int nodeId, int sensorIndex, String kind, double score, long timestamp);
+}
@@ -0,0 +1,19 @@
+package no.ntnu.listeners.controlpanel;
+
+import java.util.List;
+import no.ntnu.controlpanel.HistoryPoint;
+
+/**
+ * Receives the answer to a history query, chunk by chunk. It is called on the communication
+ * thread, GUI listeners must pass the points on to the GUI thread.
+ */
+public interface HistoryListener {
+  /**
+   * This event is fired for every chunk of the answer, in time order.
+   *
+   * @param resolution the resolution chosen by the server: "raw", "1m", "1h" or "1d"
+   * @param points     the points of the chunk, possibly empty
+   * @param last       true for the last chunk of the answer
+   */
+  void onHistoryChunk(String resolution, List<HistoryPoint> points, boolean last);
+}
@@ -0,0 +1,17 @@
+package no.ntnu.listeners.controlpanel;
+
+/**
+ * Receives the answer to a percentile query. It is called on the communication thread, GUI
+ * listeners must pass the percentiles on to the GUI thread.
+ */
+public interface PercentileListener {
+  /**
+   * This event is fired when the answer arrives.
+   *
+   * @param count     the number of readings the percentiles were computed from, 0 when there
+   *                  were none
+   * @param quantiles the quantiles, between 0 and 1, empty when there were no readings
+   * @param values    the value of each quantile
+   */
+  void onPercentiles(long count, double[] quantiles, double[] values);
+}
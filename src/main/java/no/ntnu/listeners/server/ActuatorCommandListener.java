@@ -0,0 +1,17 @@
+package no.ntnu.listeners.server;
+
+/**
+ * Listener for actuator commands arriving at the server from control panels.
+ * It is called on the thread which received the command, before the command is applied to the
+ * node, so implementations must be thread-safe and should return quickly.
+ */
+public interface ActuatorCommandListener {
+  /**
+   * An event that is fired every time a control panel asks for an actuator state.
+   *
+   * @param nodeId     ID of the node with the actuator
+   * @param actuatorId ID of the actuator
+   * @param on         the requested state, true for on
+   */
+  void onActuatorCommand(int nodeId, int actuatorId, boolean on);
+}
@@ -0,0 +1,17 @@
+package no.ntnu.listeners.server;
+
+/**
+ * Listener for the actuator states which the nodes report to the server.
+ * It is called on the thread which received the report, so implementations must be thread-safe
+ * and should return quickly.
+ */
+public interface ActuatorStateListener {
+  /**
+   * An event that is fired every time a node reports that an actuator changed its state.
+   *
+   * @param nodeId     ID of the node with the actuator
+   * @param actuatorId ID of the actuator
+   * @param on         the new state, true for on
+   */
+  void onActuatorState(int nodeId, int actuatorId, boolean on);
+}
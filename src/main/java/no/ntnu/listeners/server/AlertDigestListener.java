@@ -0,0 +1,16 @@
+package no.ntnu.listeners.server;
+
+import no.ntnu.message.AlertDigestMessage;
+
+/**
+ * Listener for the digests of alert changes made by the alert manager of the server. It is called
+ * on the thread of the alert manager, never on a thread which receives sensor data.
+ */
+public interface AlertDigestListener {
+  /**
+   * An event that is fired when a digest of alert changes is ready to deliver.
+   *
+   * @param digest the digest
+   */
+  void onAlertDigest(AlertDigestMessage digest);
+}
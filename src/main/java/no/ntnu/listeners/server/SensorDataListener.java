@@ -0,0 +1,24 @@
+package no.ntnu.listeners.server;
+
+/**
+ * Listener for sensor data arriving at the server.
+ * It is called on the thread which received the data, and for many nodes at the same time, so
+ * implementations must be thread-safe and should return quickly.
+ */
+public interface SensorDataListener {
+  /**
+   * The largest node ID the server passes to the listeners. Listeners may keep the state of each
+   * node in an array indexed by node ID, so data from IDs outside 1..MAX_NODE_ID is dropped when
+   * it is received.
+   */
+  int MAX_NODE_ID = 1_000_000;
+
+  /**
+   * An event that is fired every time a node reports sensor data.
+   *
+   * @param nodeId      ID of the node which sent the data, from 1 to {@link #MAX_NODE_ID}
+   * @param sensorData  the readings, formatted as type=value unit,type=value unit,...
+   * @param captureTime when the node captured the readings, epoch milliseconds
+   */
+  void onSensorData(int nodeId, String sensorData, long captureTime);
+}
@@ -0,0 +1,22 @@
+package no.ntnu.listeners.server;
+
+import no.ntnu.analytics.StreamOperator;
+
+/**
+ * Listener for the results of the stream operators evaluated over the sensor data arriving at the
+ * server. It is called on the thread which received the data, while the series is locked, so
+ * implementations must be thread-safe and should return quickly.
+ */
+public interface StreamResultListener {
+  /**
+   * An event that is fired every time an operator produces a result for a sensor.
+   *
+   * @param nodeId      ID of the node
+   * @param sensorIndex index of the sensor on the node
+   * @param operator    the operator which produced the result
+   * @param timestamp   capture time of the reading which produced the result, epoch milliseconds
+   * @param value       the result
+   */
+  void onStreamResult(int nodeId, int sensorIndex, StreamOperator operator, long timestamp,
+                      double value);
+}
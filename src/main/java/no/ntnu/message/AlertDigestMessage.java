@@ -0,0 +1,95 @@
+package no.ntnu.message;
+
+import java.util.List;
+
+/**
+ * The AlertDigestMessage class represents a batch of alert changes which the
+ * server sends to the control panels periodically: the alerts which started
+ * firing or were resolved since the previous digest. An alert which fired and
+ * was resolved again between two digests is left out. A digest lists a limited
+ * number of changes; the pending count tells how many more are waiting for the
+ * next digests. A snapshot digest, sent to a panel when it connects, lists the
+ * alerts which are firing instead of the changes.
+ */
+public class AlertDigestMessage implements Message {
+    private final long timestamp;
+    private final boolean snapshot;
+    private final int firingCount;
+    private final int pendingCount;
+    private final List<AlertEntry> alerts;
+
+    /**
+     * Constructs a new AlertDigestMessage.
+     *
+     * @param timestamp    when the digest was made, epoch milliseconds
+     * @param snapshot     true if the alerts are all firing alerts, replacing
+     *                     the alert list of the panel
+     * @param firingCount  the number of alerts firing on the server
+     * @param pendingCount the number of changes left for the next digests,
+     *                     some of which may cancel out before then
+     * @param alerts       the listed alert changes
+     */
+    public AlertDigestMessage(long timestamp, boolean snapshot, int firingCount,
+            int pendingCount, List<AlertEntry> alerts) {
+        this.timestamp = timestamp;
+        this.snapshot = snapshot;
+        this.firingCount = firingCount;
+        this.pendingCount = pendingCount;
+        this.alerts = alerts;
+    }
+
+    /**
+     * Gets the time the digest was made.
+     *
+     * @return epoch milliseconds
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * Checks whether the digest is a snapshot of the firing alerts.
+     *
+     * @return true for a snapshot, false for a digest of changes
+     */
+    public boolean isSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Gets the number of alerts firing on the server.
+     *
+     * @return the firing count, which can be more than the listed alerts
+     */
+    public int getFiringCount() {
+        return firingCount;
+    }
+
+    /**
+     * Gets the number of changes which did not fit in this digest.
+     *
+     * @return the pending count
+     */
+    public int getPendingCount() {
+        return pendingCount;
+    }
+
+    /**
+     * Gets the listed alert changes.
+     *
+     * @return the alerts, possibly empty
+     */
+    public List<AlertEntry> getAlerts() {
+        return alerts;
+    }
+
+    /**
+     * Gets the type of the message.
+     *
+     * @return the message type as a string
+     */
+    @Override
+    public String getType() {
+        return MessageSerializer.ALERT_DIGEST;
+    }
+}
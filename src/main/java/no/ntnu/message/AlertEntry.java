@@ -0,0 +1,89 @@
+package no.ntnu.message;
+
+/**
+ * The AlertEntry class represents one alert change in an alert digest: the
+ * alert of a rule for an entity started firing, or was resolved. The entity is
+ * a node, or an actuator of a node.
+ */
+public class AlertEntry {
+    /**
+     * Actuator ID of an alert about a whole node.
+     */
+    public static final int NO_ACTUATOR = -1;
+
+    private final String ruleName;
+    private final int nodeId;
+    private final int actuatorId;
+    private final boolean firing;
+    private final double value;
+    private final long timestamp;
+
+    /**
+     * Constructs a new AlertEntry.
+     *
+     * @param ruleName   the name of the rule
+     * @param nodeId     ID of the node
+     * @param actuatorId ID of the actuator, or {@link #NO_ACTUATOR} for the node itself
+     * @param firing     true if the alert fires, false if it was resolved
+     * @param value      the mean reading of a threshold alert, or how many seconds the node has
+     *                   been silent or the actuator stuck
+     * @param timestamp  when the alert started firing or was resolved, epoch milliseconds
+     */
+    public AlertEntry(String ruleName, int nodeId, int actuatorId, boolean firing, double value,
+            long timestamp) {
+        this.ruleName = ruleName;
+        this.nodeId = nodeId;
+        this.actuatorId = actuatorId;
+        this.firing = firing;
+        this.value = value;
+        this.timestamp = timestamp;
+    }
+
+    public String getRuleName() {
+        return ruleName;
+    }
+
+    public int getNodeId() {
+        return nodeId;
+    }
+
+    public int getActuatorId() {
+        return actuatorId;
+    }
+
+    public boolean isFiring() {
+        return firing;
+    }
+
+    public double getValue() {
+        return value;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * Get the entity of the alert as written in messages: the node ID, or node/actuator.
+     *
+     * @return the entity, like "12" or "12/4"
+     */
+    public String getEntity() {
+        return actuatorId == NO_ACTUATOR ? String.valueOf(nodeId) : nodeId + "/" + actuatorId;
+    }
+
+    /**
+     * Get the key of the alert, which is the same for all changes of the alert of a rule for an
+     * entity.
+     *
+     * @return the rule name and entity, like "too-hot:12"
+     */
+    public String getKey() {
+        return ruleName + ":" + getEntity();
+    }
+
+    @Override
+    public String toString() {
+        return getKey() + (firing ? " firing " : " resolved ") + value;
+    }
+}
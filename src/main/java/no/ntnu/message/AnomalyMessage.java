@@ -0,0 +1,90 @@
+package no.ntnu.message;
+
+/**
+ * The AnomalyMessage class represents an anomaly which the server detected in
+ * the readings of a sensor, sent to the control panels which subscribed.
+ * The kind tells which detector found it: "spike" for a reading far from the
+ * recent mean, where the score is the z-score, or "stuck" for a sensor whose
+ * readings stopped changing, where the score is how long, in seconds.
+ */
+public class AnomalyMessage implements Message {
+    private final int nodeId;
+    private final int sensorIndex;
+    private final String kind;
+    private final double score;
+    private final long timestamp;
+
+    /**
+     * Constructs a new AnomalyMessage.
+     *
+     * @param nodeId      the ID of the node
+     * @param sensorIndex the index of the sensor in the readings of the node
+     * @param kind        the kind of anomaly, like "spike" or "stuck"
+     * @param score       how strong the anomaly is, depending on the kind
+     * @param timestamp   the capture time of the anomalous reading, epoch
+     *                    milliseconds
+     */
+    public AnomalyMessage(int nodeId, int sensorIndex, String kind, double score,
+            long timestamp) {
+        this.nodeId = nodeId;
+        this.sensorIndex = sensorIndex;
+        this.kind = kind;
+        this.score = score;
+        this.timestamp = timestamp;
+    }
+
+    /**
+     * Gets the ID of the node.
+     *
+     * @return the node ID
+     */
+    public int getNodeId() {
+        return nodeId;
+    }
+
+    /**
+     * Gets the index of the sensor in the readings of the node.
+     *
+     * @return the sensor index
+     */
+    public int getSensorIndex() {
+        return sensorIndex;
+    }
+
+    /**
+     * Gets the kind of anomaly.
+     *
+     * @return "spike", "stuck" or another detector label
+     */
+    public String getKind() {
+        return kind;
+    }
+
+    /**
+     * Gets how strong the anomaly is.
+     *
+     * @return the z-score of a spike, or the seconds a sensor has been stuck
+     */
+    public double getScore() {
+        return score;
+    }
+
+    /**
+     * Gets the capture time of the anomalous reading.
+     *
+     * @return epoch milliseconds
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * Gets the type of the message.
+     *
+     * @return the message type as a string
+     */
+    @Override
+    public String getType() {
+        return MessageSerializer.ANOMALY;
+    }
+}
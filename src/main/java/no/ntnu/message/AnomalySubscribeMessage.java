@@ -0,0 +1,37 @@
+package no.ntnu.message;
+
+/**
+ * The AnomalySubscribeMessage class represents a request from a control panel
+ * to start or stop receiving the anomalies detected by the server.
+ */
+public class AnomalySubscribeMessage implements Message {
+    private final boolean subscribe;
+
+    /**
+     * Constructs a new AnomalySubscribeMessage.
+     *
+     * @param subscribe true to start receiving anomalies, false to stop
+     */
+    public AnomalySubscribeMessage(boolean subscribe) {
+        this.subscribe = subscribe;
+    }
+
+    /**
+     * Checks whether the panel wants to receive anomalies.
+     *
+     * @return true to subscribe, false to unsubscribe
+     */
+    public boolean isSubscribe() {
+        return subscribe;
+    }
+
+    /**
+     * Gets the type of the message.
+     *
+     * @return the message type as a string
+     */
+    @Override
+    public String getType() {
+        return MessageSerializer.ANOMALY_SUBSCRIBE;
+    }
+}
@@ -0,0 +1,76 @@
+package no.ntnu.message;
+
+/**
+ * The HistoryChunkMessage class represents one part of the answer to a history
+ * query. Large answers are split into chunks of a bounded number of points;
+ * the last chunk of an answer is marked, and may be empty.
+ * The points are kept in their wire format: for raw data, timestamp:value
+ * pairs, for rollups timestamp:average:min:max:count, separated by commas.
+ */
+public class HistoryChunkMessage implements Message {
+    private final int queryId;
+    private final String resolution;
+    private final boolean last;
+    private final String points;
+
+    /**
+     * Constructs a new HistoryChunkMessage.
+     *
+     * @param queryId    the ID of the query which is answered
+     * @param resolution the resolution of the points: "raw", "1m", "1h" or "1d"
+     * @param last       true if this is the last chunk of the answer
+     * @param points     the formatted points, possibly empty
+     */
+    public HistoryChunkMessage(int queryId, String resolution, boolean last, String points) {
+        this.queryId = queryId;
+        this.resolution = resolution;
+        this.last = last;
+        this.points = points;
+    }
+
+    /**
+     * Gets the ID of the query which is answered.
+     *
+     * @return the query ID
+     */
+    public int getQueryId() {
+        return queryId;
+    }
+
+    /**
+     * Gets the resolution of the points.
+     *
+     * @return "raw", "1m", "1h" or "1d"
+     */
+    public String getResolution() {
+        return resolution;
+    }
+
+    /**
+     * Checks whether this is the last chunk of the answer.
+     *
+     * @return true for the last chunk
+     */
+    public boolean isLast() {
+        return last;
+    }
+
+    /**
+     * Gets the formatted points.
+     *
+     * @return the points, possibly empty
+     */
+    public String getPoints() {
+        return points;
+    }
+
+    /**
+     * Gets the type of the message.
+     *
+     * @return the message type as a string
+     */
+    @Override
+    public String getType() {
+        return MessageSerializer.HISTORY_CHUNK;
+    }
+}
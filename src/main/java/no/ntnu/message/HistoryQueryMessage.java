@@ -0,0 +1,110 @@
+package no.ntnu.message;
+
+/**
+ * The HistoryQueryMessage class represents a request from a control panel for
+ * the stored history of one sensor.
+ * It includes an ID chosen by the panel to match the answers to the query, the
+ * sensor, the time range and the resolution of the answer.
+ */
+public class HistoryQueryMessage implements Message {
+    /**
+     * Resolution letting the server choose between raw points and rollups,
+     * based on the length of the range.
+     */
+    public static final String AUTO = "auto";
+    /**
+     * Resolution asking for the raw points.
+     */
+    public static final String RAW = "raw";
+
+    private final int queryId;
+    private final int nodeId;
+    private final int sensorIndex;
+    private final long from;
+    private final long to;
+    private final String resolution;
+
+    /**
+     * Constructs a new HistoryQueryMessage.
+     *
+     * @param queryId     the ID of the query, echoed in the answers
+     * @param nodeId      the ID of the node
+     * @param sensorIndex the index of the sensor in the readings of the node
+     * @param from        the start of the range, inclusive, epoch milliseconds
+     * @param to          the end of the range, exclusive, epoch milliseconds
+     * @param resolution  "auto", "raw" or a rollup resolution: "1m", "1h" or "1d"
+     */
+    public HistoryQueryMessage(int queryId, int nodeId, int sensorIndex, long from, long to,
+                               String resolution) {
+        this.queryId = queryId;
+        this.nodeId = nodeId;
+        this.sensorIndex = sensorIndex;
+        this.from = from;
+        this.to = to;
+        this.resolution = resolution;
+    }
+
+    /**
+     * Gets the ID of the query.
+     *
+     * @return the query ID
+     */
+    public int getQueryId() {
+        return queryId;
+    }
+
+    /**
+     * Gets the ID of the node.
+     *
+     * @return the node ID
+     */
+    public int getNodeId() {
+        return nodeId;
+    }
+
+    /**
+     * Gets the index of the sensor in the readings of the node.
+     *
+     * @return the sensor index
+     */
+    public int getSensorIndex() {
+        return sensorIndex;
+    }
+
+    /**
+     * Gets the start of the range.
+     *
+     * @return the start, inclusive, epoch milliseconds
+     */
+    public long getFrom() {
+        return from;
+    }
+
+    /**
+     * Gets the end of the range.
+     *
+     * @return the end, exclusive, epoch milliseconds
+     */
+    public long getTo() {
+        return to;
+    }
+
+    /**
+     * Gets the requested resolution.
+     *
+     * @return "auto", "raw", "1m", "1h" or "1d"
+     */
+    public String getResolution() {
+        return resolution;
+    }
+
+    /**
+     * Gets the type of the message.
+     *
+     * @return the message type as a string
+     */
+    @Override
+    public String getType() {
+        return MessageSerializer.HISTORY_QUERY;
+    }
+}
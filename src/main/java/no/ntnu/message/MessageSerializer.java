@@ -1,5 +1,8 @@
 package no.ntnu.message;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * Serializes messages to protocol-defined strings and vice versa.
  */
@@ -12,6 +15,22 @@ public class MessageSerializer {
     public static final String NODE_STOPPED = "NODE_STOPPED";
     public static final String ERROR = "ERROR";
     public static final String TURN_OFF_ALL = "TURN_OFF_ALL";
+    public static final String HISTORY_QUERY = "HISTORY_QUERY";
+    public static final String HISTORY_CHUNK = "HISTORY_CHUNK";
+    public static final String ANOMALY_SUBSCRIBE = "ANOMALY_SUBSCRIBE";
+    public static final String ANOMALY = "ANOMALY";
+    public static final String PERCENTILE_QUERY = "PERCENTILE_QUERY";
+    public static final String PERCENTILE_RESULT = "PERCENTILE_RESULT";
+    public static final String ALERT_DIGEST = "ALERT_DIGEST";
+    public static final String UNKNOWN = "UNKNOWN";
+    private static final String FIRING = "firing";
+    private static final String RESOLVED = "resolved";
+
+    private static final String[] TYPES = {
+        CONTROL_PANEL_CONNECT, NODE_READY, SENSOR_DATA, ACTUATOR_STATE, ACTUATOR_COMMAND,
+        NODE_STOPPED, ERROR, TURN_OFF_ALL, HISTORY_QUERY, HISTORY_CHUNK, ANOMALY_SUBSCRIBE,
+        ANOMALY, PERCENTILE_QUERY, PERCENTILE_RESULT, ALERT_DIGEST
+    };
 
     /**
      * Not allowed to instantiate this utility class.
@@ -19,6 +38,71 @@ public class MessageSerializer {
     private MessageSerializer() {
     }
 
+    /**
+     * Get the type of a serialized message without parsing it. Does not allocate, so it is
+     * suitable for hot paths such as per-message metrics.
+     *
+     * @param s The string sent over the communication channel
+     * @return One of the message type constants, or UNKNOWN
+     */
+    public static String typeOf(String s) {
+        int end = s.indexOf(';');
+        if (end < 0) {
+            end = s.length();
+        }
+        for (String type : TYPES) {
+            if (type.length() == end && s.startsWith(type)) {
+                return type;
+            }
+        }
+        return UNKNOWN;
+    }
+
+    /**
+     * Get the ID of the node a message is about.
+     *
+     * @param m The message
+     * @return The node ID, or -1 when the message is not about a single node
+     */
+    public static int nodeIdOf(Message m) {
+        if (m instanceof SensorDataMessage msg) {
+            return msg.getNodeId();
+        } else if (m instanceof ActuatorCommandMessage msg) {
+            return msg.getNodeId();
+        } else if (m instanceof ActuatorStateMessage msg) {
+            return msg.getNodeId();
+        } else if (m instanceof NodeReadyMessage msg) {
+            return parseLeadingInt(msg.getNodeInfo(), 0);
+        } else if (m instanceof HistoryQueryMessage msg) {
+            return msg.getNodeId();
+        } else if (m instanceof AnomalyMessage msg) {
+            return msg.getNodeId();
+        }
+        return -1;
+    }
+
+    /**
+     * Get the ID of the node a serialized message is about, without parsing the whole message.
+     * For the message types which have one, the node ID is the first field after the type.
+     *
+     * @param s The serialized message
+     * @return The node ID, or -1 when the message does not start with a node ID
+     */
+    public static int nodeIdOf(String s) {
+        int separator = s.indexOf(';');
+        return separator >= 0 ? parseLeadingInt(s, separator + 1) : -1;
+    }
+
+    private static int parseLeadingInt(String s, int start) {
+        int id = 0;
+        int i = start;
+        while (i < s.length() && Character.isDigit(s.charAt(i))) {
+            id = id * 10 + (s.charAt(i) - '0');
+            i++;
+        }
+        return i > start ? id : -1;
+    }
+
     /**
      * Create message from a string, according to the communication protocol.
      *
@@ -49,6 +133,13 @@ public class MessageSerializer {
                 case SENSOR_DATA -> parseSensorData(parts);
                 case ACTUATOR_COMMAND -> parseActuatorCommand(parts);
                 case ACTUATOR_STATE -> parseActuatorState(parts);
+                case HISTORY_QUERY -> parseHistoryQuery(parts);
+                case HISTORY_CHUNK -> parseHistoryChunk(parts);
+                case ANOMALY_SUBSCRIBE -> parseAnomalySubscribe(parts);
+                case ANOMALY -> parseAnomaly(parts);
+                case PERCENTILE_QUERY -> parsePercentileQuery(parts);
+                case PERCENTILE_RESULT -> parsePercentileResult(parts);
+                case ALERT_DIGEST -> parseAlertDigest(parts);
                 default -> new ErrorMessage("Unknown message type: " + parts[0]);
             };
         } catch (NumberFormatException e) {
@@ -82,9 +173,12 @@ public class MessageSerializer {
         try {
             return new SensorDataMessage(
                     Integer.parseInt(parts[1]),
-                    parts[2]);
+                    parts[2],
+                    parts.length > 3 ? Long.parseLong(parts[3]) : 0,
+                    parts.length > 5 ? Long.parseLong(parts[4]) : 0,
+                    parts.length > 5 ? Long.parseLong(parts[5]) : 0);
         } catch (NumberFormatException e) {
-            return new ErrorMessage("Invalid node ID in sensor data");
+            return new ErrorMessage("Invalid node ID or timestamp in sensor data");
         }
     }
 
@@ -128,6 +222,185 @@ public class MessageSerializer {
         }
     }
 
+    /**
+     * Parses a HISTORY_QUERY message.
+     *
+     * @param parts the parts of the message
+     * @return the parsed message or an error message if the format is invalid
+     */
+    private static Message parseHistoryQuery(String[] parts) {
+        if (parts.length < 7) {
+            return new ErrorMessage("Invalid HISTORY_QUERY format");
+        }
+        try {
+            return new HistoryQueryMessage(
+                    Integer.parseInt(parts[1]),
+                    Integer.parseInt(parts[2]),
+                    Integer.parseInt(parts[3]),
+                    Long.parseLong(parts[4]),
+                    Long.parseLong(parts[5]),
+                    parts[6]);
+        } catch (NumberFormatException e) {
+            return new ErrorMessage("Invalid number in history query");
+        }
+    }
+
+    /**
+     * Parses a HISTORY_CHUNK message. The points field is empty in an empty
+     * last chunk.
+     *
+     * @param parts the parts of the message
+     * @return the parsed message or an error message if the format is invalid
+     */
+    private static Message parseHistoryChunk(String[] parts) {
+        if (parts.length < 4) {
+            return new ErrorMessage("Invalid HISTORY_CHUNK format");
+        }
+        try {
+            return new HistoryChunkMessage(
+                    Integer.parseInt(parts[1]),
+                    parts[2],
+                    Boolean.parseBoolean(parts[3]),
+                    parts.length > 4 ? parts[4] : "");
+        } catch (NumberFormatException e) {
+            return new ErrorMessage("Invalid query ID in history chunk");
+        }
+    }
+
+    /**
+     * Parses an ANOMALY_SUBSCRIBE message. Without a field, the panel
+     * subscribes.
+     *
+     * @param parts the parts of the message
+     * @return the parsed message
+     */
+    private static Message parseAnomalySubscribe(String[] parts) {
+        return new AnomalySubscribeMessage(parts.length < 2 || Boolean.parseBoolean(parts[1]));
+    }
+
+    /**
+     * Parses an ANOMALY message.
+     *
+     * @param parts the parts of the message
+     * @return the parsed message or an error message if the format is invalid
+     */
+    private static Message parseAnomaly(String[] parts) {
+        if (parts.length < 6) {
+            return new ErrorMessage("Invalid ANOMALY format");
+        }
+        try {
+            return new AnomalyMessage(
+                    Integer.parseInt(parts[1]),
+                    Integer.parseInt(parts[2]),
+                    parts[3],
+                    Double.parseDouble(parts[4]),
+                    Long.parseLong(parts[5]));
+        } catch (NumberFormatException e) {
+            return new ErrorMessage("Invalid number in anomaly");
+        }
+    }
+
+    /**
+     * Parses a PERCENTILE_QUERY message. The group is a number or * for all
+     * groups, the quantiles are separated by commas.
+     *
+     * @param parts the parts of the message
+     * @return the parsed message or an error message if the format is invalid
+     */
+    private static Message parsePercentileQuery(String[] parts) {
+        if (parts.length < 5) {
+            return new ErrorMessage("Invalid PERCENTILE_QUERY format");
+        }
+        try {
+            String[] fields = parts[4].split(",");
+            double[] quantiles = new double[fields.length];
+            for (int i = 0; i < fields.length; i++) {
+                quantiles[i] = Double.parseDouble(fields[i]);
+            }
+            return new PercentileQueryMessage(Integer.parseInt(parts[1]), parts[2],
+                    parseGroup(parts[3]), quantiles);
+        } catch (NumberFormatException e) {
+            return new ErrorMessage("Invalid number in percentile query");
+        }
+    }
+
+    /**
+     * Parses a PERCENTILE_RESULT message. The values are quantile:value pairs
+     * separated by commas, and missing when the count is 0.
+     *
+     * @param parts the parts of the message
+     * @return the parsed message or an error message if the format is invalid
+     */
+    private static Message parsePercentileResult(String[] parts) {
+        if (parts.length < 5) {
+            return new ErrorMessage("Invalid PERCENTILE_RESULT format");
+        }
+        try {
+            String[] pairs = parts.length > 5 && !parts[5].isEmpty()
+                    ? parts[5].split(",") : new String[0];
+            double[] quantiles = new double[pairs.length];
+            double[] values = new double[pairs.length];
+            for (int i = 0; i < pairs.length; i++) {
+                int colon = pairs[i].indexOf(':');
+                quantiles[i] = Double.parseDouble(pairs[i].substring(0, colon));
+                values[i] = Double.parseDouble(pairs[i].substring(colon + 1));
+            }
+            return new PercentileResultMessage(Integer.parseInt(parts[1]), parts[2],
+                    parseGroup(parts[3]), Long.parseLong(parts[4]), quantiles, values);
+        } catch (NumberFormatException | IndexOutOfBoundsException e) {
+            return new ErrorMessage("Invalid percentile result");
+        }
+    }
+
+    /**
+     * Parses an ALERT_DIGEST message. The alerts are
+     * rule:entity:firing|resolved:value:timestamp, separated by commas, where
+     * the entity is a node ID or node/actuator. The alerts field is empty when
+     * no alert is listed.
+     *
+     * @param parts the parts of the message
+     * @return the parsed message or an error message if the format is invalid
+     */
+    private static Message parseAlertDigest(String[] parts) {
+        if (parts.length < 5) {
+            return new ErrorMessage("Invalid ALERT_DIGEST format");
+        }
+        try {
+            List<AlertEntry> alerts = new ArrayList<>();
+            if (parts.length > 5 && !parts[5].isEmpty()) {
+                for (String entry : parts[5].split(",")) {
+                    alerts.add(parseAlert(entry));
+                }
+            }
+            return new AlertDigestMessage(Long.parseLong(parts[1]),
+                    Boolean.parseBoolean(parts[2]), Integer.parseInt(parts[3]),
+                    Integer.parseInt(parts[4]), alerts);
+        } catch (IllegalArgumentException e) {
+            return new ErrorMessage("Invalid alert digest");
+        }
+    }
+
+    private static AlertEntry parseAlert(String entry) {
+        String[] fields = entry.split(":");
+        if (fields.length != 5 || !(fields[2].equals(FIRING) || fields[2].equals(RESOLVED))) {
+            throw new IllegalArgumentException("Invalid alert: " + entry);
+        }
+        int slash = fields[1].indexOf('/');
+        int nodeId = Integer.parseInt(slash < 0 ? fields[1] : fields[1].substring(0, slash));
+        int actuatorId = slash < 0 ? AlertEntry.NO_ACTUATOR
+                : Integer.parseInt(fields[1].substring(slash + 1));
+        return new AlertEntry(fields[0], nodeId, actuatorId, fields[2].equals(FIRING),
+                Double.parseDouble(fields[3]), Long.parseLong(fields[4]));
+    }
+
+    private static int parseGroup(String group) {
+        return group.equals("*") ? PercentileQueryMessage.ALL_GROUPS : Integer.parseInt(group);
+    }
+
+    private static String formatGroup(int group) {
+        return group == PercentileQueryMessage.ALL_GROUPS ? "*" : String.valueOf(group);
+    }
+
     /**
      * Convert a message to a serialized string.
      *
@@ -138,7 +411,16 @@ public class MessageSerializer {
         if (m instanceof NodeReadyMessage msg) {
             return NODE_READY + ";" + msg.getNodeInfo();
         } else if (m instanceof SensorDataMessage msg) {
-            return SENSOR_DATA + ";" + msg.getNodeId() + ";" + msg.getSensorData();
+            StringBuilder s = new StringBuilder(SENSOR_DATA).append(';').append(msg.getNodeId())
+                    .append(';').append(msg.getSensorData());
+            if (msg.getCaptureTime() != 0) {
+                s.append(';').append(msg.getCaptureTime());
+                if (msg.isTraced()) {
+                    s.append(';').append(msg.getReceivedTime())
+                            .append(';').append(msg.getForwardedTime());
+                }
+            }
+            return s.toString();
         } else if (m instanceof ActuatorCommandMessage msg) {
             return ACTUATOR_COMMAND + ";" + msg.getNodeId() + ";" +
                     msg.getActuatorId() + ";" + msg.isOn();
@@ -147,6 +429,51 @@ public class MessageSerializer {
                     msg.getActuatorId() + ";" + msg.isOn();
         } else if (m instanceof ErrorMessage msg) {
             return ERROR + ";" + msg.getMessage();
+        } else if (m instanceof HistoryQueryMessage msg) {
+            return HISTORY_QUERY + ";" + msg.getQueryId() + ";" + msg.getNodeId() + ";" +
+                    msg.getSensorIndex() + ";" + msg.getFrom() + ";" + msg.getTo() + ";" +
+                    msg.getResolution();
+        } else if (m instanceof HistoryChunkMessage msg) {
+            return HISTORY_CHUNK + ";" + msg.getQueryId() + ";" + msg.getResolution() + ";" +
+                    msg.isLast() + ";" + msg.getPoints();
+        } else if (m instanceof AnomalySubscribeMessage msg) {
+            return ANOMALY_SUBSCRIBE + ";" + msg.isSubscribe();
+        } else if (m instanceof AnomalyMessage msg) {
+            return ANOMALY + ";" + msg.getNodeId() + ";" + msg.getSensorIndex() + ";" +
+                    msg.getKind() + ";" + msg.getScore() + ";" + msg.getTimestamp();
+        } else if (m instanceof PercentileQueryMessage msg) {
+            StringBuilder s = new StringBuilder(PERCENTILE_QUERY).append(';')
+                    .append(msg.getQueryId()).append(';').append(msg.getSensorType())
+                    .append(';').append(formatGroup(msg.getGroup())).append(';');
+            for (int i = 0; i < msg.getQuantiles().length; i++) {
+                s.append(i > 0 ? "," : "").append(msg.getQuantiles()[i]);
+            }
+            return s.toString();
+        } else if (m instanceof PercentileResultMessage msg) {
+            StringBuilder s = new StringBuilder(PERCENTILE_RESULT).append(';')
+                    .append(msg.getQueryId()).append(';').append(msg.getSensorType())
+                    .append(';').append(formatGroup(msg.getGroup())).append(';')
+                    .append(msg.getCount()).append(';');
+            if (msg.getCount() > 0) {
+                for (int i = 0; i < msg.getQuantiles().length; i++) {
+                    s.append(i > 0 ? "," : "").append(msg.getQuantiles()[i]).append(':')
+                            .append(msg.getValues()[i]);
+                }
+            }
+            return s.toString();
+        } else if (m instanceof AlertDigestMessage msg) {
+            StringBuilder s = new StringBuilder(ALERT_DIGEST).append(';')
+                    .append(msg.getTimestamp()).append(';').append(msg.isSnapshot())
+                    .append(';').append(msg.getFiringCount()).append(';')
+                    .append(msg.getPendingCount()).append(';');
+            for (int i = 0; i < msg.getAlerts().size(); i++) {
+                AlertEntry alert = msg.getAlerts().get(i);
+                s.append(i > 0 ? "," : "").append(alert.getRuleName()).append(':')
+                        .append(alert.getEntity()).append(':')
+                        .append(alert.isFiring() ? FIRING : RESOLVED).append(':')
+                        .append(alert.getValue()).append(':').append(alert.getTimestamp());
+            }
+            return s.toString();
         }
         return null;
     }
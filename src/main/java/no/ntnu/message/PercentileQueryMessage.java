@@ -0,0 +1,81 @@
+package no.ntnu.message;
+
+/**
+ * The PercentileQueryMessage class represents a request from a control panel
+ * for percentiles of the recent readings of a sensor type, across all nodes or
+ * across one group of nodes. The answer is a PercentileResultMessage with the
+ * same query ID.
+ */
+public class PercentileQueryMessage implements Message {
+    /**
+     * Group of a query across all nodes, written as * in the message.
+     */
+    public static final int ALL_GROUPS = -1;
+
+    private final int queryId;
+    private final String sensorType;
+    private final int group;
+    private final double[] quantiles;
+
+    /**
+     * Constructs a new PercentileQueryMessage.
+     *
+     * @param queryId    the ID of the query, chosen by the panel
+     * @param sensorType the type of the sensors, like "temperature"
+     * @param group      the group of nodes, or ALL_GROUPS
+     * @param quantiles  the quantiles, between 0 and 1, like 0.05, 0.5 and 0.95
+     */
+    public PercentileQueryMessage(int queryId, String sensorType, int group,
+            double[] quantiles) {
+        this.queryId = queryId;
+        this.sensorType = sensorType;
+        this.group = group;
+        this.quantiles = quantiles;
+    }
+
+    /**
+     * Gets the ID of the query.
+     *
+     * @return the query ID
+     */
+    public int getQueryId() {
+        return queryId;
+    }
+
+    /**
+     * Gets the type of the sensors.
+     *
+     * @return the sensor type
+     */
+    public String getSensorType() {
+        return sensorType;
+    }
+
+    /**
+     * Gets the group of nodes.
+     *
+     * @return the group, or ALL_GROUPS
+     */
+    public int getGroup() {
+        return group;
+    }
+
+    /**
+     * Gets the requested quantiles.
+     *
+     * @return the quantiles, between 0 and 1
+     */
+    public double[] getQuantiles() {
+        return quantiles;
+    }
+
+    /**
+     * Gets the type of the message.
+     *
+     * @return the message type as a string
+     */
+    @Override
+    public String getType() {
+        return MessageSerializer.PERCENTILE_QUERY;
+    }
+}
@@ -0,0 +1,100 @@
+package no.ntnu.message;
+
+/**
+ * The PercentileResultMessage class represents the answer of the server to a
+ * percentile query: the number of readings the percentiles were computed from,
+ * and the value of each requested quantile. Without readings, the count is 0
+ * and there are no values.
+ */
+public class PercentileResultMessage implements Message {
+    private final int queryId;
+    private final String sensorType;
+    private final int group;
+    private final long count;
+    private final double[] quantiles;
+    private final double[] values;
+
+    /**
+     * Constructs a new PercentileResultMessage.
+     *
+     * @param queryId    the ID of the query which is answered
+     * @param sensorType the type of the sensors
+     * @param group      the group of nodes, or PercentileQueryMessage.ALL_GROUPS
+     * @param count      the number of readings covered
+     * @param quantiles  the quantiles, between 0 and 1
+     * @param values     the value of each quantile
+     */
+    public PercentileResultMessage(int queryId, String sensorType, int group, long count,
+            double[] quantiles, double[] values) {
+        this.queryId = queryId;
+        this.sensorType = sensorType;
+        this.group = group;
+        this.count = count;
+        this.quantiles = quantiles;
+        this.values = values;
+    }
+
+    /**
+     * Gets the ID of the query which is answered.
+     *
+     * @return the query ID
+     */
+    public int getQueryId() {
+        return queryId;
+    }
+
+    /**
+     * Gets the type of the sensors.
+     *
+     * @return the sensor type
+     */
+    public String getSensorType() {
+        return sensorType;
+    }
+
+    /**
+     * Gets the group of nodes.
+     *
+     * @return the group, or PercentileQueryMessage.ALL_GROUPS
+     */
+    public int getGroup() {
+        return group;
+    }
+
+    /**
+     * Gets the number of readings the percentiles were computed from.
+     *
+     * @return the count
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Gets the quantiles.
+     *
+     * @return the quantiles, between 0 and 1
+     */
+    public double[] getQuantiles() {
+        return quantiles;
+    }
+
+    /**
+     * Gets the value of each quantile.
+     *
+     * @return the values, in the order of the quantiles
+     */
+    public double[] getValues() {
+        return values;
+    }
+
+    /**
+     * Gets the type of the message.
+     *
+     * @return the message type as a string
+     */
+    @Override
+    public String getType() {
+        return MessageSerializer.PERCENTILE_RESULT;
+    }
+}
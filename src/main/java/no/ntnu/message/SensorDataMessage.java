@@ -2,20 +2,45 @@ package no.ntnu.message;
 
 /**
  * The SensorDataMessage class represents a message that contains sensor data.
+ * It carries the capture time of the readings and, for traced messages, the
+ * times when the server received and forwarded the message.
  */
 public class SensorDataMessage implements Message {
     private final int nodeId;
     private final String sensorData;
+    private final long captureTime;
+    private final long receivedTime;
+    private final long forwardedTime;
 
     /**
-     * Constructs a new SensorDataMessage.
+     * Constructs a new SensorDataMessage without timestamps.
      *
      * @param nodeId     the ID of the node that contains the sensor
      * @param sensorData the sensor data as a string
      */
     public SensorDataMessage(int nodeId, String sensorData) {
+        this(nodeId, sensorData, 0, 0, 0);
+    }
+
+    /**
+     * Constructs a new SensorDataMessage.
+     *
+     * @param nodeId        the ID of the node that contains the sensor
+     * @param sensorData    the sensor data as a string
+     * @param captureTime   the capture time of the readings in epoch milliseconds,
+     *                      0 when unknown
+     * @param receivedTime  the time when the server received the message in epoch
+     *                      milliseconds, 0 when the message is not traced
+     * @param forwardedTime the time when the server forwarded the message in epoch
+     *                      milliseconds, 0 when the message is not traced
+     */
+    public SensorDataMessage(int nodeId, String sensorData, long captureTime,
+            long receivedTime, long forwardedTime) {
         this.nodeId = nodeId;
         this.sensorData = sensorData;
+        this.captureTime = captureTime;
+        this.receivedTime = receivedTime;
+        this.forwardedTime = forwardedTime;
     }
 
     /**
@@ -36,6 +61,42 @@ public class SensorDataMessage implements Message {
         return sensorData;
     }
 
+    /**
+     * Gets the capture time of the readings.
+     *
+     * @return the capture time in epoch milliseconds, 0 when unknown
+     */
+    public long getCaptureTime() {
+        return captureTime;
+    }
+
+    /**
+     * Gets the time when the server received the message.
+     *
+     * @return the receive time in epoch milliseconds, 0 when not traced
+     */
+    public long getReceivedTime() {
+        return receivedTime;
+    }
+
+    /**
+     * Gets the time when the server forwarded the message.
+     *
+     * @return the forward time in epoch milliseconds, 0 when not traced
+     */
+    public long getForwardedTime() {
+        return forwardedTime;
+    }
+
+    /**
+     * Checks whether the message carries per-hop timings.
+     *
+     * @return true if the receive and forward times are set
+     */
+    public boolean isTraced() {
+        return receivedTime != 0 && forwardedTime != 0;
+    }
+
     /**
      * Gets the type of the message.
      *
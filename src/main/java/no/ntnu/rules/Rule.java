@@ -0,0 +1,148 @@
+package no.ntnu.rules;
+
+/**
+ * A declarative control rule: while a sensor reading is above (or below) a threshold, an
+ * actuator is kept on (or off), and when the reading is back on the other side of the threshold
+ * by more than the hysteresis, the actuator is set to the opposite state. A rule can be limited
+ * to a time of day. Rules are usually written in a rules file, see {@link RuleParser}.
+ */
+public class Rule {
+  /**
+   * Node ID meaning any node as the source of a rule, or the node of the reading as the target.
+   */
+  public static final int ANY_NODE = -1;
+  /**
+   * Actuator ID of a rule which targets all actuators of a type.
+   */
+  public static final int ANY_ACTUATOR = -1;
+  /**
+   * Minute of day of a rule which is active all day.
+   */
+  public static final int ALL_DAY = -1;
+
+  private final String name;
+  private final int sourceNodeId;
+  private final String sensorType;
+  private final boolean above;
+  private final double threshold;
+  private final double hysteresis;
+  private final int fromMinute;
+  private final int toMinute;
+  private final int targetNodeId;
+  private final int targetActuatorId;
+  private final String targetActuatorType;
+  private final boolean on;
+
+  /**
+   * Create a rule.
+   *
+   * @param name               the name of the rule, for logs and metrics
+   * @param sourceNodeId       the node whose readings are checked, or {@link #ANY_NODE}
+   * @param sensorType         the type of the checked sensors, like "temperature"
+   * @param above              true if the rule fires above the threshold, false if below
+   * @param threshold          the threshold of the readings
+   * @param hysteresis         how far back past the threshold a reading must go to release the
+   *                           rule, zero or more
+   * @param fromMinute         first minute of day when the rule is active, or {@link #ALL_DAY}
+   * @param toMinute           minute of day when the rule stops being active; earlier than
+   *                           fromMinute for a period over midnight
+   * @param targetNodeId       the node of the target actuator, or {@link #ANY_NODE} for the
+   *                           node of the reading
+   * @param targetActuatorId   the target actuator, or {@link #ANY_ACTUATOR} for all actuators
+   *                           of targetActuatorType
+   * @param targetActuatorType the type of the target actuators when no actuator ID is given
+   * @param on                 the state of the target while the rule fires
+   */
+  public Rule(String name, int sourceNodeId, String sensorType, boolean above, double threshold,
+              double hysteresis, int fromMinute, int toMinute, int targetNodeId,
+              int targetActuatorId, String targetActuatorType, boolean on) {
+    if (hysteresis < 0) {
+      throw new IllegalArgumentException("Hysteresis can't be negative");
+    }
+    if (targetActuatorId == ANY_ACTUATOR && targetActuatorType == null) {
+      throw new IllegalArgumentException("Rule " + name + " has no target actuator");
+    }
+    this.name = name;
+    this.sourceNodeId = sourceNodeId;
+    this.sensorType = sensorType;
+    this.above = above;
+    this.threshold = threshold;
+    this.hysteresis = hysteresis;
+    this.fromMinute = fromMinute;
+    this.toMinute = toMinute;
+    this.targetNodeId = targetNodeId;
+    this.targetActuatorId = targetActuatorId;
+    this.targetActuatorType = targetActuatorType;
+    this.on = on;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public int getSourceNodeId() {
+    return sourceNodeId;
+  }
+
+  public String getSensorType() {
+    return sensorType;
+  }
+
+  public boolean isAbove() {
+    return above;
+  }
+
+  public double getThreshold() {
+    return threshold;
+  }
+
+  public double getHysteresis() {
+    return hysteresis;
+  }
+
+  public int getTargetNodeId() {
+    return targetNodeId;
+  }
+
+  public int getTargetActuatorId() {
+    return targetActuatorId;
+  }
+
+  public String getTargetActuatorType() {
+    return targetActuatorType;
+  }
+
+  public boolean isOn() {
+    return on;
+  }
+
+  /**
+   * Check whether the rule has a time of day.
+   *
+   * @return true if the rule is only active during part of the day
+   */
+  public boolean hasTimeOfDay() {
+    return fromMinute != ALL_DAY;
+  }
+
+  /**
+   * Check whether the rule is active at a time of day.
+   *
+   * @param minuteOfDay the local time, in minutes since midnight
+   * @return true if the rule is active
+   */
+  public boolean isActiveAt(int minuteOfDay) {
+    if (fromMinute == ALL_DAY) {
+      return true;
+    }
+    if (fromMinute <= toMinute) {
+      return minuteOfDay >= fromMinute && minuteOfDay < toMinute;
+    }
+    return minuteOfDay >= fromMinute || minuteOfDay < toMinute;
+  }
+
+  @Override
+  public String toString() {
+    return name;
+  }
+}
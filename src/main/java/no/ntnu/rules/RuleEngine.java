@@ -0,0 +1,267 @@
+package no.ntnu.rules;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.zone.ZoneOffsetTransition;
+import java.time.zone.ZoneRules;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import no.ntnu.greenhouse.Actuator;
+import no.ntnu.greenhouse.SensorActuatorNode;
+import no.ntnu.listeners.server.ActuatorCommandListener;
+import no.ntnu.listeners.server.SensorDataListener;
+import no.ntnu.tools.Logger;
+import no.ntnu.tools.Parser;
+import no.ntnu.tools.metrics.Counter;
+import no.ntnu.tools.metrics.Metrics;
+
+/**
+ * Evaluates {@link Rule}s against the sensor data arriving at the server and sends actuator
+ * commands directly, without a control panel in the loop.
+ * The rules are compiled into an index by sensor type, so a reading only checks the rules of its
+ * type, and a reading of a type without rules is not even parsed. When a node has several
+ * sensors of a type, the rules see the mean of their readings.
+ * Evaluation is incremental: every rule remembers, per node, whether it fires, and a command is
+ * sent only when that changes. Readings are parsed in place and the per-thread scratch space is
+ * reused, so evaluating a reading allocates nothing; only a command does.
+ */
+public class RuleEngine implements SensorDataListener {
+  // The state of a rule on a node is 0 until the rule has fired or been released there
+  private static final byte FIRING = 1;
+  private static final byte RELEASED = 2;
+  private static final long MILLIS_PER_MINUTE = 60_000;
+  private static final long MILLIS_PER_DAY = 24 * 60 * MILLIS_PER_MINUTE;
+
+  private final Map<Integer, SensorActuatorNode> nodes;
+  private final ActuatorCommandListener commands;
+  private final String[] types;
+  private final CompiledRule[][] rulesByType;
+  private final boolean needsTimeOfDay;
+  private final ZoneRules zoneRules;
+  private final ThreadLocal<Scratch> scratch;
+  private volatile OffsetPeriod offsetPeriod;
+
+  /**
+   * Create a rule engine.
+   *
+   * @param rules    the rules to evaluate
+   * @param nodes    the nodes of the greenhouse, to find the actuators of a type
+   * @param commands receives the commands of the rules, normally the server which applies them
+   * @param zone     the time zone of the times of day in the rules
+   */
+  public RuleEngine(List<Rule> rules, Map<Integer, SensorActuatorNode> nodes,
+                    ActuatorCommandListener commands, ZoneId zone) {
+    this.nodes = nodes;
+    this.commands = commands;
+    Map<String, List<CompiledRule>> index = new LinkedHashMap<>();
+    boolean timeOfDay = false;
+    for (Rule rule : rules) {
+      index.computeIfAbsent(rule.getSensorType(), type -> new ArrayList<>())
+          .add(new CompiledRule(rule));
+      timeOfDay |= rule.hasTimeOfDay();
+    }
+    this.types = index.keySet().toArray(new String[0]);
+    this.rulesByType = new CompiledRule[types.length][];
+    for (int i = 0; i < types.length; i++) {
+      rulesByType[i] = index.get(types[i]).toArray(new CompiledRule[0]);
+    }
+    this.needsTimeOfDay = timeOfDay;
+    this.zoneRules = zone.getRules();
+    this.scratch = ThreadLocal.withInitial(() -> new Scratch(types.length));
+    Logger.info("Rule engine started with " + rules.size() + " rules on " + types.length
+        + " sensor types");
+  }
+
+  @Override
+  public void onSensorData(int nodeId, String sensorData, long captureTime) {
+    if (nodeId < 1 || nodeId > MAX_NODE_ID) {
+      // The server drops such IDs; the rule states are indexed by node ID
+      return;
+    }
+    Scratch values = scratch.get();
+    Arrays.fill(values.counts, 0);
+    Arrays.fill(values.sums, 0);
+    boolean found = false;
+    int position = 0;
+    int length = sensorData.length();
+    while (position < length) {
+      int end = sensorData.indexOf(',', position);
+      if (end < 0) {
+        end = length;
+      }
+      int equals = sensorData.indexOf('=', position);
+      if (equals >= 0 && equals < end) {
+        int type = typeIndex(sensorData, position, equals);
+        if (type >= 0) {
+          double value = Parser.parseReadingValue(sensorData, equals + 1, end);
+          if (!Double.isNaN(value)) {
+            values.sums[type] += value;
+            values.counts[type]++;
+            found = true;
+          }
+        }
+      }
+      position = end + 1;
+    }
+    if (!found) {
+      return;
+    }
+    int minuteOfDay = needsTimeOfDay ? minuteOfDay(captureTime) : 0;
+    for (int type = 0; type < types.length; type++) {
+      if (values.counts[type] > 0) {
+        double mean = values.sums[type] / values.counts[type];
+        for (CompiledRule rule : rulesByType[type]) {
+          rule.evaluate(nodeId, mean, minuteOfDay);
+        }
+      }
+    }
+  }
+
+  /**
+   * Find the index of the type of a reading, comparing it in place.
+   */
+  private int typeIndex(String sensorData, int start, int end) {
+    int typeLength = end - start;
+    for (int i = 0; i < types.length; i++) {
+      if (types[i].length() == typeLength && sensorData.regionMatches(start, types[i], 0,
+          typeLength)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Get the local minute of day of a time. The zone offset is cached until its next transition,
+   * so this only allocates when the offset changes.
+   */
+  private int minuteOfDay(long epochMillis) {
+    OffsetPeriod period = offsetPeriod;
+    if (period == null || epochMillis < period.start || epochMillis >= period.end) {
+      period = new OffsetPeriod(zoneRules, epochMillis);
+      offsetPeriod = period;
+    }
+    return (int) (Math.floorMod(epochMillis + period.offsetMillis, MILLIS_PER_DAY)
+        / MILLIS_PER_MINUTE);
+  }
+
+  /**
+   * A rule with its state per node.
+   */
+  private class CompiledRule {
+    private final Rule rule;
+    private final Counter fired;
+    private volatile byte[] states = new byte[16];
+
+    CompiledRule(Rule rule) {
+      this.rule = rule;
+      this.fired = Metrics.counter("rules_fired_total", "rule", rule.getName());
+    }
+
+    void evaluate(int nodeId, double value, int minuteOfDay) {
+      if (rule.getSourceNodeId() != Rule.ANY_NODE && rule.getSourceNodeId() != nodeId) {
+        return;
+      }
+      if (!rule.isActiveAt(minuteOfDay)) {
+        return;
+      }
+      double threshold = rule.getThreshold();
+      double release = rule.isAbove() ? threshold - rule.getHysteresis()
+          : threshold + rule.getHysteresis();
+      byte next;
+      if (rule.isAbove() ? value > threshold : value < threshold) {
+        next = FIRING;
+      } else if (rule.isAbove() ? value < release : value > release) {
+        next = RELEASED;
+      } else {
+        return;
+      }
+      byte[] nodeStates = statesFor(nodeId);
+      if (nodeStates[nodeId] == next) {
+        return;
+      }
+      nodeStates[nodeId] = next;
+      boolean on = next == FIRING ? rule.isOn() : !rule.isOn();
+      fired.increment();
+      Logger.info(() -> "Rule " + rule.getName() + (next == FIRING ? " fired" : " released")
+          + " on node " + nodeId + " at " + value);
+      sendCommands(nodeId, on);
+    }
+
+    /**
+     * Get the state array, grown to include a node. Growing is rare; an update racing with it
+     * can be lost, which at worst repeats a command later.
+     *
+     * @param nodeId the node, from 1 to {@link SensorDataListener#MAX_NODE_ID}
+     */
+    private byte[] statesFor(int nodeId) {
+      if (nodeId < 1 || nodeId > MAX_NODE_ID) {
+        throw new IllegalArgumentException("Node ID out of range: " + nodeId);
+      }
+      byte[] current = states;
+      if (nodeId < current.length) {
+        return current;
+      }
+      synchronized (this) {
+        current = states;
+        if (nodeId >= current.length) {
+          current = Arrays.copyOf(current, Math.max(nodeId + 1, current.length * 2));
+          states = current;
+        }
+        return current;
+      }
+    }
+
+    private void sendCommands(int readingNodeId, boolean on) {
+      int targetNodeId = rule.getTargetNodeId() == Rule.ANY_NODE ? readingNodeId
+          : rule.getTargetNodeId();
+      if (rule.getTargetActuatorId() != Rule.ANY_ACTUATOR) {
+        commands.onActuatorCommand(targetNodeId, rule.getTargetActuatorId(), on);
+        return;
+      }
+      SensorActuatorNode node = nodes.get(targetNodeId);
+      if (node == null) {
+        return;
+      }
+      for (Actuator actuator : node.getActuators()) {
+        if (actuator.getType().equals(rule.getTargetActuatorType())) {
+          commands.onActuatorCommand(targetNodeId, actuator.getId(), on);
+        }
+      }
+    }
+  }
+
+  /**
+   * The running sums of the readings of one message, per type, reused by a thread.
+   */
+  private static class Scratch {
+    private final double[] sums;
+    private final int[] counts;
+
+    Scratch(int typeCount) {
+      this.sums = new double[typeCount];
+      this.counts = new int[typeCount];
+    }
+  }
+
+  /**
+   * A period during which the offset of the time zone does not change.
+   */
+  private static class OffsetPeriod {
+    private final long start;
+    private final long end;
+    private final long offsetMillis;
+
+    OffsetPeriod(ZoneRules rules, long epochMillis) {
+      Instant instant = Instant.ofEpochMilli(epochMillis);
+      this.offsetMillis = rules.getOffset(instant).getTotalSeconds() * 1000L;
+      ZoneOffsetTransition previous = rules.previousTransition(instant);
+      ZoneOffsetTransition next = rules.nextTransition(instant);
+      this.start = previous != null ? previous.toEpochSecond() * 1000 : Long.MIN_VALUE;
+      this.end = next != null ? next.toEpochSecond() * 1000 : Long.MAX_VALUE;
+    }
+  }
+}
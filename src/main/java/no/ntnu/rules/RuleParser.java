@@ -0,0 +1,192 @@
+package no.ntnu.rules;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads rules from text, one rule per line:
+ * <pre>
+ *   name: when source/type above|below threshold [hysteresis h] [during HH:MM-HH:MM]
+ *         then target on|off
+ * </pre>
+ * The source is a node ID or * for any node. The target is node/actuator, or an actuator type
+ * like "fan" for all actuators of that type on the node of the reading. Empty lines and lines
+ * starting with # are ignored. Examples:
+ * <pre>
+ *   cool-down: when 2/temperature above 30 hysteresis 2 then 2/4 on
+ *   vent: when &#42;/humidity above 90 hysteresis 5 during 08:00-20:00 then window on
+ * </pre>
+ */
+public class RuleParser {
+  private static final int MINUTES_PER_DAY = 24 * 60;
+
+  private RuleParser() {
+  }
+
+  /**
+   * Read the rules of a file.
+   *
+   * @param file the rules file, in UTF-8
+   * @return the rules, in file order
+   * @throws IOException              if the file can't be read
+   * @throws IllegalArgumentException if a rule is invalid, with the line number
+   */
+  public static List<Rule> load(Path file) throws IOException {
+    return parse(Files.readAllLines(file, StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Parse rules.
+   *
+   * @param lines the lines of rules
+   * @return the rules, in line order
+   * @throws IllegalArgumentException if a rule is invalid, with the line number
+   */
+  public static List<Rule> parse(List<String> lines) {
+    List<Rule> rules = new ArrayList<>();
+    for (int i = 0; i < lines.size(); i++) {
+      String line = lines.get(i).trim();
+      if (line.isEmpty() || line.startsWith("#")) {
+        continue;
+      }
+      try {
+        rules.add(parseRule(line));
+      } catch (IllegalArgumentException e) {
+        throw new IllegalArgumentException("Rule on line " + (i + 1) + ": " + e.getMessage());
+      }
+    }
+    return rules;
+  }
+
+  private static Rule parseRule(String line) {
+    int colon = line.indexOf(':');
+    if (colon <= 0) {
+      throw new IllegalArgumentException("Expected name: when ...");
+    }
+    String name = line.substring(0, colon).trim();
+    String[] tokens = line.substring(colon + 1).trim().split("\\s+");
+    int position = 0;
+    expect(tokens, position++, "when");
+
+    String source = token(tokens, position++, "source/type");
+    int slash = source.indexOf('/');
+    if (slash <= 0 || slash == source.length() - 1) {
+      throw new IllegalArgumentException("Expected source/type, got " + source);
+    }
+    int sourceNodeId = parseNode(source.substring(0, slash));
+    String sensorType = source.substring(slash + 1);
+
+    String comparison = token(tokens, position++, "above or below");
+    if (!comparison.equals("above") && !comparison.equals("below")) {
+      throw new IllegalArgumentException("Expected above or below, got " + comparison);
+    }
+    double threshold = parseNumber(token(tokens, position++, "threshold"));
+
+    double hysteresis = 0;
+    if ("hysteresis".equals(optionalToken(tokens, position))) {
+      hysteresis = parseNumber(token(tokens, position + 1, "hysteresis"));
+      position += 2;
+    }
+    int fromMinute = Rule.ALL_DAY;
+    int toMinute = Rule.ALL_DAY;
+    if ("during".equals(optionalToken(tokens, position))) {
+      String period = token(tokens, position + 1, "HH:MM-HH:MM");
+      int dash = period.indexOf('-');
+      if (dash < 0) {
+        throw new IllegalArgumentException("Expected HH:MM-HH:MM, got " + period);
+      }
+      fromMinute = parseTime(period.substring(0, dash)) % MINUTES_PER_DAY;
+      toMinute = parseTime(period.substring(dash + 1));
+      if (fromMinute == toMinute) {
+        throw new IllegalArgumentException("Empty period " + period);
+      }
+      position += 2;
+    }
+
+    expect(tokens, position++, "then");
+    String target = token(tokens, position++, "target");
+    int targetNodeId = Rule.ANY_NODE;
+    int targetActuatorId = Rule.ANY_ACTUATOR;
+    String targetType = null;
+    int targetSlash = target.indexOf('/');
+    if (targetSlash >= 0) {
+      targetNodeId = parseId(target.substring(0, targetSlash), "node");
+      targetActuatorId = parseId(target.substring(targetSlash + 1), "actuator");
+    } else {
+      targetNodeId = sourceNodeId;
+      targetType = target;
+    }
+    String state = token(tokens, position++, "on or off");
+    if (!state.equals("on") && !state.equals("off")) {
+      throw new IllegalArgumentException("Expected on or off, got " + state);
+    }
+    if (position < tokens.length) {
+      throw new IllegalArgumentException("Unexpected " + tokens[position]);
+    }
+    return new Rule(name, sourceNodeId, sensorType, comparison.equals("above"), threshold,
+        hysteresis, fromMinute, toMinute, targetNodeId, targetActuatorId, targetType,
+        state.equals("on"));
+  }
+
+  private static String token(String[] tokens, int position, String expected) {
+    if (position >= tokens.length) {
+      throw new IllegalArgumentException("Expected " + expected + " at the end");
+    }
+    return tokens[position];
+  }
+
+  private static String optionalToken(String[] tokens, int position) {
+    return position < tokens.length ? tokens[position] : null;
+  }
+
+  private static void expect(String[] tokens, int position, String keyword) {
+    String token = token(tokens, position, keyword);
+    if (!token.equals(keyword)) {
+      throw new IllegalArgumentException("Expected " + keyword + ", got " + token);
+    }
+  }
+
+  private static int parseNode(String node) {
+    return node.equals("*") ? Rule.ANY_NODE : parseId(node, "node");
+  }
+
+  private static int parseId(String id, String what) {
+    try {
+      int value = Integer.parseInt(id);
+      if (value > 0) {
+        return value;
+      }
+    } catch (NumberFormatException e) {
+      // Reported below
+    }
+    throw new IllegalArgumentException("Invalid " + what + " ID: " + id);
+  }
+
+  private static double parseNumber(String number) {
+    try {
+      return Double.parseDouble(number);
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Invalid number: " + number);
+    }
+  }
+
+  private static int parseTime(String time) {
+    int colon = time.indexOf(':');
+    try {
+      if (colon > 0) {
+        int minute = Integer.parseInt(time.substring(0, colon)) * 60
+            + Integer.parseInt(time.substring(colon + 1));
+        if (minute >= 0 && minute <= MINUTES_PER_DAY) {
+          return minute;
+        }
+      }
+    } catch (NumberFormatException e) {
+      // Reported below
+    }
+    throw new IllegalArgumentException("Invalid time of day: " + time);
+  }
+}
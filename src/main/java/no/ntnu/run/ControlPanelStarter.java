@@ -8,6 +8,7 @@ import no.ntnu.controlpanel.ControlPanelLogic;
 import no.ntnu.controlpanel.FakeCommunicationChannel;
 import no.ntnu.gui.controlpanel.ControlPanelApplication;
 import no.ntnu.tools.Logger;
+import no.ntnu.tools.metrics.MetricsReporter;
 
 /**
  * Starter class for the control panel.
@@ -49,6 +50,7 @@ public class ControlPanelStarter {
         String keyStorePath = dotenv.get("KEYSTORE_PATH");
         String keyStorePassword = dotenv.get("KEYSTORE_PASSWORD");
 
+        MetricsReporter.start();
         ControlPanelLogic logic = new ControlPanelLogic();
         CommunicationChannel channel = initiateCommunication(logic, fake, keyStorePath, keyStorePassword);
         ControlPanelApplication.startApp(logic, channel);
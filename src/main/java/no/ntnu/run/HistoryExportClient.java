@@ -0,0 +1,132 @@
+package no.ntnu.run;
+
+import io.github.cdimascio.dotenv.Dotenv;
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import no.ntnu.communication.HistoryExportServer;
+import no.ntnu.history.ExportFormat;
+import no.ntnu.history.HistoryExport;
+import no.ntnu.ssl.SslConnection;
+import no.ntnu.tools.Logger;
+import no.ntnu.tools.Parser;
+
+/**
+ * Downloads a bulk export of the sensor history from the export port of a running greenhouse.
+ * A CSV export is saved as one file. A columnar export is saved as a directory of segment files,
+ * which can be opened as a {@link no.ntnu.history.SensorHistoryStore} for analysis.
+ * Options are given as name=value arguments:
+ * <ul>
+ *   <li>host, port - the export port of the greenhouse (default localhost and 10027)</li>
+ *   <li>from, to - the time range in epoch milliseconds (default everything)</li>
+ *   <li>format - csv or columnar (default csv)</li>
+ *   <li>output - the file or directory to save to (default history-export.csv, or
+ *       history-export for columnar)</li>
+ *   <li>tls - false when the export port is plain TCP (default true)</li>
+ * </ul>
+ */
+public class HistoryExportClient {
+    /**
+     * Application entrypoint of the export client.
+     *
+     * @param args The export options, as name=value pairs
+     */
+    public static void main(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int separator = arg.indexOf('=');
+            if (separator <= 0) {
+                Logger.error("Ignoring option without a value: " + arg);
+            } else {
+                options.put(arg.substring(0, separator), arg.substring(separator + 1));
+            }
+        }
+        boolean succeeded;
+        try {
+            succeeded = export(options);
+        } catch (IOException | GeneralSecurityException | NumberFormatException e) {
+            Logger.error("History export failed: " + e.getMessage());
+            succeeded = false;
+        }
+        Logger.flush();
+        System.exit(succeeded ? 0 : 1);
+    }
+
+    private static boolean export(Map<String, String> options)
+            throws IOException, GeneralSecurityException {
+        String host = options.getOrDefault("host", "localhost");
+        int port = Parser.parseIntegerOrError(options.getOrDefault("port", "10027"),
+                "Invalid port");
+        long from = Parser.parseLongOrError(options.getOrDefault("from", "0"), "Invalid from");
+        long to = Parser.parseLongOrError(options.getOrDefault("to", String.valueOf(Long.MAX_VALUE)),
+                "Invalid to");
+        ExportFormat format = ExportFormat.fromLabel(options.getOrDefault("format", "csv"));
+        if (format == null) {
+            Logger.error("Invalid format: " + options.get("format"));
+            return false;
+        }
+        Path output = Path.of(options.getOrDefault("output",
+                format == ExportFormat.CSV ? "history-export.csv" : "history-export"));
+
+        long start = System.nanoTime();
+        try (Socket socket = connect(host, port, !"false".equals(options.get("tls")))) {
+            OutputStream out = socket.getOutputStream();
+            out.write((HistoryExportServer.EXPORT + ";" + from + ";" + to + ";"
+                    + format.getLabel() + "\n").getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+            InputStream in = new BufferedInputStream(socket.getInputStream(), 1 << 16);
+            String error = readError(in);
+            if (error != null) {
+                Logger.error("The greenhouse refused the export: " + error);
+                return false;
+            }
+            if (format == ExportFormat.CSV) {
+                long bytes = Files.copy(in, output, StandardCopyOption.REPLACE_EXISTING);
+                Logger.info("Saved " + bytes + " bytes of CSV to " + output);
+            } else {
+                int segments = HistoryExport.unpackColumnar(in, output);
+                Logger.info("Saved " + segments + " history segments to " + output);
+            }
+        }
+        Logger.info("Export took " + (System.nanoTime() - start) / 1_000_000 + " ms");
+        return true;
+    }
+
+    private static Socket connect(String host, int port, boolean tls)
+            throws IOException, GeneralSecurityException {
+        if (!tls) {
+            return new Socket(host, port);
+        }
+        Dotenv dotenv = Dotenv.load();
+        return new SslConnection(port, dotenv.get("KEYSTORE_PATH"), dotenv.get("KEYSTORE_PASSWORD"))
+                .createClientSocket(host, port);
+    }
+
+    /**
+     * Check whether the answer is an error line, without consuming it otherwise.
+     *
+     * @param in The answer, supporting mark and reset
+     * @return The error message, or null if the answer is an export
+     */
+    private static String readError(InputStream in) throws IOException {
+        byte[] prefix = "ERROR;".getBytes(StandardCharsets.US_ASCII);
+        in.mark(prefix.length);
+        byte[] start = in.readNBytes(prefix.length);
+        in.reset();
+        if (!Arrays.equals(start, prefix)) {
+            return null;
+        }
+        String line = new String(in.readAllBytes(), StandardCharsets.UTF_8).trim();
+        return line.substring(prefix.length);
+    }
+}
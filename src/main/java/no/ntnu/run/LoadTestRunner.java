@@ -0,0 +1,378 @@
+package no.ntnu.run;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+import io.github.cdimascio.dotenv.Dotenv;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.security.KeyStoreException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.NotificationEmitter;
+import javax.management.openmbean.CompositeData;
+import no.ntnu.communication.ControlPanelTcpClient;
+import no.ntnu.communication.SensorActuatorTcpClient;
+import no.ntnu.communication.TcpServer;
+import no.ntnu.controlpanel.ControlPanelLogic;
+import no.ntnu.controlpanel.SensorActuatorNodeInfo;
+import no.ntnu.greenhouse.Actuator;
+import no.ntnu.greenhouse.DeviceFactory;
+import no.ntnu.greenhouse.SensorActuatorNode;
+import no.ntnu.greenhouse.SensorReading;
+import no.ntnu.listeners.controlpanel.GreenhouseEventListener;
+import no.ntnu.tools.LogLevel;
+import no.ntnu.tools.Logger;
+import no.ntnu.tools.Parser;
+import no.ntnu.tools.metrics.Histogram;
+import no.ntnu.tools.metrics.HistogramSnapshot;
+
+/**
+ * End-to-end load test running the server, headless sensor/actuator nodes and headless control
+ * panels in one JVM, connected over loopback TLS with the bundled keystore. The server listens
+ * on an ephemeral port. The nodes send sensor data at the configured rate while the panels send
+ * actuator commands. After a warm-up, the test measures sustained throughput, the latency from
+ * sensor capture on the node to arrival on the panels, GC pauses and memory per connection, and
+ * exits with status 0 when all thresholds are met, 1 otherwise.
+ * Options are given as name=value arguments, for example "nodes=200 panels=5 duration=60":
+ * <ul>
+ *   <li>nodes - number of sensor/actuator nodes (default 50)</li>
+ *   <li>panels - number of control panels (default 2)</li>
+ *   <li>sensorRate - sensor messages per second per node (default 10)</li>
+ *   <li>commandRate - actuator commands per second, over all panels (default 20)</li>
+ *   <li>warmup, duration - warm-up and measurement time in seconds (default 5 and 30)</li>
+ *   <li>minThroughput - minimum panel messages per second, default 90% of the offered load</li>
+ *   <li>maxP99Millis - maximum 99th percentile end-to-end latency (default 250)</li>
+ *   <li>maxGcPauseMillis - maximum single GC pause (default 200)</li>
+ * </ul>
+ */
+public class LoadTestRunner {
+    private static final long CONNECT_TIMEOUT_MILLIS = 30000;
+
+    private final Map<String, String> options;
+    private final int nodeCount;
+    private final int panelCount;
+    private final double sensorRate;
+    private final double commandRate;
+    private final int warmupSeconds;
+    private final int durationSeconds;
+
+    private final Map<Integer, SensorActuatorNode> nodes = new HashMap<>();
+    private final List<SensorActuatorTcpClient> nodeClients = new ArrayList<>();
+    private final List<ControlPanelTcpClient> panelClients = new ArrayList<>();
+    private final Map<Integer, SensorActuatorNodeInfo> knownNodes = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService commandScheduler = Executors.newSingleThreadScheduledExecutor();
+    private final Histogram latency = new Histogram();
+    private final LongAdder sensorMessagesReceived = new LongAdder();
+    private final AtomicLong maxGcPause = new AtomicLong();
+    private volatile boolean measuring;
+    private TcpServer server;
+
+    /**
+     * Create a load test.
+     *
+     * @param options The test options, by name
+     */
+    public LoadTestRunner(Map<String, String> options) {
+        this.options = options;
+        this.nodeCount = intOption("nodes", 50);
+        this.panelCount = intOption("panels", 2);
+        this.sensorRate = doubleOption("sensorRate", 10);
+        this.commandRate = doubleOption("commandRate", 20);
+        this.warmupSeconds = intOption("warmup", 5);
+        this.durationSeconds = intOption("duration", 30);
+    }
+
+    /**
+     * Application entrypoint of the load test.
+     *
+     * @param args The test options, as name=value pairs
+     */
+    public static void main(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int separator = arg.indexOf('=');
+            if (separator <= 0) {
+                Logger.error("Ignoring option without a value: " + arg);
+            } else {
+                options.put(arg.substring(0, separator), arg.substring(separator + 1));
+            }
+        }
+        if (System.getProperty("greenhouse.log.level") == null) {
+            Logger.setLevel(LogLevel.ERROR);
+        }
+        boolean passed;
+        try {
+            passed = new LoadTestRunner(options).run();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            passed = false;
+        }
+        Logger.flush();
+        System.exit(passed ? 0 : 1);
+    }
+
+    /**
+     * Run the load test and print the report.
+     *
+     * @return True when all thresholds are met
+     * @throws InterruptedException When interrupted while waiting for the test to finish
+     */
+    public boolean run() throws InterruptedException {
+        Dotenv dotenv = Dotenv.load();
+        String keyStorePath = dotenv.get("KEYSTORE_PATH");
+        String keyStorePassword = dotenv.get("KEYSTORE_PASSWORD");
+        monitorGcPauses();
+
+        long heapBefore = usedHeapAfterGc();
+        try {
+            startServer(keyStorePath, keyStorePassword);
+            connectPanels(keyStorePath, keyStorePassword);
+            connectNodes(keyStorePath, keyStorePassword);
+        } catch (KeyStoreException e) {
+            Logger.error("Could not load the keystore: " + e.getMessage());
+            return false;
+        }
+        if (!awaitNodesKnownByPanels()) {
+            Logger.error("Only " + knownNodes.size() + " of " + nodeCount
+                    + " nodes reached the panels, aborting");
+            stop();
+            return false;
+        }
+        long heapPerConnection = (usedHeapAfterGc() - heapBefore) / (nodeCount + panelCount);
+
+        for (SensorActuatorNode node : nodes.values()) {
+            node.start();
+        }
+        startCommands();
+        Thread.sleep(warmupSeconds * 1000L);
+
+        long gcCountBefore = gcCount();
+        long gcTimeBefore = gcTime();
+        maxGcPause.set(0);
+        measuring = true;
+        long start = System.nanoTime();
+        Thread.sleep(durationSeconds * 1000L);
+        measuring = false;
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        stop();
+        return report(seconds, heapPerConnection, gcCount() - gcCountBefore,
+                gcTime() - gcTimeBefore);
+    }
+
+    private void startServer(String keyStorePath, String keyStorePassword)
+            throws KeyStoreException, InterruptedException {
+        server = new TcpServer(nodes, 0, keyStorePath, keyStorePassword);
+        server.setTraceSampleRate(0);
+        Thread serverThread = new Thread(server::startServer, "TCP-Server");
+        serverThread.setDaemon(true);
+        serverThread.start();
+        if (!server.awaitListening(CONNECT_TIMEOUT_MILLIS)) {
+            throw new IllegalStateException("Server did not start listening");
+        }
+    }
+
+    private void connectPanels(String keyStorePath, String keyStorePassword)
+            throws KeyStoreException {
+        GreenhouseEventListener listener = new PanelListener();
+        for (int i = 0; i < panelCount; i++) {
+            ControlPanelLogic logic = new ControlPanelLogic();
+            logic.addListener(listener);
+            ControlPanelTcpClient client = new ControlPanelTcpClient(logic, "localhost",
+                    server.getPort(), keyStorePath, keyStorePassword);
+            logic.setCommunicationChannel(client);
+            if (client.open()) {
+                panelClients.add(client);
+            }
+        }
+    }
+
+    private void connectNodes(String keyStorePath, String keyStorePassword)
+            throws KeyStoreException {
+        long sensingPeriod = Math.max(1, Math.round(1000 / sensorRate));
+        for (int i = 0; i < nodeCount; i++) {
+            SensorActuatorNode node = DeviceFactory.createNode(1, 1, 1, 2, 1);
+            node.setSensingPeriod(sensingPeriod);
+            nodes.put(node.getId(), node);
+            SensorActuatorTcpClient client = new SensorActuatorTcpClient(node, "localhost",
+                    server.getPort(), keyStorePath, keyStorePassword);
+            node.addSensorListener(client);
+            node.addActuatorListener(client);
+            client.start();
+            nodeClients.add(client);
+        }
+    }
+
+    /**
+     * Wait until the panels know about all nodes, so commands can be sent to any of them.
+     *
+     * @return True when all nodes are known, false on timeout
+     * @throws InterruptedException When interrupted while waiting
+     */
+    private boolean awaitNodesKnownByPanels() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + CONNECT_TIMEOUT_MILLIS;
+        while (knownNodes.size() < nodeCount && System.currentTimeMillis() < deadline) {
+            Thread.sleep(100);
+        }
+        return knownNodes.size() >= nodeCount;
+    }
+
+    private void startCommands() {
+        if (commandRate <= 0 || panelClients.isEmpty()) {
+            return;
+        }
+        long periodMicros = Math.max(1, Math.round(1_000_000 / commandRate));
+        List<SensorActuatorNodeInfo> targets = new ArrayList<>(knownNodes.values());
+        commandScheduler.scheduleAtFixedRate(() -> {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            SensorActuatorNodeInfo target = targets.get(random.nextInt(targets.size()));
+            List<Actuator> actuators = new ArrayList<>();
+            target.getActuators().forEach(actuators::add);
+            if (!actuators.isEmpty()) {
+                Actuator actuator = actuators.get(random.nextInt(actuators.size()));
+                panelClients.get(random.nextInt(panelClients.size()))
+                        .sendActuatorChange(target.getId(), actuator.getId(), random.nextBoolean());
+            }
+        }, periodMicros, periodMicros, TimeUnit.MICROSECONDS);
+    }
+
+    private void stop() {
+        commandScheduler.shutdownNow();
+        for (SensorActuatorNode node : nodes.values()) {
+            node.stop();
+        }
+        for (SensorActuatorTcpClient client : nodeClients) {
+            client.stop();
+        }
+        for (ControlPanelTcpClient client : panelClients) {
+            client.close();
+        }
+        server.stopServer();
+    }
+
+    private boolean report(double seconds, long heapPerConnection, long gcCount, long gcTime) {
+        HistogramSnapshot snapshot = latency.snapshot();
+        double offered = nodeCount * sensorRate * panelClients.size();
+        double throughput = sensorMessagesReceived.sum() / seconds;
+        double minThroughput = doubleOption("minThroughput", offered * 0.9);
+        long maxP99 = intOption("maxP99Millis", 250);
+        long maxPause = intOption("maxGcPauseMillis", 200);
+        long p99 = snapshot.getValueAtQuantile(0.99);
+
+        System.out.printf("Load test: %d nodes, %d panels, %.1f sensor msg/s per node, %.1f commands/s%n",
+                nodeCount, panelClients.size(), sensorRate, commandRate);
+        System.out.printf("Throughput:  %.0f msg/s delivered to panels (offered %.0f msg/s)%n",
+                throughput, offered);
+        System.out.printf("Latency:     p50=%d ms p90=%d ms p99=%d ms p99.9=%d ms max=%d ms%n",
+                snapshot.getValueAtQuantile(0.5), snapshot.getValueAtQuantile(0.9), p99,
+                snapshot.getValueAtQuantile(0.999), snapshot.getMax());
+        System.out.printf("GC:          %d collections, %d ms total, longest pause %d ms%n",
+                gcCount, gcTime, maxGcPause.get());
+        System.out.printf("Memory:      %d KiB heap per connection%n", heapPerConnection / 1024);
+
+        boolean passed = check(throughput >= minThroughput,
+                String.format("throughput %.0f msg/s < %.0f msg/s", throughput, minThroughput));
+        passed &= check(p99 <= maxP99, "p99 latency " + p99 + " ms > " + maxP99 + " ms");
+        passed &= check(maxGcPause.get() <= maxPause,
+                "GC pause " + maxGcPause.get() + " ms > " + maxPause + " ms");
+        System.out.println(passed ? "PASS" : "FAIL");
+        return passed;
+    }
+
+    private static boolean check(boolean condition, String failureMessage) {
+        if (!condition) {
+            System.out.println("Threshold violated: " + failureMessage);
+        }
+        return condition;
+    }
+
+    /**
+     * Track the longest single GC pause through the garbage collector notifications.
+     */
+    private void monitorGcPauses() {
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            if (gc instanceof NotificationEmitter emitter) {
+                emitter.addNotificationListener((notification, handback) -> {
+                    if (GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION
+                            .equals(notification.getType())) {
+                        long duration = GarbageCollectionNotificationInfo
+                                .from((CompositeData) notification.getUserData())
+                                .getGcInfo().getDuration();
+                        maxGcPause.accumulateAndGet(duration, Math::max);
+                    }
+                }, null, null);
+            }
+        }
+    }
+
+    private static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+        }
+        return count;
+    }
+
+    private static long gcTime() {
+        long time = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            time += Math.max(0, gc.getCollectionTime());
+        }
+        return time;
+    }
+
+    private static long usedHeapAfterGc() {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        memory.gc();
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+
+    private int intOption(String name, int defaultValue) {
+        String value = options.get(name);
+        return value != null ? Parser.parseIntegerOrError(value, "Invalid " + name + ": " + value)
+                : defaultValue;
+    }
+
+    private double doubleOption(String name, double defaultValue) {
+        String value = options.get(name);
+        return value != null ? Parser.parseDoubleOrError(value, "Invalid " + name + ": " + value)
+                : defaultValue;
+    }
+
+    /**
+     * Collects the nodes known by the panels and the end-to-end latency of sensor data.
+     */
+    private class PanelListener implements GreenhouseEventListener {
+        @Override
+        public void onNodeAdded(SensorActuatorNodeInfo nodeInfo) {
+            knownNodes.put(nodeInfo.getId(), nodeInfo);
+        }
+
+        @Override
+        public void onNodeRemoved(int nodeId) {
+            knownNodes.remove(nodeId);
+        }
+
+        @Override
+        public void onSensorData(int nodeId, List<SensorReading> sensors) {
+            if (measuring && !sensors.isEmpty()) {
+                sensorMessagesReceived.increment();
+                latency.record(System.currentTimeMillis() - sensors.get(0).getTimestamp());
+            }
+        }
+
+        @Override
+        public void onActuatorStateChanged(int nodeId, int actuatorId, boolean isOn) {
+            // Actuator state changes are not measured
+        }
+    }
+}
@@ -0,0 +1,274 @@
+package no.ntnu.run;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.LongAdder;
+import no.ntnu.communication.ControlPanelTcpClient;
+import no.ntnu.communication.SensorActuatorTcpClient;
+import no.ntnu.communication.TcpServer;
+import no.ntnu.communication.simulation.SimulatedNetwork;
+import no.ntnu.communication.simulation.SimulationScheduler;
+import no.ntnu.control.ControlLoopRunner;
+import no.ntnu.control.ControlMode;
+import no.ntnu.controlpanel.ControlPanelLogic;
+import no.ntnu.controlpanel.SensorActuatorNodeInfo;
+import no.ntnu.greenhouse.DeviceFactory;
+import no.ntnu.greenhouse.NodeRuntime;
+import no.ntnu.greenhouse.SensorActuatorNode;
+import no.ntnu.greenhouse.SensorReading;
+import no.ntnu.greenhouse.SimulatorSnapshot;
+import no.ntnu.listeners.controlpanel.GreenhouseEventListener;
+import no.ntnu.tools.LogLevel;
+import no.ntnu.tools.Logger;
+import no.ntnu.tools.Parser;
+import no.ntnu.tools.metrics.Metrics;
+
+/**
+ * Runs the server, the nodes and the control panels on a simulated network with a virtual clock,
+ * on a single thread. Halfway through, the network drops every connection and all clients
+ * reconnect within a second (a reconnect storm). The same seed gives the same run, so the
+ * printed counters can be compared between runs to check determinism, or to reproduce a bug.
+ * Options are given as name=value arguments:
+ * <ul>
+ *   <li>nodes, panels - number of nodes and control panels (default 10000 and 3)</li>
+ *   <li>seconds - virtual time to simulate (default 60)</li>
+ *   <li>seed - seed of all random decisions (default 1)</li>
+ *   <li>minLatency, maxLatency - latency range in milliseconds (default 1 and 20)</li>
+ *   <li>lossPercent, reorderPercent - loss and reordering probability (default 0)</li>
+ *   <li>sensingPeriod - milliseconds between sensor readings of a node (default 5000)</li>
+ *   <li>control - pid or bangbang to hold the climate of every node with control loops
+ *       running on the virtual clock, once per second (default none)</li>
+ *   <li>snapshot - a simulator snapshot file. If it exists, the nodes are restored from it
+ *       instead of being created; at the end of the run, the nodes are saved to it. Runs with
+ *       the same snapshot and seed start from the same warm state.</li>
+ * </ul>
+ */
+public class NetworkSimulationRunner {
+    private static final long RECONNECT_SPREAD_MILLIS = 1000;
+
+    private final Map<String, String> options;
+    private final SimulationScheduler scheduler;
+    private final SimulatedNetwork network;
+    private final Map<Integer, SensorActuatorNode> nodes = new HashMap<>();
+    private final List<SensorActuatorTcpClient> nodeClients = new ArrayList<>();
+    private final List<ControlPanelTcpClient> panelClients = new ArrayList<>();
+    private final LongAdder sensorMessages = new LongAdder();
+    private final LongAdder nodesAdded = new LongAdder();
+    private ControlLoopRunner controlLoops;
+
+    /**
+     * Create a simulation.
+     *
+     * @param options The simulation options, by name
+     */
+    public NetworkSimulationRunner(Map<String, String> options) {
+        this.options = options;
+        this.scheduler = new SimulationScheduler(intOption("seed", 1));
+        this.network = new SimulatedNetwork(scheduler);
+        network.setLatency(intOption("minLatency", 1), intOption("maxLatency", 20));
+        network.setLossRate(intOption("lossPercent", 0) / 100.0);
+        network.setReorderRate(intOption("reorderPercent", 0) / 100.0);
+    }
+
+    /**
+     * Application entrypoint of the simulation.
+     *
+     * @param args The simulation options, as name=value pairs
+     */
+    public static void main(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int separator = arg.indexOf('=');
+            if (separator > 0) {
+                options.put(arg.substring(0, separator), arg.substring(separator + 1));
+            }
+        }
+        if (System.getProperty("greenhouse.log.level") == null) {
+            Logger.setLevel(LogLevel.ERROR);
+        }
+        new NetworkSimulationRunner(options).run();
+        Logger.flush();
+    }
+
+    /**
+     * Run the simulation and print the counters.
+     */
+    public void run() {
+        long start = System.nanoTime();
+        long halfTime = intOption("seconds", 60) * 500L;
+
+        TcpServer server = new TcpServer(nodes, 0, network, scheduler);
+        server.setTraceSampleRate(0);
+        server.startServer();
+        connectPanels(server.getPort(), intOption("panels", 3));
+        connectNodes(server.getPort(), intOption("nodes", 10000));
+        scheduler.runFor(halfTime);
+        printCounters("Before reconnect storm");
+
+        network.disconnectAll();
+        scheduler.runFor(10);
+        Random random = scheduler.getRandom();
+        for (SensorActuatorTcpClient client : nodeClients) {
+            scheduler.schedule(client::start, random.nextLong(RECONNECT_SPREAD_MILLIS));
+        }
+        for (ControlPanelTcpClient client : panelClients) {
+            scheduler.schedule(client::open, random.nextLong(RECONNECT_SPREAD_MILLIS));
+        }
+        scheduler.runFor(halfTime);
+        printCounters("After reconnect storm");
+        saveSnapshot();
+
+        server.stopServer();
+        System.out.printf("Simulated %d s in %d ms of wall time%n", halfTime * 2 / 1000,
+                (System.nanoTime() - start) / 1_000_000);
+    }
+
+    private void connectPanels(int port, int panelCount) {
+        GreenhouseEventListener listener = new PanelCounter();
+        for (int i = 0; i < panelCount; i++) {
+            ControlPanelLogic logic = new ControlPanelLogic();
+            logic.addListener(listener);
+            ControlPanelTcpClient client = new ControlPanelTcpClient(logic, network, "localhost", port);
+            logic.setCommunicationChannel(client);
+            client.open();
+            panelClients.add(client);
+        }
+    }
+
+    private void connectNodes(int port, int nodeCount) {
+        NodeRuntime runtime = new NodeRuntime(scheduler);
+        List<SensorActuatorNode> created = restoreSnapshot(runtime);
+        if (created == null) {
+            created = new ArrayList<>(nodeCount);
+            long sensingPeriod = intOption("sensingPeriod", 5000);
+            for (int i = 0; i < nodeCount; i++) {
+                SensorActuatorNode node = DeviceFactory.createNode(runtime, 1, 1, 1, 2, 1);
+                node.setSensingPeriod(sensingPeriod);
+                created.add(node);
+            }
+        }
+        controlLoops = createControlLoops(runtime, created);
+        for (SensorActuatorNode node : created) {
+            nodes.put(node.getId(), node);
+            SensorActuatorTcpClient client = new SensorActuatorTcpClient(node, network, "localhost", port);
+            node.addSensorListener(client);
+            node.addActuatorListener(client);
+            nodeClients.add(client);
+            client.start();
+            node.start();
+        }
+        if (controlLoops != null) {
+            controlLoops.start();
+        }
+    }
+
+    private ControlLoopRunner createControlLoops(NodeRuntime runtime,
+                                                 List<SensorActuatorNode> created) {
+        String label = options.get("control");
+        if (label == null) {
+            return null;
+        }
+        ControlMode mode = ControlMode.fromLabel(label);
+        if (mode == null) {
+            throw new IllegalArgumentException("Invalid control: " + label);
+        }
+        ControlLoopRunner loops = new ControlLoopRunner(runtime, 1000);
+        for (SensorActuatorNode node : created) {
+            loops.addClimateLoops(node, mode, 27, 80);
+        }
+        return loops;
+    }
+
+    /**
+     * Restore the nodes from the snapshot file, if one is given and exists.
+     *
+     * @return The restored nodes, or null if the nodes must be created
+     */
+    private List<SensorActuatorNode> restoreSnapshot(NodeRuntime runtime) {
+        String file = options.get("snapshot");
+        if (file == null || !Files.exists(Path.of(file))) {
+            return null;
+        }
+        try {
+            long start = System.nanoTime();
+            List<SensorActuatorNode> restored = SimulatorSnapshot.read(Path.of(file), runtime);
+            System.out.printf("Restored %d nodes from %s in %d ms%n", restored.size(), file,
+                    (System.nanoTime() - start) / 1_000_000);
+            return restored;
+        } catch (IOException e) {
+            Logger.error("Failed to restore the simulator snapshot: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Save the nodes to the snapshot file, if one is given. The scheduler is not running, so the
+     * nodes are quiescent.
+     */
+    private void saveSnapshot() {
+        String file = options.get("snapshot");
+        if (file == null) {
+            return;
+        }
+        try {
+            long start = System.nanoTime();
+            long size = SimulatorSnapshot.write(Path.of(file), nodes.values());
+            System.out.printf("Saved %d nodes (%d bytes) to %s in %d ms%n", nodes.size(), size,
+                    file, (System.nanoTime() - start) / 1_000_000);
+        } catch (IOException e) {
+            Logger.error("Failed to save the simulator snapshot: " + e.getMessage());
+        }
+    }
+
+    private void printCounters(String title) {
+        System.out.printf("%s at %d ms: %d tasks run, %d lines delivered, %d lost, "
+                        + "%d open endpoints, %d node announcements and %d sensor messages "
+                        + "received by the panels%n",
+                title, scheduler.currentTimeMillis(), scheduler.getExecutedCount(),
+                network.getDeliveredCount(), network.getLostCount(),
+                network.getOpenConnectionCount(), nodesAdded.sum(), sensorMessages.sum());
+        if (controlLoops != null) {
+            System.out.printf("%d control loops, %d loop runs, batch time in us: %s%n",
+                    controlLoops.getLoopCount(),
+                    Metrics.counter("control_loop_runs_total").get(),
+                    Metrics.histogram("control_batch_nanos").snapshot().format(1000));
+        }
+    }
+
+    private int intOption(String name, int defaultValue) {
+        String value = options.get(name);
+        return value != null ? Parser.parseIntegerOrError(value, "Invalid " + name + ": " + value)
+                : defaultValue;
+    }
+
+    /**
+     * Counts the events received by the control panels.
+     */
+    private class PanelCounter implements GreenhouseEventListener {
+        @Override
+        public void onNodeAdded(SensorActuatorNodeInfo nodeInfo) {
+            nodesAdded.increment();
+        }
+
+        @Override
+        public void onNodeRemoved(int nodeId) {
+            // Not counted
+        }
+
+        @Override
+        public void onSensorData(int nodeId, List<SensorReading> sensors) {
+            sensorMessages.increment();
+        }
+
+        @Override
+        public void onActuatorStateChanged(int nodeId, int actuatorId, boolean isOn) {
+            // Not counted
+        }
+    }
+}
@@ -0,0 +1,298 @@
+package no.ntnu.run;
+
+import io.github.cdimascio.dotenv.Dotenv;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.security.KeyStoreException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import no.ntnu.communication.CapturedFrame;
+import no.ntnu.communication.TcpServer;
+import no.ntnu.communication.TrafficCapture;
+import no.ntnu.communication.TrafficCaptureReader;
+import no.ntnu.communication.transport.Connection;
+import no.ntnu.communication.transport.ConnectionListener;
+import no.ntnu.communication.transport.TlsTransport;
+import no.ntnu.communication.transport.Transport;
+import no.ntnu.message.MessageSerializer;
+import no.ntnu.tools.LogLevel;
+import no.ntnu.tools.Logger;
+import no.ntnu.tools.Parser;
+import no.ntnu.tools.metrics.Histogram;
+
+/**
+ * Replays a {@link TrafficCapture} against a server: every captured client connection becomes a
+ * synthetic TLS connection which opens, sends its captured lines and closes at the captured
+ * times, so the load shape of the capture, with its bursts and reconnect storms, is reproduced
+ * against a new build. The lines the server sent during the capture are only counted, to compare
+ * with what the server sends during the replay. The report gives the throughput, how far the
+ * replay fell behind the schedule, and the latency from sending sensor data to its arrival on a
+ * replayed control panel.
+ * Options are given as name=value arguments:
+ * <ul>
+ *   <li>capture - the capture file (required)</li>
+ *   <li>speed - 1 for the captured pace (default), N for N times faster, or max to send
+ *       without waiting</li>
+ *   <li>host, port - the server to replay against. Without a port, a server is started in
+ *       this JVM on a free port</li>
+ *   <li>connectThreads - threads opening the connections in parallel (default 8)</li>
+ *   <li>drain - seconds to wait for answers after the last frame (default 2)</li>
+ * </ul>
+ */
+public class TrafficReplayRunner {
+    private static final long CONNECT_TIMEOUT_MILLIS = 30000;
+    private static final int MAX_TRACKED_LINES = 100_000;
+
+    private final Map<String, String> options;
+    private final Map<Integer, ReplayedConnection> connections = new HashMap<>();
+    private final Map<String, Long> sensorDataSendTimes = new ConcurrentHashMap<>();
+    private final Histogram scheduleLag = new Histogram();
+    private final Histogram latency = new Histogram();
+    private final LongAdder linesReceived = new LongAdder();
+    private final LongAdder failedConnections = new LongAdder();
+    private long linesSent;
+    private long linesCaptured;
+    private long connectionsOpened;
+    private Transport transport;
+    private ExecutorService connector;
+    private String host;
+    private int port;
+
+    /**
+     * Create a replay.
+     *
+     * @param options The replay options, by name
+     */
+    public TrafficReplayRunner(Map<String, String> options) {
+        this.options = options;
+    }
+
+    /**
+     * Application entrypoint of the replay.
+     *
+     * @param args The replay options, as name=value pairs
+     */
+    public static void main(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int separator = arg.indexOf('=');
+            if (separator <= 0) {
+                Logger.error("Ignoring option without a value: " + arg);
+            } else {
+                options.put(arg.substring(0, separator), arg.substring(separator + 1));
+            }
+        }
+        if (System.getProperty("greenhouse.log.level") == null) {
+            Logger.setLevel(LogLevel.ERROR);
+        }
+        boolean succeeded;
+        try {
+            succeeded = new TrafficReplayRunner(options).run();
+        } catch (IOException | KeyStoreException | NumberFormatException e) {
+            Logger.error("Replay failed: " + e.getMessage());
+            succeeded = false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            succeeded = false;
+        }
+        Logger.flush();
+        System.exit(succeeded ? 0 : 1);
+    }
+
+    /**
+     * Run the replay and print the report.
+     *
+     * @return True if the capture was replayed
+     * @throws IOException          If the capture can't be read
+     * @throws KeyStoreException    If the keystore can't be loaded
+     * @throws InterruptedException If interrupted while waiting
+     */
+    public boolean run() throws IOException, KeyStoreException, InterruptedException {
+        String captureFile = options.get("capture");
+        if (captureFile == null) {
+            Logger.error("Missing option capture=<file>");
+            return false;
+        }
+        String speedOption = options.getOrDefault("speed", "1");
+        double speed = "max".equals(speedOption) ? 0
+                : Parser.parseDoubleOrError(speedOption, "Invalid speed: " + speedOption);
+
+        Dotenv dotenv = Dotenv.load();
+        String keyStorePath = dotenv.get("KEYSTORE_PATH");
+        String keyStorePassword = dotenv.get("KEYSTORE_PASSWORD");
+        transport = new TlsTransport(keyStorePath, keyStorePassword);
+        TcpServer server = null;
+        host = options.getOrDefault("host", "localhost");
+        if (options.containsKey("port")) {
+            port = intOption("port", 0);
+        } else {
+            server = startServer(keyStorePath, keyStorePassword);
+            port = server.getPort();
+        }
+        connector = Executors.newFixedThreadPool(intOption("connectThreads", 8));
+
+        long start = System.nanoTime();
+        try (TrafficCaptureReader reader = new TrafficCaptureReader(Path.of(captureFile))) {
+            CapturedFrame frame;
+            while ((frame = reader.next()) != null) {
+                if (speed > 0) {
+                    waitUntil(start + (long) (frame.getOffsetNanos() / speed));
+                }
+                replay(frame);
+            }
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        Thread.sleep(intOption("drain", 2) * 1000L);
+
+        for (ReplayedConnection connection : connections.values()) {
+            connection.close();
+        }
+        connector.shutdown();
+        connector.awaitTermination(CONNECT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        if (server != null) {
+            server.stopServer();
+        }
+        report(seconds);
+        return true;
+    }
+
+    private TcpServer startServer(String keyStorePath, String keyStorePassword)
+            throws KeyStoreException, InterruptedException {
+        TcpServer server = new TcpServer(new ConcurrentHashMap<>(), 0, keyStorePath,
+                keyStorePassword);
+        server.setTraceSampleRate(0);
+        server.startServer();
+        if (!server.awaitListening(CONNECT_TIMEOUT_MILLIS)) {
+            throw new IllegalStateException("Server did not start listening");
+        }
+        return server;
+    }
+
+    private void waitUntil(long targetNanos) {
+        long now = System.nanoTime();
+        while (now < targetNanos) {
+            LockSupport.parkNanos(targetNanos - now);
+            now = System.nanoTime();
+        }
+        scheduleLag.record(now - targetNanos);
+    }
+
+    private void replay(CapturedFrame frame) {
+        int id = frame.getConnectionId();
+        switch (frame.getKind()) {
+            case TrafficCapture.OPEN -> {
+                ReplayedConnection connection = new ReplayedConnection();
+                connections.put(id, connection);
+                connectionsOpened++;
+                connector.execute(connection::connect);
+            }
+            case TrafficCapture.IN -> {
+                ReplayedConnection connection = connections.get(id);
+                if (connection != null) {
+                    String line = frame.getLine();
+                    if (sensorDataSendTimes.size() < MAX_TRACKED_LINES
+                            && MessageSerializer.SENSOR_DATA.equals(MessageSerializer.typeOf(line))) {
+                        sensorDataSendTimes.put(line, System.nanoTime());
+                    }
+                    connection.send(line);
+                    linesSent++;
+                }
+            }
+            case TrafficCapture.OUT -> linesCaptured++;
+            case TrafficCapture.CLOSE -> {
+                ReplayedConnection connection = connections.remove(id);
+                if (connection != null) {
+                    connection.close();
+                }
+            }
+            default -> Logger.error("Unknown frame kind " + frame.getKind());
+        }
+    }
+
+    private void report(double seconds) {
+        System.out.printf("Replayed %d connections and %d lines in %.1f s (%.0f lines/s), "
+                        + "%d connections failed%n",
+                connectionsOpened, linesSent, seconds, linesSent / Math.max(seconds, 1e-3),
+                failedConnections.sum());
+        System.out.printf("Server sent %d lines (%d in the capture)%n", linesReceived.sum(),
+                linesCaptured);
+        System.out.println("Schedule lag (ms):       " + scheduleLag.snapshot().format(1_000_000));
+        System.out.println("Sensor data latency (ms): " + latency.snapshot().format(1_000_000));
+    }
+
+    private int intOption(String name, int defaultValue) {
+        String value = options.get(name);
+        return value != null ? Parser.parseIntegerOrError(value, "Invalid " + name + ": " + value)
+                : defaultValue;
+    }
+
+    /**
+     * One captured client connection. Connections are opened in parallel, as in a reconnect
+     * storm, but the first line or close for a connection waits until it is established, so the
+     * lines arrive in the captured order. The wait shows up as schedule lag.
+     */
+    private class ReplayedConnection implements ConnectionListener {
+        private Connection connection;
+        private boolean connectDone;
+
+        void connect() {
+            Connection opened = null;
+            try {
+                opened = transport.connect(host, port);
+                opened.start(this);
+            } catch (IOException e) {
+                failedConnections.increment();
+                Logger.error("Replayed connection failed: " + e.getMessage());
+            }
+            synchronized (this) {
+                connection = opened;
+                connectDone = true;
+                notifyAll();
+            }
+        }
+
+        synchronized void send(String line) {
+            if (awaitConnected()) {
+                connection.send(line);
+            }
+        }
+
+        synchronized void close() {
+            if (awaitConnected()) {
+                connection.close();
+            }
+        }
+
+        private boolean awaitConnected() {
+            try {
+                while (!connectDone) {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            return connection != null;
+        }
+
+        @Override
+        public void onLine(String line) {
+            linesReceived.increment();
+            Long sent = sensorDataSendTimes.remove(line);
+            if (sent != null) {
+                latency.recordSince(sent);
+            }
+        }
+
+        @Override
+        public void onClosed() {
+            // Nothing to clean up, the replay closes its connections itself
+        }
+    }
+}
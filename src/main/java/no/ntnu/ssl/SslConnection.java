@@ -10,17 +10,24 @@ import java.security.NoSuchAlgorithmException;
 import java.security.UnrecoverableKeyException;
 import java.security.cert.CertificateException;
 import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLHandshakeException;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLServerSocket;
 import javax.net.ssl.SSLServerSocketFactory;
 import javax.net.ssl.SSLSocket;
 import javax.net.ssl.SSLSocketFactory;
 import javax.net.ssl.TrustManagerFactory;
+import no.ntnu.tools.events.TlsHandshakeEvent;
+import no.ntnu.tools.metrics.Counter;
+import no.ntnu.tools.metrics.Metrics;
 
 /**
  * Creates a Secure Socket Layer connection between server and client.
  */
 public class SslConnection {
+  private static final Counter SERVER_HANDSHAKES = Metrics.counter("tls_handshakes_total", "side", "server");
+  private static final Counter CLIENT_HANDSHAKES = Metrics.counter("tls_handshakes_total", "side", "client");
+  private static final Counter HANDSHAKE_FAILURES = Metrics.counter("tls_handshake_failures_total");
 
   private final char[] keyStorePass;
   private final KeyStore keyStore;
@@ -61,14 +68,44 @@ public class SslConnection {
    */
   public SSLServerSocket createServerSocket() throws KeyStoreException, NoSuchAlgorithmException,
       UnrecoverableKeyException, KeyManagementException, IOException {
+    return createServerSocket(portNumber);
+  }
+
+  /**
+   * Returns the ssl socket for the server, listening on the given port.
+   *
+   * @param port the port to listen on, 0 picks a free port.
+   * @return Server ssl socket.
+   * @throws KeyStoreException         keystore exception.
+   * @throws NoSuchAlgorithmException  no such algorithm.
+   * @throws UnrecoverableKeyException unrecoverable key exception.
+   * @throws KeyManagementException    key management exception.
+   * @throws IOException               if the socket can't be bound.
+   */
+  public SSLServerSocket createServerSocket(int port) throws KeyStoreException,
+      NoSuchAlgorithmException, UnrecoverableKeyException, KeyManagementException, IOException {
+    SSLServerSocketFactory serverSocketFactory = createServerContext().getServerSocketFactory();
+    return (SSLServerSocket) serverSocketFactory.createServerSocket(port);
+  }
+
+  /**
+   * Returns a TLS context for the server side, with the key from the keystore. Used by servers
+   * which drive TLS themselves with an {@link javax.net.ssl.SSLEngine}.
+   *
+   * @return the server TLS context.
+   * @throws KeyStoreException         keystore exception.
+   * @throws NoSuchAlgorithmException  no such algorithm.
+   * @throws UnrecoverableKeyException unrecoverable key exception.
+   * @throws KeyManagementException    key management exception.
+   */
+  public SSLContext createServerContext() throws KeyStoreException, NoSuchAlgorithmException,
+      UnrecoverableKeyException, KeyManagementException {
     KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance("SunX509");
     keyManagerFactory.init(this.keyStore, this.keyStorePass);
 
     SSLContext sslContext = SSLContext.getInstance("TLS");
     sslContext.init(keyManagerFactory.getKeyManagers(), null, null);
-
-    SSLServerSocketFactory serverSocketFactory = sslContext.getServerSocketFactory();
-    return (SSLServerSocket) serverSocketFactory.createServerSocket(portNumber);
+    return sslContext;
   }
 
   /**
@@ -84,6 +121,22 @@ public class SslConnection {
    */
   public SSLSocket createClientSocket(String address)
       throws KeyStoreException, NoSuchAlgorithmException, KeyManagementException, UnknownHostException, IOException {
+    return createClientSocket(address, portNumber);
+  }
+
+  /**
+   * Returns the ssl socket for the client, connected to the given port.
+   *
+   * @param address the server address.
+   * @param port    the server port.
+   * @return the client SSL socket.
+   * @throws KeyStoreException        keystore exception.
+   * @throws NoSuchAlgorithmException no such algorithm.
+   * @throws KeyManagementException   key management exception.
+   * @throws IOException              if the connection or the handshake fails.
+   */
+  public SSLSocket createClientSocket(String address, int port)
+      throws KeyStoreException, NoSuchAlgorithmException, KeyManagementException, IOException {
     TrustManagerFactory trustManagerFactory = TrustManagerFactory.getInstance("SunX509");
     trustManagerFactory.init(this.keyStore);
 
@@ -91,6 +144,65 @@ public class SslConnection {
     sslContext.init(null, trustManagerFactory.getTrustManagers(), null);
 
     SSLSocketFactory socketFactory = sslContext.getSocketFactory();
-    return (SSLSocket) socketFactory.createSocket(address, portNumber);
+    SSLSocket socket = (SSLSocket) socketFactory.createSocket(address, port);
+    socket.addHandshakeCompletedListener(event -> CLIENT_HANDSHAKES.increment());
+    startHandshake(socket, "client");
+    return socket;
+  }
+
+  /**
+   * Performs the TLS handshake of a socket right away, instead of on the first read or write,
+   * and records it as a Flight Recorder event.
+   *
+   * @param socket the socket to perform the handshake on.
+   * @param side   either "server" or "client".
+   * @throws IOException when the handshake fails.
+   */
+  public static void startHandshake(SSLSocket socket, String side) throws IOException {
+    TlsHandshakeEvent event = new TlsHandshakeEvent();
+    event.begin();
+    boolean succeeded = false;
+    try {
+      socket.startHandshake();
+      succeeded = true;
+    } finally {
+      if (event.shouldCommit()) {
+        event.side = side;
+        event.peer = String.valueOf(socket.getRemoteSocketAddress());
+        event.succeeded = succeeded;
+        if (succeeded) {
+          event.protocol = socket.getSession().getProtocol();
+          event.cipherSuite = socket.getSession().getCipherSuite();
+        }
+        event.commit();
+      }
+    }
+  }
+
+  /**
+   * Counts the completed TLS handshakes of a socket accepted by the server.
+   *
+   * @param socket the accepted socket.
+   */
+  public static void monitorServerHandshakes(SSLSocket socket) {
+    socket.addHandshakeCompletedListener(event -> SERVER_HANDSHAKES.increment());
+  }
+
+  /**
+   * Counts a completed server handshake of a connection which does not use an SSLSocket.
+   */
+  static void serverHandshakeCompleted() {
+    SERVER_HANDSHAKES.increment();
+  }
+
+  /**
+   * Counts an exception as a failed handshake, if it was caused by one.
+   *
+   * @param e the exception thrown while communicating over a TLS socket.
+   */
+  public static void recordFailure(IOException e) {
+    if (e instanceof SSLHandshakeException) {
+      HANDSHAKE_FAILURES.increment();
+    }
   }
 }
\ No newline at end of file
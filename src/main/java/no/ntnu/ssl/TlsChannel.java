@@ -0,0 +1,180 @@
+package no.ntnu.ssl;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SocketChannel;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+
+/**
+ * The server side of a TLS connection over a blocking socket channel, driven by an
+ * {@link SSLEngine}. Unlike an SSLSocket, which copies everything through heap arrays, the
+ * engine encrypts straight from the caller's buffer into a large direct buffer, so bulk data
+ * read from a file into a direct buffer reaches the socket without passing through the heap.
+ * Not thread-safe: one thread reads and writes a channel.
+ */
+public class TlsChannel implements ByteChannel {
+  private static final int NETWORK_BUFFER_SIZE = 256 * 1024;
+  private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+  private final SocketChannel channel;
+  private final SSLEngine engine;
+  private final ByteBuffer networkOut;
+  private final ByteBuffer networkIn;
+  private final ByteBuffer applicationIn;
+  private boolean open = true;
+
+  /**
+   * Create the server side of a TLS connection. The handshake is done by {@link #handshake()}.
+   *
+   * @param channel the connected, blocking socket channel.
+   * @param engine  an engine from the server TLS context.
+   */
+  public TlsChannel(SocketChannel channel, SSLEngine engine) {
+    this.channel = channel;
+    this.engine = engine;
+    engine.setUseClientMode(false);
+    int packetSize = engine.getSession().getPacketBufferSize();
+    this.networkOut = ByteBuffer.allocateDirect(Math.max(NETWORK_BUFFER_SIZE, packetSize));
+    this.networkIn = ByteBuffer.allocateDirect(packetSize);
+    this.applicationIn = ByteBuffer.allocateDirect(engine.getSession().getApplicationBufferSize());
+  }
+
+  /**
+   * Perform the TLS handshake.
+   *
+   * @throws IOException when the handshake fails or the peer disconnects.
+   */
+  public void handshake() throws IOException {
+    engine.beginHandshake();
+    SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+    while (status != SSLEngineResult.HandshakeStatus.FINISHED
+        && status != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING) {
+      switch (status) {
+        case NEED_WRAP -> {
+          networkOut.clear();
+          SSLEngineResult result = engine.wrap(EMPTY, networkOut);
+          flushNetworkOut();
+          status = result.getHandshakeStatus();
+        }
+        case NEED_UNWRAP, NEED_UNWRAP_AGAIN -> status = unwrap().getHandshakeStatus();
+        case NEED_TASK -> {
+          Runnable task;
+          while ((task = engine.getDelegatedTask()) != null) {
+            task.run();
+          }
+          status = engine.getHandshakeStatus();
+        }
+        default -> throw new SSLException("Unexpected handshake status: " + status);
+      }
+    }
+    SslConnection.serverHandshakeCompleted();
+  }
+
+  /**
+   * Decrypt the next record into the application buffer, reading from the socket as needed.
+   */
+  private SSLEngineResult unwrap() throws IOException {
+    while (true) {
+      networkIn.flip();
+      SSLEngineResult result = engine.unwrap(networkIn, applicationIn);
+      networkIn.compact();
+      switch (result.getStatus()) {
+        case OK, CLOSED -> {
+          return result;
+        }
+        case BUFFER_UNDERFLOW -> {
+          if (channel.read(networkIn) < 0) {
+            throw new EOFException("Connection closed during TLS record");
+          }
+        }
+        default -> throw new SSLException("No room to decrypt a TLS record");
+      }
+    }
+  }
+
+  @Override
+  public int read(ByteBuffer destination) throws IOException {
+    if (applicationIn.position() == 0) {
+      if (unwrap().getStatus() == SSLEngineResult.Status.CLOSED && applicationIn.position() == 0) {
+        return -1;
+      }
+    }
+    applicationIn.flip();
+    int count = Math.min(applicationIn.remaining(), destination.remaining());
+    ByteBuffer slice = applicationIn.slice(applicationIn.position(), count);
+    destination.put(slice);
+    applicationIn.position(applicationIn.position() + count);
+    applicationIn.compact();
+    return count;
+  }
+
+  /**
+   * Encrypt and send all remaining bytes of the source. As many records as fit are encrypted
+   * into the network buffer before it is written, to keep the number of system calls low.
+   *
+   * @param source the bytes to send.
+   * @return the number of bytes sent.
+   * @throws IOException when the connection fails.
+   */
+  @Override
+  public int write(ByteBuffer source) throws IOException {
+    if (!open) {
+      throw new ClosedChannelException();
+    }
+    int written = 0;
+    networkOut.clear();
+    while (source.hasRemaining()) {
+      SSLEngineResult result = engine.wrap(source, networkOut);
+      switch (result.getStatus()) {
+        case OK -> written += result.bytesConsumed();
+        case BUFFER_OVERFLOW -> {
+          flushNetworkOut();
+          networkOut.clear();
+        }
+        default -> throw new SSLException("TLS connection closed while writing");
+      }
+    }
+    flushNetworkOut();
+    return written;
+  }
+
+  private void flushNetworkOut() throws IOException {
+    networkOut.flip();
+    while (networkOut.hasRemaining()) {
+      channel.write(networkOut);
+    }
+  }
+
+  @Override
+  public boolean isOpen() {
+    return open && channel.isOpen();
+  }
+
+  /**
+   * Send the TLS close notification and close the socket.
+   *
+   * @throws IOException when the socket can't be closed.
+   */
+  @Override
+  public void close() throws IOException {
+    if (!open) {
+      return;
+    }
+    open = false;
+    try {
+      engine.closeOutbound();
+      networkOut.clear();
+      engine.wrap(EMPTY, networkOut);
+      flushNetworkOut();
+    } catch (IOException e) {
+      // The peer is gone, nothing left to notify
+    } finally {
+      channel.close();
+    }
+  }
+}
@@ -0,0 +1,210 @@
+package no.ntnu.tools;
+
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A log appender which hands messages over to a background thread through a fixed-size ring
+ * buffer. Logging threads only claim a slot and store a reference, they never block on console
+ * I/O. The background thread writes the messages in batches, one print call per batch and stream.
+ * When the buffer is full, new messages are dropped (and counted) instead of stalling the caller.
+ * An idle background thread parks until a logging thread wakes it, so it uses no CPU while
+ * nothing is logged.
+ * The background thread reports the dropped messages on the error stream, at most once every ten
+ * seconds, and once more when the appender shuts down.
+ */
+public class AsyncLogAppender {
+    // The writer also wakes up this often when idle, to report dropped messages in time
+    private static final long IDLE_PARK_NANOS = 100_000_000;
+    private static final long FLUSH_POLL_NANOS = 1_000_000;
+    private static final int MAX_BATCH_SIZE = 256;
+    private static final long DROP_REPORT_INTERVAL_NANOS = 10_000_000_000L;
+
+    private final PrintStream out;
+    private final PrintStream err;
+    private final int mask;
+    private final String[] messages;
+    private final boolean[] toErr;
+    private final boolean[] newline;
+    private final AtomicLongArray published;
+    private final AtomicLong claimed = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final StringBuilder outBatch = new StringBuilder();
+    private final StringBuilder errBatch = new StringBuilder();
+    private final Thread writerThread;
+    private volatile long consumed;
+    private volatile boolean running = true;
+    private volatile boolean writerWaiting;
+    private long reportedDropped;
+    private long lastDropReport = System.nanoTime();
+
+    /**
+     * Create and start an asynchronous appender.
+     *
+     * @param out      The stream for information and debug messages
+     * @param err      The stream for error messages
+     * @param capacity The number of messages the buffer can hold, rounded up to a power of two
+     */
+    public AsyncLogAppender(PrintStream out, PrintStream err, int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.out = out;
+        this.err = err;
+        this.mask = size - 1;
+        this.messages = new String[size];
+        this.toErr = new boolean[size];
+        this.newline = new boolean[size];
+        this.published = new AtomicLongArray(size);
+        for (int i = 0; i < size; ++i) {
+            published.set(i, -1);
+        }
+        this.writerThread = new Thread(this::runWriter, "Log-Writer");
+        this.writerThread.setDaemon(true);
+        this.writerThread.start();
+    }
+
+    /**
+     * Queue a message for writing. Can be called from any thread.
+     *
+     * @param message   The message to write
+     * @param isError   When true, write to the error stream
+     * @param isNewline When true, a newline is appended to the message
+     */
+    public void append(String message, boolean isError, boolean isNewline) {
+        long sequence;
+        do {
+            sequence = claimed.get();
+            if (sequence - consumed > mask) {
+                dropped.incrementAndGet();
+                return;
+            }
+        } while (!claimed.compareAndSet(sequence, sequence + 1));
+
+        int slot = (int) sequence & mask;
+        messages[slot] = message;
+        toErr[slot] = isError;
+        newline[slot] = isNewline;
+        // A volatile store, ordered before the read of writerWaiting: either the writer sees the
+        // message before it parks, or this thread sees that the writer waits
+        published.set(slot, sequence);
+        if (writerWaiting) {
+            writerWaiting = false;
+            LockSupport.unpark(writerThread);
+        }
+    }
+
+    /**
+     * Get the number of messages dropped because the buffer was full.
+     *
+     * @return The number of dropped messages
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    private void runWriter() {
+        while (running) {
+            if (drainBatch() == 0) {
+                awaitMessage();
+            }
+            reportDropped(false);
+        }
+        while (drainBatch() > 0) {
+            // Write out whatever was logged before the shutdown
+        }
+        reportDropped(true);
+    }
+
+    /**
+     * Park until a logging thread publishes a message, the appender shuts down or the idle
+     * timeout passes. The writer announces that it waits before it checks for a message for the
+     * last time, so a message published after the check always unparks it.
+     */
+    private void awaitMessage() {
+        writerWaiting = true;
+        long next = consumed;
+        if (running && published.get((int) next & mask) != next) {
+            LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+        }
+        writerWaiting = false;
+    }
+
+    /**
+     * Write how many messages were dropped since the last report, if any were.
+     *
+     * @param force When true, report even if the last report was less than the interval ago
+     */
+    private void reportDropped(boolean force) {
+        long total = dropped.get();
+        long now = System.nanoTime();
+        if (total != reportedDropped
+                && (force || now - lastDropReport >= DROP_REPORT_INTERVAL_NANOS)) {
+            err.println("Log buffer full, dropped " + (total - reportedDropped) + " messages ("
+                    + total + " in total)");
+            err.flush();
+            reportedDropped = total;
+            lastDropReport = now;
+        }
+    }
+
+    /**
+     * Write out the next batch of published messages.
+     *
+     * @return The number of messages written
+     */
+    private int drainBatch() {
+        long next = consumed;
+        int count = 0;
+        while (count < MAX_BATCH_SIZE) {
+            int slot = (int) next & mask;
+            if (published.get(slot) != next) {
+                break;
+            }
+            StringBuilder batch = toErr[slot] ? errBatch : outBatch;
+            batch.append(messages[slot]);
+            if (newline[slot]) {
+                batch.append(System.lineSeparator());
+            }
+            messages[slot] = null;
+            next++;
+            count++;
+        }
+        consumed = next;
+        writeBatch(out, outBatch);
+        writeBatch(err, errBatch);
+        return count;
+    }
+
+    private static void writeBatch(PrintStream stream, StringBuilder batch) {
+        if (batch.length() > 0) {
+            stream.print(batch);
+            stream.flush();
+            batch.setLength(0);
+        }
+    }
+
+    /**
+     * Wait until all messages logged so far have been written.
+     */
+    public void flush() {
+        long target = claimed.get();
+        while (running && consumed < target) {
+            LockSupport.parkNanos(FLUSH_POLL_NANOS);
+        }
+    }
+
+    /**
+     * Stop the background thread after writing all pending messages.
+     */
+    public void shutdown() {
+        flush();
+        running = false;
+        LockSupport.unpark(writerThread);
+        try {
+            writerThread.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,11 @@
+package no.ntnu.tools;
+
+/**
+ * A handle of a scheduled task.
+ */
+public interface Cancellable {
+    /**
+     * Cancel the task. A run which is in progress is completed, no later runs are started.
+     */
+    void cancel();
+}
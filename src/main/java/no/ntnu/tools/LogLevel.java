@@ -0,0 +1,29 @@
+package no.ntnu.tools;
+
+/**
+ * Severity levels of log messages, from the most verbose to the most severe.
+ */
+public enum LogLevel {
+    DEBUG,
+    INFO,
+    ERROR,
+    OFF;
+
+    /**
+     * Parse a level name, case-insensitive.
+     *
+     * @param name         The name of the level, for example "debug"
+     * @param defaultLevel The level to use when the name is missing or unknown
+     * @return The level with the given name, or the default level
+     */
+    public static LogLevel fromName(String name, LogLevel defaultLevel) {
+        if (name == null) {
+            return defaultLevel;
+        }
+        try {
+            return LogLevel.valueOf(name.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            return defaultLevel;
+        }
+    }
+}
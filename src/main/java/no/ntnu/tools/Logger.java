@@ -1,24 +1,103 @@
 package no.ntnu.tools;
 
+import java.util.function.Supplier;
+import no.ntnu.tools.metrics.Metrics;
+
 /**
  * A logger class for encapsulating all the logging. We can either reduce the number of SonarLint
  * warnings, or implement it properly. This class makes sure we sue the same logging in all
  * places of our code.
+ * Messages below the current level are discarded. Use the supplier variants on hot paths, so the
+ * message is not even built when it would be discarded. By default, messages are written by an
+ * asynchronous appender on a background thread; set the system property
+ * {@code greenhouse.log.async} to false to write synchronously. Messages which the asynchronous
+ * appender drops are counted in the metric log_messages_dropped. The initial level is read from
+ * the system property {@code greenhouse.log.level} (debug, info, error or off), default is info.
  */
 public class Logger {
+    private static final int BUFFER_CAPACITY = 8192;
+
+    private static volatile LogLevel level =
+            LogLevel.fromName(System.getProperty("greenhouse.log.level"), LogLevel.INFO);
+    private static final AsyncLogAppender appender = createAppender();
+
     /**
      * Not allowed to create an instance of this class.
      */
     private Logger() {
     }
 
+    private static AsyncLogAppender createAppender() {
+        if ("false".equalsIgnoreCase(System.getProperty("greenhouse.log.async"))) {
+            return null;
+        }
+        AsyncLogAppender asyncAppender = new AsyncLogAppender(System.out, System.err, BUFFER_CAPACITY);
+        Runtime.getRuntime().addShutdownHook(new Thread(asyncAppender::shutdown, "Log-Flush"));
+        Metrics.gauge("log_messages_dropped", asyncAppender::getDroppedCount);
+        return asyncAppender;
+    }
+
+    /**
+     * Set the minimum level of messages which are logged.
+     *
+     * @param newLevel The new log level
+     */
+    public static void setLevel(LogLevel newLevel) {
+        level = newLevel;
+    }
+
+    /**
+     * Check whether messages of the given level are logged.
+     *
+     * @param messageLevel The level to check
+     * @return True when messages of this level are logged, false when they are discarded
+     */
+    public static boolean isEnabled(LogLevel messageLevel) {
+        return messageLevel.compareTo(level) >= 0;
+    }
+
+    /**
+     * Log a debug message.
+     *
+     * @param message The message to log. A newline is appended automatically.
+     */
+    public static void debug(String message) {
+        if (isEnabled(LogLevel.DEBUG)) {
+            write(message, false, true);
+        }
+    }
+
+    /**
+     * Log a debug message, built only when debug messages are enabled.
+     *
+     * @param message Supplier of the message to log. A newline is appended automatically.
+     */
+    public static void debug(Supplier<String> message) {
+        if (isEnabled(LogLevel.DEBUG)) {
+            write(message.get(), false, true);
+        }
+    }
+
     /**
      * Log an information message.
      *
      * @param message The message to log. A newline is appended automatically.
      */
     public static void info(String message) {
-        System.out.println(message);
+        if (isEnabled(LogLevel.INFO)) {
+            write(message, false, true);
+        }
+    }
+
+    /**
+     * Log an information message, built only when information messages are enabled.
+     *
+     * @param message Supplier of the message to log. A newline is appended automatically.
+     */
+    public static void info(Supplier<String> message) {
+        if (isEnabled(LogLevel.INFO)) {
+            write(message.get(), false, true);
+        }
     }
 
     /**
@@ -27,7 +106,9 @@ public class Logger {
      * @param message The message to log
      */
     public static void infoNoNewline(String message) {
-        System.out.print(message);
+        if (isEnabled(LogLevel.INFO)) {
+            write(message, false, false);
+        }
     }
 
     /**
@@ -36,6 +117,29 @@ public class Logger {
      * @param message The error message to log
      */
     public static void error(String message) {
-        System.err.println(message);
+        if (isEnabled(LogLevel.ERROR)) {
+            write(message, true, true);
+        }
+    }
+
+    /**
+     * Wait until all messages logged so far have been written out.
+     */
+    public static void flush() {
+        if (appender != null) {
+            appender.flush();
+        }
+    }
+
+    private static void write(String message, boolean isError, boolean isNewline) {
+        if (appender != null) {
+            appender.append(message, isError, isNewline);
+        } else if (isError) {
+            System.err.println(message);
+        } else if (isNewline) {
+            System.out.println(message);
+        } else {
+            System.out.print(message);
+        }
     }
 }
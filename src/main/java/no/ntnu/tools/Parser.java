@@ -4,6 +4,12 @@ package no.ntnu.tools;
  * A helper class for parsing strings.
  */
 public class Parser {
+    private static final int MAX_FAST_DIGITS = 15;
+    private static final double[] POWERS_OF_TEN = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15,
+        1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
     /**
      * Not allowed to create instances of this class.
      */
@@ -28,6 +34,23 @@ public class Parser {
         }
     }
 
+    /**
+     * Try to parse a string as a long integer, show an error message when the parsing fails.
+     *
+     * @param s            The string to parse
+     * @param errorMessage The error message to show if parsing fails
+     * @return The long integer contained in the string
+     * @throws NumberFormatException When the provided string does not contain a valid number,
+     *                               throw an exception with the provided error message
+     */
+    public static long parseLongOrError(String s, String errorMessage) {
+        try {
+            return Long.parseLong(s);
+        } catch (NumberFormatException e) {
+            throw new NumberFormatException(errorMessage);
+        }
+    }
+
     /**
      * Try to parse a string as a floating point number, show an error message when the parsing fails.
      *
@@ -44,4 +67,62 @@ public class Parser {
             throw new NumberFormatException(errorMessage);
         }
     }
+
+    /**
+     * Parse the value of a formatted sensor reading in place, without creating substrings, from
+     * the start of a range up to the unit. Plain decimal numbers with up to 15 significant
+     * digits, which covers all readings of the simulated sensors, are computed directly and
+     * rounded exactly like {@link Double#parseDouble}; anything else goes through it.
+     *
+     * @param text  The formatted readings
+     * @param start Index of the first character of the number
+     * @param end   Index after the reading
+     * @return The parsed value, or NaN if it is not a number
+     */
+    public static double parseReadingValue(String text, int start, int end) {
+        int numberEnd = text.indexOf(' ', start);
+        if (numberEnd < 0 || numberEnd > end) {
+            numberEnd = end;
+        }
+        int position = start;
+        boolean negative = position < numberEnd && text.charAt(position) == '-';
+        if (negative) {
+            position++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int fractionDigits = -1;
+        for (; position < numberEnd; position++) {
+            char c = text.charAt(position);
+            if (c >= '0' && c <= '9') {
+                mantissa = mantissa * 10 + (c - '0');
+                if (mantissa != 0) {
+                    digits++;
+                }
+                if (fractionDigits >= 0) {
+                    fractionDigits++;
+                }
+            } else if (c == '.' && fractionDigits < 0) {
+                fractionDigits = 0;
+            } else {
+                return parseSlow(text, start, numberEnd);
+            }
+        }
+        if (position == start + (negative ? 1 : 0) || fractionDigits == 0) {
+            return parseSlow(text, start, numberEnd);
+        }
+        if (digits > MAX_FAST_DIGITS || fractionDigits >= POWERS_OF_TEN.length) {
+            return parseSlow(text, start, numberEnd);
+        }
+        double value = fractionDigits > 0 ? mantissa / POWERS_OF_TEN[fractionDigits] : mantissa;
+        return negative ? -value : value;
+    }
+
+    private static double parseSlow(String text, int start, int end) {
+        try {
+            return Double.parseDouble(text.substring(start, end));
+        } catch (NumberFormatException e) {
+            return Double.NaN;
+        }
+    }
 }
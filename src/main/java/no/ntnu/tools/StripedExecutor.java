@@ -0,0 +1,106 @@
+package no.ntnu.tools;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An executor which runs tasks on a fixed number of stripes, each backed by a single thread.
+ * All tasks submitted with the same key run serially, in submission order, on the same stripe,
+ * while tasks with different keys can run in parallel on different stripes. This gives
+ * single-writer semantics per key (for example per node ID) without any global lock. The node
+ * runtime drains the mailboxes of the sensor/actuator nodes on a striped executor keyed by node
+ * ID, so all work for a node runs on one stripe.
+ */
+public class StripedExecutor {
+    private final ThreadPoolExecutor[] stripes;
+
+    /**
+     * Create a striped executor with one stripe per available processor.
+     *
+     * @param name The name prefix of the stripe threads
+     */
+    public StripedExecutor(String name) {
+        this(name, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Create a striped executor.
+     *
+     * @param name        The name prefix of the stripe threads
+     * @param stripeCount The number of stripes (threads) to use
+     */
+    public StripedExecutor(String name, int stripeCount) {
+        if (stripeCount <= 0) {
+            throw new IllegalArgumentException("Stripe count must be positive");
+        }
+        stripes = new ThreadPoolExecutor[stripeCount];
+        for (int i = 0; i < stripeCount; ++i) {
+            String threadName = name + "-" + i;
+            stripes[i] = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<>(), runnable -> {
+                        Thread thread = new Thread(runnable, threadName);
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+        }
+    }
+
+    /**
+     * Run a task on the stripe owning the given key.
+     *
+     * @param key  The key which decides the stripe, for example a node ID
+     * @param task The task to run
+     */
+    public void execute(int key, Runnable task) {
+        try {
+            stripeFor(key).execute(() -> {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    Logger.error("Task for key " + key + " failed: " + e.getMessage());
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            Logger.error("Executor is shut down, dropping task for key " + key);
+        }
+    }
+
+    private ExecutorService stripeFor(int key) {
+        int hash = key * 0x9E3779B9;
+        return stripes[Math.floorMod(hash ^ (hash >>> 16), stripes.length)];
+    }
+
+    /**
+     * Get the number of stripes.
+     *
+     * @return The number of stripes (threads)
+     */
+    public int getStripeCount() {
+        return stripes.length;
+    }
+
+    /**
+     * Get the number of tasks waiting to run, across all stripes.
+     *
+     * @return The total number of queued tasks
+     */
+    public int getQueueDepth() {
+        int depth = 0;
+        for (ThreadPoolExecutor stripe : stripes) {
+            depth += stripe.getQueue().size();
+        }
+        return depth;
+    }
+
+    /**
+     * Stop accepting new tasks. Tasks which are already queued are still run.
+     */
+    public void shutdown() {
+        for (ThreadPoolExecutor stripe : stripes) {
+            stripe.shutdown();
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package no.ntnu.tools;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Runs tasks now, later or periodically, and tells the time. Components which need timers take
+ * a scheduler instead of creating their own threads, so a simulation can run them on a virtual
+ * clock.
+ */
+public interface TaskScheduler extends Executor {
+    /**
+     * Get the current time of this scheduler.
+     *
+     * @return The current time, in epoch milliseconds
+     */
+    long currentTimeMillis();
+
+    /**
+     * Run a task once, after a delay.
+     *
+     * @param task        The task to run
+     * @param delayMillis The delay, in milliseconds
+     * @return A handle which can be used to cancel the task
+     */
+    Cancellable schedule(Runnable task, long delayMillis);
+
+    /**
+     * Run a task periodically.
+     *
+     * @param task               The task to run
+     * @param initialDelayMillis The delay before the first run, in milliseconds
+     * @param periodMillis       The period between runs, in milliseconds
+     * @return A handle which can be used to cancel the task
+     */
+    Cancellable scheduleAtFixedRate(Runnable task, long initialDelayMillis, long periodMillis);
+
+    /**
+     * Get a random number in the range [0; bound). Simulations return a seeded sequence, so
+     * random decisions such as start delays are reproducible.
+     *
+     * @param bound The upper bound (exclusive), must be positive
+     * @return A random number
+     */
+    long nextRandom(long bound);
+
+    /**
+     * Stop the scheduler. Tasks which have not started yet are discarded.
+     */
+    void shutdown();
+}
@@ -0,0 +1,61 @@
+package no.ntnu.tools;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A task scheduler running on a single daemon thread and the system clock.
+ */
+public class ThreadTaskScheduler implements TaskScheduler {
+    private final ScheduledExecutorService executor;
+
+    /**
+     * Create a scheduler and start its thread.
+     *
+     * @param threadName The name of the scheduler thread
+     */
+    public ThreadTaskScheduler(String threadName) {
+        this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, threadName);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Override
+    public long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        executor.execute(task);
+    }
+
+    @Override
+    public Cancellable schedule(Runnable task, long delayMillis) {
+        ScheduledFuture<?> future = executor.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+        return () -> future.cancel(false);
+    }
+
+    @Override
+    public Cancellable scheduleAtFixedRate(Runnable task, long initialDelayMillis,
+                                           long periodMillis) {
+        ScheduledFuture<?> future = executor.scheduleAtFixedRate(task, initialDelayMillis,
+                periodMillis, TimeUnit.MILLISECONDS);
+        return () -> future.cancel(false);
+    }
+
+    @Override
+    public long nextRandom(long bound) {
+        return ThreadLocalRandom.current().nextLong(bound);
+    }
+
+    @Override
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
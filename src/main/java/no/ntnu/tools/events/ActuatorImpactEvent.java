@@ -0,0 +1,29 @@
+package no.ntnu.tools.events;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight Recorder event covering the application of an actuator's impact to the sensors of its
+ * node, including notification of the actuator listeners.
+ */
+@Name("no.ntnu.ActuatorImpact")
+@Label("Actuator Impact")
+@Category({"Greenhouse", "Simulation"})
+@Description("Application of an actuator state change to the sensors of its node")
+public class ActuatorImpactEvent extends Event {
+    @Label("Node ID")
+    public int nodeId;
+
+    @Label("Actuator ID")
+    public int actuatorId;
+
+    @Label("Actuator Type")
+    public String actuatorType;
+
+    @Label("On")
+    public boolean on;
+}
@@ -0,0 +1,31 @@
+package no.ntnu.tools.events;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight Recorder event covering the fan-out of one message to all the control panels.
+ */
+@Name("no.ntnu.Broadcast")
+@Label("Broadcast To Control Panels")
+@Category({"Greenhouse", "Protocol"})
+@Description("Fan-out of one message to all the connected control panels")
+public class BroadcastEvent extends Event {
+    @Label("Node ID")
+    @Description("ID of the node the message is about, -1 when it is not about a node")
+    public int nodeId;
+
+    @Label("Message Type")
+    public String messageType;
+
+    @Label("Message Size")
+    @Description("Length of the message in characters")
+    public int size;
+
+    @Label("Fan-out")
+    @Description("Number of control panels the message was queued for")
+    public int fanOut;
+}
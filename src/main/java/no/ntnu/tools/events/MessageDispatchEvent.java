@@ -0,0 +1,28 @@
+package no.ntnu.tools.events;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight Recorder event covering the decoding and dispatching of one message received by the
+ * server.
+ */
+@Name("no.ntnu.MessageDispatch")
+@Label("Message Dispatch")
+@Category({"Greenhouse", "Protocol"})
+@Description("Decoding and dispatching of one message received by the server")
+public class MessageDispatchEvent extends Event {
+    @Label("Node ID")
+    @Description("ID of the node the message is about, -1 when it is not about a node")
+    public int nodeId;
+
+    @Label("Message Type")
+    public String messageType;
+
+    @Label("Message Size")
+    @Description("Length of the message in characters")
+    public int size;
+}
@@ -0,0 +1,22 @@
+package no.ntnu.tools.events;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight Recorder event covering one periodic sensor update of a node.
+ */
+@Name("no.ntnu.SensorTick")
+@Label("Sensor Tick")
+@Category({"Greenhouse", "Simulation"})
+@Description("Generation of new sensor values on one node, including listener notification")
+public class SensorTickEvent extends Event {
+    @Label("Node ID")
+    public int nodeId;
+
+    @Label("Sensor Count")
+    public int sensorCount;
+}
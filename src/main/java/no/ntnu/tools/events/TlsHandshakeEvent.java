@@ -0,0 +1,32 @@
+package no.ntnu.tools.events;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight Recorder event covering one TLS handshake.
+ */
+@Name("no.ntnu.TlsHandshake")
+@Label("TLS Handshake")
+@Category({"Greenhouse", "Security"})
+@Description("One TLS handshake, on the server or the client side")
+public class TlsHandshakeEvent extends Event {
+    @Label("Side")
+    @Description("Either server or client")
+    public String side;
+
+    @Label("Peer")
+    public String peer;
+
+    @Label("Protocol")
+    public String protocol;
+
+    @Label("Cipher Suite")
+    public String cipherSuite;
+
+    @Label("Succeeded")
+    public boolean succeeded;
+}
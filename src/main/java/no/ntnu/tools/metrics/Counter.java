@@ -0,0 +1,36 @@
+package no.ntnu.tools.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A monotonically increasing count, for example the number of messages received.
+ * Recording is lock-free and scales with the number of recording threads.
+ */
+public class Counter {
+    private final LongAdder count = new LongAdder();
+
+    /**
+     * Increase the count by one.
+     */
+    public void increment() {
+        count.increment();
+    }
+
+    /**
+     * Increase the count.
+     *
+     * @param amount The amount to add, must not be negative
+     */
+    public void add(long amount) {
+        count.add(amount);
+    }
+
+    /**
+     * Get the current count.
+     *
+     * @return The count, summed over all recording threads
+     */
+    public long get() {
+        return count.sum();
+    }
+}
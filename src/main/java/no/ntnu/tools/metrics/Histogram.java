@@ -0,0 +1,93 @@
+package no.ntnu.tools.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of non-negative long values, for example latencies in nanoseconds.
+ * Values are counted in log-linear buckets like in an HDR histogram: every power of two is split
+ * into 32 linear sub-buckets, so any recorded value is reported with a relative error of at most
+ * about 3%, over the whole range of long values, with a fixed memory footprint.
+ * Recording is lock-free: one atomic increment of a bucket plus the running totals.
+ */
+public class Histogram {
+    static final int SUB_BUCKET_BITS = 5;
+    static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    static final int BUCKET_COUNT = (64 - SUB_BUCKET_BITS) * SUB_BUCKET_COUNT;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Record a value. Negative values are recorded as zero.
+     *
+     * @param value The value to record
+     */
+    public void record(long value) {
+        long v = Math.max(0, value);
+        buckets.incrementAndGet(bucketIndex(v));
+        count.increment();
+        sum.add(v);
+        long currentMax = max.get();
+        while (v > currentMax && !max.compareAndSet(currentMax, v)) {
+            currentMax = max.get();
+        }
+    }
+
+    /**
+     * Record the time elapsed since the given start time.
+     *
+     * @param startNanos The start time, as returned by {@link System#nanoTime()}
+     */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Take a consistent-enough copy of the histogram for reporting. Values recorded while the
+     * snapshot is taken may or may not be included.
+     *
+     * @return A snapshot of the current counts
+     */
+    public HistogramSnapshot snapshot() {
+        long[] counts = new long[BUCKET_COUNT];
+        for (int i = 0; i < BUCKET_COUNT; ++i) {
+            counts[i] = buckets.get(i);
+        }
+        return new HistogramSnapshot(counts, count.sum(), sum.sum(), max.get());
+    }
+
+    /**
+     * Find the bucket of a value.
+     *
+     * @param value A non-negative value
+     * @return Index of the bucket counting the value
+     */
+    static int bucketIndex(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int shift = exponent - SUB_BUCKET_BITS;
+        int subBucket = (int) (value >>> shift) & (SUB_BUCKET_COUNT - 1);
+        return (shift + 1) * SUB_BUCKET_COUNT + subBucket;
+    }
+
+    /**
+     * Find the highest value counted in a bucket.
+     *
+     * @param index Index of the bucket
+     * @return The highest value which falls into the bucket
+     */
+    static long bucketUpperBound(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int shift = index / SUB_BUCKET_COUNT - 1;
+        long subBucket = SUB_BUCKET_COUNT + (index % SUB_BUCKET_COUNT);
+        return ((subBucket + 1) << shift) - 1;
+    }
+}
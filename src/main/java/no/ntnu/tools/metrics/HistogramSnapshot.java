@@ -0,0 +1,102 @@
+package no.ntnu.tools.metrics;
+
+/**
+ * An immutable copy of a histogram, used for reporting percentiles.
+ */
+public class HistogramSnapshot {
+    private final long[] counts;
+    private final long count;
+    private final long sum;
+    private final long max;
+
+    /**
+     * Create a snapshot.
+     *
+     * @param counts The bucket counts
+     * @param count  The total number of recorded values
+     * @param sum    The sum of all recorded values
+     * @param max    The highest recorded value
+     */
+    HistogramSnapshot(long[] counts, long count, long sum, long max) {
+        this.counts = counts;
+        this.count = count;
+        this.sum = sum;
+        this.max = max;
+    }
+
+    /**
+     * Get the number of recorded values.
+     *
+     * @return The number of values
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Get the sum of all recorded values.
+     *
+     * @return The sum of the values
+     */
+    public long getSum() {
+        return sum;
+    }
+
+    /**
+     * Get the highest recorded value.
+     *
+     * @return The maximum, zero when nothing is recorded
+     */
+    public long getMax() {
+        return max;
+    }
+
+    /**
+     * Get the mean of the recorded values.
+     *
+     * @return The mean, zero when nothing is recorded
+     */
+    public double getMean() {
+        return count == 0 ? 0 : (double) sum / count;
+    }
+
+    /**
+     * Get the value below which the given fraction of the recorded values fall.
+     *
+     * @param quantile The quantile, between 0.0 and 1.0. Example: 0.99 for the 99th percentile
+     * @return The (upper bucket bound of the) value at the quantile, zero when nothing is recorded
+     */
+    public long getValueAtQuantile(double quantile) {
+        long total = 0;
+        for (long bucketCount : counts) {
+            total += bucketCount;
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(quantile * total));
+        long seen = 0;
+        for (int i = 0; i < counts.length; ++i) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(Histogram.bucketUpperBound(i), max);
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Format a one-line summary, for logs.
+     *
+     * @param unitDivisor Divide the values by this before printing, for example 1000 to print
+     *                    nanoseconds as microseconds
+     * @return The summary with count, mean, median, 99th percentile and maximum
+     */
+    public String format(long unitDivisor) {
+        return "count=" + count
+                + " mean=" + Math.round(getMean() / unitDivisor)
+                + " p50=" + getValueAtQuantile(0.5) / unitDivisor
+                + " p99=" + getValueAtQuantile(0.99) / unitDivisor
+                + " max=" + max / unitDivisor;
+    }
+}
@@ -0,0 +1,90 @@
+package no.ntnu.tools.metrics;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * A named group of metrics of one kind, distinguished by the value of one label.
+ * Example: the family "server_messages_in_total" with the label "type" has one counter per
+ * message type. A metric without a label is stored under the empty label value.
+ *
+ * @param <T> The kind of metric, for example {@link Counter}
+ */
+public class MetricFamily<T> {
+    private final String name;
+    private final String labelName;
+    private final Map<String, T> metrics = new ConcurrentHashMap<>();
+
+    /**
+     * Create a metric family.
+     *
+     * @param name      The metric name
+     * @param labelName The name of the label, or null when the family has no label
+     */
+    MetricFamily(String name, String labelName) {
+        this.name = name;
+        this.labelName = labelName;
+    }
+
+    /**
+     * Get the name of the metrics in this family.
+     *
+     * @return The metric name
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Get the name of the label distinguishing the metrics.
+     *
+     * @return The label name, or null when the family has no label
+     */
+    public String getLabelName() {
+        return labelName;
+    }
+
+    /**
+     * Get all the metrics of the family.
+     *
+     * @return The metrics, keyed by label value
+     */
+    public Map<String, T> getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Get the metric with a given label value, creating it if needed.
+     *
+     * @param labelValue The label value
+     * @param factory    Creates the metric when it does not exist yet
+     * @return The metric
+     */
+    T get(String labelValue, Supplier<T> factory) {
+        T metric = metrics.get(labelValue);
+        if (metric == null) {
+            metric = metrics.computeIfAbsent(labelValue, key -> factory.get());
+        }
+        return metric;
+    }
+
+    /**
+     * Register a metric under a label value, replacing any existing one.
+     *
+     * @param labelValue The label value
+     * @param metric     The metric
+     */
+    void put(String labelValue, T metric) {
+        metrics.put(labelValue, metric);
+    }
+
+    /**
+     * Remove the metric with a given label value.
+     *
+     * @param labelValue The label value
+     */
+    void remove(String labelValue) {
+        metrics.remove(labelValue);
+    }
+}
@@ -0,0 +1,140 @@
+package no.ntnu.tools.metrics;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongSupplier;
+
+/**
+ * The process-wide registry of metrics. Metrics are looked up by name (and optionally one label)
+ * and created on first use. Look up a metric once and keep the reference on hot paths; the
+ * lookup itself does not allocate, but recording on a kept reference is cheaper still.
+ */
+public class Metrics {
+    private static final String NO_LABEL = "";
+
+    private static final Map<String, MetricFamily<Counter>> counters = new ConcurrentHashMap<>();
+    private static final Map<String, MetricFamily<LongSupplier>> gauges = new ConcurrentHashMap<>();
+    private static final Map<String, MetricFamily<Histogram>> histograms = new ConcurrentHashMap<>();
+
+    /**
+     * Not allowed to create an instance of this class.
+     */
+    private Metrics() {
+    }
+
+    /**
+     * Get a counter without labels.
+     *
+     * @param name The metric name
+     * @return The counter
+     */
+    public static Counter counter(String name) {
+        return family(counters, name, null).get(NO_LABEL, Counter::new);
+    }
+
+    /**
+     * Get a labelled counter.
+     *
+     * @param name       The metric name
+     * @param labelName  The label name, for example "type"
+     * @param labelValue The label value, for example "SENSOR_DATA"
+     * @return The counter
+     */
+    public static Counter counter(String name, String labelName, String labelValue) {
+        return family(counters, name, labelName).get(labelValue, Counter::new);
+    }
+
+    /**
+     * Get a histogram without labels.
+     *
+     * @param name The metric name
+     * @return The histogram
+     */
+    public static Histogram histogram(String name) {
+        return family(histograms, name, null).get(NO_LABEL, Histogram::new);
+    }
+
+    /**
+     * Get a labelled histogram.
+     *
+     * @param name       The metric name
+     * @param labelName  The label name
+     * @param labelValue The label value
+     * @return The histogram
+     */
+    public static Histogram histogram(String name, String labelName, String labelValue) {
+        return family(histograms, name, labelName).get(labelValue, Histogram::new);
+    }
+
+    /**
+     * Register a gauge without labels. The supplier is called whenever the metrics are reported.
+     *
+     * @param name  The metric name
+     * @param value Supplies the current value, must be cheap and thread-safe
+     */
+    public static void gauge(String name, LongSupplier value) {
+        family(gauges, name, null).put(NO_LABEL, value);
+    }
+
+    /**
+     * Register a labelled gauge. The supplier is called whenever the metrics are reported.
+     *
+     * @param name       The metric name
+     * @param labelName  The label name, for example "client"
+     * @param labelValue The label value
+     * @param value      Supplies the current value, must be cheap and thread-safe
+     */
+    public static void gauge(String name, String labelName, String labelValue, LongSupplier value) {
+        family(gauges, name, labelName).put(labelValue, value);
+    }
+
+    /**
+     * Remove a labelled gauge, for example when the measured client disconnects.
+     *
+     * @param name       The metric name
+     * @param labelValue The label value
+     */
+    public static void removeGauge(String name, String labelValue) {
+        MetricFamily<LongSupplier> family = gauges.get(name);
+        if (family != null) {
+            family.remove(labelValue);
+        }
+    }
+
+    /**
+     * Get all counter families.
+     *
+     * @return The counter families
+     */
+    public static Collection<MetricFamily<Counter>> getCounters() {
+        return counters.values();
+    }
+
+    /**
+     * Get all gauge families.
+     *
+     * @return The gauge families
+     */
+    public static Collection<MetricFamily<LongSupplier>> getGauges() {
+        return gauges.values();
+    }
+
+    /**
+     * Get all histogram families.
+     *
+     * @return The histogram families
+     */
+    public static Collection<MetricFamily<Histogram>> getHistograms() {
+        return histograms.values();
+    }
+
+    private static <T> MetricFamily<T> family(Map<String, MetricFamily<T>> families, String name,
+                                              String labelName) {
+        MetricFamily<T> family = families.get(name);
+        if (family == null) {
+            family = families.computeIfAbsent(name, key -> new MetricFamily<>(key, labelName));
+        }
+        return family;
+    }
+}
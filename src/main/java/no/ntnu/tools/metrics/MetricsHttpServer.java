@@ -0,0 +1,199 @@
+package no.ntnu.tools.metrics;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+import no.ntnu.tools.Logger;
+
+/**
+ * A small HTTP server exposing the metrics for scraping during soak tests.
+ * GET /metrics returns all registered metrics in the Prometheus text format, histograms are
+ * rendered as summaries. GET /health returns a JSON health view. Other paths are answered with
+ * 404, other methods with 405. Requests are served by the server's own thread, so rendering never
+ * runs on (or blocks) the greenhouse I/O threads. By default the server is bound to the loopback
+ * address, so the metrics are only reachable from the same machine.
+ */
+public class MetricsHttpServer {
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private final HttpServer httpServer;
+    private final ExecutorService executor;
+    private final long startTime = System.currentTimeMillis();
+
+    /**
+     * Create a metrics server bound to the loopback address. It does not accept requests until it
+     * is started.
+     *
+     * @param port The TCP port to listen on
+     * @throws IOException When the port can't be bound
+     */
+    public MetricsHttpServer(int port) throws IOException {
+        this(InetAddress.getLoopbackAddress(), port);
+    }
+
+    /**
+     * Create a metrics server. It does not accept requests until it is started.
+     *
+     * @param bindAddress The local address to listen on, the wildcard address for all interfaces
+     * @param port        The TCP port to listen on
+     * @throws IOException When the port can't be bound
+     */
+    public MetricsHttpServer(InetAddress bindAddress, int port) throws IOException {
+        httpServer = HttpServer.create(new InetSocketAddress(bindAddress, port), 0);
+        executor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "Metrics-Http");
+            thread.setDaemon(true);
+            return thread;
+        });
+        httpServer.setExecutor(executor);
+        httpServer.createContext("/", exchange -> respond(exchange, 404, "text/plain",
+                "Not found\n"));
+        httpServer.createContext("/metrics", exchange -> serve(exchange, "/metrics",
+                "text/plain; version=0.0.4", MetricsHttpServer::renderPrometheus));
+        httpServer.createContext("/health", exchange -> serve(exchange, "/health",
+                "application/json", this::renderHealth));
+    }
+
+    /**
+     * Start accepting requests.
+     */
+    public void start() {
+        httpServer.start();
+        Logger.info("Metrics available on http://"
+                + httpServer.getAddress().getAddress().getHostAddress() + ":" + getPort()
+                + "/metrics");
+    }
+
+    /**
+     * Get the port the server listens on.
+     *
+     * @return The bound TCP port
+     */
+    public int getPort() {
+        return httpServer.getAddress().getPort();
+    }
+
+    /**
+     * Stop accepting requests and release the port.
+     */
+    public void stop() {
+        httpServer.stop(0);
+        executor.shutdownNow();
+    }
+
+    /**
+     * Answer a GET of exactly the given path with the rendered body. A context also receives the
+     * paths below it, which are not found.
+     */
+    private static void serve(HttpExchange exchange, String path, String contentType,
+            Supplier<String> body) throws IOException {
+        if (!exchange.getRequestURI().getPath().equals(path)) {
+            respond(exchange, 404, "text/plain", "Not found\n");
+        } else if (!exchange.getRequestMethod().equals("GET")) {
+            exchange.getResponseHeaders().set("Allow", "GET");
+            respond(exchange, 405, "text/plain", "Method not allowed\n");
+        } else {
+            respond(exchange, 200, contentType, body.get());
+        }
+    }
+
+    private static void respond(HttpExchange exchange, int status, String contentType,
+            String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * Render all metrics in the Prometheus text exposition format.
+     *
+     * @return The rendered metrics
+     */
+    static String renderPrometheus() {
+        StringBuilder text = new StringBuilder();
+        for (MetricFamily<Counter> family : Metrics.getCounters()) {
+            appendType(text, family, "counter");
+            for (Map.Entry<String, Counter> entry : family.getMetrics().entrySet()) {
+                appendSample(text, family.getName(), family, entry.getKey(), null,
+                        entry.getValue().get());
+            }
+        }
+        for (MetricFamily<LongSupplier> family : Metrics.getGauges()) {
+            appendType(text, family, "gauge");
+            for (Map.Entry<String, LongSupplier> entry : family.getMetrics().entrySet()) {
+                appendSample(text, family.getName(), family, entry.getKey(), null,
+                        entry.getValue().getAsLong());
+            }
+        }
+        for (MetricFamily<Histogram> family : Metrics.getHistograms()) {
+            appendType(text, family, "summary");
+            for (Map.Entry<String, Histogram> entry : family.getMetrics().entrySet()) {
+                HistogramSnapshot snapshot = entry.getValue().snapshot();
+                for (double quantile : QUANTILES) {
+                    appendSample(text, family.getName(), family, entry.getKey(),
+                            String.valueOf(quantile), snapshot.getValueAtQuantile(quantile));
+                }
+                appendSample(text, family.getName() + "_sum", family, entry.getKey(), null,
+                        snapshot.getSum());
+                appendSample(text, family.getName() + "_count", family, entry.getKey(), null,
+                        snapshot.getCount());
+            }
+        }
+        return text.toString();
+    }
+
+    private static void appendType(StringBuilder text, MetricFamily<?> family, String type) {
+        text.append("# TYPE ").append(family.getName()).append(' ').append(type).append('\n');
+    }
+
+    private static void appendSample(StringBuilder text, String name, MetricFamily<?> family,
+                                     String labelValue, String quantile, long value) {
+        text.append(name);
+        boolean hasLabel = family.getLabelName() != null;
+        if (hasLabel || quantile != null) {
+            text.append('{');
+            if (hasLabel) {
+                text.append(family.getLabelName()).append("=\"").append(escape(labelValue))
+                        .append('"');
+            }
+            if (quantile != null) {
+                text.append(hasLabel ? "," : "").append("quantile=\"").append(quantile).append('"');
+            }
+            text.append('}');
+        }
+        text.append(' ').append(value).append('\n');
+    }
+
+    private static String escape(String labelValue) {
+        return labelValue.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    /**
+     * Render the health view: the uptime and the current value of every unlabelled gauge.
+     *
+     * @return The health view as a JSON object
+     */
+    private String renderHealth() {
+        StringBuilder json = new StringBuilder("{\"status\":\"UP\",\"uptimeSeconds\":")
+                .append((System.currentTimeMillis() - startTime) / 1000);
+        for (MetricFamily<LongSupplier> family : Metrics.getGauges()) {
+            LongSupplier gauge = family.getLabelName() == null ? family.getMetrics().get("") : null;
+            if (gauge != null) {
+                json.append(",\"").append(family.getName()).append("\":").append(gauge.getAsLong());
+            }
+        }
+        return json.append('}').toString();
+    }
+}
@@ -0,0 +1,92 @@
+package no.ntnu.tools.metrics;
+
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import no.ntnu.tools.Logger;
+
+/**
+ * Periodically dumps a snapshot of all the registered metrics to the log.
+ * The interval is read from the system property {@code greenhouse.metrics.interval}, in seconds.
+ * The default is 60 seconds, zero disables the reporter.
+ */
+public class MetricsReporter {
+    private static final long DEFAULT_INTERVAL_SECONDS = 60;
+    // Histograms named *_nanos are recorded in nanoseconds, reported in microseconds
+    private static final long NANOS_PER_MICRO = 1000;
+
+    private static ScheduledExecutorService scheduler;
+
+    /**
+     * Not allowed to create an instance of this class.
+     */
+    private MetricsReporter() {
+    }
+
+    /**
+     * Start the periodic reporting, unless it is disabled or already started.
+     */
+    public static synchronized void start() {
+        long interval = Long.getLong("greenhouse.metrics.interval", DEFAULT_INTERVAL_SECONDS);
+        if (interval <= 0 || scheduler != null) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "Metrics-Reporter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleAtFixedRate(() -> Logger.info(MetricsReporter::formatSnapshot),
+                interval, interval, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stop the periodic reporting.
+     */
+    public static synchronized void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+
+    /**
+     * Format the current value of all metrics, one metric per line.
+     *
+     * @return The formatted metrics
+     */
+    public static String formatSnapshot() {
+        StringBuilder report = new StringBuilder("--- Metrics ---");
+        for (MetricFamily<Counter> family : Metrics.getCounters()) {
+            for (Map.Entry<String, Counter> entry : family.getMetrics().entrySet()) {
+                appendName(report, family, entry.getKey()).append(" = ").append(entry.getValue().get());
+            }
+        }
+        for (MetricFamily<LongSupplier> family : Metrics.getGauges()) {
+            for (Map.Entry<String, LongSupplier> entry : family.getMetrics().entrySet()) {
+                appendName(report, family, entry.getKey()).append(" = ")
+                        .append(entry.getValue().getAsLong());
+            }
+        }
+        for (MetricFamily<Histogram> family : Metrics.getHistograms()) {
+            boolean isNanos = family.getName().endsWith("_nanos");
+            for (Map.Entry<String, Histogram> entry : family.getMetrics().entrySet()) {
+                appendName(report, family, entry.getKey()).append(isNanos ? " [us] " : " ")
+                        .append(entry.getValue().snapshot().format(isNanos ? NANOS_PER_MICRO : 1));
+            }
+        }
+        return report.toString();
+    }
+
+    private static StringBuilder appendName(StringBuilder report, MetricFamily<?> family,
+                                            String labelValue) {
+        report.append(System.lineSeparator()).append("  ").append(family.getName());
+        if (family.getLabelName() != null) {
+            report.append('{').append(family.getLabelName()).append("=\"").append(labelValue)
+                    .append("\"}");
+        }
+        return report;
+    }
+}
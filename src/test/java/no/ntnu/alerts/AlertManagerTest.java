@@ -0,0 +1,203 @@
+package no.ntnu.alerts;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import no.ntnu.communication.simulation.SimulationScheduler;
+import no.ntnu.greenhouse.Actuator;
+import no.ntnu.greenhouse.DeviceFactory;
+import no.ntnu.greenhouse.NodeRuntime;
+import no.ntnu.greenhouse.SensorActuatorNode;
+import no.ntnu.message.AlertDigestMessage;
+import no.ntnu.message.AlertEntry;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests of the alerts the alert manager finds and the digests it delivers.
+ */
+public class AlertManagerTest {
+  private static final long DIGEST_MILLIS = 1000;
+  private static final int NODE_ID = 1;
+
+  private SimulationScheduler scheduler;
+  private SensorActuatorNode node;
+  private Actuator fan;
+  private List<AlertDigestMessage> digests;
+
+  @Before
+  public void setUp() {
+    scheduler = new SimulationScheduler(1);
+    node = new SensorActuatorNode(NODE_ID, new NodeRuntime(scheduler));
+    fan = DeviceFactory.createFan(NODE_ID);
+    node.addActuator(fan);
+    digests = new ArrayList<>();
+    // The clock starts at the epoch, which the manager takes as a node never seen
+    scheduler.runFor(DIGEST_MILLIS);
+  }
+
+  @Test
+  public void lastingBreachIsReportedOnce() {
+    AlertManager alerts = manager(10, "too-hot: temperature above 30 hysteresis 2");
+    alerts.onSensorData(NODE_ID, "temperature=31.5 °C", 0);
+    alerts.onSensorData(NODE_ID, "temperature=33 °C", 0);
+    // Within the hysteresis the alert keeps firing
+    alerts.onSensorData(NODE_ID, "temperature=28.5 °C", 0);
+    assertEquals(1, alerts.getQueuedCount());
+    assertEquals(1, alerts.getFiringCount());
+    alerts.digest();
+    alerts.onSensorData(NODE_ID, "temperature=34 °C", 0);
+    alerts.digest();
+
+    assertEquals(1, digests.size());
+    AlertDigestMessage digest = digests.get(0);
+    assertFalse(digest.isSnapshot());
+    assertEquals(scheduler.currentTimeMillis(), digest.getTimestamp());
+    assertEquals(1, digest.getFiringCount());
+    assertEquals(0, digest.getPendingCount());
+    assertEquals(1, digest.getAlerts().size());
+    AlertEntry alert = digest.getAlerts().get(0);
+    assertEquals("too-hot:1", alert.getKey());
+    assertTrue(alert.isFiring());
+    assertEquals(31.5, alert.getValue(), 0);
+    assertEquals(scheduler.currentTimeMillis(), alert.getTimestamp());
+  }
+
+  @Test
+  public void alertIsResolvedPastTheHysteresis() {
+    AlertManager alerts = manager(10, "too-cold: temperature below 15 hysteresis 1");
+    alerts.onSensorData(NODE_ID, "temperature=14 °C", 0);
+    alerts.digest();
+    alerts.onSensorData(NODE_ID, "temperature=15.5 °C", 0);
+    alerts.digest();
+    alerts.onSensorData(NODE_ID, "temperature=16.25 °C", 0);
+    alerts.digest();
+
+    assertEquals(2, digests.size());
+    AlertEntry resolved = digests.get(1).getAlerts().get(0);
+    assertEquals("too-cold:1", resolved.getKey());
+    assertFalse(resolved.isFiring());
+    assertEquals(16.25, resolved.getValue(), 0);
+    assertEquals(0, digests.get(1).getFiringCount());
+  }
+
+  @Test
+  public void alertWhichFlapsBetweenDigestsIsNotDelivered() {
+    AlertManager alerts = manager(10, "too-hot: temperature above 30");
+    alerts.onSensorData(NODE_ID, "temperature=31 °C", 0);
+    alerts.onSensorData(NODE_ID, "temperature=29 °C", 0);
+    alerts.onSensorData(NODE_ID, "temperature=31 °C", 0);
+    alerts.onSensorData(NODE_ID, "temperature=29 °C", 0);
+    // Queued once, however often it changed
+    assertEquals(1, alerts.getQueuedCount());
+    alerts.digest();
+    assertTrue(digests.isEmpty());
+    assertEquals(0, alerts.getQueuedCount());
+    assertEquals(0, alerts.getFiringCount());
+  }
+
+  @Test
+  public void digestListsAtMostTheMaximumAndTheRestWait() {
+    AlertManager alerts = manager(2, "too-hot: temperature above 30");
+    for (int nodeId = 1; nodeId <= 5; nodeId++) {
+      alerts.onSensorData(nodeId, "temperature=35 °C", 0);
+    }
+    alerts.digest();
+    alerts.digest();
+    alerts.digest();
+    alerts.digest();
+
+    assertEquals(3, digests.size());
+    assertEquals(List.of("too-hot:1", "too-hot:2"), keys(digests.get(0)));
+    assertEquals(List.of("too-hot:3", "too-hot:4"), keys(digests.get(1)));
+    assertEquals(List.of("too-hot:5"), keys(digests.get(2)));
+    assertEquals(3, digests.get(0).getPendingCount());
+    assertEquals(1, digests.get(1).getPendingCount());
+    assertEquals(0, digests.get(2).getPendingCount());
+    for (AlertDigestMessage digest : digests) {
+      assertEquals(5, digest.getFiringCount());
+    }
+  }
+
+  @Test
+  public void silentNodeIsReportedUntilItSendsData() {
+    AlertManager alerts = manager(10, "node-down: silent 3s");
+    alerts.start();
+    alerts.onSensorData(NODE_ID, "temperature=20 °C", 0);
+    scheduler.runFor(2 * DIGEST_MILLIS);
+    assertTrue(digests.isEmpty());
+    scheduler.runFor(DIGEST_MILLIS);
+
+    assertEquals(1, digests.size());
+    AlertEntry silent = digests.get(0).getAlerts().get(0);
+    assertEquals("node-down:1", silent.getKey());
+    assertTrue(silent.isFiring());
+    assertEquals(3, silent.getValue(), 0);
+
+    scheduler.runFor(DIGEST_MILLIS / 2);
+    alerts.onSensorData(NODE_ID, "temperature=20 °C", 0);
+    scheduler.runFor(DIGEST_MILLIS);
+    assertEquals(2, digests.size());
+    AlertEntry back = digests.get(1).getAlerts().get(0);
+    assertFalse(back.isFiring());
+    assertEquals(3.5, back.getValue(), 0);
+    alerts.shutdown();
+  }
+
+  @Test
+  public void actuatorWhichDoesNotFollowItsCommandIsReportedStuck() {
+    AlertManager alerts = manager(10, "actuator-stuck: stuck 2s");
+    alerts.onActuatorCommand(NODE_ID, fan.getId(), true);
+    scheduler.runFor(DIGEST_MILLIS);
+    alerts.digest();
+    assertTrue(digests.isEmpty());
+    scheduler.runFor(DIGEST_MILLIS);
+    alerts.digest();
+
+    assertEquals(1, digests.size());
+    AlertEntry stuck = digests.get(0).getAlerts().get(0);
+    assertEquals("actuator-stuck:1/" + fan.getId(), stuck.getKey());
+    assertTrue(stuck.isFiring());
+    assertEquals(2, stuck.getValue(), 0);
+
+    alerts.onActuatorState(NODE_ID, fan.getId(), true);
+    alerts.digest();
+    assertEquals(2, digests.size());
+    assertFalse(digests.get(1).getAlerts().get(0).isFiring());
+    assertEquals(0, alerts.getFiringCount());
+  }
+
+  @Test
+  public void snapshotListsTheDeliveredFiringAlerts() {
+    AlertManager alerts = manager(10, "too-hot: temperature above 30");
+    alerts.onSensorData(1, "temperature=35 °C", 0);
+    alerts.onSensorData(2, "temperature=35 °C", 0);
+    alerts.digest();
+    alerts.onSensorData(2, "temperature=25 °C", 0);
+    alerts.onSensorData(3, "temperature=35 °C", 0);
+
+    AlertDigestMessage snapshot = alerts.snapshot();
+    assertTrue(snapshot.isSnapshot());
+    // The panels have not been told that node 2 resolved or node 3 fired yet
+    assertEquals(List.of("too-hot:1", "too-hot:2"), keys(snapshot));
+    assertEquals(2, snapshot.getFiringCount());
+    assertEquals(2, snapshot.getPendingCount());
+  }
+
+  private AlertManager manager(int maxAlertsPerDigest, String... rules) {
+    return new AlertManager(AlertRuleParser.parse(List.of(rules)), Map.of(NODE_ID, node),
+        digests::add, scheduler, DIGEST_MILLIS, maxAlertsPerDigest);
+  }
+
+  private static List<String> keys(AlertDigestMessage digest) {
+    List<String> keys = new ArrayList<>();
+    for (AlertEntry alert : digest.getAlerts()) {
+      keys.add(alert.getKey());
+    }
+    return keys;
+  }
+}
@@ -0,0 +1,93 @@
+package no.ntnu.alerts;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import org.junit.Test;
+
+/**
+ * Tests of reading alert rules from text.
+ */
+public class AlertRuleParserTest {
+
+  @Test
+  public void everyKindOfRuleIsParsed() {
+    List<AlertRule> rules = AlertRuleParser.parse(List.of(
+        "# Alerts",
+        "too-hot: temperature above 35 hysteresis 2",
+        "",
+        "too-dry: humidity below 20.5",
+        "node-down: silent 30s",
+        "actuator-stuck: stuck 500ms"));
+    assertEquals(4, rules.size());
+
+    AlertRule hot = rules.get(0);
+    assertEquals("too-hot", hot.getName());
+    assertEquals(AlertKind.THRESHOLD, hot.getKind());
+    assertEquals("temperature", hot.getSensorType());
+    assertTrue(hot.isAbove());
+    assertEquals(35, hot.getThreshold(), 0);
+    assertEquals(2, hot.getHysteresis(), 0);
+
+    AlertRule dry = rules.get(1);
+    assertFalse(dry.isAbove());
+    assertEquals(20.5, dry.getThreshold(), 0);
+    assertEquals(0, dry.getHysteresis(), 0);
+
+    AlertRule silent = rules.get(2);
+    assertEquals(AlertKind.SILENT, silent.getKind());
+    assertNull(silent.getSensorType());
+    assertEquals(30_000, silent.getDurationMillis());
+
+    AlertRule stuck = rules.get(3);
+    assertEquals(AlertKind.STUCK, stuck.getKind());
+    assertEquals(500, stuck.getDurationMillis());
+  }
+
+  @Test
+  public void namesWhichWouldSplitAMessageAreRejected() {
+    assertError("Rule name too,hot must not contain , or ; as they separate alerts in messages",
+        "too,hot: temperature above 35");
+    assertError("Rule name too;hot must not contain , or ; as they separate alerts in messages",
+        "too;hot: temperature above 35");
+    assertError("Rule name node, down must not contain , or ; as they separate alerts in "
+        + "messages", "node, down: silent 30s");
+  }
+
+  @Test
+  public void errorsNameTheLineAndTheProblem() {
+    assertError("Expected name: ...", "temperature above 35");
+    assertError("Expected above or below at the end", "too-hot: temperature");
+    assertError("Expected above or below, got over", "too-hot: temperature over 35");
+    assertError("Expected threshold at the end", "too-hot: temperature above");
+    assertError("Invalid number: hot", "too-hot: temperature above hot");
+    assertError("Expected hysteresis, got 2", "too-hot: temperature above 35 2");
+    assertError("Invalid number: x", "too-hot: temperature above 35 hysteresis x");
+    assertError("Hysteresis can't be negative", "too-hot: temperature above 35 hysteresis -1");
+    assertError("Unexpected now", "too-hot: temperature above 35 hysteresis 1 now");
+    assertError("Expected duration at the end", "node-down: silent");
+    assertError("Unexpected now", "node-down: silent 30s now");
+    assertError("Invalid duration: 0s", "node-down: silent 0s");
+    assertError("Invalid duration: 30", "node-down: silent 30");
+  }
+
+  @Test
+  public void errorOnALaterLineReportsThatLine() {
+    IllegalArgumentException e = assertThrows(IllegalArgumentException.class,
+        () -> AlertRuleParser.parse(List.of(
+            "# Alerts",
+            "node-down: silent 30s",
+            "bad;name: stuck 10s")));
+    assertTrue(e.getMessage(), e.getMessage().startsWith("Alert rule on line 3: Rule name"));
+  }
+
+  private static void assertError(String expected, String line) {
+    IllegalArgumentException e = assertThrows(IllegalArgumentException.class,
+        () -> AlertRuleParser.parse(List.of(line)));
+    assertEquals("Alert rule on line 1: " + expected, e.getMessage());
+  }
+}
@@ -0,0 +1,103 @@
+package no.ntnu.analytics;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicLong;
+import no.ntnu.listeners.server.SensorDataListener;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests of the windowed fleet and group quantiles.
+ */
+public class FleetQuantilesTest {
+  private static final long WINDOW = 60_000;
+  private static final double[] MEDIAN = {0.5};
+
+  private final AtomicLong clock = new AtomicLong(1_700_000_000_000L);
+  private FleetQuantiles quantiles;
+
+  @Before
+  public void setUp() {
+    quantiles = new FleetQuantiles(10, WINDOW, QuantileSketch.DEFAULT_RELATIVE_ACCURACY,
+        clock::get);
+  }
+
+  @Test
+  public void readingsAreGroupedByNodeRange() {
+    for (int node = 1; node <= 30; node++) {
+      quantiles.onSensorData(node, "temperature=" + node + " °C,humidity=50 %", clock.get());
+    }
+    assertEquals(0, quantiles.groupOf(1));
+    assertEquals(0, quantiles.groupOf(10));
+    assertEquals(1, quantiles.groupOf(11));
+    assertEquals(6, quantiles.getGroupCount());
+
+    QuantileResult group = quantiles.query("temperature", 1, new double[] {0, 1});
+    assertEquals(10, group.getCount());
+    assertArrayEquals(new double[] {11, 20}, group.getValues(),
+        20 * QuantileSketch.DEFAULT_RELATIVE_ACCURACY);
+    QuantileResult fleet = quantiles.query("temperature", FleetQuantiles.ALL_GROUPS, MEDIAN);
+    assertEquals(30, fleet.getCount());
+    assertEquals(15, fleet.getValues()[0], 15 * QuantileSketch.DEFAULT_RELATIVE_ACCURACY);
+    assertEquals(50, quantiles.query("humidity", 2, MEDIAN).getValues()[0], 0.5);
+  }
+
+  @Test
+  public void unknownTypeOrGroupHasNoReadings() {
+    quantiles.onSensorData(1, "temperature=20 °C", clock.get());
+    QuantileResult result = quantiles.query("light", FleetQuantiles.ALL_GROUPS, MEDIAN);
+    assertEquals(0, result.getCount());
+    assertTrue(Double.isNaN(result.getValues()[0]));
+    assertEquals(0, quantiles.query("temperature", 5, MEDIAN).getCount());
+    assertEquals(0, quantiles.query("temperature", -7, MEDIAN).getCount());
+  }
+
+  @Test
+  public void readingsLeaveTheWindow() {
+    quantiles.onSensorData(1, "temperature=20 °C", clock.get());
+    clock.addAndGet(WINDOW / 2);
+    quantiles.onSensorData(1, "temperature=30 °C", clock.get());
+    assertEquals(2, quantiles.query("temperature", 0, MEDIAN).getCount());
+
+    clock.addAndGet(WINDOW / 2 + 1);
+    QuantileResult result = quantiles.query("temperature", 0, new double[] {0});
+    assertEquals(1, result.getCount());
+    assertEquals(30, result.getValues()[0], 0);
+    clock.addAndGet(WINDOW);
+    assertEquals(0, quantiles.query("temperature", 0, MEDIAN).getCount());
+  }
+
+  @Test
+  public void readingsOutsideTheWindowAreDropped() {
+    long now = clock.get();
+    quantiles.onSensorData(1, "temperature=20 °C", now - 2 * WINDOW);
+    // A reading from the future must not take the place of a live slice
+    quantiles.onSensorData(1, "temperature=99 °C", now + WINDOW / 2);
+    quantiles.onSensorData(1, "temperature=21 °C", now);
+    QuantileResult result = quantiles.query("temperature", 0, new double[] {0, 1});
+    assertEquals(1, result.getCount());
+    assertArrayEquals(new double[] {21, 21}, result.getValues(), 0);
+
+    clock.addAndGet(WINDOW / 2);
+    assertEquals(1, quantiles.query("temperature", 0, MEDIAN).getCount());
+  }
+
+  @Test
+  public void invalidReadingsAreDropped() {
+    long now = clock.get();
+    quantiles.onSensorData(0, "temperature=20 °C", now);
+    quantiles.onSensorData(SensorDataListener.MAX_NODE_ID + 1, "temperature=20 °C", now);
+    quantiles.onSensorData(1, "temperature=NaN °C,humidity=Infinity %,light=bright", now);
+    quantiles.onSensorData(1, "no readings here", now);
+    assertEquals(0, quantiles.query("temperature", FleetQuantiles.ALL_GROUPS, MEDIAN).getCount());
+    assertEquals(0, quantiles.query("humidity", FleetQuantiles.ALL_GROUPS, MEDIAN).getCount());
+    assertEquals(0, quantiles.query("light", FleetQuantiles.ALL_GROUPS, MEDIAN).getCount());
+
+    quantiles.onSensorData(SensorDataListener.MAX_NODE_ID, "temperature=-5.5 °C", now);
+    assertEquals(-5.5, quantiles.query("temperature", FleetQuantiles.ALL_GROUPS, MEDIAN)
+        .getValues()[0], 0);
+  }
+}
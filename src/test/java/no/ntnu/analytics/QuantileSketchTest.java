@@ -0,0 +1,113 @@
+package no.ntnu.analytics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Test;
+
+/**
+ * Tests of the accuracy and the merging of {@link QuantileSketch}.
+ */
+public class QuantileSketchTest {
+  private static final double[] QUANTILES = {0, 0.01, 0.05, 0.25, 0.5, 0.75, 0.95, 0.99, 1};
+
+  @Test
+  public void emptySketchHasNoQuantiles() {
+    QuantileSketch sketch = new QuantileSketch();
+    assertEquals(0, sketch.getCount());
+    assertTrue(Double.isNaN(sketch.getQuantile(0.5)));
+  }
+
+  @Test
+  public void quantilesAreWithinTheRelativeAccuracy() {
+    Random random = new Random(11);
+    double[] values = new double[100_000];
+    for (int i = 0; i < values.length; i++) {
+      // Positive, negative and zero readings, over several orders of magnitude
+      values[i] = random.nextInt(20) == 0 ? 0
+          : random.nextGaussian() * Math.pow(10, random.nextInt(5) - 2);
+    }
+    QuantileSketch sketch = new QuantileSketch(0.01);
+    for (double value : values) {
+      sketch.add(value);
+    }
+    assertEquals(values.length, sketch.getCount());
+    assertAccurate(values, sketch, 0.01);
+  }
+
+  @Test
+  public void mergedSketchEqualsOneSketchOfAllValues() {
+    Random random = new Random(5);
+    QuantileSketch all = new QuantileSketch();
+    QuantileSketch first = new QuantileSketch();
+    QuantileSketch second = new QuantileSketch();
+    double[] values = new double[10_000];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = 15 + random.nextDouble() * 15;
+      all.add(values[i]);
+      (i % 3 == 0 ? first : second).add(values[i]);
+    }
+    first.merge(second);
+    first.merge(new QuantileSketch());
+    assertEquals(all.getCount(), first.getCount());
+    for (double quantile : QUANTILES) {
+      assertEquals(all.getQuantile(quantile), first.getQuantile(quantile), 0);
+    }
+    assertAccurate(values, first, QuantileSketch.DEFAULT_RELATIVE_ACCURACY);
+  }
+
+  @Test
+  public void quantilesStayWithinTheAddedValues() {
+    QuantileSketch sketch = new QuantileSketch();
+    sketch.add(-3.25);
+    sketch.add(7.5);
+    sketch.add(1);
+    for (double quantile : QUANTILES) {
+      double value = sketch.getQuantile(quantile);
+      assertTrue("Quantile " + quantile + " is " + value, value >= -3.25 && value <= 7.5);
+    }
+    assertEquals(-3.25, sketch.getQuantile(0), 3.25 * QuantileSketch.DEFAULT_RELATIVE_ACCURACY);
+    assertEquals(7.5, sketch.getQuantile(1), 7.5 * QuantileSketch.DEFAULT_RELATIVE_ACCURACY);
+    sketch.add(4);
+    sketch.add(4);
+    assertEquals(4, sketch.getQuantile(0.5), 4 * QuantileSketch.DEFAULT_RELATIVE_ACCURACY);
+  }
+
+  @Test
+  public void clearedSketchCanBeReused() {
+    QuantileSketch sketch = new QuantileSketch();
+    sketch.add(100);
+    sketch.clear();
+    assertEquals(0, sketch.getCount());
+    sketch.add(2);
+    assertEquals(2, sketch.getQuantile(0.5), 0);
+  }
+
+  @Test
+  public void invalidInputIsRejected() {
+    QuantileSketch sketch = new QuantileSketch();
+    assertThrows(IllegalArgumentException.class, () -> sketch.add(Double.NaN));
+    assertThrows(IllegalArgumentException.class, () -> sketch.add(Double.POSITIVE_INFINITY));
+    assertThrows(IllegalArgumentException.class, () -> sketch.getQuantile(1.5));
+    assertThrows(IllegalArgumentException.class,
+        () -> sketch.merge(new QuantileSketch(0.05)));
+    assertEquals(0, sketch.getCount());
+  }
+
+  /**
+   * Check every quantile of the sketch against the exact one, with the lower quantile
+   * definition the sketch uses.
+   */
+  private static void assertAccurate(double[] values, QuantileSketch sketch, double accuracy) {
+    double[] sorted = values.clone();
+    Arrays.sort(sorted);
+    for (double quantile : QUANTILES) {
+      double exact = sorted[(int) (quantile * (sorted.length - 1))];
+      double estimate = sketch.getQuantile(quantile);
+      assertEquals("Quantile " + quantile, exact, estimate, Math.abs(exact) * accuracy + 1e-12);
+    }
+  }
+}
@@ -0,0 +1,119 @@
+package no.ntnu.communication;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import no.ntnu.communication.simulation.SimulationScheduler;
+import no.ntnu.greenhouse.Actuator;
+import no.ntnu.greenhouse.DeviceFactory;
+import no.ntnu.greenhouse.NodeRuntime;
+import no.ntnu.greenhouse.SensorActuatorNode;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests of the order in which coalesced actuator commands are applied to the node.
+ */
+public class ActuatorCommandCoalescerTest {
+  private static final long WINDOW = 500;
+
+  private SimulationScheduler scheduler;
+  private RecordingNode node;
+  private Actuator actuator;
+  private ActuatorCommandCoalescer coalescer;
+
+  @Before
+  public void setUp() {
+    scheduler = new SimulationScheduler(1);
+    node = new RecordingNode(1, new NodeRuntime(scheduler));
+    actuator = DeviceFactory.createFan(node.getId());
+    node.addActuator(actuator);
+    node.addActuator(DeviceFactory.createHeater(node.getId()));
+    coalescer = new ActuatorCommandCoalescer(Map.of(node.getId(), node), 0, scheduler);
+  }
+
+  @Test
+  public void commandsWithoutWindowAreAppliedInOrder() {
+    submit(true);
+    submit(false);
+    submit(true);
+    scheduler.runUntilIdle(1000);
+    assertEquals(List.of(command(true), command(false), command(true)), node.applied);
+    assertTrue(actuator.isOn());
+    assertEquals(0, coalescer.getPendingCount());
+  }
+
+  @Test
+  public void commandsWithinTheWindowAreCoalescedToTheLastState() {
+    coalescer.setWindowMillis(WINDOW);
+    submit(true);
+    submit(false);
+    submit(true);
+    assertEquals(1, coalescer.getPendingCount());
+    scheduler.runFor(WINDOW / 2);
+    assertTrue(node.applied.isEmpty());
+    scheduler.runFor(WINDOW);
+    assertEquals(List.of(command(true)), node.applied);
+    assertTrue(actuator.isOn());
+    assertEquals(0, coalescer.getPendingCount());
+  }
+
+  @Test
+  public void turnOffAllGoesAfterAPendingCommand() {
+    coalescer.setWindowMillis(WINDOW);
+    submit(true);
+    // What the server does for TURN_OFF_ALL
+    for (Actuator each : node.getActuators()) {
+      coalescer.submit(node.getId(), each.getId(), false);
+    }
+    scheduler.runFor(2 * WINDOW);
+    // The turn-off replaced the pending turn-on, which is never applied
+    assertTrue(node.applied.contains(command(false)));
+    assertFalse(node.applied.contains(command(true)));
+    assertEquals(node.getActuators().size(), node.applied.size());
+    assertFalse(actuator.isOn());
+  }
+
+  @Test
+  public void commandWithoutWindowDiscardsAnOlderPendingCommand() {
+    coalescer.setWindowMillis(WINDOW);
+    submit(true);
+    coalescer.setWindowMillis(0);
+    submit(false);
+    submit(true);
+    scheduler.runFor(2 * WINDOW);
+    // The pending turn-on is older than both later commands, so it is never applied
+    assertEquals(List.of(command(false), command(true)), node.applied);
+    assertTrue(actuator.isOn());
+    assertEquals(0, coalescer.getPendingCount());
+  }
+
+  private void submit(boolean on) {
+    coalescer.submit(node.getId(), actuator.getId(), on);
+  }
+
+  private String command(boolean on) {
+    return actuator.getId() + "=" + on;
+  }
+
+  /**
+   * Remembers the commands applied to it, in the order the coalescer applies them.
+   */
+  private static class RecordingNode extends SensorActuatorNode {
+    private final List<String> applied = new ArrayList<>();
+
+    RecordingNode(int id, NodeRuntime runtime) {
+      super(id, runtime);
+    }
+
+    @Override
+    public void setActuator(int actuatorId, boolean on) {
+      applied.add(actuatorId + "=" + on);
+      super.setActuator(actuatorId, on);
+    }
+  }
+}
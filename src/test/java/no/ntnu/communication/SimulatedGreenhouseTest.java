@@ -0,0 +1,182 @@
+package no.ntnu.communication;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import no.ntnu.communication.simulation.SimulatedNetwork;
+import no.ntnu.communication.simulation.SimulationScheduler;
+import no.ntnu.controlpanel.ControlPanelLogic;
+import no.ntnu.controlpanel.SensorActuatorNodeInfo;
+import no.ntnu.greenhouse.Actuator;
+import no.ntnu.greenhouse.DeviceFactory;
+import no.ntnu.greenhouse.NodeRuntime;
+import no.ntnu.greenhouse.SensorActuatorNode;
+import no.ntnu.greenhouse.SensorReading;
+import no.ntnu.listeners.controlpanel.GreenhouseEventListener;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Runs the server, nodes and a control panel on the simulated network, in virtual time.
+ */
+public class SimulatedGreenhouseTest {
+  private static final int NODE_COUNT = 5;
+  private static final long SENSING_PERIOD = 1000;
+
+  private final Map<Integer, SensorActuatorNode> nodes = new HashMap<>();
+  private final List<SensorActuatorTcpClient> nodeClients = new ArrayList<>();
+  private final PanelRecorder panel = new PanelRecorder();
+  private SimulationScheduler scheduler;
+  private SimulatedNetwork network;
+  private TcpServer server;
+  private ControlPanelTcpClient panelClient;
+
+  @Before
+  public void setUp() {
+    scheduler = new SimulationScheduler(1);
+    network = new SimulatedNetwork(scheduler);
+    network.setLatency(1, 20);
+    server = new TcpServer(nodes, 0, network, scheduler);
+    server.setTraceSampleRate(0);
+    server.startServer();
+
+    ControlPanelLogic logic = new ControlPanelLogic();
+    logic.addListener(panel);
+    panelClient = new ControlPanelTcpClient(logic, network, "localhost", server.getPort());
+    logic.setCommunicationChannel(panelClient);
+    assertTrue(panelClient.open());
+
+    NodeRuntime runtime = new NodeRuntime(scheduler);
+    for (int i = 0; i < NODE_COUNT; i++) {
+      SensorActuatorNode node = DeviceFactory.createNode(runtime, 1, 1, 1, 2, 1);
+      node.setSensingPeriod(SENSING_PERIOD);
+      nodes.put(node.getId(), node);
+      SensorActuatorTcpClient client =
+          new SensorActuatorTcpClient(node, network, "localhost", server.getPort());
+      node.addSensorListener(client);
+      node.addActuatorListener(client);
+      nodeClients.add(client);
+      client.start();
+      node.start();
+    }
+  }
+
+  @After
+  public void tearDown() {
+    server.stopServer();
+  }
+
+  @Test
+  public void panelSeesEveryNodeAndItsReadings() {
+    scheduler.runFor(5 * SENSING_PERIOD);
+    assertEquals(nodes.keySet(), panel.addedNodes);
+    for (int nodeId : nodes.keySet()) {
+      assertTrue("Too few readings from node " + nodeId,
+          panel.readingCounts.getOrDefault(nodeId, 0) >= 3);
+    }
+  }
+
+  @Test
+  public void actuatorCommandReachesTheNodeAndIsReportedBack() {
+    scheduler.runFor(2 * SENSING_PERIOD);
+    SensorActuatorNode node = nodes.values().iterator().next();
+    Actuator actuator = node.getActuators().iterator().next();
+    boolean wanted = !actuator.isOn();
+
+    panelClient.sendActuatorChange(node.getId(), actuator.getId(), wanted);
+    scheduler.runFor(TcpServer.DEFAULT_COMMAND_COALESCING_WINDOW + 200);
+    assertEquals(wanted, actuator.isOn());
+    String change = node.getId() + "/" + actuator.getId() + "=" + wanted;
+    assertTrue(panel.actuatorChanges.contains(change));
+  }
+
+  @Test
+  public void clientsRecoverAfterTheNetworkDrops() {
+    scheduler.runFor(2 * SENSING_PERIOD);
+    network.disconnectAll();
+    scheduler.runFor(100);
+    assertEquals(0, network.getOpenConnectionCount());
+
+    panel.readingCounts.clear();
+    panel.addedNodes.clear();
+    for (SensorActuatorTcpClient client : nodeClients) {
+      client.start();
+    }
+    assertTrue(panelClient.open());
+    scheduler.runFor(5 * SENSING_PERIOD);
+    assertEquals(nodes.keySet(), panel.addedNodes);
+    assertEquals(NODE_COUNT, panel.readingCounts.size());
+    assertEquals(2 * (NODE_COUNT + 1), network.getOpenConnectionCount());
+  }
+
+  @Test
+  public void historyQueryEndsWhenTheServerHasNoHistory() {
+    scheduler.runFor(SENSING_PERIOD);
+    List<String> chunks = new ArrayList<>();
+    assertTrue(panelClient.queryHistory(1, 0, 0, Long.MAX_VALUE, "auto",
+        (resolution, points, last) -> chunks.add(resolution + "/" + points.size() + "/" + last)));
+    scheduler.runFor(200);
+    assertEquals(List.of("raw/0/true"), chunks);
+  }
+
+  @Test
+  public void runningHistoryQueryEndsWhenTheConnectionIsLost() {
+    scheduler.runFor(SENSING_PERIOD);
+    network.setLatency(500, 500);
+    List<Boolean> chunks = new ArrayList<>();
+    assertTrue(panelClient.queryHistory(1, 0, 0, Long.MAX_VALUE, "raw",
+        (resolution, points, last) -> chunks.add(last)));
+    network.disconnectAll();
+    scheduler.runFor(2000);
+    assertEquals(List.of(true), chunks);
+    assertFalse(panelClient.queryHistory(1, 0, 0, Long.MAX_VALUE, "raw",
+        (resolution, points, last) -> chunks.add(last)));
+  }
+
+  @Test
+  public void percentileQueryIsAnsweredWhenTheServerHasNoPercentiles() {
+    scheduler.runFor(SENSING_PERIOD);
+    List<Long> counts = new ArrayList<>();
+    assertTrue(panelClient.queryPercentiles("temperature", -1, new double[] {0.5},
+        (count, quantiles, values) -> counts.add(count)));
+    scheduler.runFor(200);
+    assertEquals(List.of(0L), counts);
+  }
+
+  /**
+   * Remembers what the control panel is told.
+   */
+  private static class PanelRecorder implements GreenhouseEventListener {
+    private final Set<Integer> addedNodes = new HashSet<>();
+    private final Map<Integer, Integer> readingCounts = new HashMap<>();
+    private final List<String> actuatorChanges = new ArrayList<>();
+
+    @Override
+    public void onNodeAdded(SensorActuatorNodeInfo nodeInfo) {
+      addedNodes.add(nodeInfo.getId());
+    }
+
+    @Override
+    public void onNodeRemoved(int nodeId) {
+      addedNodes.remove(nodeId);
+    }
+
+    @Override
+    public void onSensorData(int nodeId, List<SensorReading> sensors) {
+      readingCounts.merge(nodeId, 1, Integer::sum);
+    }
+
+    @Override
+    public void onActuatorStateChanged(int nodeId, int actuatorId, boolean isOn) {
+      actuatorChanges.add(nodeId + "/" + actuatorId + "=" + isOn);
+    }
+  }
+}
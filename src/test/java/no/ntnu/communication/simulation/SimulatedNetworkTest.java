@@ -0,0 +1,205 @@
+package no.ntnu.communication.simulation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.util.ArrayList;
+import java.util.List;
+import no.ntnu.communication.transport.Connection;
+import no.ntnu.communication.transport.ConnectionListener;
+import no.ntnu.communication.transport.ServerEndpoint;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests of the in-memory network and its virtual clock.
+ */
+public class SimulatedNetworkTest {
+  private SimulationScheduler scheduler;
+  private SimulatedNetwork network;
+  private final List<Connection> accepted = new ArrayList<>();
+  private final RecordingListener serverSide = new RecordingListener();
+
+  @Before
+  public void setUp() {
+    scheduler = new SimulationScheduler(42);
+    network = new SimulatedNetwork(scheduler);
+  }
+
+  private ServerEndpoint listen() throws IOException {
+    return network.listen(0, connection -> {
+      accepted.add(connection);
+      connection.start(serverSide);
+    });
+  }
+
+  @Test
+  public void linesArriveInOrderAfterTheLatency() throws IOException {
+    network.setLatency(5, 5);
+    ServerEndpoint endpoint = listen();
+    Connection client = network.connect("localhost", endpoint.getPort());
+    client.start(new RecordingListener());
+    for (int i = 0; i < 100; i++) {
+      assertTrue(client.send("line " + i));
+    }
+    scheduler.runFor(4);
+    assertTrue(serverSide.lines.isEmpty());
+    scheduler.runFor(10);
+    assertEquals(1, accepted.size());
+    assertEquals(100, serverSide.lines.size());
+    for (int i = 0; i < 100; i++) {
+      assertEquals("line " + i, serverSide.lines.get(i));
+    }
+    assertEquals(100, network.getDeliveredCount());
+    assertEquals(0, client.getQueuedCount());
+  }
+
+  @Test
+  public void linesAreDeliveredInBothDirections() throws IOException {
+    ServerEndpoint endpoint = listen();
+    Connection client = network.connect("localhost", endpoint.getPort());
+    RecordingListener clientSide = new RecordingListener();
+    client.start(clientSide);
+    client.send("ping");
+    scheduler.runUntilIdle(1000);
+    accepted.get(0).send("pong");
+    scheduler.runUntilIdle(1000);
+    assertEquals(List.of("ping"), serverSide.lines);
+    assertEquals(List.of("pong"), clientSide.lines);
+  }
+
+  @Test
+  public void connectingToAPortNobodyListensOnIsRefused() {
+    assertThrows(ConnectException.class, () -> network.connect("localhost", 1234));
+  }
+
+  @Test
+  public void closedEndpointRefusesConnections() throws IOException {
+    ServerEndpoint endpoint = listen();
+    endpoint.close();
+    assertThrows(ConnectException.class, () -> network.connect("localhost", endpoint.getPort()));
+  }
+
+  @Test
+  public void lostLinesAreCountedAndNeverDelivered() throws IOException {
+    network.setLossRate(1.0);
+    ServerEndpoint endpoint = listen();
+    Connection client = network.connect("localhost", endpoint.getPort());
+    client.start(new RecordingListener());
+    for (int i = 0; i < 10; i++) {
+      client.send("line " + i);
+    }
+    scheduler.runUntilIdle(1000);
+    // Connection setup is never lost
+    assertEquals(1, accepted.size());
+    assertTrue(serverSide.lines.isEmpty());
+    assertEquals(10, network.getLostCount());
+    assertEquals(0, network.getDeliveredCount());
+  }
+
+  @Test
+  public void disconnectAllClosesBothEnds() throws IOException {
+    ServerEndpoint endpoint = listen();
+    Connection client = network.connect("localhost", endpoint.getPort());
+    RecordingListener clientSide = new RecordingListener();
+    client.start(clientSide);
+    scheduler.runUntilIdle(1000);
+    assertEquals(2, network.getOpenConnectionCount());
+
+    network.disconnectAll();
+    scheduler.runUntilIdle(1000);
+    assertEquals(1, clientSide.closedCount);
+    assertEquals(1, serverSide.closedCount);
+    assertEquals(0, network.getOpenConnectionCount());
+    assertFalse(client.send("too late"));
+  }
+
+  @Test
+  public void closeIsReportedToThePeerOnce() throws IOException {
+    ServerEndpoint endpoint = listen();
+    Connection client = network.connect("localhost", endpoint.getPort());
+    RecordingListener clientSide = new RecordingListener();
+    client.start(clientSide);
+    scheduler.runUntilIdle(1000);
+    client.close();
+    client.close();
+    accepted.get(0).close();
+    scheduler.runUntilIdle(1000);
+    assertEquals(1, clientSide.closedCount);
+    assertEquals(1, serverSide.closedCount);
+  }
+
+  @Test
+  public void linesSentBeforeStartAreBuffered() throws IOException {
+    List<Connection> pending = new ArrayList<>();
+    ServerEndpoint endpoint = network.listen(0, pending::add);
+    Connection client = network.connect("localhost", endpoint.getPort());
+    client.start(new RecordingListener());
+    scheduler.runUntilIdle(1000);
+    client.send("early");
+    scheduler.runUntilIdle(1000);
+    pending.get(0).start(serverSide);
+    assertEquals(List.of("early"), serverSide.lines);
+  }
+
+  @Test
+  public void sameSeedGivesTheSameRun() throws IOException {
+    List<String> first = reorderedRun(7);
+    assertEquals(first, reorderedRun(7));
+    assertNotEquals(first, reorderedRun(8));
+  }
+
+  @Test
+  public void virtualTimeOnlyAdvancesWhenRun() {
+    List<Long> times = new ArrayList<>();
+    scheduler.scheduleAtFixedRate(() -> times.add(scheduler.currentTimeMillis()), 10, 100);
+    scheduler.runFor(350);
+    assertEquals(List.of(10L, 110L, 210L, 310L), times);
+    assertEquals(350, scheduler.currentTimeMillis());
+  }
+
+  /**
+   * Send lines over a network with random latency and reordering.
+   *
+   * @return the lines in the order they arrived
+   */
+  private List<String> reorderedRun(long seed) throws IOException {
+    SimulationScheduler runScheduler = new SimulationScheduler(seed);
+    SimulatedNetwork runNetwork = new SimulatedNetwork(runScheduler);
+    runNetwork.setLatency(1, 50);
+    runNetwork.setReorderRate(0.5);
+    RecordingListener receiver = new RecordingListener();
+    ServerEndpoint endpoint = runNetwork.listen(0, connection -> connection.start(receiver));
+    Connection client = runNetwork.connect("localhost", endpoint.getPort());
+    client.start(new RecordingListener());
+    for (int i = 0; i < 50; i++) {
+      client.send(Integer.toString(i));
+    }
+    runScheduler.runUntilIdle(10_000);
+    assertEquals(50, receiver.lines.size());
+    return receiver.lines;
+  }
+
+  /**
+   * Remembers what arrives on a connection.
+   */
+  private static class RecordingListener implements ConnectionListener {
+    private final List<String> lines = new ArrayList<>();
+    private int closedCount;
+
+    @Override
+    public void onLine(String line) {
+      lines.add(line);
+    }
+
+    @Override
+    public void onClosed() {
+      closedCount++;
+    }
+  }
+}
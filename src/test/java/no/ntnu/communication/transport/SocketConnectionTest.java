@@ -0,0 +1,91 @@
+package no.ntnu.communication.transport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests of the lines a socket connection writes to its peer.
+ */
+public class SocketConnectionTest {
+  private static final int LINES = 100;
+
+  private ServerSocket serverSocket;
+  private Socket peer;
+  private SocketConnection connection;
+
+  @Before
+  public void setUp() throws IOException {
+    serverSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+    peer = new Socket(serverSocket.getInetAddress(), serverSocket.getLocalPort());
+    connection = new SocketConnection(serverSocket.accept(), "Test");
+    connection.start(new ConnectionListener() {
+      @Override
+      public void onLine(String line) {
+        // The peer sends nothing
+      }
+
+      @Override
+      public void onClosed() {
+        // Closed by the test
+      }
+    });
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    connection.close();
+    peer.close();
+    serverSocket.close();
+  }
+
+  @Test
+  public void stampedLinesReportTheTimeTheyWereWrittenWith() throws Exception {
+    List<String> reported = new ArrayList<>();
+    CountDownLatch written = new CountDownLatch(LINES);
+    for (int i = 0; i < LINES; i++) {
+      String prefix = "LINE;" + i + ";";
+      assertTrue(connection.sendStamped(prefix, time -> {
+        // Called on the writer thread, one line at a time
+        synchronized (reported) {
+          reported.add(prefix + time);
+        }
+        written.countDown();
+      }));
+    }
+    assertTrue(written.await(10, TimeUnit.SECONDS));
+
+    BufferedReader input = new BufferedReader(new InputStreamReader(peer.getInputStream(),
+        StandardCharsets.UTF_8));
+    List<String> received = new ArrayList<>();
+    for (int i = 0; i < LINES; i++) {
+      received.add(input.readLine());
+    }
+    synchronized (reported) {
+      assertEquals(received, reported);
+    }
+  }
+
+  @Test
+  public void stampedLineIsNotReportedWhenDropped() {
+    connection.close();
+    assertFalse(connection.sendStamped("LINE;", time -> {
+      throw new AssertionError("A dropped line was reported");
+    }));
+  }
+}
@@ -0,0 +1,99 @@
+package no.ntnu.greenhouse;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Tests of the mailbox which makes a node a single-writer actor.
+ */
+public class NodeMailboxTest {
+  private static final int PRODUCERS = 8;
+  private static final int MESSAGES = 20_000;
+
+  // Several threads, so two drains would really run at the same time
+  private final ExecutorService executor = Executors.newFixedThreadPool(4);
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void messagesOfConcurrentProducersAreProcessedOnceInOrder() throws Exception {
+    NodeMailbox mailbox = new NodeMailbox(executor);
+    AtomicInteger draining = new AtomicInteger();
+    AtomicInteger overlaps = new AtomicInteger();
+    int[] lastSeen = new int[PRODUCERS];
+    int[] outOfOrder = new int[1];
+    CountDownLatch processed = new CountDownLatch(PRODUCERS * MESSAGES);
+
+    List<Thread> producers = new ArrayList<>();
+    CountDownLatch go = new CountDownLatch(1);
+    for (int p = 0; p < PRODUCERS; p++) {
+      int producer = p;
+      Thread thread = new Thread(() -> {
+        awaitQuietly(go);
+        for (int i = 1; i <= MESSAGES; i++) {
+          int sequence = i;
+          mailbox.post(() -> {
+            if (draining.incrementAndGet() != 1) {
+              overlaps.incrementAndGet();
+            }
+            // Only the drain touches these, like the state of a node
+            if (lastSeen[producer] != sequence - 1) {
+              outOfOrder[0]++;
+            }
+            lastSeen[producer] = sequence;
+            draining.decrementAndGet();
+            processed.countDown();
+          });
+        }
+      });
+      producers.add(thread);
+      thread.start();
+    }
+    go.countDown();
+    for (Thread thread : producers) {
+      thread.join();
+    }
+
+    assertTrue("Messages were lost", processed.await(10, TimeUnit.SECONDS));
+    CountDownLatch drained = new CountDownLatch(1);
+    mailbox.post(drained::countDown);
+    assertTrue(drained.await(10, TimeUnit.SECONDS));
+    assertEquals(0, overlaps.get());
+    assertEquals(0, outOfOrder[0]);
+    for (int producer = 0; producer < PRODUCERS; producer++) {
+      assertEquals(MESSAGES, lastSeen[producer]);
+    }
+  }
+
+  @Test
+  public void failingMessageDoesNotStopTheMailbox() throws Exception {
+    NodeMailbox mailbox = new NodeMailbox(executor);
+    CountDownLatch processed = new CountDownLatch(1);
+    mailbox.post(() -> {
+      throw new IllegalStateException("Expected by the test");
+    });
+    mailbox.post(processed::countDown);
+    assertTrue(processed.await(10, TimeUnit.SECONDS));
+  }
+
+  private static void awaitQuietly(CountDownLatch latch) {
+    try {
+      latch.await();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
@@ -0,0 +1,88 @@
+package no.ntnu.greenhouse;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests of nodes running on the threads of a node runtime.
+ */
+public class NodeRuntimeTest {
+  private static final long TIMEOUT = 10_000;
+
+  private NodeRuntime runtime;
+
+  @Before
+  public void setUp() {
+    runtime = new NodeRuntime("Test-Runtime");
+  }
+
+  @After
+  public void tearDown() {
+    runtime.shutdown();
+  }
+
+  @Test
+  public void nodeStopsTickingOnceIdleAfterStop() throws Exception {
+    SensorActuatorNode node = DeviceFactory.createNode(runtime, 1, 1, 0, 0, 0);
+    node.setSensingPeriod(5);
+    AtomicInteger ticks = new AtomicInteger();
+    CountDownLatch ticking = new CountDownLatch(3);
+    node.addSensorListener(sensors -> {
+      ticks.incrementAndGet();
+      ticking.countDown();
+    });
+
+    node.start();
+    assertTrue(node.awaitIdle(TIMEOUT));
+    assertTrue(node.isRunning());
+    assertTrue(ticking.await(TIMEOUT, TimeUnit.MILLISECONDS));
+
+    node.stop();
+    assertTrue(node.awaitIdle(TIMEOUT));
+    assertFalse(node.isRunning());
+    int stoppedAt = ticks.get();
+    Thread.sleep(50);
+    assertTrue(node.awaitIdle(TIMEOUT));
+    assertEquals(stoppedAt, ticks.get());
+  }
+
+  @Test
+  public void commandsFromManyThreadsAreAllApplied() throws Exception {
+    SensorActuatorNode node = DeviceFactory.createNode(runtime, 1, 0, 0, 1, 0);
+    Actuator fan = node.getActuators().iterator().next();
+    AtomicInteger changes = new AtomicInteger();
+    node.addActuatorListener((nodeId, actuator) -> changes.incrementAndGet());
+    int threads = 8;
+    int togglesPerThread = 1001;
+
+    List<Thread> producers = new ArrayList<>();
+    for (int t = 0; t < threads; t++) {
+      Thread thread = new Thread(() -> {
+        for (int i = 0; i < togglesPerThread; i++) {
+          node.toggleActuator(fan.getId());
+        }
+      });
+      producers.add(thread);
+      thread.start();
+    }
+    for (Thread thread : producers) {
+      thread.join();
+    }
+    assertTrue(node.awaitIdle(TIMEOUT));
+    // Each toggle posts its impact and notification, which the second wait covers
+    assertTrue(node.awaitIdle(TIMEOUT));
+    // Every toggle was applied exactly once: an even number of toggles leaves the fan off
+    assertFalse(fan.isOn());
+    assertEquals(threads * togglesPerThread, changes.get());
+  }
+}
@@ -0,0 +1,117 @@
+package no.ntnu.history;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import org.junit.Test;
+
+/**
+ * Round trips of {@link ChunkEncoder} and {@link ChunkDecoder}.
+ */
+public class ChunkEncoderTest {
+  private static final long START = 1_700_000_000_000L;
+
+  @Test
+  public void emptyChunkHasNoPoints() {
+    ChunkDecoder decoder = new ChunkDecoder(new ChunkEncoder().toByteArray());
+    assertEquals(0, decoder.getCount());
+    assertFalse(decoder.next());
+  }
+
+  @Test
+  public void periodicReadingsRoundTripInFewBytes() {
+    long[] timestamps = new long[1000];
+    double[] values = new double[timestamps.length];
+    for (int i = 0; i < timestamps.length; i++) {
+      timestamps[i] = START + i * 5000L;
+      values[i] = 20 + (i % 7) * 0.25;
+    }
+    ChunkEncoder encoder = encode(timestamps, values);
+    assertRoundTrip(encoder.toByteArray(), timestamps, values);
+    assertTrue("Chunk of " + encoder.getSizeInBytes() + " bytes",
+        encoder.getSizeInBytes() < timestamps.length * 3);
+  }
+
+  @Test
+  public void irregularTimestampsAndLargeChangesRoundTrip() {
+    Random random = new Random(3);
+    long[] timestamps = new long[2000];
+    double[] values = new double[timestamps.length];
+    long timestamp = START;
+    for (int i = 0; i < timestamps.length; i++) {
+      // Mostly small jitter, sometimes gaps of days, and sometimes the same timestamp again
+      int kind = random.nextInt(10);
+      if (kind == 0) {
+        timestamp += random.nextInt(30) * 86_400_000L;
+      } else if (kind > 1) {
+        timestamp += 4900 + random.nextInt(200);
+      }
+      timestamps[i] = timestamp;
+      values[i] = (random.nextInt(2_000_000) - 1_000_000) / 100.0;
+    }
+    assertRoundTrip(encode(timestamps, values).toByteArray(), timestamps, values);
+  }
+
+  @Test
+  public void valuesWhichAreNotFixedPointKeepEveryBit() {
+    double[] values = {1.0 / 3, 21.5, Math.PI, -0.0, 0.0, Double.NaN, 1e300, -1e-300, 21.55,
+        Double.MAX_VALUE, Double.MIN_VALUE, 12.345, 1e13, -1e13, 99999999999.99};
+    long[] timestamps = new long[values.length];
+    for (int i = 0; i < values.length; i++) {
+      timestamps[i] = START + i * 1000L;
+    }
+    assertRoundTrip(encode(timestamps, values).toByteArray(), timestamps, values);
+  }
+
+  @Test
+  public void decoderReadsAChunkInsideABuffer() {
+    long[] timestamps = {START, START + 10, START + 30};
+    double[] values = {1.5, 1.75, -2};
+    byte[] chunk = encode(timestamps, values).toByteArray();
+    ByteBuffer buffer = ByteBuffer.allocate(chunk.length + 20);
+    buffer.position(13);
+    buffer.put(chunk);
+    ChunkDecoder decoder = new ChunkDecoder(buffer, 13);
+    assertEquals(3, decoder.getCount());
+    for (int i = 0; i < timestamps.length; i++) {
+      assertTrue(decoder.next());
+      assertEquals(timestamps[i], decoder.getTimestamp());
+      assertEquals(values[i], decoder.getValue(), 0);
+    }
+    assertFalse(decoder.next());
+  }
+
+  @Test
+  public void fixedPointConversionOnlyAcceptsTwoDecimals() {
+    assertEquals(2150, ChunkEncoder.toFixedPoint(21.5));
+    assertEquals(-1, ChunkEncoder.toFixedPoint(-0.01));
+    assertEquals(ChunkEncoder.NOT_FIXED_POINT, ChunkEncoder.toFixedPoint(0.001));
+    assertEquals(ChunkEncoder.NOT_FIXED_POINT, ChunkEncoder.toFixedPoint(Double.NaN));
+    assertEquals(ChunkEncoder.NOT_FIXED_POINT,
+        ChunkEncoder.toFixedPoint(Double.POSITIVE_INFINITY));
+  }
+
+  private static ChunkEncoder encode(long[] timestamps, double[] values) {
+    ChunkEncoder encoder = new ChunkEncoder(timestamps.length);
+    for (int i = 0; i < timestamps.length; i++) {
+      encoder.add(timestamps[i], values[i]);
+    }
+    assertEquals(timestamps.length, encoder.getCount());
+    return encoder;
+  }
+
+  private static void assertRoundTrip(byte[] chunk, long[] timestamps, double[] values) {
+    ChunkDecoder decoder = new ChunkDecoder(chunk);
+    assertEquals(timestamps.length, decoder.getCount());
+    for (int i = 0; i < timestamps.length; i++) {
+      assertTrue(decoder.next());
+      assertEquals("Timestamp " + i, timestamps[i], decoder.getTimestamp());
+      assertEquals("Value " + i, Double.doubleToRawLongBits(values[i]),
+          Double.doubleToRawLongBits(decoder.getValue()));
+    }
+    assertFalse(decoder.next());
+  }
+}
@@ -0,0 +1,158 @@
+package no.ntnu.history;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests of compressed segments, merged blocks and how the store cleans up after an interrupted
+ * compaction.
+ */
+public class CompressedSegmentTest {
+  private static final long START = 1_700_000_000_000L;
+  private static final int CAPACITY = 1000;
+  private static final int NODES = 3;
+  private static final int SENSORS = 2;
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void compressedSegmentAnswersLikeTheRawOne() throws IOException {
+    Path directory = folder.getRoot().toPath();
+    HistorySegment raw = rawSegment(directory, 1);
+    CompressedSegment compressed = CompressedSegment.compress(raw);
+    assertEquals(CompressedSegment.fileName(1), compressed.getFile().getFileName().toString());
+    assertEquals(raw.getCount(), compressed.getCount());
+    assertEquals(raw.getMinTimestamp(), compressed.getMinTimestamp());
+    assertEquals(raw.getMaxTimestamp(), compressed.getMaxTimestamp());
+    for (int node = 1; node <= NODES; node++) {
+      for (int sensor = 0; sensor < SENSORS; sensor++) {
+        assertEquals(points(raw, node, sensor, START, Long.MAX_VALUE),
+            points(compressed, node, sensor, START, Long.MAX_VALUE));
+        assertEquals(points(raw, node, sensor, START + 100_000, START + 200_000),
+            points(compressed, node, sensor, START + 100_000, START + 200_000));
+      }
+    }
+    assertTrue(points(compressed, NODES + 1, 0, START, Long.MAX_VALUE).isEmpty());
+  }
+
+  @Test
+  public void mergedBlockHoldsEveryPointOfItsInputsInOrder() throws IOException {
+    Path directory = folder.getRoot().toPath();
+    List<CompressedSegment> inputs = new ArrayList<>();
+    for (long sequence = 1; sequence <= 3; sequence++) {
+      inputs.add(CompressedSegment.compress(rawSegment(directory, sequence)));
+    }
+    CompressedSegment block = CompressedSegment.merge(inputs, directory);
+    assertEquals(CompressedSegment.fileName(1, 3), block.getFile().getFileName().toString());
+    assertEquals(1, block.getFirstSequence());
+    assertEquals(3, block.getSequence());
+    assertEquals(3L * CAPACITY, block.getCount());
+    assertEquals(inputs.get(0).getMinTimestamp(), block.getMinTimestamp());
+    assertEquals(inputs.get(2).getMaxTimestamp(), block.getMaxTimestamp());
+    for (int node = 1; node <= NODES; node++) {
+      for (int sensor = 0; sensor < SENSORS; sensor++) {
+        List<String> expected = new ArrayList<>();
+        for (CompressedSegment input : inputs) {
+          expected.addAll(points(input, node, sensor, START, Long.MAX_VALUE));
+        }
+        assertEquals(expected, points(block, node, sensor, START, Long.MAX_VALUE));
+      }
+    }
+    assertFalse(Files.exists(directory.resolve(CompressedSegment.fileName(1, 3) + ".tmp")));
+  }
+
+  @Test
+  public void reopenDeletesTheInputsOfAnInterruptedMerge() throws IOException {
+    Path directory = folder.getRoot().toPath();
+    List<CompressedSegment> inputs = new ArrayList<>();
+    List<String> expected = new ArrayList<>();
+    for (long sequence = 1; sequence <= 2; sequence++) {
+      HistorySegment raw = rawSegment(directory, sequence);
+      expected.addAll(points(raw, 2, 1, START, Long.MAX_VALUE));
+      inputs.add(CompressedSegment.compress(raw));
+    }
+    CompressedSegment.merge(inputs, directory);
+    // As if the store stopped before it deleted the raw files and the inputs of the block
+    assertEquals(List.of(HistorySegment.fileName(1), CompressedSegment.fileName(1),
+        HistorySegment.fileName(2), CompressedSegment.fileName(2),
+        CompressedSegment.fileName(1, 2)).stream().sorted().collect(Collectors.toList()),
+        segmentFiles(directory));
+
+    SensorHistoryStore store = new SensorHistoryStore(directory, CAPACITY);
+    try {
+      assertEquals(List.of(CompressedSegment.fileName(1, 2), HistorySegment.fileName(3)),
+          segmentFiles(directory));
+      assertEquals(2, store.getSegmentCount());
+      assertEquals(2L * CAPACITY, store.getRecordCount());
+      List<String> stored = new ArrayList<>();
+      store.query(2, 1, START, Long.MAX_VALUE,
+          (timestamp, value) -> stored.add(timestamp + "=" + value));
+      assertEquals(expected, stored);
+    } finally {
+      store.close();
+    }
+  }
+
+  @Test
+  public void reopenDeletesRawFilesWhichWereAlreadyCompressed() throws IOException {
+    Path directory = folder.getRoot().toPath();
+    CompressedSegment.compress(rawSegment(directory, 1));
+    SensorHistoryStore store = new SensorHistoryStore(directory, CAPACITY);
+    try {
+      assertEquals(List.of(CompressedSegment.fileName(1), HistorySegment.fileName(2)),
+          segmentFiles(directory));
+      assertEquals(CAPACITY, store.getRecordCount());
+    } finally {
+      store.close();
+    }
+  }
+
+  /**
+   * Create a full, sealed raw segment with readings of every sensor, five seconds apart.
+   */
+  private static HistorySegment rawSegment(Path directory, long sequence) throws IOException {
+    HistorySegment segment = HistorySegment.create(directory, sequence, CAPACITY);
+    long first = START + (sequence - 1) * CAPACITY * 5000L;
+    for (int i = 0; i < CAPACITY; i++) {
+      long slot = segment.reserve();
+      int node = 1 + i % NODES;
+      int sensor = i / NODES % SENSORS;
+      segment.write(slot, first + i * 5000L, node, sensor, 20 + (i % 50) * 0.1 + sequence);
+    }
+    segment.seal();
+    return segment;
+  }
+
+  private static List<String> points(StoredSegment segment, int node, int sensor, long from,
+      long to) {
+    List<String> points = new ArrayList<>();
+    segment.scan(node, sensor, from, to,
+        (timestamp, value) -> points.add(timestamp + "=" + value));
+    return points;
+  }
+
+  /**
+   * Get the names of the segment files in the directory, sorted.
+   */
+  private static List<String> segmentFiles(Path directory) throws IOException {
+    try (Stream<Path> files = Files.list(directory)) {
+      return files.map(file -> file.getFileName().toString())
+          .filter(name -> name.endsWith(".dat") || name.endsWith(".chunks"))
+          .sorted()
+          .collect(Collectors.toList());
+    }
+  }
+}
@@ -0,0 +1,115 @@
+package no.ntnu.history;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests of rebuilding the rollups after the server stopped without closing them.
+ */
+public class RollupAggregatorTest {
+  private static final long START = 1_700_000_000_000L;
+  private static final int CAPACITY = 1000;
+  private static final int SEGMENTS = 3;
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private Path directory;
+
+  @Before
+  public void setUp() {
+    directory = folder.getRoot().toPath();
+  }
+
+  @Test
+  public void rebuildRestoresTheRollupsOfTheWholeHistory() throws IOException {
+    List<String> expected = writeHistoryAndRollups();
+    List<String> stored = rebuild();
+    assertEquals(expected, stored);
+  }
+
+  @Test
+  public void rebuildKeepsTheBucketsOfExpiredHistory() throws IOException {
+    List<String> expected = writeHistoryAndRollups();
+    // As if the oldest segment was deleted for the retention period
+    Files.delete(directory.resolve(CompressedSegment.fileName(1)));
+    List<String> stored = rebuild();
+    assertEquals(expected, stored);
+    assertTrue(stored.get(0).startsWith("1m@" + RollupResolution.MINUTE.bucketStart(START)));
+  }
+
+  @Test
+  public void rebuildKeepsAllBucketsWhenAllHistoryExpired() throws IOException {
+    List<String> expected = writeHistoryAndRollups();
+    for (long sequence = 1; sequence <= SEGMENTS; sequence++) {
+      Files.delete(directory.resolve(CompressedSegment.fileName(sequence)));
+    }
+    // Only the segment which was being written is left, and it has no points
+    HistorySegment.create(directory, SEGMENTS + 1, CAPACITY);
+    assertEquals(expected, rebuild());
+  }
+
+  /**
+   * Write compressed history segments and the rollups of their points, then close the rollups
+   * and remove the marker, as if the server had stopped without closing them.
+   *
+   * @return the buckets of every resolution
+   */
+  private List<String> writeHistoryAndRollups() throws IOException {
+    RollupAggregator rollups = new RollupAggregator(directory);
+    for (long sequence = 1; sequence <= SEGMENTS; sequence++) {
+      HistorySegment segment = HistorySegment.create(directory, sequence, CAPACITY);
+      long first = START + (sequence - 1) * CAPACITY * 5000L;
+      for (int i = 0; i < CAPACITY; i++) {
+        long timestamp = first + i * 5000L;
+        double value = 20 + (i % 50) * 0.25;
+        segment.write(segment.reserve(), timestamp, 1, 0, value);
+        rollups.add(1, 0, timestamp, value);
+      }
+      segment.seal();
+      CompressedSegment.compress(segment);
+      Path raw = directory.resolve(HistorySegment.fileName(sequence));
+      Files.delete(raw);
+      Files.delete(raw.resolveSibling(raw.getFileName() + ".idx"));
+    }
+    List<String> buckets = queryAll(rollups);
+    rollups.close();
+    Files.delete(directory.resolve("rollup.clean"));
+    return buckets;
+  }
+
+  private List<String> rebuild() throws IOException {
+    SensorHistoryStore store = new SensorHistoryStore(directory, CAPACITY);
+    try {
+      RollupAggregator rollups = new RollupAggregator(directory);
+      assertFalse(rollups.wasClosedCleanly());
+      rollups.rebuild(store);
+      List<String> buckets = queryAll(rollups);
+      rollups.close();
+      return buckets;
+    } finally {
+      store.close();
+    }
+  }
+
+  private static List<String> queryAll(RollupAggregator rollups) throws IOException {
+    List<String> buckets = new ArrayList<>();
+    for (RollupResolution resolution : RollupResolution.values()) {
+      rollups.query(1, 0, resolution, START - RollupResolution.DAY.getMillis(), Long.MAX_VALUE,
+          (bucketStart, min, max, sum, count, last) -> buckets.add(resolution.getLabel() + "@"
+              + bucketStart + "=" + min + ":" + max + ":" + sum + ":" + count + ":" + last));
+    }
+    return buckets;
+  }
+}
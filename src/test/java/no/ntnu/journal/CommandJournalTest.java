@@ -0,0 +1,135 @@
+package no.ntnu.journal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32C;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests of the journal record format and of recovering the actuator states from it.
+ */
+public class CommandJournalTest {
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private Path directory;
+
+  @Before
+  public void setUp() {
+    directory = folder.getRoot().toPath();
+  }
+
+  @Test
+  public void statesSurviveAReopen() throws IOException {
+    CommandJournal journal = new CommandJournal(directory);
+    journal.onActuatorCommand(1, 1, true);
+    journal.onActuatorCommand(1, 2, true);
+    journal.onActuatorCommand(2, 1, true);
+    journal.onActuatorCommand(1, 2, false);
+    journal.close();
+    // Ignored after closing
+    journal.onActuatorCommand(2, 1, false);
+
+    Map<String, Boolean> expected = Map.of("1/1", true, "1/2", false, "2/1", true);
+    assertEquals(expected, recover());
+    // The states are in the snapshot now, and stay there when nothing new is journaled
+    assertEquals(expected, recover());
+  }
+
+  @Test
+  public void recordsAfterTheSnapshotAreReplayed() throws IOException {
+    JournalSnapshot.write(directory, 2, new HashMap<>(Map.of(CommandJournal.key(1, 1), true)));
+    writeJournal(1, record(1, 1, 1, true), record(2, 1, 1, true), record(3, 1, 1, false),
+        record(4, 7, 3, true));
+
+    assertEquals(Map.of("1/1", false, "7/3", true), recover());
+    // Replaying stores a new snapshot, which covers the old journal file
+    assertFalse(Files.exists(journalFile(1)));
+  }
+
+  @Test
+  public void damagedRecordIsSkippedAndLaterRecordsApplied() throws IOException {
+    byte[] damaged = record(2, 2, 1, true);
+    damaged[CommandJournal.RECORD_SIZE - 1] ^= 1;
+    writeJournal(1, record(1, 1, 1, true), damaged, record(3, 3, 1, true));
+
+    assertEquals(Map.of("1/1", true, "3/1", true), recover());
+  }
+
+  @Test
+  public void tornTailIsCutOff() throws IOException {
+    JournalSnapshot.write(directory, 5, new HashMap<>(Map.of(CommandJournal.key(4, 1), true)));
+    byte[] torn = new byte[17];
+    System.arraycopy(record(6, 4, 1, false), 0, torn, 0, torn.length);
+    byte[] garbage = new byte[CommandJournal.RECORD_SIZE];
+    garbage[0] = CommandJournal.COMMAND;
+    writeJournal(4, record(4, 4, 1, true), record(5, 4, 1, true), garbage, torn);
+
+    assertEquals(Map.of("4/1", true), recover());
+    // Nothing was replayed, so the file stays, cut after the last valid record
+    assertEquals(2L * CommandJournal.RECORD_SIZE, Files.size(journalFile(4)));
+  }
+
+  @Test
+  public void appendingContinuesAfterTheRecoveredSequence() throws IOException {
+    writeJournal(1, record(1, 1, 1, true), record(2, 1, 2, true));
+    CommandJournal journal = new CommandJournal(directory);
+    journal.onActuatorCommand(1, 1, false);
+    journal.close();
+
+    assertEquals(Map.of("1/1", false, "1/2", true), recover());
+    assertTrue(Files.exists(directory.resolve(JournalSnapshot.FILE_NAME)));
+  }
+
+  /**
+   * Open the journal and close it again.
+   *
+   * @return the recovered states, by "node/actuator"
+   */
+  private Map<String, Boolean> recover() throws IOException {
+    Map<String, Boolean> states = new TreeMap<>();
+    CommandJournal journal = new CommandJournal(directory);
+    journal.forEachRecoveredState((nodeId, actuatorId, on) ->
+        states.put(nodeId + "/" + actuatorId, on));
+    journal.close();
+    return states;
+  }
+
+  private Path journalFile(long firstSequence) {
+    return directory.resolve(String.format("journal-%012d.log", firstSequence));
+  }
+
+  private void writeJournal(long firstSequence, byte[]... records) throws IOException {
+    ByteArrayOutputStream contents = new ByteArrayOutputStream();
+    for (byte[] record : records) {
+      contents.write(record);
+    }
+    Files.write(journalFile(firstSequence), contents.toByteArray());
+  }
+
+  /**
+   * Encode a state record the way the journal writes it.
+   */
+  private static byte[] record(long sequence, int nodeId, int actuatorId, boolean on) {
+    ByteBuffer record = ByteBuffer.allocate(CommandJournal.RECORD_SIZE);
+    record.put(CommandJournal.STATE).putLong(sequence).putLong(1_700_000_000_000L + sequence)
+        .putInt(nodeId).putInt(actuatorId).put((byte) (on ? 1 : 0));
+    CRC32C crc = new CRC32C();
+    crc.update(record.array(), 0, record.position());
+    record.putInt((int) crc.getValue());
+    return record.array();
+  }
+}
@@ -0,0 +1,167 @@
+package no.ntnu.rules;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import no.ntnu.communication.simulation.SimulationScheduler;
+import no.ntnu.greenhouse.Actuator;
+import no.ntnu.greenhouse.DeviceFactory;
+import no.ntnu.greenhouse.NodeRuntime;
+import no.ntnu.greenhouse.SensorActuatorNode;
+import no.ntnu.listeners.server.ActuatorCommandListener;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests of the commands the rule engine sends for the sensor data it receives.
+ */
+public class RuleEngineTest {
+  // Midnight UTC, so the minute of day is the offset from it
+  private static final long MIDNIGHT = 1_700_006_400_000L;
+  private static final long MINUTE = 60_000;
+  private static final int NODE_ID = 1;
+
+  private SensorActuatorNode node;
+  private Actuator firstFan;
+  private Actuator secondFan;
+  private RecordingCommands commands;
+
+  @Before
+  public void setUp() {
+    node = new SensorActuatorNode(NODE_ID, new NodeRuntime(new SimulationScheduler(1)));
+    firstFan = DeviceFactory.createFan(NODE_ID);
+    secondFan = DeviceFactory.createFan(NODE_ID);
+    node.addActuator(firstFan);
+    node.addActuator(secondFan);
+    // Not a fan, so rules targeting fans leave it alone
+    node.addActuator(DeviceFactory.createHeater(NODE_ID));
+    commands = new RecordingCommands();
+  }
+
+  @Test
+  public void ruleFiresOnceAndReleasesPastTheHysteresis() {
+    RuleEngine engine = engine("cool: when 1/temperature above 30 hysteresis 2 then 1/7 on");
+    send(engine, NODE_ID, "temperature=29.5 °C");
+    // Below the threshold but not yet released: the state was never set, so nothing is sent
+    assertTrue(commands.sent.isEmpty());
+    send(engine, NODE_ID, "temperature=31 °C");
+    send(engine, NODE_ID, "temperature=32 °C");
+    assertEquals(List.of("1/7=true"), commands.sent);
+    // Within the hysteresis the rule keeps firing
+    send(engine, NODE_ID, "temperature=29 °C");
+    send(engine, NODE_ID, "temperature=30.5 °C");
+    assertEquals(List.of("1/7=true"), commands.sent);
+    send(engine, NODE_ID, "temperature=27.9 °C");
+    send(engine, NODE_ID, "temperature=27 °C");
+    assertEquals(List.of("1/7=true", "1/7=false"), commands.sent);
+    send(engine, NODE_ID, "temperature=30.1 °C");
+    assertEquals(List.of("1/7=true", "1/7=false", "1/7=true"), commands.sent);
+  }
+
+  @Test
+  public void belowRuleWithOffStateSendsTheOpposite() {
+    RuleEngine engine = engine("save: when 1/temperature below 15 hysteresis 1 then 1/3 off");
+    send(engine, NODE_ID, "temperature=14 °C");
+    send(engine, NODE_ID, "temperature=15.5 °C");
+    send(engine, NODE_ID, "temperature=16.5 °C");
+    assertEquals(List.of("1/3=false", "1/3=true"), commands.sent);
+  }
+
+  @Test
+  public void typeTargetSendsToEveryActuatorOfTheTypeOnTheReadingNode() {
+    RuleEngine engine = engine("cool: when */temperature above 30 then fan on");
+    send(engine, NODE_ID, "temperature=31 °C");
+    assertEquals(List.of(NODE_ID + "/" + firstFan.getId() + "=true",
+        NODE_ID + "/" + secondFan.getId() + "=true"), commands.sent);
+    // A node which the engine doesn't know has no actuators to find
+    send(engine, 2, "temperature=31 °C");
+    assertEquals(2, commands.sent.size());
+  }
+
+  @Test
+  public void ruleOnlyChecksItsSourceNodeAndKeepsStatePerNode() {
+    RuleEngine engine = engine("cool: when 2/temperature above 30 then 2/5 on",
+        "any: when */humidity above 80 then 9/9 on");
+    send(engine, NODE_ID, "temperature=35 °C");
+    assertTrue(commands.sent.isEmpty());
+    send(engine, 2, "temperature=35 °C");
+    send(engine, 3, "humidity=85 %");
+    send(engine, 4, "humidity=85 %");
+    assertEquals(List.of("2/5=true", "9/9=true", "9/9=true"), commands.sent);
+  }
+
+  @Test
+  public void rulesSeeTheMeanOfTheSensorsOfAType() {
+    RuleEngine engine = engine("cool: when 1/temperature above 30 then 1/7 on");
+    // The first reading sets the state, so a mean below the threshold releases the rule
+    send(engine, NODE_ID, "temperature=35 °C,humidity=50 %,temperature=24 °C");
+    assertEquals(List.of("1/7=false"), commands.sent);
+    send(engine, NODE_ID, "temperature=35 °C,humidity=50 %,temperature=26 °C");
+    assertEquals(List.of("1/7=false", "1/7=true"), commands.sent);
+  }
+
+  @Test
+  public void readingsOfOtherTypesAndInvalidValuesAreIgnored() {
+    RuleEngine engine = engine("cool: when 1/temperature above 30 then 1/7 on");
+    send(engine, NODE_ID, "humidity=95 %,temperatures=40 °C");
+    send(engine, NODE_ID, "temperature=hot");
+    assertTrue(commands.sent.isEmpty());
+  }
+
+  @Test
+  public void ruleWithPeriodIsOnlyEvaluatedDuringIt() {
+    RuleEngine engine = engine(
+        "day: when 1/temperature above 30 hysteresis 2 during 08:00-20:00 then 1/7 on");
+    send(engine, NODE_ID, "temperature=35 °C", 7 * 60 + 59);
+    assertTrue(commands.sent.isEmpty());
+    send(engine, NODE_ID, "temperature=35 °C", 8 * 60);
+    assertEquals(List.of("1/7=true"), commands.sent);
+    // Outside the period the rule is not released, it keeps its state until the next period
+    send(engine, NODE_ID, "temperature=20 °C", 21 * 60);
+    assertEquals(List.of("1/7=true"), commands.sent);
+    send(engine, NODE_ID, "temperature=20 °C", 24 * 60 + 8 * 60);
+    assertEquals(List.of("1/7=true", "1/7=false"), commands.sent);
+  }
+
+  @Test
+  public void periodOverMidnightUsesTheTimeZoneOfTheEngine() {
+    List<Rule> rules = RuleParser.parse(List.of(
+        "night: when 1/temperature below 15 during 22:00-06:00 then 1/3 on"));
+    // 21:30 UTC is 23:30 at an offset of two hours
+    RuleEngine engine = new RuleEngine(rules, Map.of(NODE_ID, node), commands,
+        ZoneOffset.ofHours(2));
+    send(engine, NODE_ID, "temperature=10 °C", 19 * 60 + 30);
+    assertTrue(commands.sent.isEmpty());
+    send(engine, NODE_ID, "temperature=10 °C", 21 * 60 + 30);
+    assertEquals(List.of("1/3=true"), commands.sent);
+  }
+
+  private RuleEngine engine(String... lines) {
+    return new RuleEngine(RuleParser.parse(List.of(lines)), Map.of(NODE_ID, node), commands,
+        ZoneOffset.UTC);
+  }
+
+  private static void send(RuleEngine engine, int nodeId, String sensorData) {
+    send(engine, nodeId, sensorData, 12 * 60);
+  }
+
+  private static void send(RuleEngine engine, int nodeId, String sensorData, int minuteOfDay) {
+    engine.onSensorData(nodeId, sensorData, MIDNIGHT + minuteOfDay * MINUTE);
+  }
+
+  /**
+   * Remembers the commands of the rules as "node/actuator=on".
+   */
+  private static class RecordingCommands implements ActuatorCommandListener {
+    private final List<String> sent = new ArrayList<>();
+
+    @Override
+    public void onActuatorCommand(int nodeId, int actuatorId, boolean on) {
+      sent.add(nodeId + "/" + actuatorId + "=" + on);
+    }
+  }
+}
@@ -0,0 +1,135 @@
+package no.ntnu.rules;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import org.junit.Test;
+
+/**
+ * Tests of reading rules from text.
+ */
+public class RuleParserTest {
+
+  @Test
+  public void ruleWithActuatorTargetIsParsed() {
+    Rule rule = parseOne("cool-down: when 2/temperature above 30 hysteresis 2 then 2/4 on");
+    assertEquals("cool-down", rule.getName());
+    assertEquals(2, rule.getSourceNodeId());
+    assertEquals("temperature", rule.getSensorType());
+    assertTrue(rule.isAbove());
+    assertEquals(30, rule.getThreshold(), 0);
+    assertEquals(2, rule.getHysteresis(), 0);
+    assertFalse(rule.hasTimeOfDay());
+    assertEquals(2, rule.getTargetNodeId());
+    assertEquals(4, rule.getTargetActuatorId());
+    assertNull(rule.getTargetActuatorType());
+    assertTrue(rule.isOn());
+  }
+
+  @Test
+  public void ruleWithTypeTargetUsesTheSourceNode() {
+    Rule rule = parseOne("vent: when */humidity below 40.5 then window off");
+    assertEquals(Rule.ANY_NODE, rule.getSourceNodeId());
+    assertFalse(rule.isAbove());
+    assertEquals(40.5, rule.getThreshold(), 0);
+    assertEquals(0, rule.getHysteresis(), 0);
+    assertEquals(Rule.ANY_NODE, rule.getTargetNodeId());
+    assertEquals(Rule.ANY_ACTUATOR, rule.getTargetActuatorId());
+    assertEquals("window", rule.getTargetActuatorType());
+    assertFalse(rule.isOn());
+  }
+
+  @Test
+  public void periodIsActiveFromItsStartUntilItsEnd() {
+    Rule rule = parseOne("day: when 1/temperature above 30 during 08:00-20:00 then fan on");
+    assertTrue(rule.hasTimeOfDay());
+    assertFalse(rule.isActiveAt(7 * 60 + 59));
+    assertTrue(rule.isActiveAt(8 * 60));
+    assertTrue(rule.isActiveAt(20 * 60 - 1));
+    assertFalse(rule.isActiveAt(20 * 60));
+  }
+
+  @Test
+  public void periodOverMidnightWrapsAround() {
+    Rule rule = parseOne("night: when 1/temperature below 15 during 22:00-06:00 then heater on");
+    assertTrue(rule.isActiveAt(23 * 60));
+    assertTrue(rule.isActiveAt(0));
+    assertTrue(rule.isActiveAt(6 * 60 - 1));
+    assertFalse(rule.isActiveAt(6 * 60));
+    assertFalse(rule.isActiveAt(12 * 60));
+  }
+
+  @Test
+  public void periodCanEndAtMidnight() {
+    Rule rule = parseOne("evening: when 1/temperature above 25 during 18:00-24:00 then fan on");
+    assertTrue(rule.isActiveAt(24 * 60 - 1));
+    assertFalse(rule.isActiveAt(0));
+  }
+
+  @Test
+  public void emptyLinesAndCommentsAreSkipped() {
+    List<Rule> rules = RuleParser.parse(List.of(
+        "# Cooling",
+        "",
+        "first: when 1/temperature above 30 then fan on",
+        "   ",
+        "second: when 2/temperature above 30 then fan on"));
+    assertEquals(2, rules.size());
+    assertEquals("first", rules.get(0).getName());
+    assertEquals("second", rules.get(1).getName());
+  }
+
+  @Test
+  public void errorsNameTheLineAndTheProblem() {
+    assertError("Expected name: when ...", "when 1/temperature above 30 then fan on");
+    assertError("Expected when, got if", "a: if 1/temperature above 30 then fan on");
+    assertError("Expected source/type, got temperature",
+        "a: when temperature above 30 then fan on");
+    assertError("Invalid node ID: 0", "a: when 0/temperature above 30 then fan on");
+    assertError("Expected above or below, got over", "a: when 1/temperature over 30 then fan on");
+    assertError("Invalid number: hot", "a: when 1/temperature above hot then fan on");
+    assertError("Invalid number: x", "a: when 1/temperature above 30 hysteresis x then fan on");
+    assertError("Expected HH:MM-HH:MM, got 08:00", "a: when 1/temperature above 30 during 08:00 "
+        + "then fan on");
+    assertError("Invalid time of day: 25:00", "a: when 1/temperature above 30 during 25:00-26:00 "
+        + "then fan on");
+    assertError("Empty period 24:00-00:00", "a: when 1/temperature above 30 during 24:00-00:00 "
+        + "then fan on");
+    assertError("Invalid actuator ID: x", "a: when 1/temperature above 30 then 1/x on");
+    assertError("Expected on or off, got maybe", "a: when 1/temperature above 30 then fan maybe");
+    assertError("Expected on or off at the end", "a: when 1/temperature above 30 then fan");
+    assertError("Unexpected now", "a: when 1/temperature above 30 then fan on now");
+  }
+
+  @Test
+  public void negativeHysteresisIsRejected() {
+    assertError("Hysteresis can't be negative",
+        "a: when 1/temperature above 30 hysteresis -1 then fan on");
+  }
+
+  @Test
+  public void errorOnALaterLineReportsThatLine() {
+    IllegalArgumentException e = assertThrows(IllegalArgumentException.class,
+        () -> RuleParser.parse(List.of(
+            "# Cooling",
+            "a: when 1/temperature above 30 then fan on",
+            "b: when 1/temperature above 30 then fan")));
+    assertEquals("Rule on line 3: Expected on or off at the end", e.getMessage());
+  }
+
+  private static Rule parseOne(String line) {
+    List<Rule> rules = RuleParser.parse(List.of(line));
+    assertEquals(1, rules.size());
+    return rules.get(0);
+  }
+
+  private static void assertError(String expected, String line) {
+    IllegalArgumentException e = assertThrows(IllegalArgumentException.class,
+        () -> RuleParser.parse(List.of(line)));
+    assertEquals("Rule on line 1: " + expected, e.getMessage());
+  }
+}
@@ -0,0 +1,98 @@
+package no.ntnu.tools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+/**
+ * Tests of the asynchronous log appender, with a full buffer and an idle writer.
+ */
+public class AsyncLogAppenderTest {
+    private static final int PRODUCERS = 4;
+    private static final int MESSAGES = 2000;
+
+    @Test
+    public void everyMessageIsWrittenOrCountedAsDropped() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        ByteArrayOutputStream written = new ByteArrayOutputStream();
+        ByteArrayOutputStream errors = new ByteArrayOutputStream();
+        // The console stalls until the producers are done, so the buffer fills up
+        OutputStream stalled = new OutputStream() {
+            @Override
+            public void write(int b) {
+                write(new byte[] {(byte) b}, 0, 1);
+            }
+
+            @Override
+            public synchronized void write(byte[] bytes, int offset, int length) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                written.write(bytes, offset, length);
+            }
+        };
+        AsyncLogAppender appender = new AsyncLogAppender(new PrintStream(stalled, false,
+                StandardCharsets.UTF_8), new PrintStream(errors, true, StandardCharsets.UTF_8), 16);
+
+        List<Thread> producers = new ArrayList<>();
+        for (int p = 0; p < PRODUCERS; p++) {
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < MESSAGES; i++) {
+                    appender.append("message", false, true);
+                }
+            });
+            producers.add(thread);
+            thread.start();
+        }
+        for (Thread thread : producers) {
+            thread.join();
+        }
+        long dropped = appender.getDroppedCount();
+        assertTrue(dropped > 0);
+
+        release.countDown();
+        appender.shutdown();
+        String output = written.toString(StandardCharsets.UTF_8);
+        long lines = output.lines().count();
+        assertEquals(PRODUCERS * MESSAGES, lines + dropped);
+        assertEquals(dropped, appender.getDroppedCount());
+        assertTrue(errors.toString(StandardCharsets.UTF_8)
+                .contains("(" + dropped + " in total)"));
+    }
+
+    @Test
+    public void idleWriterWakesUpForANewMessage() throws Exception {
+        ByteArrayOutputStream written = new ByteArrayOutputStream();
+        CountDownLatch arrived = new CountDownLatch(1);
+        OutputStream signalling = new OutputStream() {
+            @Override
+            public void write(int b) {
+                written.write(b);
+                arrived.countDown();
+            }
+        };
+        AsyncLogAppender appender = new AsyncLogAppender(new PrintStream(signalling, true,
+                StandardCharsets.UTF_8), System.err, 16);
+        try {
+            // Let the writer find the buffer empty and park
+            Thread.sleep(20);
+            appender.append("wake up", false, false);
+            // Well within the idle timeout of the writer, so it must have been woken
+            assertTrue(arrived.await(50, TimeUnit.MILLISECONDS));
+        } finally {
+            appender.shutdown();
+        }
+        assertEquals("wake up", written.toString(StandardCharsets.UTF_8));
+    }
+}